@@ -15,112 +15,167 @@
  */
 package org.aludratest.cloud.selenium;
 
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-
 import javax.faces.bean.ManagedBean;
 import javax.faces.bean.SessionScoped;
+import javax.faces.context.FacesContext;
 import javax.faces.event.ActionEvent;
-import javax.imageio.ImageIO;
+import javax.faces.event.PhaseId;
 
 import org.aludratest.cloud.app.CloudManagerApp;
 import org.aludratest.cloud.config.MutablePreferences;
 import org.aludratest.cloud.config.Preferences;
-import org.aludratest.cloud.resource.ResourceCollection;
-import org.aludratest.cloud.resource.ResourceStateHolder;
-import org.aludratest.cloud.resourcegroup.ResourceGroup;
-import org.aludratest.cloud.resourcegroup.ResourceGroupManager;
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceModule;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceRegistry;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService.Screenshot;
+import org.aludratest.cloud.selenium.impl.SeleniumStateCounters;
+import org.aludratest.cloud.selenium.impl.SeleniumUtil;
 import org.aludratest.cloud.util.JSFUtil;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.IOUtils;
 import org.primefaces.model.ByteArrayContent;
+import org.primefaces.model.DefaultStreamedContent;
 import org.primefaces.model.StreamedContent;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 @ManagedBean(name = "seleniumResourceBean")
 @SessionScoped
 public class SeleniumResourceBean {
 	
-	private static final Logger LOG = LoggerFactory.getLogger(SeleniumResourceBean.class);
-
-	private byte[] currentScreenshot;
+	private SeleniumResource screenshotResource;
 
 	MutablePreferences config;
 
-	private byte[] takeSeleniumResourceScreenshot(String seleniumUrl) {
-		String url = seleniumUrl;
-		url += "/selenium-server/driver/?cmd=captureScreenshotToString";
-
-		InputStream in = null;
-		try {
-			in = new URL(url).openStream();
-			in.read(new byte[3]); // read away "OK,"
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			IOUtils.copy(in, baos);
-
-			// decode Base64
-			byte[] rawImageData = Base64.decodeBase64(baos.toByteArray());
-
-			// create image from bytes
-			BufferedImage img = ImageIO.read(new ByteArrayInputStream(rawImageData));
-
-			// shrink image
-			float sizeFactor = 2;
-			BufferedImage imgSmall = new BufferedImage((int) (img.getWidth() / sizeFactor), (int) (img.getHeight() / sizeFactor),
-					BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = imgSmall.createGraphics();
-			g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-			g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-			g2d.drawImage(img, 0, 0, imgSmall.getWidth(), imgSmall.getHeight(), 0, 0, img.getWidth(), img.getHeight(), null);
-			g2d.dispose();
-
-			// get PNG bytes
-			baos = new ByteArrayOutputStream();
-			ImageIO.write(imgSmall, "png", baos);
-			return baos.toByteArray();
-		}
-		catch (IOException e) {
-			LOG.warn("Could not take Selenium screenshot: " + e.getMessage());
-			return null;
-		}
-		finally {
-			IOUtils.closeQuietly(in);
-		}
-	}
-	
 	public void updateScreenshot(ActionEvent event) {
-		currentScreenshot = null;
+		screenshotResource = null;
 
 		String resourceString = (String) JSFUtil.getParamValue(event.getComponent(), "resourceName");
 		if (resourceString == null) {
 			return;
 		}
 
-		SeleniumResource res = stringToResource(resourceString);
-		if (res == null) {
-			return;
-		}
+		screenshotResource = stringToResource(resourceString);
+		requestScreenshot(false);
+	}
 
-		currentScreenshot = takeSeleniumResourceScreenshot(res.getOriginalUrl());
+	public void refreshScreenshot() {
+		requestScreenshot(true);
+	}
+
+	private void requestScreenshot(boolean force) {
+		SeleniumScreenshotService service = getScreenshotService();
+		if (service != null && screenshotResource != null) {
+			service.requestScreenshot(screenshotResource, force);
+		}
 	}
 
 	public boolean hasScreenshot() {
-		return currentScreenshot != null;
+		return getCurrentScreenshot() != null;
+	}
+
+	public boolean isScreenshotPending() {
+		SeleniumScreenshotService service = getScreenshotService();
+		return service != null && screenshotResource != null && service.isCapturePending(screenshotResource);
+	}
+
+	public long getScreenshotAgeSeconds() {
+		Screenshot screenshot = getCurrentScreenshot();
+		return screenshot == null ? 0 : (System.currentTimeMillis() - screenshot.getTimestamp()) / 1000;
+	}
+
+	public String getLiveViewUrl() {
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		if (module == null || module.getProxyServer() == null || screenshotResource == null) {
+			return null;
+		}
+		return module.getProxyServer().getLiveViewUrl(screenshotResource);
 	}
 
 	public StreamedContent getScreenshot() {
-		if (currentScreenshot == null) {
+		Screenshot screenshot = getCurrentScreenshot();
+		if (screenshot == null) {
 			return null;
 		}
 
-		return new ByteArrayContent(currentScreenshot, "image/png");
+		return new ByteArrayContent(screenshot.getImageData(), screenshot.getContentType());
+	}
+
+	/**
+	 * Returns the cached screenshot of the Selenium resource whose URL is passed in the <code>url</code> request parameter. Used
+	 * to display the screenshots of a whole resource group.
+	 * 
+	 * @return The cached screenshot of the Selenium resource whose URL is passed in the request.
+	 */
+	public StreamedContent getGroupScreenshot() {
+		FacesContext context = FacesContext.getCurrentInstance();
+		if (context.getCurrentPhaseId() == PhaseId.RENDER_RESPONSE) {
+			// only the image URL is rendered; the content is retrieved in a separate request
+			return new DefaultStreamedContent();
+		}
+
+		SeleniumScreenshotService service = getScreenshotService();
+		String url = context.getExternalContext().getRequestParameterMap().get("url");
+		Screenshot screenshot = service == null || url == null ? null : service.getScreenshot(url);
+		if (screenshot == null) {
+			return null;
+		}
+
+		return new ByteArrayContent(screenshot.getImageData(), screenshot.getContentType());
+	}
+
+	private Screenshot getCurrentScreenshot() {
+		SeleniumScreenshotService service = getScreenshotService();
+		if (service == null || screenshotResource == null) {
+			return null;
+		}
+		return service.getScreenshot(screenshotResource);
+	}
+
+	private static SeleniumScreenshotService getScreenshotService() {
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		if (module == null || module.getProxyServer() == null) {
+			return null;
+		}
+		return module.getProxyServer().getScreenshotService();
+	}
+
+	public ResourceState[] getStates() {
+		return ResourceState.values();
+	}
+
+	/**
+	 * Returns the number of Selenium resources in the given state, read from the state counters of the resource group.
+	 * 
+	 * @param groupId
+	 *            ID of the resource group, or an empty string for the number of resources in all Selenium resource groups.
+	 * @param state
+	 *            Resource state.
+	 * @return The number of Selenium resources in the given state.
+	 */
+	public int getStateCount(String groupId, ResourceState state) {
+		SeleniumStateCounters counters = getStateCounters(groupId);
+		return counters == null ? 0 : counters.getCount(state);
+	}
+
+	public int getTotalCount(String groupId) {
+		SeleniumStateCounters counters = getStateCounters(groupId);
+		return counters == null ? 0 : counters.getTotal();
+	}
+
+	private static SeleniumStateCounters getStateCounters(String groupId) {
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		if (registry == null) {
+			return null;
+		}
+		if (groupId == null || "".equals(groupId)) {
+			return registry.getFleetStateCounters();
+		}
+		try {
+			return registry.getStateCounters(Integer.parseInt(groupId));
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
 	}
 
 	public String loadConfig(Preferences config) {
@@ -128,7 +183,7 @@ public class SeleniumResourceBean {
 		return "";
 	}
 
-	public synchronized boolean isResourceLocked(String resourceString) {
+	public boolean isResourceLocked(String resourceString) {
 		// find resource from string representation
 		SeleniumResource res = stringToResource(resourceString);
 		if (res == null) {
@@ -160,20 +215,8 @@ public class SeleniumResourceBean {
 	}
 
 	private SeleniumResource stringToResource(String string) {
-		ResourceGroupManager manager = CloudManagerApp.getInstance().getResourceGroupManager();
-		for (int groupId : manager.getAllResourceGroupIds()) {
-			ResourceGroup group = manager.getResourceGroup(groupId);
-			if (group.getResourceType().equals(SeleniumResourceType.INSTANCE)) {
-				ResourceCollection<?> collection = group.getResourceCollection();
-				for (ResourceStateHolder rsh : collection) {
-					if (rsh.toString().equals(string)) {
-						return (SeleniumResource) rsh;
-					}
-				}
-			}
-		}
-
-		return null;
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		return registry == null ? null : registry.getResourceByDisplayKey(string);
 	}
 
 }
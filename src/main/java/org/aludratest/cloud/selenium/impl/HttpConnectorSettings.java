@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+/**
+ * Settings for the HTTP connector of a {@link HttpResourceProxyServer}. Instances are immutable; two instances are equal if
+ * all of their settings are equal.
+ * 
+ */
+public final class HttpConnectorSettings {
+
+	private int acceptors;
+
+	private int acceptQueueSize;
+
+	private boolean tcpNoDelay;
+
+	private int idleTimeoutMillis;
+
+	private int requestHeaderSize;
+
+	private int requestBufferSize;
+
+	private int responseBufferSize;
+
+	/**
+	 * Creates a new settings object.
+	 * 
+	 * @param acceptors
+	 *            Number of acceptor threads. For the NIO connector, this is also the number of selectors.
+	 * @param acceptQueueSize
+	 *            Size of the accept queue (TCP backlog), or 0 to use the system default.
+	 * @param tcpNoDelay
+	 *            Whether to disable Nagle's algorithm on accepted connections.
+	 * @param idleTimeoutMillis
+	 *            Time after which idle connections are closed, in milliseconds.
+	 * @param requestHeaderSize
+	 *            Maximum size of request headers, in bytes.
+	 * @param requestBufferSize
+	 *            Size of the request buffer, in bytes.
+	 * @param responseBufferSize
+	 *            Size of the response buffer, in bytes.
+	 */
+	public HttpConnectorSettings(int acceptors, int acceptQueueSize, boolean tcpNoDelay, int idleTimeoutMillis,
+			int requestHeaderSize, int requestBufferSize, int responseBufferSize) {
+		this.acceptors = acceptors;
+		this.acceptQueueSize = acceptQueueSize;
+		this.tcpNoDelay = tcpNoDelay;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.requestHeaderSize = requestHeaderSize;
+		this.requestBufferSize = requestBufferSize;
+		this.responseBufferSize = responseBufferSize;
+	}
+
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public int getAcceptQueueSize() {
+		return acceptQueueSize;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public int getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public int getRequestHeaderSize() {
+		return requestHeaderSize;
+	}
+
+	public int getRequestBufferSize() {
+		return requestBufferSize;
+	}
+
+	public int getResponseBufferSize() {
+		return responseBufferSize;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof HttpConnectorSettings)) {
+			return false;
+		}
+		HttpConnectorSettings other = (HttpConnectorSettings) obj;
+		return acceptors == other.acceptors && acceptQueueSize == other.acceptQueueSize && tcpNoDelay == other.tcpNoDelay
+				&& idleTimeoutMillis == other.idleTimeoutMillis && requestHeaderSize == other.requestHeaderSize
+				&& requestBufferSize == other.requestBufferSize && responseBufferSize == other.responseBufferSize;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = acceptors;
+		result = 31 * result + acceptQueueSize;
+		result = 31 * result + (tcpNoDelay ? 1 : 0);
+		result = 31 * result + idleTimeoutMillis;
+		result = 31 * result + requestHeaderSize;
+		result = 31 * result + requestBufferSize;
+		result = 31 * result + responseBufferSize;
+		return result;
+	}
+
+}
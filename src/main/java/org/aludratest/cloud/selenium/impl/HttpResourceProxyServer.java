@@ -18,11 +18,13 @@ package org.aludratest.cloud.selenium.impl;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -38,7 +40,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.aludratest.cloud.resource.Resource;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.thread.ExecutorThreadPool;
@@ -62,7 +66,15 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 
 	private static final Logger LOG = LoggerFactory.getLogger(HttpResourceProxyServer.class);
 
-	private Map<Integer, T> proxies = new LinkedHashMap<Integer, T>();
+	private Map<Integer, T> proxies = new ConcurrentHashMap<Integer, T>();
+
+	/* Index for finding the proxy of a resource without scanning all proxies. */
+	private ConcurrentMap<String, T> proxiesByResourceKey = new ConcurrentHashMap<String, T>();
+
+	private Map<Integer, String> resourceKeysByProxyId = new ConcurrentHashMap<Integer, String>();
+
+	/* Reservations of resource keys whose proxy is being created; other threads registering the same key wait on these. */
+	private ConcurrentMap<String, Object> registrationLocks = new ConcurrentHashMap<String, Object>();
 
 	private AtomicInteger nextProxyId = new AtomicInteger(0);
 
@@ -80,27 +92,55 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 
 	private int maxProxyThreads;
 
-	public HttpResourceProxyServer(String hostName, int port, int maxProxyQueueSize, int maxProxyThreads) {
+	private HttpConnectorSettings connectorSettings;
+
+	private Connector connector;
+
+	public HttpResourceProxyServer(String hostName, int port, int maxProxyQueueSize, int maxProxyThreads,
+			HttpConnectorSettings connectorSettings) {
 		this.hostName = hostName;
 		this.port = port;
 		this.maxProxyQueueSize = maxProxyQueueSize;
 		this.maxProxyThreads = maxProxyThreads;
+		this.connectorSettings = connectorSettings;
 		createJetty(port);
 	}
 
 	private void createJetty(int port) {
-		jettyServer = new Server(port);
+		jettyServer = new Server();
+		connector = createConnector(port);
+		jettyServer.addConnector(connector);
 
 		createThreadPool();
 
 		servletContextHandler = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
 		servletContextHandler.setContextPath("/");
 
-		servletContextHandler.addServlet(new ServletHolder(this), "/*");
+		// also used by the proxies for their upstream HTTP clients
+		ServletHolder holder = new ServletHolder(this);
+		holder.setInitParameter("requestHeaderSize", String.valueOf(connectorSettings.getRequestHeaderSize()));
+		holder.setInitParameter("requestBufferSize", String.valueOf(connectorSettings.getRequestBufferSize()));
+		holder.setInitParameter("responseBufferSize", String.valueOf(connectorSettings.getResponseBufferSize()));
+		servletContextHandler.addServlet(holder, "/*");
 
 		jettyServer.setHandler(servletContextHandler);
 	}
 
+	private Connector createConnector(int port) {
+		TunableSelectChannelConnector connector = new TunableSelectChannelConnector(connectorSettings.isTcpNoDelay());
+		connector.setPort(port);
+		if (connectorSettings.getAcceptors() > 0) {
+			connector.setAcceptors(connectorSettings.getAcceptors());
+		}
+		connector.setAcceptQueueSize(connectorSettings.getAcceptQueueSize());
+		connector.setMaxIdleTime(connectorSettings.getIdleTimeoutMillis());
+		connector.setRequestHeaderSize(connectorSettings.getRequestHeaderSize());
+		connector.setRequestBufferSize(connectorSettings.getRequestBufferSize());
+		connector.setResponseBufferSize(connectorSettings.getResponseBufferSize());
+		connector.setStatsOn(true);
+		return connector;
+	}
+
 	private void createThreadPool() {
 		LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(maxProxyQueueSize);
 
@@ -133,15 +173,122 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 		return jettyServer.isRunning();
 	}
 
+	public HttpConnectorSettings getConnectorSettings() {
+		return connectorSettings;
+	}
+
 	public void restartJetty(int newJettyPort) throws Exception {
-		if (jettyServer.isRunning()) {
-			jettyServer.stop();
-			jettyServer.join();
+		restartJetty(newJettyPort, connectorSettings, 0);
+	}
+
+	/**
+	 * Moves Jetty to the given port, using the given connector settings. If Jetty is running, the port changes and a drain
+	 * timeout is given, a second connector is started on the new port while the old connector keeps serving requests. The
+	 * access URLs of all proxies are switched to the new port immediately. The old connector is stopped as soon as it has no
+	 * more open connections and no session started before the switch is still active, or when the drain timeout elapses.
+	 * Otherwise, Jetty is stopped and started again, which interrupts all requests in flight.
+	 * 
+	 * @param newJettyPort
+	 *            Port to listen on.
+	 * @param newConnectorSettings
+	 *            Settings for the HTTP connector.
+	 * @param drainTimeoutMillis
+	 *            Maximum time to keep serving the old port, in milliseconds. Use 0 for an immediate restart.
+	 * @throws Exception
+	 *             If Jetty could not be (re)started, e.g. because the port is blocked.
+	 */
+	public synchronized void restartJetty(int newJettyPort, HttpConnectorSettings newConnectorSettings,
+			long drainTimeoutMillis) throws Exception {
+		if (!jettyServer.isRunning() || newJettyPort == port || drainTimeoutMillis <= 0) {
+			this.connectorSettings = newConnectorSettings;
+			if (jettyServer.isRunning()) {
+				jettyServer.stop();
+				jettyServer.join();
+			}
+			this.port = newJettyPort;
+			createJetty(newJettyPort);
+			start();
+			updateProxyAccessUrls();
+			return;
+		}
+
+		HttpConnectorSettings oldConnectorSettings = connectorSettings;
+		this.connectorSettings = newConnectorSettings;
+		Connector newConnector = createConnector(newJettyPort);
+		jettyServer.addConnector(newConnector);
+		try {
+			newConnector.start();
 		}
+		catch (Exception e) {
+			jettyServer.removeConnector(newConnector);
+			this.connectorSettings = oldConnectorSettings;
+			throw e;
+		}
+
+		Connector oldConnector = connector;
+		int oldPort = port;
+		connector = newConnector;
 		this.port = newJettyPort;
-		createJetty(newJettyPort);
-		start();
 		updateProxyAccessUrls();
+
+		LOG.info("Proxy server now listening on port " + newJettyPort + ", draining port " + oldPort);
+		drainConnector(jettyServer, oldConnector, System.currentTimeMillis(), drainTimeoutMillis);
+	}
+
+	private void drainConnector(final Server server, final Connector oldConnector, final long switchTime,
+			final long drainTimeoutMillis) {
+		Thread drainThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long deadline = switchTime + drainTimeoutMillis;
+				boolean drained = false;
+				try {
+					while (!drained && System.currentTimeMillis() < deadline && oldConnector.isRunning()) {
+						drained = oldConnector.getConnectionsOpen() == 0 && !hasActiveSessionsStartedBefore(switchTime);
+						if (!drained) {
+							Thread.sleep(1000);
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				if (!oldConnector.isRunning()) {
+					return;
+				}
+				if (drained) {
+					LOG.info("Old proxy port " + oldConnector.getPort() + " drained, closing it");
+				}
+				else {
+					LOG.warn("Drain timeout elapsed for old proxy port " + oldConnector.getPort() + ", closing it with "
+							+ oldConnector.getConnectionsOpen() + " open connection(s)");
+				}
+				try {
+					oldConnector.stop();
+				}
+				catch (Exception e) {
+					LOG.warn("Could not stop connector on old proxy port " + oldConnector.getPort(), e);
+				}
+				server.removeConnector(oldConnector);
+			}
+		});
+		drainThread.setName("Proxy Server Port Drain " + oldConnector.getPort());
+		drainThread.setDaemon(true);
+		drainThread.start();
+	}
+
+	/**
+	 * Checks if any proxy has an active session which started before the given time. Used to determine when an old port is
+	 * drained after a port change. The default implementation returns <code>false</code>.
+	 * 
+	 * @param time
+	 *            Time to check against, in milliseconds since the epoch.
+	 * @return <code>true</code> if any proxy has an active session which started before the given time, <code>false</code>
+	 *         otherwise.
+	 */
+	protected boolean hasActiveSessionsStartedBefore(long time) {
+		return false;
 	}
 
 	public void shutdown() throws Exception {
@@ -150,10 +297,17 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 			jettyServer.join();
 		}
 
-		for (T proxy : proxies.values()) {
+		List<T> allProxies;
+		synchronized (this) {
+			allProxies = getAllProxies();
+			proxies.clear();
+			proxiesByResourceKey.clear();
+			resourceKeysByProxyId.clear();
+		}
+
+		for (T proxy : allProxies) {
 			proxy.destroy();
 		}
-		proxies.clear();
 	}
 
 	/**
@@ -172,50 +326,174 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 		}
 	}
 
-	protected abstract T findExistingProxy(R resource, Collection<T> existingProxies);
+	/**
+	 * Returns the key identifying the given resource, e.g. its URL. At most one proxy is registered per resource key.
+	 * 
+	 * @param resource
+	 *            Resource to return the key for.
+	 * @return The key identifying the resource, never <code>null</code>.
+	 */
+	protected abstract String getResourceKey(R resource);
 
+	/**
+	 * Creates a new proxy for the given resource. This is called at most once per resource key at a time, without holding the
+	 * monitor of this server, and the proxy is initialized and published afterwards. Implementations should only construct
+	 * the proxy here and apply any effects on shared state in {@link #proxyRegistered(HttpResourceProxy, Resource)}.
+	 * 
+	 * @param id
+	 *            ID of the new proxy.
+	 * @param resource
+	 *            Resource to create the proxy for.
+	 * @param path
+	 *            Path of the proxy on this server.
+	 * @param accessUrl
+	 *            URL for accessing the resource via the proxy.
+	 * @return The new proxy.
+	 */
 	protected abstract T createProxy(int id, R resource, String path, String accessUrl);
 
+	/**
+	 * Called once after a proxy created by {@link #createProxy(int, Resource, String, String)} has been initialized and
+	 * published. The default implementation does nothing.
+	 * 
+	 * @param proxy
+	 *            The registered proxy.
+	 * @param resource
+	 *            Resource of the proxy.
+	 */
+	protected void proxyRegistered(T proxy, R resource) {
+	}
+
 	protected abstract void updateProxyAccessUrl(T proxy, String newAccessUrl);
 
 	protected final synchronized List<T> getAllProxies() {
 		return new ArrayList<T>(proxies.values());
 	}
 
+	protected final int getProxyCount() {
+		return proxies.size();
+	}
+
+	/**
+	 * Returns the proxy with the given ID, if any.
+	 * 
+	 * @param id
+	 *            ID of the proxy.
+	 * @return The proxy with the given ID, or <code>null</code> if no such proxy is registered.
+	 */
+	protected final T getProxy(int id) {
+		return proxies.get(Integer.valueOf(id));
+	}
+
+	/**
+	 * Returns the proxy registered for the given resource, if any.
+	 * 
+	 * @param resource
+	 *            Resource to return the proxy for.
+	 * @return The proxy registered for the given resource, or <code>null</code> if no proxy is registered for this resource.
+	 */
+	public T getProxyForResource(R resource) {
+		return proxiesByResourceKey.get(getResourceKey(resource));
+	}
+
 	public T addProxyForResource(R resource) throws MalformedURLException {
-		T proxy = findExistingProxy(resource, getAllProxies());
+		return registerProxy(resource);
+	}
+
+	/**
+	 * Registers proxies for all of the given resources. Resources which already have a proxy registered keep their existing
+	 * proxy. This is more efficient than calling {@link #addProxyForResource(Resource)} for each resource, as subclasses can
+	 * apply expensive adjustments (e.g. resizing of thread pools) only once for the whole collection.
+	 * 
+	 * @param resources
+	 *            Resources to register proxies for.
+	 * @return The proxies for the given resources, in iteration order of the given collection.
+	 * @throws MalformedURLException
+	 *             If the URL of any of the resources is invalid. Proxies for preceding resources are registered anyway.
+	 */
+	public List<T> addProxiesForResources(Collection<? extends R> resources) throws MalformedURLException {
+		List<T> result = new ArrayList<T>(resources.size());
+		for (R resource : resources) {
+			result.add(registerProxy(resource));
+		}
+		return result;
+	}
+
+	private T registerProxy(R resource) throws MalformedURLException {
+		String key = getResourceKey(resource);
+		T proxy = proxiesByResourceKey.get(key);
 		if (proxy != null) {
 			return proxy;
 		}
 
-		int id = nextProxyId.incrementAndGet();
-		String path = "/proxy" + id;
-		String accessUrl = "http://" + hostName + ":" + port + path;
-
-		proxy = createProxy(id, resource, path, accessUrl);
-
-		synchronized (this) {
-			proxies.put(id, proxy);
+		// reserve the key, so only one proxy is ever created per resource
+		Object lock = new Object();
+		Object existingLock = registrationLocks.putIfAbsent(key, lock);
+		if (existingLock != null) {
+			lock = existingLock;
 		}
 
-		if (servletConfig != null) {
+		synchronized (lock) {
 			try {
-				proxy.init(servletConfig);
+				proxy = proxiesByResourceKey.get(key);
+				if (proxy != null) {
+					return proxy;
+				}
+
+				// create the proxy without holding the server monitor, as subclasses may notify listeners or take other locks
+				int id = nextProxyId.incrementAndGet();
+				String path = "/proxy" + id;
+				String accessUrl = "http://" + hostName + ":" + port + path;
+				proxy = createProxy(id, resource, path, accessUrl);
+
+				// init before publishing, so requests are never routed to an uninitialized proxy
+				ServletConfig config = servletConfig;
+				if (config != null) {
+					initProxy(proxy, config);
+				}
+
+				ServletConfig lateConfig = null;
+				synchronized (this) {
+					proxies.put(id, proxy);
+					resourceKeysByProxyId.put(id, key);
+					proxiesByResourceKey.put(key, proxy);
+					if (config == null) {
+						lateConfig = servletConfig;
+					}
+				}
+				if (lateConfig != null) {
+					// this server has been initialized in the meantime, without seeing the new proxy
+					initProxy(proxy, lateConfig);
+				}
+
+				proxyRegistered(proxy, resource);
+				return proxy;
 			}
-			catch (ServletException e) {
-				LOG.error("Could not init HTTP Proxy", e);
+			finally {
+				registrationLocks.remove(key, lock);
 			}
 		}
+	}
 
-		return proxy;
+	private void initProxy(T proxy, ServletConfig config) {
+		try {
+			proxy.init(config);
+		}
+		catch (ServletException e) {
+			LOG.error("Could not init HTTP Proxy", e);
+		}
 	}
 
 	public void removeProxy(T proxy) {
 		synchronized (this) {
-			if (!proxies.containsValue(proxy)) {
+			if (proxies.get(proxy.getId()) != proxy) {
 				return;
 			}
 			proxies.remove(proxy.getId());
+			String key = resourceKeysByProxyId.remove(proxy.getId());
+			if (key != null) {
+				proxiesByResourceKey.remove(key);
+			}
 		}
 
 		proxy.destroy();
@@ -229,9 +507,13 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		super.init(config);
-		this.servletConfig = config;
+		List<T> allProxies;
+		synchronized (this) {
+			this.servletConfig = config;
+			allProxies = getAllProxies();
+		}
 
-		for (T proxy : getAllProxies()) {
+		for (T proxy : allProxies) {
 			proxy.init(config);
 		}
 	}
@@ -240,6 +522,15 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 		return jettyServer;
 	}
 
+	/**
+	 * Returns the HTTP connector of the Jetty server. Statistics are enabled on this connector.
+	 * 
+	 * @return The HTTP connector of the Jetty server.
+	 */
+	protected final Connector getConnector() {
+		return connector;
+	}
+
 	private static final Pattern PATTERN_PROXY_ID = Pattern.compile("/proxy([0-9]+)/.*");
 
 	@Override
@@ -253,9 +544,9 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 		Matcher m = PATTERN_PROXY_ID.matcher(path);
 		if (m.matches()) {
 			try {
-				int id = Integer.parseInt(m.group(1));
-				if (proxies.containsKey(id)) {
-					proxies.get(id).service(req, resp);
+				T proxy = proxies.get(Integer.valueOf(m.group(1)));
+				if (proxy != null) {
+					proxy.service(req, resp);
 					return;
 				}
 			}
@@ -283,4 +574,19 @@ public abstract class HttpResourceProxyServer<T extends HttpResourceProxy, R ext
 		}
 	}
 
+	private static class TunableSelectChannelConnector extends SelectChannelConnector {
+
+		private boolean tcpNoDelay;
+
+		public TunableSelectChannelConnector(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+		}
+
+		@Override
+		protected void configure(Socket socket) throws IOException {
+			super.configure(socket);
+			socket.setTcpNoDelay(tcpNoDelay);
+		}
+	}
+
 }
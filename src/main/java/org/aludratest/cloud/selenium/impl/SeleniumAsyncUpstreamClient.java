@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Upstream client based on the Apache HttpAsyncClient. All connections are multiplexed on a few I/O dispatcher threads, one
+ * per CPU core; responses are buffered completely before they are handed to the response handler. Unlike with the Jetty
+ * transports, each screenshot or page source in flight is therefore held in memory as a whole.
+ * 
+ */
+final class SeleniumAsyncUpstreamClient implements SeleniumUpstreamClient {
+
+	/* Jetty does not limit the total number of connections either; this only protects against runaway pools. */
+	private static final int MAX_TOTAL_CONNECTIONS = 20000;
+
+	private CloseableHttpAsyncClient client;
+
+	private PoolingNHttpClientConnectionManager connectionManager;
+
+	private int ioThreadCount;
+
+	private RequestConfig defaultConfig;
+
+	private volatile int connectTimeout;
+
+	private SeleniumUpstreamRouting.RoutePlanner routePlanner = new SeleniumUpstreamRouting.RoutePlanner();
+
+	public SeleniumAsyncUpstreamClient(SeleniumUpstreamClientSettings settings) throws IOException {
+		ioThreadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), settings.getMaxThreads()));
+		connectTimeout = settings.getConnectTimeoutMillis();
+
+		IOReactorConfig reactorConfig = IOReactorConfig.custom().setIoThreadCount(ioThreadCount).setTcpNoDelay(true)
+				.setConnectTimeout(connectTimeout)
+				.setSoTimeout((int) Math.min(Integer.MAX_VALUE, settings.getIdleTimeoutMillis())).build();
+		DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(reactorConfig, new NamedThreadFactory(
+				settings.getName() + " I/O"));
+
+		SSLIOSessionStrategy sslStrategy = new SSLIOSessionStrategy(settings.getSslContext(), settings.getTlsProtocols(),
+				settings.getTlsCipherSuites(), settings.isTrustAll() ? SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER
+						: SSLIOSessionStrategy.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+		connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, null, RegistryBuilder
+				.<SchemeIOSessionStrategy> create().register("http", NoopIOSessionStrategy.INSTANCE)
+				.register("https", sslStrategy).build(), settings.getDnsResolver());
+		connectionManager.setMaxTotal(MAX_TOTAL_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerAddress());
+		if (settings.getResponseBufferSize() > 0) {
+			connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+					.setBufferSize(settings.getResponseBufferSize()).build());
+		}
+
+		// the proxy passes redirects, cookies and authentication challenges through to the Selenium client
+		defaultConfig = RequestConfig.custom().setRedirectsEnabled(false).setAuthenticationEnabled(false).build();
+		client = HttpAsyncClients.custom().setConnectionManager(connectionManager).setRoutePlanner(routePlanner)
+				.setDefaultRequestConfig(defaultConfig).disableCookieManagement().disableAuthCaching()
+				.disableConnectionState().setThreadFactory(new NamedThreadFactory(settings.getName())).build();
+	}
+
+	@Override
+	public void start() throws Exception {
+		client.start();
+	}
+
+	@Override
+	public void stop() throws Exception {
+		client.close();
+	}
+
+	@Override
+	public void setConnectTimeout(int connectTimeoutMillis) {
+		connectTimeout = connectTimeoutMillis;
+	}
+
+	@Override
+	public void setProxy(String proxyHost, int proxyPort, String bypassRegexp) {
+		routePlanner.setProxy(proxyHost, proxyPort, bypassRegexp);
+	}
+
+	@Override
+	public Exchange send(Request request, final ResponseHandler handler) {
+		HttpRequestBase httpRequest;
+		if (request.getContent() != null) {
+			ForwardEntityRequest entityRequest = new ForwardEntityRequest(request.getMethod());
+			entityRequest.setEntity(new InputStreamEntity(request.getContent(), request.getContentLength()));
+			httpRequest = entityRequest;
+		}
+		else {
+			httpRequest = new ForwardRequest(request.getMethod());
+		}
+		httpRequest.setURI(URI.create(request.getUrl()));
+		for (int i = 0; i < request.getHeaderCount(); i++) {
+			httpRequest.addHeader(request.getHeaderName(i), request.getHeaderValue(i));
+		}
+		// the socket timeout also limits the time to wait for the response
+		httpRequest.setConfig(RequestConfig.copy(defaultConfig).setConnectTimeout(connectTimeout)
+				.setSocketTimeout((int) Math.min(Integer.MAX_VALUE, request.getTimeout())).build());
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final Future<HttpResponse> future = client.execute(httpRequest, new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse httpResponse) {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				Response response = new Response(httpResponse.getStatusLine().getStatusCode());
+				for (Header header : httpResponse.getAllHeaders()) {
+					response.addHeader(header.getName(), header.getValue());
+				}
+				try {
+					HttpEntity entity = httpResponse.getEntity();
+					if (entity != null) {
+						response.setContent(EntityUtils.toByteArray(entity));
+					}
+				}
+				catch (IOException e) {
+					handler.onException(e);
+					return;
+				}
+				handler.onResponse(response);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				if (ex instanceof SocketTimeoutException) {
+					handler.onExpire();
+				}
+				else if (ex instanceof ConnectException || ex instanceof ConnectTimeoutException
+						|| ex instanceof UnknownHostException || ex instanceof NoRouteToHostException) {
+					handler.onConnectionFailed(ex);
+				}
+				else {
+					handler.onException(ex);
+				}
+			}
+
+			@Override
+			public void cancelled() {
+				// only cancelled via abort(), which does not notify the handler
+			}
+		});
+
+		return new Exchange() {
+			@Override
+			public void abort() {
+				if (done.compareAndSet(false, true)) {
+					future.cancel(true);
+				}
+			}
+		};
+	}
+
+	@Override
+	public String getStatistics() {
+		PoolStats stats = connectionManager.getTotalStats();
+		return (stats.getLeased() + stats.getAvailable()) + " connections (" + stats.getAvailable() + " idle), "
+				+ stats.getPending() + " pending, " + ioThreadCount + " I/O threads";
+	}
+
+	private static final class ForwardRequest extends HttpRequestBase {
+
+		private String method;
+
+		private ForwardRequest(String method) {
+			this.method = method;
+		}
+
+		@Override
+		public String getMethod() {
+			return method;
+		}
+	}
+
+	private static final class ForwardEntityRequest extends HttpEntityEnclosingRequestBase {
+
+		private String method;
+
+		private ForwardEntityRequest(String method) {
+			this.method = method;
+		}
+
+		@Override
+		public String getMethod() {
+			return method;
+		}
+	}
+
+	private static final class NamedThreadFactory implements ThreadFactory {
+
+		private String name;
+
+		private AtomicInteger threadNum = new AtomicInteger();
+
+		private NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setName(name + "-" + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
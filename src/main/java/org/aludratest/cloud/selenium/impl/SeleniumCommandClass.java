@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * Classes of Selenium commands with different expected durations, e.g. for applying different timeouts. Creating a session or
+ * loading a page legitimately takes much longer than finding an element.
+ * 
+ */
+enum SeleniumCommandClass {
+
+	NEW_SESSION("newSession"), NAVIGATION("navigation"), FIND_ELEMENT("findElement"), SCREENSHOT("screenshot"), SCRIPT(
+			"script"), QUIT("quit"), STATUS("status"), DEFAULT("default");
+
+	private static final Pattern PATTERN_NEW_SESSION = Pattern.compile("/wd/hub/session/?$");
+
+	private static final Pattern PATTERN_QUIT = Pattern.compile("/wd/hub/session/[^/]+/?$");
+
+	private static final Pattern PATTERN_NAVIGATION = Pattern.compile("/wd/hub/session/[^/]+/(url|back|forward|refresh)/?$");
+
+	private static final Pattern PATTERN_FIND_ELEMENT = Pattern.compile("/wd/hub/session/[^/]+/(element/[^/]+/)?elements?/?$");
+
+	private static final Pattern PATTERN_SCREENSHOT = Pattern.compile("/wd/hub/session/[^/]+/(element/[^/]+/)?screenshot/?$");
+
+	private static final Pattern PATTERN_SCRIPT = Pattern.compile("/wd/hub/session/[^/]+/execute(_async|/sync|/async)?/?$");
+
+	private static final Pattern PATTERN_STATUS = Pattern.compile("/wd/hub/status/?$");
+
+	private String key;
+
+	private SeleniumCommandClass(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Returns the key of this command class, as used in the timeout configuration.
+	 * 
+	 * @return The key of this command class.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	static SeleniumCommandClass fromKey(String key) {
+		for (SeleniumCommandClass commandClass : values()) {
+			if (commandClass.key.equalsIgnoreCase(key)) {
+				return commandClass;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Classifies a WebDriver (Selenium 2) request.
+	 * 
+	 * @param method
+	 *            HTTP method of the request.
+	 * @param uri
+	 *            Request URI.
+	 * @return The class of the command, never <code>null</code>.
+	 */
+	static SeleniumCommandClass classifyWebDriverCommand(String method, String uri) {
+		if ("POST".equals(method)) {
+			if (PATTERN_NEW_SESSION.matcher(uri).find()) {
+				return NEW_SESSION;
+			}
+			if (PATTERN_NAVIGATION.matcher(uri).find()) {
+				return NAVIGATION;
+			}
+			if (PATTERN_FIND_ELEMENT.matcher(uri).find()) {
+				return FIND_ELEMENT;
+			}
+			if (PATTERN_SCRIPT.matcher(uri).find()) {
+				return SCRIPT;
+			}
+		}
+		else if ("DELETE".equals(method)) {
+			if (PATTERN_QUIT.matcher(uri).find()) {
+				return QUIT;
+			}
+		}
+		else if (PATTERN_SCREENSHOT.matcher(uri).find()) {
+			return SCREENSHOT;
+		}
+		else if (PATTERN_STATUS.matcher(uri).find()) {
+			return STATUS;
+		}
+		return DEFAULT;
+	}
+
+	/**
+	 * Classifies a Selenium 1 (Selenium RC) command.
+	 * 
+	 * @param cmd
+	 *            Value of the <code>cmd</code> parameter of the request.
+	 * @return The class of the command, never <code>null</code>.
+	 */
+	static SeleniumCommandClass classifySelenium1Command(String cmd) {
+		if ("getNewBrowserSession".equals(cmd)) {
+			return NEW_SESSION;
+		}
+		if ("testComplete".equals(cmd)) {
+			return QUIT;
+		}
+		if ("open".equals(cmd) || "waitForPageToLoad".equals(cmd) || "openWindow".equals(cmd) || "goBack".equals(cmd)
+				|| "refresh".equals(cmd)) {
+			return NAVIGATION;
+		}
+		if (cmd.startsWith("capture")) {
+			return SCREENSHOT;
+		}
+		if ("getEval".equals(cmd) || "runScript".equals(cmd) || "waitForCondition".equals(cmd)) {
+			return SCRIPT;
+		}
+		if ("isElementPresent".equals(cmd)) {
+			return FIND_ELEMENT;
+		}
+		return DEFAULT;
+	}
+
+}
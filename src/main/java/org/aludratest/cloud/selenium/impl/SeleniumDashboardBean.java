@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.faces.bean.ManagedBean;
+import javax.faces.bean.ViewScoped;
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+import javax.faces.model.SelectItem;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.resource.ResourceStateHolder;
+import org.aludratest.cloud.resourcegroup.ResourceGroup;
+import org.aludratest.cloud.selenium.SeleniumResource;
+import org.primefaces.context.RequestContext;
+import org.primefaces.model.LazyDataModel;
+import org.primefaces.model.SortOrder;
+
+/**
+ * Backing bean for the paged resource dashboard of a Selenium resource group. Resources are filtered by state and URL on the
+ * server, and only the current page is rendered. A poll on the page asks {@link #pollChanges()} for updates; only the
+ * blocks of resources whose state changed since the last render are updated, based on the change sequence of the
+ * {@link SeleniumResourceRegistry}. The whole page is only rendered again if resources were added or removed, or if a
+ * state filter is active and any state changed.
+ * 
+ */
+@ManagedBean(name = "seleniumDashboardBean")
+@ViewScoped
+public class SeleniumDashboardBean {
+
+	private static final String GRID_ID = "selenium_dashboard_grid";
+
+	private static final String BLOCK_ID = "dashboard_block";
+
+	private Integer groupId;
+
+	private String urlFilter;
+
+	private String stateFilter;
+
+	private List<SeleniumResource> currentPage = Collections.emptyList();
+
+	private int currentFirst;
+
+	private long renderedSequence;
+
+	private LazyDataModel<SeleniumResource> resources = new LazyDataModel<SeleniumResource>() {
+		@Override
+		public List<SeleniumResource> load(int first, int pageSize, String sortField, SortOrder sortOrder,
+				Map<String, Object> filters) {
+			SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+			// read sequence before states, so no change can be missed by the next poll
+			renderedSequence = registry == null ? 0 : registry.getChangeSequence();
+
+			List<SeleniumResource> matching = getMatchingResources();
+			setRowCount(matching.size());
+
+			int end = Math.min(first + pageSize, matching.size());
+			currentFirst = first;
+			currentPage = first < end ? new ArrayList<SeleniumResource>(matching.subList(first, end)) : Collections
+					.<SeleniumResource> emptyList();
+			return currentPage;
+		}
+
+		@Override
+		public Object getRowKey(SeleniumResource resource) {
+			return resource.getOriginalUrl();
+		}
+
+		@Override
+		public SeleniumResource getRowData(String rowKey) {
+			SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+			return registry == null ? null : registry.getResourceByUrl(rowKey);
+		}
+	};
+
+	public String setGroupId(Integer groupId) {
+		this.groupId = groupId;
+		return "";
+	}
+
+	public LazyDataModel<SeleniumResource> getResources() {
+		return resources;
+	}
+
+	public String getUrlFilter() {
+		return urlFilter;
+	}
+
+	public void setUrlFilter(String urlFilter) {
+		this.urlFilter = urlFilter;
+	}
+
+	public String getStateFilter() {
+		return stateFilter;
+	}
+
+	public void setStateFilter(String stateFilter) {
+		this.stateFilter = stateFilter;
+	}
+
+	public List<SelectItem> getStateItems() {
+		List<SelectItem> result = new ArrayList<SelectItem>();
+		result.add(new SelectItem("", "All states"));
+		for (ResourceState state : ResourceState.values()) {
+			result.add(new SelectItem(state.name(), state.name()));
+		}
+		return result;
+	}
+
+	/**
+	 * Updates the blocks of all resources on the current page whose state changed since they were last rendered. Invoked by
+	 * the poll of the dashboard, which must be located in the same naming container as the dashboard grid.
+	 */
+	public void pollChanges() {
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		FacesContext context = FacesContext.getCurrentInstance();
+		UIComponent poll = UIComponent.getCurrentComponent(context);
+		UIComponent grid = poll == null ? null : poll.findComponent(GRID_ID);
+		if (registry == null || grid == null) {
+			return;
+		}
+
+		long sequence = registry.getChangeSequence();
+		if (sequence == renderedSequence) {
+			return;
+		}
+
+		RequestContext requestContext = RequestContext.getCurrentInstance();
+		if (registry.getLastMembershipChange() > renderedSequence || !isEmpty(stateFilter)) {
+			// page contents may have changed; rendering the grid loads the page again
+			requestContext.update(grid.getClientId());
+			return;
+		}
+
+		String gridClientId = grid.getClientId();
+		for (int i = 0; i < currentPage.size(); i++) {
+			if (registry.getLastChange(currentPage.get(i).getOriginalUrl()) > renderedSequence) {
+				requestContext.update(gridClientId + ":" + (currentFirst + i) + ":" + BLOCK_ID);
+			}
+		}
+		renderedSequence = sequence;
+	}
+
+	private List<SeleniumResource> getMatchingResources() {
+		ResourceGroup group = groupId == null ? null : CloudManagerApp.getInstance().getResourceGroupManager()
+				.getResourceGroup(groupId.intValue());
+		if (!(group instanceof SeleniumResourceGroup)) {
+			return Collections.emptyList();
+		}
+
+		String filter = isEmpty(urlFilter) ? null : urlFilter.trim().toLowerCase(Locale.US);
+		ResourceState state = null;
+		if (!isEmpty(stateFilter)) {
+			try {
+				state = ResourceState.valueOf(stateFilter);
+			}
+			catch (IllegalArgumentException e) {
+				// ignore invalid filter
+			}
+		}
+
+		List<SeleniumResource> result = new ArrayList<SeleniumResource>();
+		for (ResourceStateHolder rsh : group.getResourceCollection()) {
+			if (!(rsh instanceof SeleniumResource)) {
+				continue;
+			}
+			SeleniumResource res = (SeleniumResource) rsh;
+			if (state != null && res.getState() != state) {
+				continue;
+			}
+			if (filter != null && !res.getOriginalUrl().toLowerCase(Locale.US).contains(filter)) {
+				continue;
+			}
+			result.add(res);
+		}
+		return result;
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || "".equals(value.trim());
+	}
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.eclipse.jetty.client.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache for the host name lookups of all connections to Selenium clients. Successful lookups are cached for a configurable
+ * time, failed lookups for a (usually shorter) negative time to live. Entries which are still in use are refreshed in the
+ * background before they expire, so a slow DNS server does not delay connects to Selenium clients. If a background refresh
+ * fails, the previous addresses are kept until they expire. <br>
+ * The actual lookups are delegated to a {@link DnsResolver}, which defaults to the resolver of the JVM. <br>
+ * Apache HTTP clients use the cache via {@link #createConnectionManager(SSLConnectionSocketFactory, int, int)}, Jetty HTTP
+ * exchanges via {@link #createAddress(String, int)}.
+ * 
+ */
+class SeleniumDnsCache implements DnsResolver {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumDnsCache.class);
+
+	private static final long REFRESH_CHECK_INTERVAL_MILLIS = 1000;
+
+	private final DnsResolver delegate;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private volatile long ttlMillis;
+
+	private volatile long negativeTtlMillis;
+
+	private volatile boolean backgroundRefresh;
+
+	private ScheduledExecutorService refreshExecutor;
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong negativeHits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	private AtomicLong refreshes = new AtomicLong();
+
+	private AtomicLong failedRefreshes = new AtomicLong();
+
+	/**
+	 * Creates a new DNS cache using the resolver of the JVM.
+	 * 
+	 * @param ttlMillis
+	 *            Time to live of successful lookups, in milliseconds. 0 disables caching.
+	 * @param negativeTtlMillis
+	 *            Time to live of failed lookups, in milliseconds. 0 disables negative caching.
+	 * @param backgroundRefresh
+	 *            If <code>true</code>, entries which are in use are refreshed in the background before they expire.
+	 */
+	SeleniumDnsCache(long ttlMillis, long negativeTtlMillis, boolean backgroundRefresh) {
+		this(SystemDefaultDnsResolver.INSTANCE, ttlMillis, negativeTtlMillis, backgroundRefresh);
+	}
+
+	/**
+	 * Creates a new DNS cache using the given resolver for the actual lookups.
+	 * 
+	 * @param delegate
+	 *            Resolver to use for lookups which are not cached.
+	 * @param ttlMillis
+	 *            Time to live of successful lookups, in milliseconds. 0 disables caching.
+	 * @param negativeTtlMillis
+	 *            Time to live of failed lookups, in milliseconds. 0 disables negative caching.
+	 * @param backgroundRefresh
+	 *            If <code>true</code>, entries which are in use are refreshed in the background before they expire.
+	 */
+	SeleniumDnsCache(DnsResolver delegate, long ttlMillis, long negativeTtlMillis, boolean backgroundRefresh) {
+		this.delegate = delegate;
+		reconfigure(ttlMillis, negativeTtlMillis, backgroundRefresh);
+
+		refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setName("Selenium DNS Refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshEntries();
+				}
+				catch (Throwable t) {
+					LOG.warn("Could not refresh cached DNS entries of Selenium clients", t);
+				}
+			}
+		}, REFRESH_CHECK_INTERVAL_MILLIS, REFRESH_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	void reconfigure(long ttlMillis, long negativeTtlMillis, boolean backgroundRefresh) {
+		if (ttlMillis != this.ttlMillis || negativeTtlMillis != this.negativeTtlMillis) {
+			entries.clear();
+		}
+		this.ttlMillis = Math.max(0, ttlMillis);
+		this.negativeTtlMillis = Math.max(0, negativeTtlMillis);
+		this.backgroundRefresh = backgroundRefresh;
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		long now = currentTimeMillis();
+		Entry entry = entries.get(host);
+		if (entry != null && entry.expires > now) {
+			entry.lastAccess = now;
+			if (entry.addresses == null) {
+				negativeHits.incrementAndGet();
+				throw new UnknownHostException(entry.failureMessage);
+			}
+			hits.incrementAndGet();
+			return entry.addresses.clone();
+		}
+
+		misses.incrementAndGet();
+		return lookup(host, now).clone();
+	}
+
+	/**
+	 * Resolves the given host name to its first address, using the cache.
+	 * 
+	 * @param host
+	 *            Host name to resolve.
+	 * @return The first address of the host, or <code>null</code> if the host name could not be resolved.
+	 */
+	InetAddress resolveFirst(String host) {
+		try {
+			InetAddress[] addresses = resolve(host);
+			return addresses.length == 0 ? null : addresses[0];
+		}
+		catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a pooling connection manager for Apache HTTP clients which resolves host names via this cache. HTTP clients
+	 * using this connection manager ignore their own socket factory and pool size settings, so these have to be passed here.
+	 * 
+	 * @param sslSocketFactory
+	 *            Socket factory for HTTPS connections.
+	 * @param maxTotal
+	 *            Maximum number of connections of the pool.
+	 * @param maxPerRoute
+	 *            Maximum number of connections per host of the pool.
+	 * 
+	 * @return A new connection manager resolving host names via this cache.
+	 */
+	PoolingHttpClientConnectionManager createConnectionManager(SSLConnectionSocketFactory sslSocketFactory, int maxTotal,
+			int maxPerRoute) {
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslSocketFactory).build();
+		PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(registry, this);
+		manager.setMaxTotal(maxTotal);
+		manager.setDefaultMaxPerRoute(maxPerRoute);
+		return manager;
+	}
+
+	/**
+	 * Creates a Jetty address which resolves its host name via this cache when a connection to it is opened. The address
+	 * keeps the host name, so Jetty still matches it against the proxy bypass list and uses it for TLS host name checks, and
+	 * destinations are still kept per host name.
+	 * 
+	 * @param host
+	 *            Host name.
+	 * @param port
+	 *            Port.
+	 * 
+	 * @return A Jetty address resolving its host name via this cache.
+	 */
+	Address createAddress(String host, int port) {
+		return new CachedAddress(this, host, port);
+	}
+
+	private InetAddress[] lookup(String host, long now) throws UnknownHostException {
+		try {
+			InetAddress[] addresses = delegate.resolve(host);
+			if (ttlMillis > 0 && addresses != null && addresses.length > 0) {
+				entries.put(host, new Entry(addresses, null, now + ttlMillis, now));
+			}
+			return addresses;
+		}
+		catch (UnknownHostException e) {
+			if (negativeTtlMillis > 0) {
+				entries.put(host, new Entry(null, e.getMessage(), now + negativeTtlMillis, now));
+			}
+			else {
+				entries.remove(host);
+			}
+			throw e;
+		}
+	}
+
+	// called periodically by the refresh executor; not private, so tests can trigger it
+	void refreshEntries() {
+		long now = currentTimeMillis();
+		long ttl = ttlMillis;
+		Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Entry> mapEntry = iter.next();
+			Entry entry = mapEntry.getValue();
+			if (entry.expires <= now) {
+				iter.remove();
+				continue;
+			}
+
+			// refresh successful lookups during the last quarter of their lifetime, if used during their lifetime
+			if (!backgroundRefresh || entry.addresses == null || entry.expires - now > ttl / 4
+					|| entry.lastAccess <= entry.expires - ttl) {
+				continue;
+			}
+
+			String host = mapEntry.getKey();
+			try {
+				InetAddress[] addresses = delegate.resolve(host);
+				if (addresses != null && addresses.length > 0) {
+					long refreshed = currentTimeMillis();
+					entries.replace(host, entry, new Entry(addresses, null, refreshed + ttl, entry.lastAccess));
+					refreshes.incrementAndGet();
+				}
+			}
+			catch (UnknownHostException e) {
+				// keep previous addresses until they expire
+				failedRefreshes.incrementAndGet();
+				LOG.debug("Could not refresh DNS entry for Selenium client host " + host, e);
+			}
+		}
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	// not private, so tests can control the time against which entries expire
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getNegativeHitCount() {
+		return negativeHits.get();
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+
+	long getRefreshCount() {
+		return refreshes.get();
+	}
+
+	long getFailedRefreshCount() {
+		return failedRefreshes.get();
+	}
+
+	int getSize() {
+		return entries.size();
+	}
+
+	private static final class CachedAddress extends Address {
+
+		private final SeleniumDnsCache cache;
+
+		private CachedAddress(SeleniumDnsCache cache, String host, int port) {
+			super(host, port);
+			this.cache = cache;
+		}
+
+		@Override
+		public InetSocketAddress toSocketAddress() {
+			// called by Jetty's connectors when opening a connection to a destination which is not proxied
+			InetAddress resolved = cache.resolveFirst(getHost());
+			return resolved == null ? super.toSocketAddress() : new InetSocketAddress(resolved, getPort());
+		}
+	}
+
+	private static final class Entry {
+
+		private final InetAddress[] addresses;
+
+		private final String failureMessage;
+
+		private final long expires;
+
+		private volatile long lastAccess;
+
+		private Entry(InetAddress[] addresses, String failureMessage, long expires, long lastAccess) {
+			this.addresses = addresses;
+			this.failureMessage = failureMessage;
+			this.expires = expires;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.io.EndPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the exchanges forwarded to Selenium clients and aborts those whose result is no longer of interest, because the
+ * downstream client has closed its connection. Without this, the exchange would keep a connection to the Selenium client
+ * (and the Selenium client itself) busy until the command finishes or times out. Exchanges abandoned because of an expired
+ * client deadline are counted here as well; these are aborted by the exchange timeout.
+ * 
+ */
+final class SeleniumExchangeWatchdog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumExchangeWatchdog.class);
+
+	private static final long CHECK_INTERVAL_MILLIS = 500;
+
+	private final Set<WatchedExchange> exchanges = Collections
+			.newSetFromMap(new ConcurrentHashMap<WatchedExchange, Boolean>());
+
+	private final ScheduledExecutorService executor;
+
+	private AtomicLong disconnectedCount = new AtomicLong();
+
+	private AtomicLong deadlineExpiredCount = new AtomicLong();
+
+	private AtomicLong rejectedCount = new AtomicLong();
+
+	SeleniumExchangeWatchdog() {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setName("Selenium Exchange Watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkExchanges();
+				}
+				catch (Throwable t) {
+					LOG.warn("Could not check Selenium exchanges for disconnected clients", t);
+				}
+			}
+		}, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts watching the given exchange.
+	 * 
+	 * @param exchange
+	 *            Exchange forwarded to the Selenium client.
+	 * @param continuation
+	 *            Suspended continuation of the downstream request.
+	 * @param downstreamEndPoint
+	 *            End point of the downstream client connection.
+	 * @return A handle to pass to {@link #unwatch(Object)} when the request completes.
+	 */
+	Object watch(HttpExchange exchange, Continuation continuation, EndPoint downstreamEndPoint) {
+		WatchedExchange watched = new WatchedExchange(exchange, continuation, downstreamEndPoint);
+		exchanges.add(watched);
+		return watched;
+	}
+
+	void unwatch(Object handle) {
+		exchanges.remove(handle);
+	}
+
+	void deadlineExpired() {
+		deadlineExpiredCount.incrementAndGet();
+	}
+
+	void deadlineRejected() {
+		rejectedCount.incrementAndGet();
+	}
+
+	long getDisconnectedCount() {
+		return disconnectedCount.get();
+	}
+
+	long getDeadlineExpiredCount() {
+		return deadlineExpiredCount.get();
+	}
+
+	long getDeadlineRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	int getWatchedCount() {
+		return exchanges.size();
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void checkExchanges() {
+		for (WatchedExchange watched : exchanges) {
+			EndPoint endPoint = watched.downstreamEndPoint;
+			if (endPoint.isOpen() && !endPoint.isInputShutdown()) {
+				continue;
+			}
+
+			exchanges.remove(watched);
+			if (watched.exchange.isDone()) {
+				continue;
+			}
+
+			LOG.debug("Client disconnected, aborting upstream exchange " + watched.exchange);
+			disconnectedCount.incrementAndGet();
+			watched.exchange.cancel();
+			watched.continuation.setAttribute(SeleniumHttpProxy.ATTR_ABANDONED, Boolean.TRUE);
+			try {
+				// completes the request; the response is discarded, as the client is gone
+				watched.continuation.resume();
+			}
+			catch (IllegalStateException e) {
+				// request completed in the meantime
+			}
+		}
+	}
+
+	private static final class WatchedExchange {
+
+		private final HttpExchange exchange;
+
+		private final Continuation continuation;
+
+		private final EndPoint downstreamEndPoint;
+
+		private WatchedExchange(HttpExchange exchange, Continuation continuation, EndPoint downstreamEndPoint) {
+			this.exchange = exchange;
+			this.continuation = continuation;
+			this.downstreamEndPoint = downstreamEndPoint;
+		}
+	}
+
+}
@@ -16,7 +16,9 @@
 package org.aludratest.cloud.selenium.impl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 import javax.faces.bean.ManagedBean;
 import javax.faces.bean.ViewScoped;
@@ -29,8 +31,11 @@ import javax.faces.model.SelectItem;
 
 import org.aludratest.cloud.app.CloudManagerApp;
 import org.aludratest.cloud.config.ConfigException;
+import org.aludratest.cloud.resource.ResourceStateHolder;
 import org.aludratest.cloud.resourcegroup.ResourceGroup;
 import org.aludratest.cloud.resourcegroup.StaticResourceGroupAdmin;
+import org.aludratest.cloud.selenium.SeleniumResource;
+import org.aludratest.cloud.selenium.SeleniumResourceType;
 import org.aludratest.cloud.selenium.config.ClientEntry;
 import org.aludratest.cloud.util.JSFUtil;
 
@@ -46,6 +51,13 @@ public class SeleniumGroupBean {
 
 	private Integer groupId;
 
+	private List<SeleniumResource> screenshotResources;
+
+	private String resourceFilter;
+
+	/* Built once per change of the configured resources or the filter, as it is requested several times per render. */
+	private List<SelectItem> resourcesItems;
+
 	public ClientEntry getSelectedResource() {
 		return selectedResource;
 	}
@@ -67,26 +79,113 @@ public class SeleniumGroupBean {
 	}
 
 	public String setGroupId(Integer groupId) {
+		if (this.groupId == null || !this.groupId.equals(groupId)) {
+			resourcesItems = null;
+		}
 		this.groupId = groupId;
 		return "";
 	}
 
+	public String getResourceFilter() {
+		return resourceFilter;
+	}
+
+	public void setResourceFilter(String resourceFilter) {
+		this.resourceFilter = resourceFilter;
+		resourcesItems = null;
+	}
+
 	public String getCalculateResourceBoxHeight() {
-		// for each 10 items, 200px height
-		return "" + ((getResourcesItems().size() / 10 + 1) * 200);
+		// for each 10 items, 200px height, but never more than for 50 items, as the list box scrolls
+		return "" + ((Math.min(getResourcesItems().size(), 49) / 10 + 1) * 200);
 	}
 
 	public List<SelectItem> getResourcesItems() {
+		if (resourcesItems != null) {
+			return resourcesItems;
+		}
+
+		StaticResourceGroupAdmin<ClientEntry> resAdmin = getResAdmin();
+		if (resAdmin == null) {
+			return Collections.emptyList();
+		}
+
+		String filter = resourceFilter == null || "".equals(resourceFilter.trim()) ? null : resourceFilter.trim().toLowerCase(
+				Locale.US);
 		List<SelectItem> result = new ArrayList<SelectItem>();
-		for (ClientEntry ce : getResAdmin().getConfiguredResources()) {
-			if (ce.getSeleniumUrl() != null) {
+		for (ClientEntry ce : resAdmin.getConfiguredResources()) {
+			if (ce.getSeleniumUrl() != null
+					&& (filter == null || ce.getSeleniumUrl().toLowerCase(Locale.US).contains(filter))) {
 				result.add(new SelectItem(ce, ce.getSeleniumUrl()));
 			}
 		}
 
+		resourcesItems = result;
 		return result;
 	}
 
+	public void captureScreenshots() {
+		requestScreenshots(false);
+	}
+
+	public void refreshScreenshots() {
+		requestScreenshots(true);
+	}
+
+	private void requestScreenshots(boolean force) {
+		SeleniumScreenshotService service = getScreenshotService();
+		ResourceGroup group = groupId == null ? null : CloudManagerApp.getInstance().getResourceGroupManager()
+				.getResourceGroup(groupId.intValue());
+		if (service == null || group == null) {
+			return;
+		}
+
+		screenshotResources = new ArrayList<SeleniumResource>();
+		for (ResourceStateHolder rsh : group.getResourceCollection()) {
+			if (rsh instanceof SeleniumResource) {
+				screenshotResources.add((SeleniumResource) rsh);
+			}
+		}
+
+		service.requestScreenshots(screenshotResources, force, service.getGroupTimeoutMillis(), null);
+	}
+
+	public List<SeleniumResource> getScreenshotResources() {
+		return screenshotResources == null ? Collections.<SeleniumResource> emptyList() : screenshotResources;
+	}
+
+	public boolean isScreenshotsPending() {
+		SeleniumScreenshotService service = getScreenshotService();
+		if (service == null || screenshotResources == null) {
+			return false;
+		}
+		for (SeleniumResource res : screenshotResources) {
+			if (service.isCapturePending(res)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isScreenshotPending(SeleniumResource resource) {
+		SeleniumScreenshotService service = getScreenshotService();
+		return service != null && service.isCapturePending(resource);
+	}
+
+	public boolean hasScreenshot(SeleniumResource resource) {
+		SeleniumScreenshotService service = getScreenshotService();
+		return service != null && service.getScreenshot(resource) != null;
+	}
+
+	private static SeleniumScreenshotService getScreenshotService() {
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		if (module == null || module.getProxyServer() == null) {
+			return null;
+		}
+		return module.getProxyServer().getScreenshotService();
+	}
+
 	public void moveUp() {
 		StaticResourceGroupAdmin<ClientEntry> resAdmin = getResAdmin();
 
@@ -95,6 +194,7 @@ public class SeleniumGroupBean {
 		}
 
 		selectedResource = resAdmin.moveUpResource(selectedResource);
+		resourcesItems = null;
 	}
 
 	public void moveDown() {
@@ -105,6 +205,7 @@ public class SeleniumGroupBean {
 		}
 
 		selectedResource = resAdmin.moveDownResource(selectedResource);
+		resourcesItems = null;
 	}
 
 	public void deleteResource() {
@@ -115,6 +216,7 @@ public class SeleniumGroupBean {
 		}
 
 		selectedResource = null;
+		resourcesItems = null;
 	}
 
 	public void addResource(FacesEvent event) {
@@ -144,6 +246,7 @@ public class SeleniumGroupBean {
 		ClientEntry ce = resAdmin.addResource();
 		ce.setSeleniumUrl(newSeleniumUrl);
 		newSeleniumUrl = null;
+		resourcesItems = null;
 	}
 
 	public void save() {
@@ -152,6 +255,7 @@ public class SeleniumGroupBean {
 			try {
 				resAdmin.commit();
 				this.resAdmin = null;
+				resourcesItems = null;
 
 				FacesContext.getCurrentInstance().addMessage(null,
 						JSFUtil.createInfoMessage("The resources have been saved successfully."));
@@ -15,22 +15,19 @@
  */
 package org.aludratest.cloud.selenium.impl;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.AbstractSet;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Enumeration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,10 +38,13 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.aludratest.cloud.app.CloudManagerApp;
-import org.aludratest.cloud.app.CloudManagerAppConfig;
 import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.selenium.impl.SeleniumSessionRecord.EndReason;
+import org.aludratest.cloud.selenium.util.CompressingHttpServletResponse;
+import org.aludratest.cloud.selenium.util.CompressionStatistics;
+import org.aludratest.cloud.selenium.util.CountingHttpServletResponse;
 import org.aludratest.cloud.selenium.util.HttpProxy;
+import org.aludratest.cloud.selenium.util.LatencyHistogram;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -52,13 +52,16 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.eclipse.jetty.client.Address;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.HttpDestination;
 import org.eclipse.jetty.client.HttpExchange;
 import org.eclipse.jetty.continuation.Continuation;
 import org.eclipse.jetty.continuation.ContinuationListener;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,60 +91,230 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 
 	private volatile boolean stopped;
 
+	private SeleniumSessionTracker sessionTracker;
+
+	private SeleniumSessionRecord currentSession;
+
 	private static final Pattern PATTERN_SESSION_ID_SEL1 = Pattern.compile("(^|&)sessionId=([^&]+)");
 
 	private static final Pattern PATTERN_SESSION_ID_SEL2 = Pattern.compile("/wd/hub/session/([^/]+)/");
 
-	static HttpClient httpClient;
+	private static final Pattern PATTERN_COMMAND_SEL1 = Pattern.compile("(^|&)cmd=([^&]+)");
+
+	private static final Pattern PATTERN_NEW_SESSION_SEL2 = Pattern.compile("/wd/hub/session/?$");
+
+	private static final Pattern PATTERN_QUIT_SEL2 = Pattern.compile("/wd/hub/session/([^/]+)/?$");
+
+	private static final String ATTR_REQUEST_START = "selenium.requestStart";
+
+	private static final String ATTR_REQUEST_BYTES = "selenium.requestBytes";
+
+	private static final String ATTR_RESPONSE = "selenium.response";
+
+	private static final String ATTR_SESSION_COMMAND = "selenium.sessionCommand";
+
+	private static final String ATTR_SESSION_ID = "selenium.sessionId";
+
+	private static final String ATTR_SELENIUM1 = "selenium.selenium1";
+
+	private static final String ATTR_UPSTREAM_EXCHANGE = "selenium.upstreamExchange";
+
+	private static final String ATTR_REQUEST_BODY = "selenium.requestBody";
+
+	private static final String ATTR_COMPRESSING_RESPONSE = "selenium.compressingResponse";
+
+	private static final String ATTR_UPSTREAM_EXCHANGE_START = "selenium.upstreamExchangeStart";
+
+	private static final String ATTR_COMMAND_CLASS = "selenium.commandClass";
+
+	private static final String ATTR_COMMAND_TIMEOUT = "selenium.commandTimeout";
+
+	private static final String ATTR_DEADLINE = "selenium.deadline";
+
+	private static final String ATTR_UPSTREAM_EXCHANGE_OBJECT = "selenium.upstreamExchangeObject";
+
+	private static final String ATTR_DEADLINE_BOUND = "selenium.deadlineBound";
+
+	private static final String ATTR_UPSTREAM_CALL = "selenium.upstreamCall";
+
+	private static final String ATTR_UPSTREAM_RESPONSE = "selenium.upstreamResponse";
+
+	private static final String ATTR_UPSTREAM_FAILURE = "selenium.upstreamFailure";
+
+	private static final String ATTR_CONNECT_FAILED = "selenium.connectFailed";
+
+	private static final String ATTR_DOWNSTREAM_ENDPOINT = "selenium.downstreamEndPoint";
+
+	private static final String ATTR_WATCH_HANDLE = "selenium.watchHandle";
+
+	/** Set on requests whose upstream exchange has been aborted because the client disconnected. */
+	static final String ATTR_ABANDONED = "selenium.abandoned";
+
+	/** Request header with the absolute deadline of the client for the request, in milliseconds since the epoch. */
+	static final String HEADER_DEADLINE = "X-Request-Deadline";
+
+	/** Request header with the time the client waits for the response, in milliseconds. */
+	static final String HEADER_TIMEOUT = "X-Request-Timeout";
+
+	/* The continuation must not expire before the upstream exchange, which answers expired exchanges with a 504. */
+	private static final long CONTINUATION_TIMEOUT_GRACE_MILLIS = 1000;
+
+	/* Time added to the read timeout of status commands for the socket timeout of health checks via the proxy. */
+	private static final long HEALTH_CHECK_SOCKET_TIMEOUT_GRACE_MILLIS = 5000;
+
+	private SeleniumUpstreamClients upstreamClients;
+
+	private SeleniumUpstreamClients.Shard upstreamShard;
+
+	private volatile SeleniumUpstreamClient upstreamClient;
 
-	private static final AtomicInteger httpClientReferences = new AtomicInteger();
+	private SeleniumRequestBodyBuffer requestBodyBuffer;
+
+	private SeleniumResponseCompression responseCompression;
+
+	private CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+	private SeleniumDnsCache dnsCache;
+
+	private SeleniumTimeoutPolicy timeoutPolicy;
+
+	private Map<SeleniumCommandClass, LatencyHistogram> commandLatencies;
+
+	private SeleniumExchangeWatchdog exchangeWatchdog;
 
 	private SeleniumHttpProxy(String schema, String prefix, String host, int port, String path) {
 		super(schema, prefix, host, port, path);
+		commandLatencies = new EnumMap<SeleniumCommandClass, LatencyHistogram>(SeleniumCommandClass.class);
+		for (SeleniumCommandClass commandClass : SeleniumCommandClass.values()) {
+			commandLatencies.put(commandClass, new LatencyHistogram());
+		}
 	}
 
 	public static SeleniumHttpProxy create(int id, SeleniumResourceImpl resource, String prefix, long timeout, long maxIdleTime,
-			String accessUrl, ScheduledExecutorService healthCheckExecutor) {
+			String accessUrl, ScheduledExecutorService healthCheckExecutor, SeleniumSessionTracker sessionTracker,
+			SeleniumUpstreamClients upstreamClients, SeleniumRequestBodyBuffer requestBodyBuffer,
+			SeleniumResponseCompression responseCompression, SeleniumTlsSupport tlsSupport, SeleniumDnsCache dnsCache,
+			SeleniumTimeoutPolicy timeoutPolicy, SeleniumExchangeWatchdog exchangeWatchdog) {
 		URI oUri = URI.create(resource.getOriginalUrl());
-		SeleniumHttpProxy proxy = new SeleniumHttpProxy(oUri.getScheme(), prefix, oUri.getHost(), oUri.getPort(), oUri.getPath());
+		int port = oUri.getPort();
+		if (port < 0) {
+			port = "https".equalsIgnoreCase(oUri.getScheme()) ? 443 : 80;
+		}
+		SeleniumHttpProxy proxy = new SeleniumHttpProxy(oUri.getScheme(), prefix, oUri.getHost(), port, oUri.getPath());
 		proxy.id = id;
 		proxy.resource = resource;
 		proxy.timeout = timeout;
 		proxy.accessUrl = accessUrl;
 		proxy.maxIdleTime = maxIdleTime;
-		proxy.healthCheckClient = createHealthCheckHttpClient();
+		proxy.healthCheckClient = createHealthCheckHttpClient(tlsSupport, dnsCache);
+		proxy.dnsCache = dnsCache;
+		proxy.timeoutPolicy = timeoutPolicy;
+		proxy.exchangeWatchdog = exchangeWatchdog;
 		proxy.healthCheckExecutor = healthCheckExecutor;
+		proxy.sessionTracker = sessionTracker;
+		proxy.upstreamClients = upstreamClients;
+		proxy.requestBodyBuffer = requestBodyBuffer;
+		proxy.responseCompression = responseCompression;
+		return proxy;
+	}
 
+	/**
+	 * Takes over the resource of this proxy once the proxy has been registered: sets the resource to DISCONNECTED, restores
+	 * its snapshot, if any, and enqueues this proxy for its first health check.
+	 * 
+	 * @param snapshotEntry
+	 *            Snapshot entry of the resource from before a restart, or <code>null</code>.
+	 * @param restoreState
+	 *            If <code>true</code>, the state of the resource is restored from the snapshot entry as well.
+	 * @param startupProber
+	 *            Prober performing the first health check.
+	 */
+	void activate(SeleniumResourceSnapshot.Entry snapshotEntry, boolean restoreState, SeleniumStartupProber startupProber) {
 		// set resource to DISCONNECTED first
 		resource.setState(ResourceState.DISCONNECTED);
-		proxy.nextHealthCheck = healthCheckExecutor.schedule(proxy.checkStatusRunnable, 2000, TimeUnit.MILLISECONDS);
 
-		return proxy;
+		if (snapshotEntry != null) {
+			// reattach to the session which was active before restart; it is reaped by the idle check if the client is gone
+			seleniumSessionId = snapshotEntry.getSeleniumSessionId();
+			selenium1 = snapshotEntry.isSelenium1();
+			resource.restoreFromSnapshot(snapshotEntry, restoreState);
+		}
+
+		// first check is done in parallel with all other new proxies; regular health checks are scheduled afterwards
+		startupProber.enqueue(this);
 	}
 
 	@Override
 	public void destroy() {
 		// NO CALL OF SUPER.DESTROY!! All it does is killing the (commonly used!) HTTP Client.
-		int refs = httpClientReferences.decrementAndGet();
 		synchronized (this) {
-			if (refs == 0) {
-				try {
-					httpClient.stop();
-				}
-				catch (Exception e) {
-					// ignore
-				}
-				httpClient = null;
+			if (upstreamShard != null) {
+				upstreamShard.release();
+				upstreamShard = null;
 			}
 		}
 
 		IOUtils.closeQuietly(healthCheckClient);
 		stopped = true;
+
+		endCurrentSession(EndReason.ERROR);
 	}
 
 	@Override
 	protected void customizeContinuation(Continuation continuation) {
 		super.customizeContinuation(continuation);
+		Long commandTimeout = (Long) continuation.getAttribute(ATTR_COMMAND_TIMEOUT);
+		if (commandTimeout != null) {
+			continuation.setTimeout(commandTimeout.longValue() + CONTINUATION_TIMEOUT_GRACE_MILLIS);
+		}
+		HttpExchange exchange = (HttpExchange) continuation.getAttribute(ATTR_UPSTREAM_EXCHANGE_OBJECT);
+		EndPoint downstreamEndPoint = (EndPoint) continuation.getAttribute(ATTR_DOWNSTREAM_ENDPOINT);
+		if (exchange != null && downstreamEndPoint != null) {
+			continuation.setAttribute(ATTR_WATCH_HANDLE, exchangeWatchdog.watch(exchange, continuation, downstreamEndPoint));
+		}
+		continuation.addContinuationListener(new ContinuationListener() {
+			@Override
+			public void onTimeout(Continuation continuation) {
+			}
+
+			@Override
+			public void onComplete(Continuation continuation) {
+				Object watchHandle = continuation.getAttribute(ATTR_WATCH_HANDLE);
+				if (watchHandle != null) {
+					exchangeWatchdog.unwatch(watchHandle);
+				}
+				continuation.removeAttribute(ATTR_UPSTREAM_EXCHANGE_OBJECT);
+				continuation.removeAttribute(ATTR_UPSTREAM_CALL);
+				continuation.removeAttribute(ATTR_UPSTREAM_RESPONSE);
+				CompressingHttpServletResponse compressingResponse = (CompressingHttpServletResponse) continuation
+						.getAttribute(ATTR_COMPRESSING_RESPONSE);
+				if (compressingResponse != null) {
+					try {
+						compressingResponse.finish();
+					}
+					catch (IOException e) {
+						LOG.debug("Could not complete compressed response of " + resource, e);
+					}
+				}
+				SeleniumRequestBodyBuffer.Body body = (SeleniumRequestBodyBuffer.Body) continuation
+						.getAttribute(ATTR_REQUEST_BODY);
+				if (body != null) {
+					body.release();
+				}
+				SeleniumUpstreamClients.Shard shard = (SeleniumUpstreamClients.Shard) continuation
+						.getAttribute(ATTR_UPSTREAM_EXCHANGE);
+				Long exchangeStart = (Long) continuation.getAttribute(ATTR_UPSTREAM_EXCHANGE_START);
+				if (shard != null && exchangeStart != null) {
+					shard.exchangeCompleted(System.currentTimeMillis() - exchangeStart.longValue());
+				}
+				SeleniumCommandClass commandClass = (SeleniumCommandClass) continuation.getAttribute(ATTR_COMMAND_CLASS);
+				Long requestStart = (Long) continuation.getAttribute(ATTR_REQUEST_START);
+				if (commandClass != null && requestStart != null) {
+					commandLatencies.get(commandClass).record(System.currentTimeMillis() - requestStart.longValue());
+				}
+				sessionRequestCompleted(continuation);
+			}
+		});
 		if (LOG.isTraceEnabled()) {
 			continuation.addContinuationListener(new ContinuationListener() {
 				@Override
@@ -161,111 +334,271 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 
 	@Override
 	protected void customizeExchange(HttpExchange exchange, HttpServletRequest request) {
-		// spy into the content to extract selenium URL, if any
 		try {
-			InputStream in = exchange.getRequestContentSource();
-			if (in != null) {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				IOUtils.copy(in, baos);
-
-				String data = new String(baos.toByteArray(), "UTF-8");
-				
-				// only trigger usage in successful case, because otherwise Proxy Health Check also triggers usage
-				if (extractSeleniumSessionId(request, data)) {
-					resource.triggerUsage();
-					// treat as healthy until error occurs, reset "counter"
-					if (nextHealthCheck != null) {
-						synchronized (checkStatusRunnable) {
-							nextHealthCheck.cancel(true);
-							nextHealthCheck = healthCheckExecutor.schedule(checkStatusRunnable, 5, TimeUnit.SECONDS);
-						}
-					}
-				}
-
-				// and put cached bytes into exchange again
-				exchange.setRequestContentSource(new ByteArrayInputStream(baos.toByteArray()));
+			InputStream content = inspectRequestContent(exchange.getRequestContentSource(), request);
+			if (content != null) {
+				// put cached bytes into exchange again
+				exchange.setRequestContentSource(content);
 			}
 		}
 		catch (IOException e) {
 			// too bad, will occur anyway
 		}
 
+		upstreamExchangeStarted(request);
+
+		exchange.setTimeout(getCommandTimeout(request));
+		request.setAttribute(ATTR_UPSTREAM_EXCHANGE_OBJECT, exchange);
+		resolveUpstreamAddress(exchange);
+
 		super.customizeExchange(exchange, request);
 	}
 
+	/**
+	 * Spies into the request content to classify the command and to extract the Selenium session ID, if any.
+	 * 
+	 * @param in
+	 *            Request content, or <code>null</code> if the request has no content.
+	 * @param request
+	 *            Request being forwarded.
+	 * @return The content to forward instead of the given stream, or <code>null</code> if the request has no content.
+	 * @throws IOException
+	 *             If the request content could not be read.
+	 */
+	private InputStream inspectRequestContent(InputStream in, HttpServletRequest request) throws IOException {
+		if (in == null) {
+			classifySessionCommand(request, "");
+			return null;
+		}
+
+		// large bodies are only inspected by their first bytes, and not completely held in memory
+		SeleniumRequestBodyBuffer.Body body = requestBodyBuffer.buffer(in, request.getContentLength());
+		request.setAttribute(ATTR_REQUEST_BODY, body);
+
+		String data = body.getInspectionText();
+		if (body.getLength() >= 0) {
+			request.setAttribute(ATTR_REQUEST_BYTES, Long.valueOf(body.getLength()));
+		}
+		classifySessionCommand(request, data);
+
+		// only trigger usage in successful case, because otherwise Proxy Health Check also triggers usage
+		if (extractSeleniumSessionId(request, data)) {
+			resource.triggerUsage();
+			// treat as healthy until error occurs, reset "counter"
+			if (nextHealthCheck != null) {
+				synchronized (checkStatusRunnable) {
+					nextHealthCheck.cancel(true);
+					nextHealthCheck = healthCheckExecutor.schedule(checkStatusRunnable, 5, TimeUnit.SECONDS);
+				}
+			}
+		}
+
+		return body.getContent();
+	}
+
+	private void upstreamExchangeStarted(HttpServletRequest request) {
+		SeleniumUpstreamClients.Shard shard = upstreamShard;
+		if (shard != null) {
+			shard.exchangeStarted();
+			request.setAttribute(ATTR_UPSTREAM_EXCHANGE, shard);
+			request.setAttribute(ATTR_UPSTREAM_EXCHANGE_START, Long.valueOf(System.currentTimeMillis()));
+		}
+	}
+
+	private long getCommandTimeout(HttpServletRequest request) {
+		SeleniumCommandClass commandClass = (SeleniumCommandClass) request.getAttribute(ATTR_COMMAND_CLASS);
+		if (commandClass == null) {
+			commandClass = SeleniumCommandClass.DEFAULT;
+			request.setAttribute(ATTR_COMMAND_CLASS, commandClass);
+		}
+
+		// the upstream exchange expires after this time, which releases the continuation with a 504 (Gateway Timeout)
+		long readTimeout = timeoutPolicy.getReadTimeoutMillis(commandClass, commandLatencies.get(commandClass));
+
+		// the client is not interested in the response after its deadline
+		Long deadline = (Long) request.getAttribute(ATTR_DEADLINE);
+		if (deadline != null && deadline.longValue() - System.currentTimeMillis() < readTimeout) {
+			readTimeout = Math.max(1, deadline.longValue() - System.currentTimeMillis());
+			request.setAttribute(ATTR_DEADLINE_BOUND, Boolean.TRUE);
+		}
+		request.setAttribute(ATTR_COMMAND_TIMEOUT, Long.valueOf(readTimeout));
+		return readTimeout;
+	}
+
+	private void resolveUpstreamAddress(HttpExchange exchange) {
+		Address address = exchange.getAddress();
+		if (address == null) {
+			return;
+		}
+
+		// resolve via the DNS cache when connecting; Jetty would otherwise resolve the host name for every new connection. The
+		// address keeps the host name, so the proxy bypass list still matches it. Proxied hosts are resolved by the proxy.
+		exchange.setAddress(dnsCache.createAddress(address.getHost(), address.getPort()));
+	}
+
 	private boolean extractSeleniumSessionId(HttpServletRequest request, String data) {
 		// Selenium 1 style
 		Matcher m = PATTERN_SESSION_ID_SEL1.matcher(data);
 		if (m.find()) {
-			seleniumSessionId = m.group(2);
-			selenium1 = true;
+			updateSeleniumSessionId(m.group(2), true);
 			return true;
 		}
 
 		// Selenium 2 style
 		m = PATTERN_SESSION_ID_SEL2.matcher(request.getRequestURI());
 		if (m.find()) {
-			seleniumSessionId = m.group(1);
-			selenium1 = false;
+			updateSeleniumSessionId(m.group(1), false);
 			return true;
 		}
 
 		return false;
 	}
 
-	@Override
-	protected HttpClient createHttpClient(ServletConfig config) throws Exception {
-		synchronized (SeleniumHttpProxy.class) {
-			if (httpClient != null) {
-				httpClientReferences.incrementAndGet();
-				return httpClient;
+	private void updateSeleniumSessionId(String sessionId, boolean selenium1) {
+		boolean changed = !sessionId.equals(seleniumSessionId);
+		seleniumSessionId = sessionId;
+		this.selenium1 = selenium1;
+		if (changed) {
+			SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+			if (registry != null) {
+				registry.resourceModified(resource);
 			}
 		}
+	}
 
-		HttpClient client = createHttpClientInstance();
-		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
-
-		client.setThreadPool(new NamedQueuedThreadPool(250));
-
-		client.setMaxConnectionsPerAddress(100);
-		client.setConnectTimeout((int) timeout);
-		// 30 minutes IDLE timeout
-		client.setIdleTimeout(30 * 60 * 1000l);
+	private static void classifySessionCommand(HttpServletRequest request, String data) {
+		SessionCommand command = null;
+		String sessionId = null;
+		boolean selenium1 = false;
 
-		String t = config.getInitParameter("requestHeaderSize");
+		String uri = request.getRequestURI();
+		String method = request.getMethod();
 
-		if (t != null) {
-			client.setRequestHeaderSize(Integer.parseInt(t));
+		SeleniumCommandClass commandClass;
+		Matcher m = PATTERN_COMMAND_SEL1.matcher(data);
+		if (m.find()) {
+			selenium1 = true;
+			String cmd = m.group(2);
+			commandClass = SeleniumCommandClass.classifySelenium1Command(cmd);
+			m = PATTERN_SESSION_ID_SEL1.matcher(data);
+			sessionId = m.find() ? m.group(2) : null;
+			if ("getNewBrowserSession".equals(cmd)) {
+				command = SessionCommand.NEW_SESSION;
+			}
+			else if ("testComplete".equals(cmd)) {
+				command = SessionCommand.QUIT;
+			}
+			else if (sessionId != null) {
+				command = SessionCommand.COMMAND;
+			}
 		}
-
-		t = config.getInitParameter("requestBufferSize");
-
-		if (t != null) {
-			client.setRequestBufferSize(Integer.parseInt(t));
+		else {
+			commandClass = SeleniumCommandClass.classifyWebDriverCommand(method, uri);
+			if ("POST".equals(method) && PATTERN_NEW_SESSION_SEL2.matcher(uri).find()) {
+				command = SessionCommand.NEW_SESSION;
+			}
+			else if ("DELETE".equals(method) && (m = PATTERN_QUIT_SEL2.matcher(uri)).find()) {
+				command = SessionCommand.QUIT;
+				sessionId = m.group(1);
+			}
+			else if ((m = PATTERN_SESSION_ID_SEL2.matcher(uri)).find()) {
+				command = SessionCommand.COMMAND;
+				sessionId = m.group(1);
+			}
 		}
 
-		t = config.getInitParameter("responseHeaderSize");
-
-		if (t != null) {
-			client.setResponseHeaderSize(Integer.parseInt(t));
+		request.setAttribute(ATTR_COMMAND_CLASS, commandClass);
+		if (command != null) {
+			request.setAttribute(ATTR_SESSION_COMMAND, command);
+			request.setAttribute(ATTR_SELENIUM1, Boolean.valueOf(selenium1));
+			if (sessionId != null) {
+				request.setAttribute(ATTR_SESSION_ID, sessionId);
+			}
 		}
+	}
 
-		t = config.getInitParameter("responseBufferSize");
+	private void sessionRequestCompleted(Continuation continuation) {
+		SessionCommand command = (SessionCommand) continuation.getAttribute(ATTR_SESSION_COMMAND);
+		Long startTime = (Long) continuation.getAttribute(ATTR_REQUEST_START);
+		if (command == null || startTime == null) {
+			return;
+		}
 
-		if (t != null) {
-			client.setResponseBufferSize(Integer.parseInt(t));
+		long endTime = System.currentTimeMillis();
+		Long requestBytes = (Long) continuation.getAttribute(ATTR_REQUEST_BYTES);
+		CountingHttpServletResponse response = (CountingHttpServletResponse) continuation.getAttribute(ATTR_RESPONSE);
+		boolean success = response != null && response.getStatus() < HttpServletResponse.SC_BAD_REQUEST
+				&& !continuation.isExpired() && !Boolean.TRUE.equals(continuation.getAttribute(ATTR_CONNECT_FAILED))
+				&& !Boolean.TRUE.equals(continuation.getAttribute(ATTR_ABANDONED));
+
+		SeleniumSessionRecord session;
+		switch (command) {
+			case NEW_SESSION:
+				session = new SeleniumSessionRecord(resource.getOriginalUrl(),
+						Boolean.TRUE.equals(continuation.getAttribute(ATTR_SELENIUM1)), startTime.longValue(), endTime
+								- startTime.longValue());
+				if (success) {
+					// a previous session which has never been quit is lost now
+					endCurrentSession(EndReason.ERROR);
+					synchronized (this) {
+						currentSession = session;
+					}
+				}
+				else {
+					// count as failed browser startup
+					session.end(EndReason.ERROR);
+					sessionTracker.sessionEnded(session);
+				}
+				break;
+			case COMMAND:
+			case QUIT:
+				synchronized (this) {
+					session = currentSession;
+				}
+				if (session != null) {
+					String sessionId = (String) continuation.getAttribute(ATTR_SESSION_ID);
+					if (sessionId != null) {
+						session.bindSessionId(sessionId);
+					}
+					session.recordCommand(startTime.longValue(), endTime, requestBytes == null ? 0 : requestBytes.longValue(),
+							response == null ? 0 : response.getByteCount());
+					if (command == SessionCommand.QUIT) {
+						endCurrentSession(success ? EndReason.QUIT : EndReason.ERROR);
+					}
+				}
+				break;
 		}
+	}
 
-		synchronized (SeleniumHttpProxy.class) {
-			if (httpClient == null) {
-				client.start();
-				httpClient = client;
+	private void endCurrentSession(EndReason reason) {
+		SeleniumSessionRecord session;
+		synchronized (this) {
+			session = currentSession;
+			currentSession = null;
+		}
+		if (session != null && session.end(reason)) {
+			sessionTracker.sessionEnded(session);
+		}
+	}
 
-				updateProxyConfig();
+	@Override
+	protected HttpClient createHttpClient(ServletConfig config) throws Exception {
+		SeleniumUpstreamClients.Shard shard = upstreamClients.getShard(resource.getOriginalUrl());
+		SeleniumUpstreamClient client = shard.acquire(config);
+		synchronized (this) {
+			// re-initialization, e.g. after restart of Jetty
+			if (upstreamShard != null) {
+				upstreamShard.release();
 			}
-			httpClientReferences.incrementAndGet();
-			return httpClient;
+			upstreamShard = shard;
+			upstreamClient = client;
 		}
+
+		if (client instanceof SeleniumJettyUpstreamClient) {
+			return ((SeleniumJettyUpstreamClient) client).getHttpClient();
+		}
+		// ProxyServlet requires a Jetty client; with other transports, requests are sent via forward(), and it is never started
+		return new HttpClient();
 	}
 
 	@Override
@@ -284,16 +617,203 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 		synchronized (SeleniumHttpProxy.class) {
 		}
 
-		super.service(req, res);
+		if (Boolean.TRUE.equals(req.getAttribute(ATTR_ABANDONED))) {
+			// resumed by the exchange watchdog; the client is gone, so there is nothing to respond
+			return;
+		}
+
+		if (req.getAttribute(ATTR_DEADLINE) == null) {
+			Long deadline = getClientDeadline((HttpServletRequest) req);
+			if (deadline != null) {
+				if (deadline.longValue() <= System.currentTimeMillis()) {
+					exchangeWatchdog.deadlineRejected();
+					((HttpServletResponse) res).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Client deadline exceeded");
+					return;
+				}
+				req.setAttribute(ATTR_DEADLINE, deadline);
+			}
+
+			// remember the client connection, to abort the upstream exchange when the client disconnects
+			AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+			if (connection != null) {
+				req.setAttribute(ATTR_DOWNSTREAM_ENDPOINT, connection.getEndPoint());
+			}
+		}
+
+		// on a redispatch (e.g. after expiry), keep the wrappers of the initial dispatch; they are finished by the continuation
+		// listener, which returns the Deflater to the pool, and must not be wrapped into another compressing response
+		CountingHttpServletResponse countingResponse = (CountingHttpServletResponse) req.getAttribute(ATTR_RESPONSE);
+		CompressingHttpServletResponse compressingResponse = (CompressingHttpServletResponse) req
+				.getAttribute(ATTR_COMPRESSING_RESPONSE);
+		if (countingResponse == null || ContinuationSupport.getContinuation(req).isInitial()) {
+			// count response bytes for session accounting
+			countingResponse = new CountingHttpServletResponse((HttpServletResponse) res);
+			req.setAttribute(ATTR_REQUEST_START, Long.valueOf(System.currentTimeMillis()));
+			req.setAttribute(ATTR_RESPONSE, countingResponse);
+
+			// compressed bytes are counted, as these are the bytes transferred to the client
+			compressingResponse = responseCompression.wrap((HttpServletRequest) req, countingResponse, compressionStatistics);
+			if (compressingResponse != null) {
+				req.setAttribute(ATTR_COMPRESSING_RESPONSE, compressingResponse);
+			}
+		}
+		HttpServletResponse response = compressingResponse != null ? compressingResponse : countingResponse;
+
+		SeleniumUpstreamClient client = upstreamClient;
+		if (client != null && !(client instanceof SeleniumJettyUpstreamClient)) {
+			forward(client, (HttpServletRequest) req, response);
+			return;
+		}
+
+		super.service(req, response);
 
-		if (Boolean.TRUE.equals(req.getAttribute("selenium.connectFailed"))) {
-			((HttpServletResponse) res).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+		if (Boolean.TRUE.equals(req.getAttribute(ATTR_CONNECT_FAILED))) {
+			countingResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Forwards the request via a transport which is not based on Jetty's <code>ProxyServlet</code>. The request is suspended
+	 * until the response handler resumes it with the result of the exchange, or until it expires; the result is written
+	 * to the client on the redispatch, on a thread of the proxy server.
+	 */
+	private void forward(SeleniumUpstreamClient client, final HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		final Continuation continuation = ContinuationSupport.getContinuation(request);
+		if (!continuation.isInitial()) {
+			completeForward(continuation, request, response);
+			return;
+		}
+
+		String uri = request.getRequestURI();
+		if (request.getQueryString() != null) {
+			uri += "?" + request.getQueryString();
+		}
+		HttpURI url = proxyHttpURI(request, uri);
+		if (url == null) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		SeleniumUpstreamClient.Request upstreamRequest = new SeleniumUpstreamClient.Request(request.getMethod(), url.toString());
+		boolean hasContent = request.getContentLength() > 0 || request.getContentType() != null;
+		boolean xForwardedFor = false;
+		Enumeration<?> names = request.getHeaderNames();
+		while (names.hasMoreElements()) {
+			String name = (String) names.nextElement();
+			String lowerName = name.toLowerCase(Locale.ENGLISH);
+			if ("transfer-encoding".equals(lowerName) && request.getHeader(name).indexOf("chunk") >= 0) {
+				hasContent = true;
+			}
+			// the client sets Host and Content-Length for the upstream request
+			if (_DontProxyHeaders.contains(lowerName) || "host".equals(lowerName) || "content-length".equals(lowerName)) {
+				continue;
+			}
+			xForwardedFor |= "x-forwarded-for".equals(lowerName);
+			Enumeration<?> values = request.getHeaders(name);
+			while (values.hasMoreElements()) {
+				upstreamRequest.addHeader(name, (String) values.nextElement());
+			}
+		}
+		upstreamRequest.addHeader("Via", "1.1 (jetty)");
+		if (!xForwardedFor) {
+			upstreamRequest.addHeader("X-Forwarded-For", request.getRemoteAddr());
+			upstreamRequest.addHeader("X-Forwarded-Proto", request.getScheme());
+			upstreamRequest.addHeader("X-Forwarded-Host", request.getHeader("Host"));
+			upstreamRequest.addHeader("X-Forwarded-Server", request.getLocalName());
+		}
+
+		InputStream content = inspectRequestContent(hasContent ? request.getInputStream() : null, request);
+		if (content != null) {
+			SeleniumRequestBodyBuffer.Body body = (SeleniumRequestBodyBuffer.Body) request.getAttribute(ATTR_REQUEST_BODY);
+			upstreamRequest.setContent(content, body.getLength());
+		}
+
+		upstreamExchangeStarted(request);
+		upstreamRequest.setTimeout(getCommandTimeout(request));
+
+		customizeContinuation(continuation);
+		continuation.suspend(response);
+
+		SeleniumUpstreamClient.Exchange exchange = client.send(upstreamRequest, new SeleniumUpstreamClient.ResponseHandler() {
+			@Override
+			public void onResponse(SeleniumUpstreamClient.Response response) {
+				request.setAttribute(ATTR_UPSTREAM_RESPONSE, response);
+				resume(continuation);
+			}
+
+			@Override
+			public void onConnectionFailed(Throwable cause) {
+				request.setAttribute(ATTR_CONNECT_FAILED, Boolean.TRUE);
+				request.setAttribute(ATTR_UPSTREAM_FAILURE, cause);
+				resume(continuation);
+			}
+
+			@Override
+			public void onException(Throwable cause) {
+				request.setAttribute(ATTR_UPSTREAM_FAILURE, cause);
+				resume(continuation);
+			}
+
+			@Override
+			public void onExpire() {
+				// handled like an expired continuation
+				resume(continuation);
+			}
+		});
+		request.setAttribute(ATTR_UPSTREAM_CALL, exchange);
+	}
+
+	private static void resume(Continuation continuation) {
+		try {
+			continuation.resume();
+		}
+		catch (IllegalStateException e) {
+			// continuation has expired in the meantime; the client already got a 504
+		}
+	}
+
+	private void completeForward(Continuation continuation, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		SeleniumUpstreamClient.Response upstreamResponse = (SeleniumUpstreamClient.Response) request
+				.getAttribute(ATTR_UPSTREAM_RESPONSE);
+		Throwable failure = (Throwable) request.getAttribute(ATTR_UPSTREAM_FAILURE);
+
+		if (upstreamResponse != null) {
+			response.setStatus(upstreamResponse.getStatus());
+			for (int i = 0; i < upstreamResponse.getHeaderCount(); i++) {
+				String name = upstreamResponse.getHeaderName(i);
+				if (_DontProxyHeaders.contains(name.toLowerCase(Locale.ENGLISH))) {
+					continue;
+				}
+				String value = filterResponseHeaderValue(name, upstreamResponse.getHeaderValue(i), request);
+				if (value != null) {
+					response.addHeader(name, value);
+				}
+			}
+			byte[] content = upstreamResponse.getContent();
+			if (content != null && content.length > 0) {
+				response.getOutputStream().write(content);
+			}
+		}
+		else if (failure != null && Boolean.TRUE.equals(request.getAttribute(ATTR_CONNECT_FAILED))) {
+			handleOnConnectionFailed(failure, request, response);
+		}
+		else if (failure != null) {
+			handleOnException(failure, request, response);
+		}
+		else {
+			SeleniumUpstreamClient.Exchange exchange = (SeleniumUpstreamClient.Exchange) request.getAttribute(ATTR_UPSTREAM_CALL);
+			if (exchange != null) {
+				exchange.abort();
+			}
+			handleOnExpire(request, response);
 		}
 	}
 
 	@Override
 	protected void handleOnConnectionFailed(Throwable ex, HttpServletRequest request, HttpServletResponse response) {
-		request.setAttribute("selenium.connectFailed", Boolean.TRUE);
+		request.setAttribute(ATTR_CONNECT_FAILED, Boolean.TRUE);
 		super.handleOnConnectionFailed(ex, request, response);
 	}
 
@@ -305,10 +825,33 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 
 	@Override
 	protected void handleOnExpire(HttpServletRequest request, HttpServletResponse response) {
-		LOG.warn("Timeout when waiting for Selenium response from " + resource);
+		if (Boolean.TRUE.equals(request.getAttribute(ATTR_DEADLINE_BOUND))) {
+			LOG.debug("Client deadline exceeded when waiting for Selenium response from " + resource);
+			exchangeWatchdog.deadlineExpired();
+		}
+		else {
+			LOG.warn("Timeout when waiting for Selenium response from " + resource);
+		}
 		super.handleOnExpire(request, response);
 	}
 
+	private static Long getClientDeadline(HttpServletRequest request) {
+		try {
+			String value = request.getHeader(HEADER_DEADLINE);
+			if (value != null) {
+				return Long.valueOf(value.trim());
+			}
+			value = request.getHeader(HEADER_TIMEOUT);
+			if (value != null) {
+				return Long.valueOf(System.currentTimeMillis() + Long.parseLong(value.trim()));
+			}
+		}
+		catch (NumberFormatException e) {
+			LOG.debug("Ignoring invalid client deadline header", e);
+		}
+		return null;
+	}
+
 	@Override
 	public int getId() {
 		return id;
@@ -331,63 +874,69 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 		return selenium1;
 	}
 
-	// when port or host name of Proxy Server changes
-	void setAccessUrl(String accessUrl) {
-		this.accessUrl = accessUrl;
+	/**
+	 * Checks if this proxy has an active Selenium session which started before the given time.
+	 * 
+	 * @param time
+	 *            Time to check against, in milliseconds since the epoch.
+	 * @return <code>true</code> if this proxy has an active Selenium session which started before the given time,
+	 *         <code>false</code> otherwise.
+	 */
+	synchronized boolean hasSessionStartedBefore(long time) {
+		return currentSession != null && currentSession.getStartTime() < time;
 	}
 
-	private static CloseableHttpClient createHealthCheckHttpClient() {
-		RequestConfig config = RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout(20000).build();
-		SocketConfig soConfig = SocketConfig.custom().setSoTimeout(20000).build();
-		return HttpClients.custom().setDefaultRequestConfig(config).setDefaultSocketConfig(soConfig).build();
-	}
-
-	static synchronized void updateProxyConfig() {
-		if (httpClient == null) {
-			return;
+	/**
+	 * Returns a report about the latencies and current read timeouts of the command classes used with this proxy.
+	 * 
+	 * @return A report about the latencies and read timeouts per command class, or <code>null</code> if no command has been
+	 *         recorded yet.
+	 */
+	String getCommandLatencyReport() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<SeleniumCommandClass, LatencyHistogram> entry : commandLatencies.entrySet()) {
+			LatencyHistogram latencies = entry.getValue();
+			if (latencies.getCount() == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(entry.getKey().getKey()).append(" p99 ").append(LatencyHistogram.format(latencies.getPercentile(0.99)))
+					.append(" (timeout ").append(timeoutPolicy.getReadTimeoutMillis(entry.getKey(), latencies)).append(" ms)");
 		}
-		LOG.debug("Updating HttpClient Proxy Configuration");
+		return sb.length() == 0 ? null : sb.toString();
+	}
 
-		boolean oldUseProxy = httpClient.isProxied();
-		Address oldProxyAddress = httpClient.getProxy();
-		CloudManagerAppConfig basicConfig = CloudManagerApp.getInstance().getBasicConfiguration();
-		Address newProxyAddress = basicConfig.isUseProxy() && basicConfig.getProxyHost() != null ? new Address(
-				basicConfig.getProxyHost(), basicConfig.getProxyPort()) : null;
+	/**
+	 * Returns the statistics about compressed responses of this proxy.
+	 * 
+	 * @return The statistics about compressed responses of this proxy.
+	 */
+	CompressionStatistics getCompressionStatistics() {
+		return compressionStatistics;
+	}
 
-		if (basicConfig.isUseProxy() != oldUseProxy || oldProxyAddress == null ? newProxyAddress != null : !oldProxyAddress
-				.equals(newProxyAddress)) {
-			httpClient.setProxy(newProxyAddress);
-		}
+	// when port or host name of Proxy Server changes
+	void setAccessUrl(String accessUrl) {
+		this.accessUrl = accessUrl;
+	}
 
-		// use a flaw in httpClient design to inject "regexp" logic as a virtual set
-		// do this always as we cannot be sure that bypass hasn't changed
-		if (httpClient.isProxied()) {
-			String regexp = basicConfig.getBypassProxyRegexp();
-			if (regexp != null && !"".equals(regexp.trim())) {
-				LOG.debug("Updating HttpClient bypass regexp to " + regexp);
-				httpClient.setNoProxy(new RegexpSet(regexp));
-			}
-			else {
-				httpClient.setNoProxy(null);
-			}
-		}
+	private RequestConfig createHealthCheckConfig() {
+		// the proxy answers with a 504 when the status command times out, so wait a little longer for its response
+		long socketTimeout = Math.max(20000, timeoutPolicy.getReadTimeoutMillis(SeleniumCommandClass.STATUS)
+				+ HEALTH_CHECK_SOCKET_TIMEOUT_GRACE_MILLIS);
+		return RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout((int) socketTimeout).build();
+	}
 
-		// clear HttpClient destination cache
-		LOG.debug("Clearing HttpClient destination cache");
-		Set<Address> destAddresses = new HashSet<Address>(httpClient.getDestinations());
-		for (Address a : destAddresses) {
-			try {
-				HttpDestination dest = httpClient.getDestination(a, false);
-				httpClient.removeDestination(dest);
-				dest = httpClient.getDestination(a, true);
-				httpClient.removeDestination(dest);
-			}
-			catch (IOException e) {
-				// ignore this destination
-				continue;
-			}
-		}
-		LOG.debug("HttpClient Proxy Configuration done");
+	private static CloseableHttpClient createHealthCheckHttpClient(SeleniumTlsSupport tlsSupport, SeleniumDnsCache dnsCache) {
+		RequestConfig config = RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout(20000).build();
+		SocketConfig soConfig = SocketConfig.custom().setSoTimeout(20000).build();
+		// same pool limits as the default of HttpClients
+		PoolingHttpClientConnectionManager connectionManager = dnsCache.createConnectionManager(tlsSupport.getSocketFactory(),
+				20, 2);
+		connectionManager.setDefaultSocketConfig(soConfig);
+		return HttpClients.custom().setDefaultRequestConfig(config).setConnectionManager(connectionManager).build();
 	}
 
 	private void checkState() {
@@ -395,22 +944,37 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 		if (resource.getState() == ResourceState.IN_USE && resource.getIdleTime() > maxIdleTime) {
 			// try to safely shutdown Selenium session
 			LOG.info("Detected IDLE IN_USE resource (" + resource.getOriginalUrl() + "), trying to regain it.");
+			endCurrentSession(EndReason.RECLAIMED);
 			resource.tryKillSession();
 			resource.stopUsing();
 			return;
 		}
 
 		// check state via our very own proxy - to get custom timeouts and direct feedback for lost connections.
+		checkHealth(healthCheckClient, createHealthCheckConfig(), false);
+	}
+
+	private void checkHealth(CloseableHttpClient client, RequestConfig requestConfig, boolean direct) {
 		InputStream in = null;
 		HttpGet request = null;
 		CloseableHttpResponse response = null;
+		boolean healthy = false;
 		try {
-			URL uurl = new URL(accessUrl);
-			URL checkUrl = new URL("http://127.0.0.1:" + uurl.getPort() + uurl.getPath() + "/wd/hub/status");
+			URL checkUrl;
+			if (direct) {
+				checkUrl = new URL(resource.getOriginalUrl() + "/wd/hub/status");
+			}
+			else {
+				URL uurl = new URL(accessUrl);
+				checkUrl = new URL("http://127.0.0.1:" + uurl.getPort() + uurl.getPath() + "/wd/hub/status");
+			}
 			LOG.debug("Checking health state for " + resource.getOriginalUrl() + " using " + checkUrl.toExternalForm());
 
 			request = new HttpGet(checkUrl.toURI());
-			response = healthCheckClient.execute(request);
+			if (requestConfig != null) {
+				request.setConfig(requestConfig);
+			}
+			response = client.execute(request);
 
 			if (response.getStatusLine() != null
 					&& response.getStatusLine().getStatusCode() == HttpServletResponse.SC_GATEWAY_TIMEOUT) {
@@ -428,7 +992,14 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 				IOUtils.copy(in, buf);
 				String statusStr = new String(buf.toByteArray(), "UTF-8");
 				if (statusStr.contains("\"status\":0")) {
-					if (resource.getState() == ResourceState.DISCONNECTED || resource.getState() == ResourceState.CONNECTED) {
+					healthy = true;
+					// a session restored from the snapshot is only trusted once the client answers again
+					if (resource.takeRestoredInUse() && resource.getState() == ResourceState.DISCONNECTED) {
+						resource.setState(ResourceState.IN_USE);
+						LOG.debug(resource.getOriginalUrl() + " is IN_USE (restored)");
+					}
+					else if (resource.getState() == ResourceState.DISCONNECTED
+							|| resource.getState() == ResourceState.CONNECTED) {
 						resource.setState(ResourceState.READY);
 						LOG.debug(resource.getOriginalUrl() + " is READY");
 					}
@@ -454,16 +1025,15 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 		finally {
 			IOUtils.closeQuietly(in);
 			IOUtils.closeQuietly(response);
+			if (!healthy) {
+				// the restored session is lost if the client does not answer the first check
+				resource.takeRestoredInUse();
+			}
 		}
 	}
 
-	private static class NamedQueuedThreadPool extends QueuedThreadPool {
-
-		public NamedQueuedThreadPool(int maxThreads) {
-			super(maxThreads);
-			setName("Selenium Proxy HttpClient");
-			setMaxStopTimeMs(5000);
-		}
+	private static enum SessionCommand {
+		NEW_SESSION, COMMAND, QUIT
 	}
 
 	private Runnable checkStatusRunnable = new Runnable() {
@@ -479,66 +1049,63 @@ class SeleniumHttpProxy extends HttpProxy implements HttpResourceProxy {
 			}
 			checkState();
 
-			// avoid double and multi executions
-			if (nextHealthCheck == null) {
-				switch (resource.getState()) {
-					case CONNECTED:
-					case IN_USE:
-					case READY:
-						synchronized (this) {
-							if (nextHealthCheck == null) {
-								// good state, check in 5 seconds again (random add to spread checks over time)
-								nextHealthCheck = healthCheckExecutor.schedule(this, (long) (5000 + Math.random() * 500),
-										TimeUnit.MILLISECONDS);
-							}
-						}
-						break;
-					case DISCONNECTED:
-					case ERROR:
-						synchronized (this) {
-							if (nextHealthCheck == null) {
-								// do not expect it to be good that soon. (random add to spread checks over time)
-								nextHealthCheck = healthCheckExecutor.schedule(this, (long) (10000 + Math.random() * 500),
-										TimeUnit.MILLISECONDS);
-							}
-						}
-						break;
-					default:
-						break;
-				}
+			// an active session does not survive a lost connection
+			if (resource.getState() == ResourceState.DISCONNECTED || resource.getState() == ResourceState.ERROR) {
+				endCurrentSession(EndReason.ERROR);
 			}
-		}
-
-	};
 
-	private static class RegexpSet extends AbstractSet<String> {
-
-		private Pattern regexp;
-
-		public RegexpSet(String regexp) {
-			this.regexp = Pattern.compile(regexp);
-		}
-
-		@Override
-		public Iterator<String> iterator() {
-			return Collections.<String> emptySet().iterator();
+			scheduleNextHealthCheck();
 		}
 
-		@Override
-		public int size() {
-			return 0;
-		}
+	};
 
-		// contains() is the only method being called by HttpClient
-		@Override
-		public boolean contains(Object o) {
-			if (!(o instanceof String)) {
-				return false;
+	private void scheduleNextHealthCheck() {
+		// avoid double and multi executions
+		if (nextHealthCheck == null) {
+			switch (resource.getState()) {
+				case CONNECTED:
+				case IN_USE:
+				case READY:
+					synchronized (checkStatusRunnable) {
+						if (nextHealthCheck == null) {
+							// good state, check in 5 seconds again (random add to spread checks over time)
+							nextHealthCheck = healthCheckExecutor.schedule(checkStatusRunnable,
+									(long) (5000 + Math.random() * 500), TimeUnit.MILLISECONDS);
+						}
+					}
+					break;
+				case DISCONNECTED:
+				case ERROR:
+					synchronized (checkStatusRunnable) {
+						if (nextHealthCheck == null) {
+							// do not expect it to be good that soon. (random add to spread checks over time)
+							nextHealthCheck = healthCheckExecutor.schedule(checkStatusRunnable,
+									(long) (10000 + Math.random() * 500), TimeUnit.MILLISECONDS);
+						}
+					}
+					break;
+				default:
+					break;
 			}
-			LOG.debug("Checking host " + o + " against pattern " + regexp);
+		}
+	}
 
-			return regexp.matcher(o.toString()).matches();
+	/**
+	 * Performs the first health check of this proxy directly against the Selenium node, bypassing the proxy server, and
+	 * schedules the regular health checks afterwards. Used by the {@link SeleniumStartupProber} to bring new resources to READY
+	 * as fast as possible.
+	 * 
+	 * @param probeClient
+	 *            HTTP client to use for the check.
+	 * @param probeConfig
+	 *            Request configuration (timeouts) to use for the check.
+	 */
+	void probeDirectly(CloseableHttpClient probeClient, RequestConfig probeConfig) {
+		if (stopped) {
+			return;
 		}
+		checkHealth(probeClient, probeConfig, true);
+		scheduleNextHealthCheck();
 	}
 
 }
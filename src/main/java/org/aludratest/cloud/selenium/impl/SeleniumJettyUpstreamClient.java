@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Upstream client based on a Jetty <code>HttpClient</code>, with its own selector (or blocking connector) and thread pool. The
+ * Selenium proxies use the Jetty client directly, via Jetty's <code>ProxyServlet</code>, which streams the response to the
+ * client; {@link #send(Request, ResponseHandler)} is available for comparing transports.
+ * 
+ */
+final class SeleniumJettyUpstreamClient implements SeleniumUpstreamClient {
+
+	private HttpClient client;
+
+	public SeleniumJettyUpstreamClient(SeleniumUpstreamClientSettings settings, int connectorType) {
+		client = new HttpClient();
+		client.setConnectorType(connectorType);
+		configureSsl(client.getSslContextFactory(), settings);
+		client.setThreadPool(new NamedQueuedThreadPool(settings.getName(), settings.getMaxThreads()));
+
+		client.setMaxConnectionsPerAddress(settings.getMaxConnectionsPerAddress());
+		client.setConnectTimeout(settings.getConnectTimeoutMillis());
+		client.setIdleTimeout(settings.getIdleTimeoutMillis());
+
+		if (settings.getRequestHeaderSize() > 0) {
+			client.setRequestHeaderSize(settings.getRequestHeaderSize());
+		}
+		if (settings.getRequestBufferSize() > 0) {
+			client.setRequestBufferSize(settings.getRequestBufferSize());
+		}
+		if (settings.getResponseBufferSize() > 0) {
+			client.setResponseBufferSize(settings.getResponseBufferSize());
+		}
+	}
+
+	/**
+	 * Configures the given SSL context factory of a Jetty HTTP client to use the shared TLS context. Session caching is
+	 * enabled, so the SSL engines are created for the peer host and port and can resume previous sessions.
+	 * 
+	 * @param factory
+	 *            SSL context factory to configure. Must not have been started yet.
+	 * @param settings
+	 *            Settings containing the TLS configuration.
+	 */
+	static void configureSsl(SslContextFactory factory, SeleniumUpstreamClientSettings settings) {
+		factory.setSslContext(settings.getSslContext());
+		factory.setSessionCachingEnabled(true);
+		factory.setTrustAll(settings.isTrustAll());
+		if (settings.getTlsProtocols() != null) {
+			factory.setIncludeProtocols(settings.getTlsProtocols());
+		}
+		if (settings.getTlsCipherSuites() != null) {
+			factory.setIncludeCipherSuites(settings.getTlsCipherSuites());
+		}
+	}
+
+	/**
+	 * Returns the Jetty HTTP client, for use by Jetty's <code>ProxyServlet</code>.
+	 * 
+	 * @return The Jetty HTTP client.
+	 */
+	HttpClient getHttpClient() {
+		return client;
+	}
+
+	@Override
+	public void start() throws Exception {
+		client.start();
+	}
+
+	@Override
+	public void stop() throws Exception {
+		client.stop();
+	}
+
+	@Override
+	public void setConnectTimeout(int connectTimeoutMillis) {
+		client.setConnectTimeout(connectTimeoutMillis);
+	}
+
+	@Override
+	public void setProxy(String proxyHost, int proxyPort, String bypassRegexp) {
+		SeleniumUpstreamRouting.apply(client, proxyHost == null ? null : new Address(proxyHost, proxyPort), bypassRegexp);
+	}
+
+	@Override
+	public Exchange send(Request request, ResponseHandler handler) {
+		final ForwardExchange exchange = new ForwardExchange(handler);
+		exchange.setMethod(request.getMethod());
+		exchange.setURL(request.getUrl());
+		for (int i = 0; i < request.getHeaderCount(); i++) {
+			exchange.addRequestHeader(request.getHeaderName(i), request.getHeaderValue(i));
+		}
+		if (request.getContent() != null) {
+			if (request.getContentLength() >= 0) {
+				exchange.setRequestHeader("Content-Length", String.valueOf(request.getContentLength()));
+			}
+			exchange.setRequestContentSource(request.getContent());
+		}
+		if (request.getTimeout() > 0) {
+			exchange.setTimeout(request.getTimeout());
+		}
+
+		try {
+			client.send(exchange);
+		}
+		catch (IOException e) {
+			exchange.onConnectionFailed(e);
+		}
+
+		return new Exchange() {
+			@Override
+			public void abort() {
+				if (exchange.done.compareAndSet(false, true)) {
+					exchange.cancel();
+				}
+			}
+		};
+	}
+
+	@Override
+	public String getStatistics() {
+		int destinations = 0;
+		int connections = 0;
+		int idleConnections = 0;
+		for (Address address : client.getDestinations()) {
+			try {
+				HttpDestination destination = client.getDestination(address, false);
+				destinations++;
+				connections += destination.getConnections();
+				idleConnections += destination.getIdleConnections();
+			}
+			catch (Exception e) {
+				// ignore this destination
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(destinations).append(" destinations, ").append(connections).append(" connections (").append(idleConnections)
+				.append(" idle)");
+		if (client.getThreadPool() instanceof QueuedThreadPool) {
+			QueuedThreadPool pool = (QueuedThreadPool) client.getThreadPool();
+			sb.append(", ").append(pool.getThreads()).append(" threads (").append(pool.getIdleThreads()).append(" idle)");
+		}
+		return sb.toString();
+	}
+
+	private static final class ForwardExchange extends ContentExchange {
+
+		private ResponseHandler handler;
+
+		private AtomicBoolean done = new AtomicBoolean();
+
+		private ForwardExchange(ResponseHandler handler) {
+			super(true);
+			this.handler = handler;
+		}
+
+		@Override
+		protected void onResponseComplete() throws IOException {
+			super.onResponseComplete();
+			if (done.compareAndSet(false, true)) {
+				Response response = new Response(getResponseStatus());
+				HttpFields fields = getResponseFields();
+				for (int i = 0; i < fields.size(); i++) {
+					HttpFields.Field field = fields.getField(i);
+					if (field != null) {
+						response.addHeader(field.getName(), field.getValue());
+					}
+				}
+				response.setContent(getResponseContentBytes());
+				handler.onResponse(response);
+			}
+		}
+
+		@Override
+		protected void onConnectionFailed(Throwable x) {
+			if (done.compareAndSet(false, true)) {
+				handler.onConnectionFailed(x);
+			}
+		}
+
+		@Override
+		protected void onException(Throwable x) {
+			if (done.compareAndSet(false, true)) {
+				handler.onException(x);
+			}
+		}
+
+		@Override
+		protected void onExpire() {
+			if (done.compareAndSet(false, true)) {
+				handler.onExpire();
+			}
+		}
+	}
+
+	private static class NamedQueuedThreadPool extends QueuedThreadPool {
+
+		public NamedQueuedThreadPool(String name, int maxThreads) {
+			super(maxThreads);
+			setName(name);
+			setMaxStopTimeMs(5000);
+		}
+	}
+
+}
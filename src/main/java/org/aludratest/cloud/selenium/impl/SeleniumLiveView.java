@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.aludratest.cloud.selenium.SeleniumResource;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService.CaptureListener;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService.Screenshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams live views of Selenium clients as MJPEG (<code>multipart/x-mixed-replace</code>), which browsers display natively.
+ * Frames are captured via the screenshot service, so they use the active WebDriver session of the client, if any. <br>
+ * All viewers of the same Selenium client share one capture loop, which only runs while at least one viewer is connected.
+ * Frames which are identical to the previous frame (by CRC32 of the encoded image) are not sent again, so an idle browser
+ * costs almost no bandwidth. To detect disconnected viewers, the last frame is repeated after some seconds without changes.
+ * <br>
+ * Each viewer occupies a thread of the proxy server, which also forwards the Selenium commands, for as long as it is connected.
+ * Therefore, the number of concurrent viewers is limited; further viewers are rejected with a 503 (Service Unavailable).
+ * 
+ */
+final class SeleniumLiveView {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumLiveView.class);
+
+	private static final String BOUNDARY = "frame";
+
+	private static final long KEEPALIVE_MILLIS = 10000;
+
+	private final SeleniumScreenshotService screenshotService;
+
+	private final ScheduledExecutorService executor;
+
+	private final Map<String, FrameLoop> loops = new HashMap<String, FrameLoop>();
+
+	private volatile long frameIntervalMillis;
+
+	private volatile int maxViewers;
+
+	// guarded by the lock of the loops map
+	private int viewerCount;
+
+	private AtomicLong rejectedViewerCount = new AtomicLong();
+
+	private AtomicLong capturedFrameCount = new AtomicLong();
+
+	private AtomicLong skippedFrameCount = new AtomicLong();
+
+	private AtomicLong sentFrameCount = new AtomicLong();
+
+	SeleniumLiveView(SeleniumScreenshotService screenshotService, long frameIntervalMillis, int maxViewers) {
+		this.screenshotService = screenshotService;
+		reconfigure(frameIntervalMillis, maxViewers);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setName("Selenium Live View");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	void reconfigure(long frameIntervalMillis, int maxViewers) {
+		this.frameIntervalMillis = Math.max(100, frameIntervalMillis);
+		this.maxViewers = Math.max(0, maxViewers);
+	}
+
+	/**
+	 * Streams the live view of the given Selenium resource to the given response, until the viewer disconnects or the live
+	 * view is shut down. Blocks the calling thread for this time. If the maximum number of viewers is reached, a 503 is sent
+	 * instead.
+	 * 
+	 * @param resource
+	 *            Selenium resource to stream the live view of.
+	 * @param response
+	 *            Response to write the MJPEG stream to.
+	 * 
+	 * @throws IOException
+	 *             If the stream could not be written, except for a disconnected viewer, which is a normal end of the stream.
+	 */
+	void serve(SeleniumResourceImpl resource, HttpServletResponse response) throws IOException {
+		FrameLoop loop = addViewer(resource);
+		if (loop == null) {
+			rejectedViewerCount.incrementAndGet();
+			response.setHeader("Retry-After", String.valueOf(KEEPALIVE_MILLIS / 1000));
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Maximum number of live view viewers reached");
+			return;
+		}
+		try {
+			response.setContentType("multipart/x-mixed-replace; boundary=" + BOUNDARY);
+			response.setHeader("Cache-Control", "no-cache, no-store");
+			response.setHeader("Pragma", "no-cache");
+			OutputStream out = response.getOutputStream();
+
+			long lastSequence = 0;
+			while (!executor.isShutdown()) {
+				Frame frame = loop.awaitFrame(lastSequence, KEEPALIVE_MILLIS);
+				if (frame == null) {
+					continue;
+				}
+				try {
+					writeFrame(out, frame.data);
+				}
+				catch (IOException e) {
+					LOG.debug("Live view viewer of " + resource + " disconnected");
+					return;
+				}
+				lastSequence = frame.sequence;
+				sentFrameCount.incrementAndGet();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			removeViewer(loop);
+		}
+	}
+
+	int getViewerCount() {
+		synchronized (loops) {
+			return viewerCount;
+		}
+	}
+
+	long getRejectedViewerCount() {
+		return rejectedViewerCount.get();
+	}
+
+	long getCapturedFrameCount() {
+		return capturedFrameCount.get();
+	}
+
+	long getSkippedFrameCount() {
+		return skippedFrameCount.get();
+	}
+
+	long getSentFrameCount() {
+		return sentFrameCount.get();
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		synchronized (loops) {
+			for (FrameLoop loop : loops.values()) {
+				loop.wakeUp();
+			}
+		}
+	}
+
+	private static void writeFrame(OutputStream out, byte[] data) throws IOException {
+		StringBuilder header = new StringBuilder();
+		header.append("--").append(BOUNDARY).append("\r\n");
+		header.append("Content-Type: image/jpeg\r\n");
+		header.append("Content-Length: ").append(data.length).append("\r\n\r\n");
+		out.write(header.toString().getBytes("US-ASCII"));
+		out.write(data);
+		out.write("\r\n".getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private FrameLoop addViewer(SeleniumResourceImpl resource) {
+		synchronized (loops) {
+			if (viewerCount >= maxViewers) {
+				return null;
+			}
+			FrameLoop loop = loops.get(resource.getOriginalUrl());
+			if (loop == null) {
+				loop = new FrameLoop(resource);
+				loops.put(resource.getOriginalUrl(), loop);
+				loop.start();
+			}
+			loop.viewers++;
+			viewerCount++;
+			return loop;
+		}
+	}
+
+	private void removeViewer(FrameLoop loop) {
+		synchronized (loops) {
+			loop.viewers--;
+			viewerCount--;
+			if (loop.viewers <= 0) {
+				loops.remove(loop.resource.getOriginalUrl());
+				loop.stop();
+			}
+		}
+	}
+
+	private static final class Frame {
+
+		private final byte[] data;
+
+		private final long sequence;
+
+		private Frame(byte[] data, long sequence) {
+			this.data = data;
+			this.sequence = sequence;
+		}
+	}
+
+	private final class FrameLoop implements Runnable, CaptureListener {
+
+		private final SeleniumResourceImpl resource;
+
+		// guarded by the lock of the loops map
+		private int viewers;
+
+		private ScheduledFuture<?> future;
+
+		private Frame currentFrame;
+
+		private long currentHash = -1;
+
+		private FrameLoop(SeleniumResourceImpl resource) {
+			this.resource = resource;
+		}
+
+		private void start() {
+			future = executor.scheduleWithFixedDelay(this, 0, frameIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private void stop() {
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+		@Override
+		public void run() {
+			// a frame still being captured is not requested again, so slow clients get a lower frame rate
+			if (!screenshotService.isCapturePending(resource)) {
+				screenshotService.requestScreenshot(resource, true, Math.max(frameIntervalMillis * 5, 5000), this);
+			}
+		}
+
+		@Override
+		public void screenshotCaptured(SeleniumResource resource, Screenshot screenshot) {
+			capturedFrameCount.incrementAndGet();
+			CRC32 crc = new CRC32();
+			crc.update(screenshot.getImageData());
+			long hash = crc.getValue();
+
+			synchronized (this) {
+				if (currentFrame != null && hash == currentHash) {
+					skippedFrameCount.incrementAndGet();
+					return;
+				}
+				currentHash = hash;
+				currentFrame = new Frame(screenshot.getImageData(), currentFrame == null ? 1 : currentFrame.sequence + 1);
+				notifyAll();
+			}
+		}
+
+		@Override
+		public void screenshotFailed(SeleniumResource resource, String message) {
+			// keep the last frame; the next capture is tried in the next interval
+		}
+
+		private synchronized Frame awaitFrame(long lastSequence, long timeoutMillis) throws InterruptedException {
+			if (currentFrame == null || currentFrame.sequence <= lastSequence) {
+				wait(timeoutMillis);
+			}
+			// repeat the last frame after the timeout, so disconnected viewers are detected
+			return currentFrame;
+		}
+
+		private synchronized void wakeUp() {
+			notifyAll();
+		}
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package org.aludratest.cloud.selenium.impl;
 
+import java.io.File;
+
 import org.aludratest.cloud.config.ConfigUtil;
 import org.aludratest.cloud.config.MutablePreferences;
 import org.aludratest.cloud.config.Preferences;
@@ -54,6 +56,222 @@ public class SeleniumModuleConfiguration {
 		return configuration.getIntValue("maxProxyQueueSize", 300);
 	}
 
+	/**
+	 * Returns the settings for the HTTP connector of the Selenium proxy server.
+	 * 
+	 * @return The settings for the HTTP connector of the Selenium proxy server.
+	 */
+	public HttpConnectorSettings getConnectorSettings() {
+		int acceptors = configuration.getIntValue("connectorAcceptors", 1);
+		int acceptQueueSize = configuration.getIntValue("connectorAcceptQueueSize", 0);
+		boolean tcpNoDelay = configuration.getBooleanValue("connectorTcpNoDelay", true);
+		int idleTimeout = configuration.getIntValue("connectorIdleTimeoutMillis", 200000);
+		int requestHeaderSize = configuration.getIntValue("connectorRequestHeaderSize", 6 * 1024);
+		int requestBufferSize = configuration.getIntValue("connectorRequestBufferSize", 16 * 1024);
+		int responseBufferSize = configuration.getIntValue("connectorResponseBufferSize", 32 * 1024);
+
+		return new HttpConnectorSettings(acceptors, acceptQueueSize, tcpNoDelay, idleTimeout, requestHeaderSize,
+				requestBufferSize, responseBufferSize);
+	}
+
+	public int getPortChangeDrainTimeoutSeconds() {
+		return configuration.getIntValue("portChangeDrainTimeout", 600);
+	}
+
+	public int getRequestBodyBudgetMb() {
+		return configuration.getIntValue("requestBodyBudgetMb", 256);
+	}
+
+	public int getRequestBodyMemoryThresholdKb() {
+		return configuration.getIntValue("requestBodyMemoryThresholdKb", 1024);
+	}
+
+	public int getRequestBodyBudgetWaitMillis() {
+		return configuration.getIntValue("requestBodyBudgetWaitMillis", 10000);
+	}
+
+	public boolean isSpoolLargeRequestBodies() {
+		return configuration.getBooleanValue("spoolLargeRequestBodies", true);
+	}
+
+	public boolean isResponseCompression() {
+		return configuration.getBooleanValue("responseCompression", false);
+	}
+
+	public int getResponseCompressionThresholdBytes() {
+		return configuration.getIntValue("responseCompressionThreshold", 2048);
+	}
+
+	public int getResponseCompressionLevel() {
+		return Math.max(0, Math.min(9, configuration.getIntValue("responseCompressionLevel", 6)));
+	}
+
+	public int getProbeConcurrency() {
+		return configuration.getIntValue("probeConcurrency", 64);
+	}
+
+	public int getProbeConnectTimeoutMillis() {
+		return configuration.getIntValue("probeConnectTimeoutMillis", 1000);
+	}
+
+	public int getUpstreamClientShards() {
+		return configuration.getIntValue("upstreamClientShards", 1);
+	}
+
+	public String getUpstreamShardAssignment() {
+		return configuration.getStringValue("upstreamShardAssignment", "hash");
+	}
+
+	public String getUpstreamTransport() {
+		return configuration.getStringValue("upstreamTransport", "jetty-nio");
+	}
+
+	/**
+	 * Returns the path of the trust store used to verify the certificates of Selenium clients using HTTPS.
+	 * 
+	 * @return The path of the trust store, or <code>null</code> to use the trust store of the JVM.
+	 */
+	public String getTlsTrustStore() {
+		return getOptionalStringValue("tlsTrustStore");
+	}
+
+	public String getTlsTrustStorePassword() {
+		return getOptionalStringValue("tlsTrustStorePassword");
+	}
+
+	public String getTlsTrustStoreType() {
+		return configuration.getStringValue("tlsTrustStoreType", "JKS");
+	}
+
+	/**
+	 * Returns the path of the key store containing the client certificate to present to Selenium clients using HTTPS.
+	 * 
+	 * @return The path of the key store, or <code>null</code> if no client certificate shall be presented.
+	 */
+	public String getTlsKeyStore() {
+		return getOptionalStringValue("tlsKeyStore");
+	}
+
+	public String getTlsKeyStorePassword() {
+		return getOptionalStringValue("tlsKeyStorePassword");
+	}
+
+	public String getTlsKeyStoreType() {
+		return configuration.getStringValue("tlsKeyStoreType", "JKS");
+	}
+
+	public boolean isTlsTrustAll() {
+		return configuration.getBooleanValue("tlsTrustAll", false);
+	}
+
+	public int getTlsSessionCacheSize() {
+		return configuration.getIntValue("tlsSessionCacheSize", 1000);
+	}
+
+	public int getTlsSessionTimeoutSeconds() {
+		return configuration.getIntValue("tlsSessionTimeout", 3600);
+	}
+
+	/**
+	 * Returns the comma-separated list of TLS protocols to enable for connections to Selenium clients.
+	 * 
+	 * @return The TLS protocols to enable, or <code>null</code> to use the defaults of the JVM.
+	 */
+	public String getTlsProtocols() {
+		return getOptionalStringValue("tlsProtocols");
+	}
+
+	public String getTlsCipherSuites() {
+		return getOptionalStringValue("tlsCipherSuites");
+	}
+
+	/**
+	 * Returns the read timeouts per command class, see {@link SeleniumTimeoutPolicy} for the format.
+	 * 
+	 * @return The read timeouts per command class.
+	 */
+	public String getCommandTimeouts() {
+		return configuration.getStringValue("commandTimeouts", SeleniumTimeoutPolicy.DEFAULT_POLICY);
+	}
+
+	public boolean isAdaptiveCommandTimeouts() {
+		return configuration.getBooleanValue("adaptiveCommandTimeouts", false);
+	}
+
+	public int getAdaptiveTimeoutFactor() {
+		return configuration.getIntValue("adaptiveTimeoutFactor", 4);
+	}
+
+	public int getDnsCacheTtlSeconds() {
+		return configuration.getIntValue("dnsCacheTtl", 60);
+	}
+
+	public int getDnsNegativeCacheTtlSeconds() {
+		return configuration.getIntValue("dnsNegativeCacheTtl", 5);
+	}
+
+	public boolean isDnsBackgroundRefresh() {
+		return configuration.getBooleanValue("dnsBackgroundRefresh", true);
+	}
+
+	public int getScreenshotCacheTtlSeconds() {
+		return configuration.getIntValue("screenshotCacheTtl", 30);
+	}
+
+	public int getScreenshotCacheSizeMb() {
+		return configuration.getIntValue("screenshotCacheSizeMb", 16);
+	}
+
+	public int getScreenshotMaxWidth() {
+		return configuration.getIntValue("screenshotMaxWidth", 800);
+	}
+
+	public int getScreenshotConcurrency() {
+		return configuration.getIntValue("screenshotConcurrency", 8);
+	}
+
+	public int getScreenshotNodeTimeoutSeconds() {
+		return configuration.getIntValue("screenshotNodeTimeout", 15);
+	}
+
+	public int getLiveViewFrameIntervalMillis() {
+		return configuration.getIntValue("liveViewFrameInterval", 1000);
+	}
+
+	public int getLiveViewMaxViewers() {
+		return configuration.getIntValue("liveViewMaxViewers", 10);
+	}
+
+	public int getChangeFeedCapacity() {
+		return configuration.getIntValue("changeFeedCapacity", 10000);
+	}
+
+	public int getChangeFeedMaxSubscribers() {
+		return configuration.getIntValue("changeFeedMaxSubscribers", 20);
+	}
+
+	/**
+	 * Returns the directory where the Selenium module stores its local data, e.g. the utilization history.
+	 * 
+	 * @return The directory where the Selenium module stores its local data.
+	 */
+	public File getDataDirectory() {
+		return new File(configuration.getStringValue("dataDirectory", getDefaultDataDirectory()));
+	}
+
+	public int getUtilizationHistorySizeMb() {
+		return configuration.getIntValue("utilizationHistorySizeMb", 64);
+	}
+
+	private String getOptionalStringValue(String key) {
+		String value = configuration.getStringValue(key);
+		return value == null || "".equals(value.trim()) ? null : value.trim();
+	}
+
+	private static String getDefaultDataDirectory() {
+		return new File(new File(System.getProperty("user.home"), ".atcloudmanager"), "selenium").getAbsolutePath();
+	}
+
 	public static void fillDefaults(MutablePreferences preferences) {
 		preferences.setValue("port", 5007);
 		preferences.setValue("healthCheckInterval", 15);
@@ -61,6 +279,48 @@ public class SeleniumModuleConfiguration {
 		preferences.setValue("seleniumTimeout", 5);
 		preferences.setValue("maxProxyThreads", 150);
 		preferences.setValue("maxProxyQueueSize", 300);
+		preferences.setValue("connectorAcceptors", 1);
+		preferences.setValue("connectorAcceptQueueSize", 0);
+		preferences.setValue("connectorTcpNoDelay", true);
+		preferences.setValue("connectorIdleTimeoutMillis", 200000);
+		preferences.setValue("connectorRequestHeaderSize", 6 * 1024);
+		preferences.setValue("connectorRequestBufferSize", 16 * 1024);
+		preferences.setValue("connectorResponseBufferSize", 32 * 1024);
+		preferences.setValue("portChangeDrainTimeout", 600);
+		preferences.setValue("requestBodyBudgetMb", 256);
+		preferences.setValue("requestBodyMemoryThresholdKb", 1024);
+		preferences.setValue("requestBodyBudgetWaitMillis", 10000);
+		preferences.setValue("spoolLargeRequestBodies", true);
+		preferences.setValue("responseCompression", false);
+		preferences.setValue("responseCompressionThreshold", 2048);
+		preferences.setValue("responseCompressionLevel", 6);
+		preferences.setValue("probeConcurrency", 64);
+		preferences.setValue("probeConnectTimeoutMillis", 1000);
+		preferences.setValue("upstreamClientShards", 1);
+		preferences.setValue("upstreamShardAssignment", "hash");
+		preferences.setValue("upstreamTransport", "jetty-nio");
+		preferences.setValue("tlsTrustStoreType", "JKS");
+		preferences.setValue("tlsKeyStoreType", "JKS");
+		preferences.setValue("tlsTrustAll", false);
+		preferences.setValue("tlsSessionCacheSize", 1000);
+		preferences.setValue("tlsSessionTimeout", 3600);
+		preferences.setValue("commandTimeouts", SeleniumTimeoutPolicy.DEFAULT_POLICY);
+		preferences.setValue("adaptiveCommandTimeouts", false);
+		preferences.setValue("adaptiveTimeoutFactor", 4);
+		preferences.setValue("dnsCacheTtl", 60);
+		preferences.setValue("dnsNegativeCacheTtl", 5);
+		preferences.setValue("dnsBackgroundRefresh", true);
+		preferences.setValue("screenshotCacheTtl", 30);
+		preferences.setValue("screenshotCacheSizeMb", 16);
+		preferences.setValue("screenshotMaxWidth", 800);
+		preferences.setValue("screenshotConcurrency", 8);
+		preferences.setValue("screenshotNodeTimeout", 15);
+		preferences.setValue("liveViewFrameInterval", 1000);
+		preferences.setValue("liveViewMaxViewers", 10);
+		preferences.setValue("changeFeedCapacity", 10000);
+		preferences.setValue("changeFeedMaxSubscribers", 20);
+		preferences.setValue("dataDirectory", getDefaultDataDirectory());
+		preferences.setValue("utilizationHistorySizeMb", 64);
 	}
 
 }
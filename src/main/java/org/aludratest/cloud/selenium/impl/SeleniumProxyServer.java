@@ -15,10 +15,16 @@
  */
 package org.aludratest.cloud.selenium.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -28,9 +34,22 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.app.CloudManagerAppConfig;
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.selenium.SeleniumResource;
+import org.aludratest.cloud.selenium.util.CompressionStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Encapsulates a Jetty server which takes and manages Selenium HTTP Proxy servlets. 
@@ -43,21 +62,142 @@ public final class SeleniumProxyServer extends HttpResourceProxyServer<SeleniumH
 	
 	private static final long serialVersionUID = -5256156265002984079L;
 
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumProxyServer.class);
+
+	private static final int SESSION_HISTORY_SIZE = 2000;
+
+	private static final long SESSION_ROLLUP_INTERVAL_SECONDS = 60;
+
+	private static final long UTILIZATION_SAMPLE_INTERVAL_SECONDS = 60;
+
+	private static final long SNAPSHOT_INTERVAL_SECONDS = 30;
+
+	private static final Pattern PATTERN_LIVE_VIEW = Pattern.compile("/liveview/([0-9]{1,10})/?");
+
+	/**
+	 * Maximum age of a snapshot for restoring resource states from it. States from older snapshots are not trusted; these
+	 * resources start DISCONNECTED and wait for their first health check.
+	 */
+	private static final long MAX_SNAPSHOT_AGE_FOR_STATES_MILLIS = 5 * 60 * 1000l;
+
 	private int executorSize = 4;
 
 	private DelegatingScheduledExecutorService healthCheckDelegator = new DelegatingScheduledExecutorService(
 			createHealthCheckExecutor(executorSize));
 
+	private ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setName("Selenium Proxy Maintenance");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private SeleniumSessionTracker sessionTracker = new SeleniumSessionTracker(SESSION_HISTORY_SIZE);
+
+	private SeleniumUtilizationHistory utilizationHistory;
+
+	private SeleniumStartupProber startupProber;
+
+	private SeleniumUpstreamClients upstreamClients;
+
+	private SeleniumTlsSupport tlsSupport;
+
+	private SeleniumDnsCache dnsCache;
+
+	private SeleniumUpstreamRouting.RoutePlanner routePlanner = new SeleniumUpstreamRouting.RoutePlanner();
+
+	private SeleniumTimeoutPolicy timeoutPolicy;
+
+	private SeleniumExchangeWatchdog exchangeWatchdog = new SeleniumExchangeWatchdog();
+
+	private SeleniumScreenshotService screenshotService;
+
+	private SeleniumLiveView liveView;
+
+	private SeleniumRequestBodyBuffer requestBodyBuffer;
+
+	private SeleniumResponseCompression responseCompression;
+
+	private File snapshotFile;
+
+	private long restoredSnapshotTimestamp;
+
+	private Map<String, SeleniumResourceSnapshot.Entry> restoredSnapshotEntries;
+
 	private SeleniumModuleConfiguration configuration;
 
 	public SeleniumProxyServer(SeleniumModuleConfiguration configuration, String hostName) {
 		super(hostName, configuration.getSeleniumProxyPort(), configuration.getMaxProxyQueueSize(), configuration
-				.getMaxProxyThreads());
+				.getMaxProxyThreads(), configuration.getConnectorSettings());
 		this.configuration = configuration;
+		tlsSupport = new SeleniumTlsSupport(configuration);
+		timeoutPolicy = new SeleniumTimeoutPolicy(configuration.getCommandTimeouts(),
+				configuration.isAdaptiveCommandTimeouts(), configuration.getAdaptiveTimeoutFactor());
+		dnsCache = new SeleniumDnsCache(configuration.getDnsCacheTtlSeconds() * 1000l,
+				configuration.getDnsNegativeCacheTtlSeconds() * 1000l, configuration.isDnsBackgroundRefresh());
+		startupProber = new SeleniumStartupProber(configuration.getProbeConcurrency(),
+				configuration.getProbeConnectTimeoutMillis(), tlsSupport, dnsCache, routePlanner);
+		screenshotService = new SeleniumScreenshotService(configuration.getScreenshotCacheTtlSeconds() * 1000l,
+				configuration.getScreenshotCacheSizeMb() * 1024l * 1024l, configuration.getScreenshotMaxWidth(),
+				configuration.getScreenshotConcurrency(), configuration.getScreenshotNodeTimeoutSeconds() * 1000l, tlsSupport,
+				dnsCache, timeoutPolicy, routePlanner);
+		liveView = new SeleniumLiveView(screenshotService, configuration.getLiveViewFrameIntervalMillis(),
+				configuration.getLiveViewMaxViewers());
+		upstreamClients = new SeleniumUpstreamClients(configuration.getUpstreamClientShards(),
+				SeleniumUpstreamClients.ShardAssignment.fromString(configuration.getUpstreamShardAssignment()),
+				configuration.getSeleniumTimeoutSeconds() * 1000l,
+				SeleniumUpstreamTransports.getTransport(configuration.getUpstreamTransport()), tlsSupport, dnsCache);
+		requestBodyBuffer = new SeleniumRequestBodyBuffer(configuration.getRequestBodyBudgetMb() * 1024l * 1024l,
+				configuration.getRequestBodyMemoryThresholdKb() * 1024, configuration.getRequestBodyBudgetWaitMillis(),
+				getSpoolDirectory(configuration));
+		responseCompression = new SeleniumResponseCompression(configuration.isResponseCompression(),
+				configuration.getResponseCompressionThresholdBytes(), configuration.getResponseCompressionLevel());
+
+		maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sessionTracker.rollup();
+				}
+				catch (Throwable t) {
+					LOG.warn("Could not calculate Selenium session rollups", t);
+				}
+			}
+		}, SESSION_ROLLUP_INTERVAL_SECONDS, SESSION_ROLLUP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+		File historyFile = new File(configuration.getDataDirectory(), "utilization-history.dat");
+		try {
+			utilizationHistory = new SeleniumUtilizationHistory(historyFile, configuration.getUtilizationHistorySizeMb());
+			utilizationHistory.start();
+			maintenanceExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					utilizationHistory.sample();
+				}
+			}, UTILIZATION_SAMPLE_INTERVAL_SECONDS, UTILIZATION_SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+		catch (IOException e) {
+			LOG.warn("Could not open Selenium utilization history file " + historyFile + ", utilization history disabled", e);
+			utilizationHistory = null;
+		}
+
+		snapshotFile = new File(configuration.getDataDirectory(), "resource-snapshot.ser");
+		restoredSnapshotEntries = new ConcurrentHashMap<String, SeleniumResourceSnapshot.Entry>();
+		restoreSnapshot();
+		maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshot();
+			}
+		}, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
 	}
 
 	@Override
 	public void start() throws Exception {
+		updateUpstreamProxyConfig();
 		super.start();
 		// register in JMS
 		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
@@ -73,8 +213,20 @@ public final class SeleniumProxyServer extends HttpResourceProxyServer<SeleniumH
 	@Override
 	public void shutdown() throws Exception {
 		healthCheckDelegator.shutdown();
+		maintenanceExecutor.shutdown();
+		startupProber.shutdown();
+		writeSnapshot();
 		super.shutdown();
+		upstreamClients.shutdown();
+		responseCompression.shutdown();
+		dnsCache.shutdown();
+		exchangeWatchdog.shutdown();
+		liveView.shutdown();
+		screenshotService.shutdown();
 		healthCheckDelegator.awaitTermination(10, TimeUnit.SECONDS);
+		if (utilizationHistory != null) {
+			utilizationHistory.close();
+		}
 
 		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
 		mbs.unregisterMBean(new ObjectName("org.aludratest.cloud:00=selenium,type=SeleniumProxyServer"));
@@ -90,14 +242,58 @@ public final class SeleniumProxyServer extends HttpResourceProxyServer<SeleniumH
 	public void reconfigure(SeleniumModuleConfiguration configuration) {
 		this.configuration = configuration;
 		super.reconfigure(configuration.getMaxProxyThreads(), configuration.getMaxProxyQueueSize());
+		startupProber.reconfigure(configuration.getProbeConcurrency(), configuration.getProbeConnectTimeoutMillis());
+		requestBodyBuffer.reconfigure(configuration.getRequestBodyBudgetMb() * 1024l * 1024l,
+				configuration.getRequestBodyMemoryThresholdKb() * 1024, configuration.getRequestBodyBudgetWaitMillis(),
+				getSpoolDirectory(configuration));
+		responseCompression.reconfigure(configuration.isResponseCompression(),
+				configuration.getResponseCompressionThresholdBytes(), configuration.getResponseCompressionLevel());
+		dnsCache.reconfigure(configuration.getDnsCacheTtlSeconds() * 1000l, configuration.getDnsNegativeCacheTtlSeconds() * 1000l,
+				configuration.isDnsBackgroundRefresh());
+		timeoutPolicy.reconfigure(configuration.getCommandTimeouts(), configuration.isAdaptiveCommandTimeouts(),
+				configuration.getAdaptiveTimeoutFactor());
+		upstreamClients.setConnectTimeout(configuration.getSeleniumTimeoutSeconds() * 1000l);
+		screenshotService.reconfigure(configuration.getScreenshotCacheTtlSeconds() * 1000l,
+				configuration.getScreenshotCacheSizeMb() * 1024l * 1024l, configuration.getScreenshotMaxWidth(),
+				configuration.getScreenshotConcurrency(), configuration.getScreenshotNodeTimeoutSeconds() * 1000l);
+		liveView.reconfigure(configuration.getLiveViewFrameIntervalMillis(), configuration.getLiveViewMaxViewers());
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		Matcher m = req.getPathInfo() == null ? null : PATTERN_LIVE_VIEW.matcher(req.getPathInfo());
+		if (m != null && m.matches()) {
+			SeleniumHttpProxy proxy = getProxy(Integer.parseInt(m.group(1)));
+			if (proxy == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			liveView.serve(proxy.getResource(), resp);
+			return;
+		}
+
+		super.service(req, resp);
+	}
+
+	private static File getSpoolDirectory(SeleniumModuleConfiguration configuration) {
+		return configuration.isSpoolLargeRequestBodies() ? new File(configuration.getDataDirectory(), "spool") : null;
 	}
 
 	@Override
 	protected SeleniumHttpProxy createProxy(int id, SeleniumResourceImpl resource, String path, String accessUrl) {
-		SeleniumHttpProxy proxy = SeleniumHttpProxy.create(id, resource, path, configuration.getSeleniumTimeoutSeconds() * 1000l,
-				configuration.getMaxIdleTimeBetweenCommandsSeconds() * 1000l, accessUrl, healthCheckDelegator);
+		return SeleniumHttpProxy.create(id, resource, path, configuration.getSeleniumTimeoutSeconds() * 1000l,
+				configuration.getMaxIdleTimeBetweenCommandsSeconds() * 1000l, accessUrl, healthCheckDelegator, sessionTracker,
+				upstreamClients, requestBodyBuffer, responseCompression, tlsSupport, dnsCache, timeoutPolicy, exchangeWatchdog);
+	}
 
-		return proxy;
+	@Override
+	protected void proxyRegistered(SeleniumHttpProxy proxy, SeleniumResourceImpl resource) {
+		if (utilizationHistory != null) {
+			resource.addResourceListener(utilizationHistory);
+		}
+		SeleniumResourceSnapshot.Entry snapshotEntry = restoredSnapshotEntries.remove(resource.getOriginalUrl());
+		boolean restoreState = System.currentTimeMillis() - restoredSnapshotTimestamp < MAX_SNAPSHOT_AGE_FOR_STATES_MILLIS;
+		proxy.activate(snapshotEntry, restoreState, startupProber);
 	}
 
 	@Override
@@ -107,21 +303,40 @@ public final class SeleniumProxyServer extends HttpResourceProxyServer<SeleniumH
 		return proxy;
 	}
 
+	@Override
+	public List<SeleniumHttpProxy> addProxiesForResources(Collection<? extends SeleniumResourceImpl> resources)
+			throws MalformedURLException {
+		try {
+			return super.addProxiesForResources(resources);
+		}
+		finally {
+			updateHealthCheckExecutorSize();
+		}
+	}
+
 	@Override
 	public void removeProxy(SeleniumHttpProxy proxy) {
 		super.removeProxy(proxy);
+		if (utilizationHistory != null) {
+			proxy.getResource().removeResourceListener(utilizationHistory);
+			utilizationHistory.resourceRemoved(proxy.getResource());
+		}
 		updateHealthCheckExecutorSize();
 	}
 
 	@Override
-	protected SeleniumHttpProxy findExistingProxy(SeleniumResourceImpl resource, Collection<SeleniumHttpProxy> existingProxies) {
-		for (SeleniumHttpProxy proxy : existingProxies) {
-			if (proxy.getResource().getOriginalUrl().equals(resource.getOriginalUrl())) {
-				return proxy;
+	protected String getResourceKey(SeleniumResourceImpl resource) {
+		return resource.getOriginalUrl();
+	}
+
+	@Override
+	protected boolean hasActiveSessionsStartedBefore(long time) {
+		for (SeleniumHttpProxy proxy : getAllProxies()) {
+			if (proxy.hasSessionStartedBefore(time)) {
+				return true;
 			}
 		}
-
-		return null;
+		return false;
 	}
 
 	@Override
@@ -129,6 +344,38 @@ public final class SeleniumProxyServer extends HttpResourceProxyServer<SeleniumH
 		proxy.setAccessUrl(newAccessUrl);
 	}
 
+	private void restoreSnapshot() {
+		try {
+			SeleniumResourceSnapshot snapshot = SeleniumResourceSnapshot.read(snapshotFile);
+			if (snapshot != null) {
+				restoredSnapshotTimestamp = snapshot.getTimestamp();
+				for (SeleniumResourceSnapshot.Entry entry : snapshot.getEntries()) {
+					restoredSnapshotEntries.put(entry.getOriginalUrl(), entry);
+				}
+				LOG.info("Restoring state of " + restoredSnapshotEntries.size() + " Selenium resources from " + snapshotFile);
+			}
+		}
+		catch (IOException e) {
+			LOG.warn("Could not read Selenium resource snapshot " + snapshotFile + ", starting without it", e);
+		}
+	}
+
+	private void writeSnapshot() {
+		List<SeleniumResourceSnapshot.Entry> entries = new ArrayList<SeleniumResourceSnapshot.Entry>();
+		for (SeleniumHttpProxy proxy : getAllProxies()) {
+			SeleniumResourceImpl resource = proxy.getResource();
+			entries.add(new SeleniumResourceSnapshot.Entry(resource.getOriginalUrl(), resource.getState(), resource
+					.isInMaintenanceMode(), resource.getLastUsedTime(), proxy.getSeleniumSessionId(), proxy.isSelenium1()));
+		}
+
+		try {
+			new SeleniumResourceSnapshot(System.currentTimeMillis(), entries).write(snapshotFile);
+		}
+		catch (IOException e) {
+			LOG.warn("Could not write Selenium resource snapshot " + snapshotFile, e);
+		}
+	}
+
 	private ScheduledExecutorService createHealthCheckExecutor(int size) {
 		return Executors.newScheduledThreadPool(size, new ThreadFactory() {
 			@Override
@@ -140,18 +387,483 @@ public final class SeleniumProxyServer extends HttpResourceProxyServer<SeleniumH
 		});
 	}
 
-	private void updateHealthCheckExecutorSize() {
-		int newHealthSize = Math.max(4, (int) Math.ceil(getAllProxies().size() / 5.0));
+	private synchronized void updateHealthCheckExecutorSize() {
+		int newHealthSize = Math.max(4, (int) Math.ceil(getProxyCount() / 5.0));
 		if (newHealthSize != executorSize) {
 			healthCheckDelegator.setDelegate(createHealthCheckExecutor(executorSize = newHealthSize));
 		}
 	}
 
+	/**
+	 * Applies the current upstream proxy settings of the Cloud Manager to the HTTP clients used for forwarding requests to the
+	 * Selenium clients, and to the clients connecting to them directly (startup probes, screenshots and session teardown).
+	 */
+	public void updateUpstreamProxyConfig() {
+		CloudManagerAppConfig basicConfig = CloudManagerApp.getInstance().getBasicConfiguration();
+		routePlanner.setProxy(basicConfig.isUseProxy() ? basicConfig.getProxyHost() : null, basicConfig.getProxyPort(),
+				basicConfig.getBypassProxyRegexp());
+		upstreamClients.updateProxyConfig();
+	}
+
+	/**
+	 * Returns the route planner applying the upstream proxy settings to Apache HTTP clients which connect to Selenium clients
+	 * directly.
+	 * 
+	 * @return The route planner applying the upstream proxy settings.
+	 */
+	SeleniumUpstreamRouting.RoutePlanner getRoutePlanner() {
+		return routePlanner;
+	}
+
+	/**
+	 * Returns the tracker which records the lifecycle of all Selenium sessions passing this proxy server.
+	 * 
+	 * @return The tracker which records the lifecycle of all Selenium sessions passing this proxy server.
+	 */
+	public SeleniumSessionTracker getSessionTracker() {
+		return sessionTracker;
+	}
+
+	/**
+	 * Returns the TLS configuration shared by all HTTP clients connecting to Selenium clients.
+	 * 
+	 * @return The TLS configuration shared by all HTTP clients connecting to Selenium clients.
+	 */
+	SeleniumTlsSupport getTlsSupport() {
+		return tlsSupport;
+	}
+
+	/**
+	 * Returns the cache for host name lookups of Selenium clients, shared by all HTTP clients connecting to Selenium clients.
+	 * 
+	 * @return The cache for host name lookups of Selenium clients.
+	 */
+	SeleniumDnsCache getDnsCache() {
+		return dnsCache;
+	}
+
+	/**
+	 * Returns the read timeouts per command class for requests to Selenium clients.
+	 * 
+	 * @return The read timeouts per command class for requests to Selenium clients.
+	 */
+	SeleniumTimeoutPolicy getTimeoutPolicy() {
+		return timeoutPolicy;
+	}
+
+	/**
+	 * Returns the timeout for connecting to Selenium clients, which applies to all command classes.
+	 * 
+	 * @return The timeout for connecting to Selenium clients, in milliseconds.
+	 */
+	long getConnectTimeoutMillis() {
+		return configuration.getSeleniumTimeoutSeconds() * 1000l;
+	}
+
+	/**
+	 * Returns the service capturing and caching screenshots of Selenium clients.
+	 * 
+	 * @return The service capturing and caching screenshots of Selenium clients.
+	 */
+	public SeleniumScreenshotService getScreenshotService() {
+		return screenshotService;
+	}
+
+	/**
+	 * Checks the reachability of the given Selenium URLs in parallel, with the configured probe concurrency. The URLs do not
+	 * have to belong to Selenium resources.
+	 * 
+	 * @param urls
+	 *            Selenium URLs to probe, without trailing slash.
+	 * @param timeoutMillis
+	 *            Connect and read timeout for a single probe, in milliseconds.
+	 * @return A map from all unreachable URLs to a message describing the problem. Reachable URLs are not contained.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the probes.
+	 */
+	public Map<String, String> probeReachability(Collection<String> urls, int timeoutMillis) throws InterruptedException {
+		return startupProber.probeUrls(urls, timeoutMillis);
+	}
+
+	/**
+	 * Returns the Selenium resource whose proxy has the given ID.
+	 * 
+	 * @param proxyId
+	 *            ID of the proxy.
+	 * @return The Selenium resource whose proxy has the given ID, or <code>null</code> if no such proxy is registered.
+	 */
+	public SeleniumResourceImpl getResourceByProxyId(int proxyId) {
+		SeleniumHttpProxy proxy = getProxy(proxyId);
+		return proxy == null ? null : proxy.getResource();
+	}
+
+	/**
+	 * Returns the URL of the MJPEG live view of the given Selenium resource, served by this proxy server.
+	 * 
+	 * @param resource
+	 *            Selenium resource to return the live view URL of.
+	 * @return The URL of the live view of the resource, or <code>null</code> if the resource has no proxy on this server.
+	 */
+	public String getLiveViewUrl(SeleniumResource resource) {
+		if (!(resource instanceof SeleniumResourceImpl)) {
+			return null;
+		}
+		SeleniumHttpProxy proxy = getProxyForResource((SeleniumResourceImpl) resource);
+		if (proxy == null) {
+			return null;
+		}
+		String accessUrl = proxy.getAccessUrl();
+		String proxyPath = "/proxy" + proxy.getId();
+		if (!accessUrl.endsWith(proxyPath)) {
+			return null;
+		}
+		return accessUrl.substring(0, accessUrl.length() - proxyPath.length()) + "/liveview/" + proxy.getId();
+	}
+
+	/**
+	 * Returns the persistent utilization history of all Selenium resources.
+	 * 
+	 * @return The persistent utilization history of all Selenium resources, or <code>null</code> if the history file could
+	 *         not be opened.
+	 */
+	public SeleniumUtilizationHistory getUtilizationHistory() {
+		return utilizationHistory;
+	}
+
 	@Override
 	public int getProxyThreadCount() {
 		return getJettyServer().getThreadPool().getThreads();
 	}
 
+	@Override
+	public int getConnectorConnections() {
+		return getConnector().getConnections();
+	}
+
+	@Override
+	public int getConnectorConnectionsOpen() {
+		return getConnector().getConnectionsOpen();
+	}
+
+	@Override
+	public int getConnectorConnectionsOpenMax() {
+		return getConnector().getConnectionsOpenMax();
+	}
+
+	@Override
+	public double getConnectorConnectionDurationMeanMillis() {
+		return getConnector().getConnectionsDurationMean();
+	}
+
+	@Override
+	public long getConnectorConnectionDurationMaxMillis() {
+		return getConnector().getConnectionsDurationMax();
+	}
+
+	@Override
+	public int getConnectorRequests() {
+		return getConnector().getRequests();
+	}
+
+	@Override
+	public void resetConnectorStatistics() {
+		getConnector().statsReset();
+	}
+
+	@Override
+	public long getRequestBodyBudgetBytes() {
+		return requestBodyBuffer.getBudget().getCapacity();
+	}
+
+	@Override
+	public long getRequestBodyBudgetUsedBytes() {
+		return requestBodyBuffer.getBudget().getUsed();
+	}
+
+	@Override
+	public long getRequestBodyBudgetPeakBytes() {
+		return requestBodyBuffer.getBudget().getPeakUsed();
+	}
+
+	@Override
+	public long getRequestBodyBudgetWaitCount() {
+		return requestBodyBuffer.getBudget().getWaitCount();
+	}
+
+	@Override
+	public long getRequestBodyBudgetRejectedCount() {
+		return requestBodyBuffer.getBudget().getRejectedCount();
+	}
+
+	@Override
+	public long getSpooledRequestBodyCount() {
+		return requestBodyBuffer.getSpooledCount();
+	}
+
+	@Override
+	public long getSpooledRequestBodyBytes() {
+		return requestBodyBuffer.getSpooledBytes();
+	}
+
+	@Override
+	public long getStreamedRequestBodyCount() {
+		return requestBodyBuffer.getStreamedCount();
+	}
+
+	@Override
+	public long getUninspectedRequestBodyCount() {
+		return requestBodyBuffer.getUninspectedCount();
+	}
+
+	@Override
+	public long getCompressedResponseCount() {
+		long count = 0;
+		for (SeleniumHttpProxy proxy : getAllProxies()) {
+			count += proxy.getCompressionStatistics().getResponseCount();
+		}
+		return count;
+	}
+
+	@Override
+	public String getCompressionReport() {
+		StringBuilder sb = new StringBuilder();
+		for (SeleniumHttpProxy proxy : getAllProxies()) {
+			CompressionStatistics statistics = proxy.getCompressionStatistics();
+			if (statistics.getResponseCount() == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append("\n");
+			}
+			sb.append(proxy.getResource().getOriginalUrl()).append(": ").append(statistics.getResponseCount())
+					.append(" responses, ").append(statistics.getUncompressedBytes()).append(" -> ")
+					.append(statistics.getCompressedBytes()).append(" bytes (ratio ")
+					.append(String.format(Locale.US, "%.3f", statistics.getCompressionRatio())).append("), ")
+					.append(statistics.getCpuTimeNanos() / 1000000l).append(" ms CPU");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String getCommandTimeoutPolicy() {
+		return timeoutPolicy.toString();
+	}
+
+	@Override
+	public String getCommandLatencyReport() {
+		StringBuilder sb = new StringBuilder();
+		for (SeleniumHttpProxy proxy : getAllProxies()) {
+			String report = proxy.getCommandLatencyReport();
+			if (report == null) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append("\n");
+			}
+			sb.append(proxy.getResource().getOriginalUrl()).append(": ").append(report);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public long getDisconnectedClientExchangeCount() {
+		return exchangeWatchdog.getDisconnectedCount();
+	}
+
+	@Override
+	public long getDeadlineExpiredExchangeCount() {
+		return exchangeWatchdog.getDeadlineExpiredCount();
+	}
+
+	@Override
+	public long getDeadlineRejectedRequestCount() {
+		return exchangeWatchdog.getDeadlineRejectedCount();
+	}
+
+	@Override
+	public int getWatchedExchangeCount() {
+		return exchangeWatchdog.getWatchedCount();
+	}
+
+	@Override
+	public int getUpstreamShardCount() {
+		return upstreamClients.getShardCount();
+	}
+
+	@Override
+	public String getUpstreamTransport() {
+		return upstreamClients.getTransport().getName();
+	}
+
+	@Override
+	public String getUpstreamShardStatistics() {
+		return upstreamClients.getStatistics();
+	}
+
+	@Override
+	public String getTlsHandshakeReport() {
+		return tlsSupport.getHandshakeReport();
+	}
+
+	@Override
+	public void resetTlsHandshakeStatistics() {
+		tlsSupport.resetHandshakeStatistics();
+	}
+
+	@Override
+	public long getDnsCacheHitCount() {
+		return dnsCache.getHitCount();
+	}
+
+	@Override
+	public long getDnsCacheNegativeHitCount() {
+		return dnsCache.getNegativeHitCount();
+	}
+
+	@Override
+	public long getDnsCacheMissCount() {
+		return dnsCache.getMissCount();
+	}
+
+	@Override
+	public long getDnsCacheRefreshCount() {
+		return dnsCache.getRefreshCount();
+	}
+
+	@Override
+	public long getDnsCacheFailedRefreshCount() {
+		return dnsCache.getFailedRefreshCount();
+	}
+
+	@Override
+	public int getDnsCacheSize() {
+		return dnsCache.getSize();
+	}
+
+	@Override
+	public void clearDnsCache() {
+		dnsCache.clear();
+	}
+
+	@Override
+	public int getLiveViewerCount() {
+		return liveView.getViewerCount();
+	}
+
+	@Override
+	public long getLiveViewRejectedViewerCount() {
+		return liveView.getRejectedViewerCount();
+	}
+
+	@Override
+	public long getLiveViewCapturedFrameCount() {
+		return liveView.getCapturedFrameCount();
+	}
+
+	@Override
+	public long getLiveViewSkippedFrameCount() {
+		return liveView.getSkippedFrameCount();
+	}
+
+	@Override
+	public long getLiveViewSentFrameCount() {
+		return liveView.getSentFrameCount();
+	}
+
+	@Override
+	public long getScreenshotCaptureCount() {
+		return screenshotService.getCaptureCount();
+	}
+
+	@Override
+	public long getFailedScreenshotCaptureCount() {
+		return screenshotService.getFailedCaptureCount();
+	}
+
+	@Override
+	public long getScreenshotCacheEvictionCount() {
+		return screenshotService.getEvictionCount();
+	}
+
+	@Override
+	public int getScreenshotCacheSize() {
+		return screenshotService.getCacheSize();
+	}
+
+	@Override
+	public long getScreenshotCacheBytes() {
+		return screenshotService.getCacheBytes();
+	}
+
+	@Override
+	public String getLastProbeBurstReport() {
+		return startupProber.getLastReport();
+	}
+
+	@Override
+	public int getReadyResourceCount() {
+		return getFleetResourceCount(ResourceState.READY);
+	}
+
+	@Override
+	public int getInUseResourceCount() {
+		return getFleetResourceCount(ResourceState.IN_USE);
+	}
+
+	@Override
+	public int getDisconnectedResourceCount() {
+		return getFleetResourceCount(ResourceState.DISCONNECTED);
+	}
+
+	@Override
+	public int getErrorResourceCount() {
+		return getFleetResourceCount(ResourceState.ERROR);
+	}
+
+	@Override
+	public String getResourceStateSummary() {
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		if (registry == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, SeleniumStateCounters> entry : registry.getStateCountersByGroupId().entrySet()) {
+			sb.append("Group ").append(entry.getKey()).append(": ").append(entry.getValue()).append("; ");
+		}
+		sb.append("All groups: ").append(registry.getFleetStateCounters());
+		return sb.toString();
+	}
+
+	private static int getFleetResourceCount(ResourceState state) {
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		return registry == null ? 0 : registry.getFleetStateCounters().getCount(state);
+	}
+
+	@Override
+	public long getEndedSessionCount() {
+		return sessionTracker.getTotalSessionCount();
+	}
+
+	@Override
+	public long getAverageTimeToNewSessionMillis() {
+		return sessionTracker.getTotalRollup().getAverageTimeToNewSession();
+	}
+
+	@Override
+	public long getAverageSessionDurationMillis() {
+		return sessionTracker.getTotalRollup().getAverageDuration();
+	}
+
+	@Override
+	public long getAverageCommandsPerSession() {
+		return sessionTracker.getTotalRollup().getAverageCommandsPerSession();
+	}
+
+	@Override
+	public int getFailedSessionCount() {
+		return sessionTracker.getTotalRollup().getErrorCount();
+	}
+
 	// Implement a delegating pattern to be able to change Thread count over time
 	private static class DelegatingScheduledExecutorService implements ScheduledExecutorService {
 
@@ -19,4 +19,118 @@ public interface SeleniumProxyServerMBean {
 
 	public int getProxyThreadCount();
 
+	public int getConnectorConnections();
+
+	public int getConnectorConnectionsOpen();
+
+	public int getConnectorConnectionsOpenMax();
+
+	public double getConnectorConnectionDurationMeanMillis();
+
+	public long getConnectorConnectionDurationMaxMillis();
+
+	public int getConnectorRequests();
+
+	public void resetConnectorStatistics();
+
+	public long getRequestBodyBudgetBytes();
+
+	public long getRequestBodyBudgetUsedBytes();
+
+	public long getRequestBodyBudgetPeakBytes();
+
+	public long getRequestBodyBudgetWaitCount();
+
+	public long getRequestBodyBudgetRejectedCount();
+
+	public long getSpooledRequestBodyCount();
+
+	public long getSpooledRequestBodyBytes();
+
+	public long getStreamedRequestBodyCount();
+
+	public long getUninspectedRequestBodyCount();
+
+	public long getCompressedResponseCount();
+
+	public String getCompressionReport();
+
+	public String getCommandTimeoutPolicy();
+
+	public String getCommandLatencyReport();
+
+	public long getDisconnectedClientExchangeCount();
+
+	public long getDeadlineExpiredExchangeCount();
+
+	public long getDeadlineRejectedRequestCount();
+
+	public int getWatchedExchangeCount();
+
+	public int getUpstreamShardCount();
+
+	public String getUpstreamTransport();
+
+	public String getUpstreamShardStatistics();
+
+	public String getTlsHandshakeReport();
+
+	public void resetTlsHandshakeStatistics();
+
+	public long getDnsCacheHitCount();
+
+	public long getDnsCacheNegativeHitCount();
+
+	public long getDnsCacheMissCount();
+
+	public long getDnsCacheRefreshCount();
+
+	public long getDnsCacheFailedRefreshCount();
+
+	public int getDnsCacheSize();
+
+	public void clearDnsCache();
+
+	public long getScreenshotCaptureCount();
+
+	public long getFailedScreenshotCaptureCount();
+
+	public long getScreenshotCacheEvictionCount();
+
+	public int getScreenshotCacheSize();
+
+	public long getScreenshotCacheBytes();
+
+	public int getLiveViewerCount();
+
+	public long getLiveViewRejectedViewerCount();
+
+	public long getLiveViewCapturedFrameCount();
+
+	public long getLiveViewSkippedFrameCount();
+
+	public long getLiveViewSentFrameCount();
+
+	public String getLastProbeBurstReport();
+
+	public int getReadyResourceCount();
+
+	public int getInUseResourceCount();
+
+	public int getDisconnectedResourceCount();
+
+	public int getErrorResourceCount();
+
+	public String getResourceStateSummary();
+
+	public long getEndedSessionCount();
+
+	public long getAverageTimeToNewSessionMillis();
+
+	public long getAverageSessionDurationMillis();
+
+	public long getAverageCommandsPerSession();
+
+	public int getFailedSessionCount();
+
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aludratest.cloud.selenium.util.MemoryBudget;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers the bodies of requests forwarded to the Selenium clients, so they can be inspected for Selenium session information.
+ * Only bodies up to a threshold are held in memory, and all bodies held in memory share a global {@link MemoryBudget}. Larger
+ * bodies are inspected by their first bytes only; the rest is either spooled to a temporary file or streamed through to the
+ * Selenium client. If the budget is exhausted, buffering waits for memory to be released; if this takes too long, the body is
+ * streamed through without inspection.
+ * 
+ */
+final class SeleniumRequestBodyBuffer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumRequestBodyBuffer.class);
+
+	/* Selenium session information is always at the start of a body (Selenium 1) or in the URI (Selenium 2). */
+	private static final int MAX_INSPECTION_BYTES = 64 * 1024;
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	private static final String SPOOL_FILE_PREFIX = "selenium-request";
+
+	private MemoryBudget budget;
+
+	private volatile int memoryThreshold;
+
+	private volatile long budgetWaitMillis;
+
+	private volatile File spoolDirectory;
+
+	private AtomicLong bufferedCount = new AtomicLong();
+
+	private AtomicLong spooledCount = new AtomicLong();
+
+	private AtomicLong spooledBytes = new AtomicLong();
+
+	private AtomicLong streamedCount = new AtomicLong();
+
+	private AtomicLong uninspectedCount = new AtomicLong();
+
+	/**
+	 * Creates a new request body buffer.
+	 * 
+	 * @param budgetBytes
+	 *            Total number of bytes of all request bodies held in memory.
+	 * @param memoryThreshold
+	 *            Maximum number of bytes of a single request body held in memory.
+	 * @param budgetWaitMillis
+	 *            Maximum time to wait for memory of the budget, in milliseconds.
+	 * @param spoolDirectory
+	 *            Directory for spooling bodies larger than the threshold, or <code>null</code> to stream these bodies through.
+	 */
+	public SeleniumRequestBodyBuffer(long budgetBytes, int memoryThreshold, long budgetWaitMillis, File spoolDirectory) {
+		budget = new MemoryBudget(budgetBytes);
+		reconfigure(budgetBytes, memoryThreshold, budgetWaitMillis, spoolDirectory);
+		deleteLeftoverSpoolFiles();
+	}
+
+	private void deleteLeftoverSpoolFiles() {
+		File spoolDir = spoolDirectory;
+		File[] files = spoolDir == null ? null : spoolDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().startsWith(SPOOL_FILE_PREFIX) && !f.delete()) {
+					LOG.debug("Could not delete leftover spool file " + f);
+				}
+			}
+		}
+	}
+
+	public void reconfigure(long budgetBytes, int memoryThreshold, long budgetWaitMillis, File spoolDirectory) {
+		budget.setCapacity(budgetBytes);
+		this.memoryThreshold = memoryThreshold;
+		this.budgetWaitMillis = budgetWaitMillis;
+		if (spoolDirectory != null && !spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+			LOG.warn("Could not create spool directory " + spoolDirectory + ", large request bodies are streamed through");
+			spoolDirectory = null;
+		}
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Reads the given request body, up to the memory threshold, and returns a buffered body which can be inspected and
+	 * forwarded. The returned body must be released when the request is completed.
+	 * 
+	 * @param in
+	 *            Stream of the request body.
+	 * @param contentLength
+	 *            Content length of the request, or -1 if unknown.
+	 * @return The buffered body, never <code>null</code>.
+	 * @throws IOException
+	 *             If the body could not be read or spooled.
+	 */
+	public Body buffer(InputStream in, long contentLength) throws IOException {
+		int threshold = memoryThreshold;
+		long reserveBytes = contentLength >= 0 && contentLength <= threshold ? contentLength : threshold;
+
+		MemoryBudget.Reservation reservation;
+		try {
+			reservation = budget.reserve(reserveBytes, budgetWaitMillis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reservation = null;
+		}
+
+		if (reservation == null) {
+			// memory budget exhausted; forward without inspection rather than risking the heap
+			uninspectedCount.incrementAndGet();
+			return new Body(new byte[0], 0, in, contentLength, null, null);
+		}
+
+		try {
+			byte[] buffer = new byte[(int) Math.min(reserveBytes, INITIAL_BUFFER_SIZE)];
+			int length = 0;
+			int r;
+			while (length < reserveBytes && (r = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += r;
+				if (length == buffer.length && length < reserveBytes) {
+					byte[] newBuffer = new byte[(int) Math.min(reserveBytes, buffer.length * 2l)];
+					System.arraycopy(buffer, 0, newBuffer, 0, length);
+					buffer = newBuffer;
+				}
+			}
+
+			// check if there is more
+			PushbackInputStream tail = new PushbackInputStream(in, 1);
+			int next = length < reserveBytes ? -1 : tail.read();
+			if (next == -1) {
+				bufferedCount.incrementAndGet();
+				return new Body(buffer, length, null, length, reservation, null);
+			}
+			tail.unread(next);
+
+			File spoolDir = spoolDirectory;
+			if (spoolDir == null) {
+				streamedCount.incrementAndGet();
+				return new Body(buffer, length, tail, contentLength, reservation, null);
+			}
+
+			File spoolFile = File.createTempFile(SPOOL_FILE_PREFIX, ".tmp", spoolDir);
+			long tailLength;
+			OutputStream out = new FileOutputStream(spoolFile);
+			try {
+				tailLength = IOUtils.copyLarge(tail, out);
+			}
+			catch (IOException e) {
+				IOUtils.closeQuietly(out);
+				spoolFile.delete();
+				throw e;
+			}
+			finally {
+				IOUtils.closeQuietly(out);
+			}
+			spooledCount.incrementAndGet();
+			spooledBytes.addAndGet(tailLength);
+			return new Body(buffer, length, new FileInputStream(spoolFile), length + tailLength, reservation, spoolFile);
+		}
+		catch (IOException e) {
+			reservation.release();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			reservation.release();
+			throw e;
+		}
+	}
+
+	public MemoryBudget getBudget() {
+		return budget;
+	}
+
+	public long getBufferedCount() {
+		return bufferedCount.get();
+	}
+
+	public long getSpooledCount() {
+		return spooledCount.get();
+	}
+
+	public long getSpooledBytes() {
+		return spooledBytes.get();
+	}
+
+	public long getStreamedCount() {
+		return streamedCount.get();
+	}
+
+	public long getUninspectedCount() {
+		return uninspectedCount.get();
+	}
+
+	/**
+	 * A buffered request body. The first bytes of the body are held in memory for inspection; the rest, if any, is read from
+	 * a spool file or from the original request.
+	 * 
+	 */
+	static final class Body {
+
+		private byte[] head;
+
+		private int headLength;
+
+		private InputStream tail;
+
+		private long length;
+
+		private MemoryBudget.Reservation reservation;
+
+		private File spoolFile;
+
+		private Body(byte[] head, int headLength, InputStream tail, long length, MemoryBudget.Reservation reservation,
+				File spoolFile) {
+			this.head = head;
+			this.headLength = headLength;
+			this.tail = tail;
+			this.length = length;
+			this.reservation = reservation;
+			this.spoolFile = spoolFile;
+		}
+
+		/**
+		 * Returns the first bytes of the body as text, for detecting Selenium commands and session IDs.
+		 * 
+		 * @return The first bytes of the body as text, possibly an empty string.
+		 */
+		String getInspectionText() {
+			try {
+				return new String(head, 0, Math.min(headLength, MAX_INSPECTION_BYTES), "UTF-8");
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Returns the length of the body, if known.
+		 * 
+		 * @return The length of the body, or -1 if unknown.
+		 */
+		long getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns the stream of the complete body, for forwarding it to the Selenium client.
+		 * 
+		 * @return The stream of the complete body.
+		 */
+		InputStream getContent() {
+			InputStream in = new ByteArrayInputStream(head, 0, headLength);
+			return tail == null ? in : new SequenceInputStream(in, tail);
+		}
+
+		/**
+		 * Releases the memory and the spool file of this body.
+		 */
+		void release() {
+			if (reservation != null) {
+				reservation.release();
+			}
+			if (spoolFile != null) {
+				IOUtils.closeQuietly(tail);
+				if (!spoolFile.delete()) {
+					spoolFile.deleteOnExit();
+				}
+			}
+		}
+	}
+
+}
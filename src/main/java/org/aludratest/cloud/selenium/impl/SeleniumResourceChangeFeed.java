@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aludratest.cloud.resource.ResourceState;
+
+/**
+ * Bounded in-memory feed of the state transitions of all Selenium resources, numbered with a monotonically increasing
+ * sequence. Appending an event is a constant-time operation under a short lock, so state changes of resources are never
+ * delayed by consumers of the feed; consumers only copy the events they need under the lock and coalesce them afterwards. <br>
+ * Each event records the ID of the resource group the resource belonged to when the event happened, so consumers filtering by
+ * group also receive removals, and a resource moved to another group is removed from its old group and added to the new one.
+ * <br>
+ * Consumers read all events after the last sequence number they have seen. Consumers which are too slow are not forced into a
+ * full resynchronisation: if more events are pending than the consumer requested, the pending events are coalesced to one
+ * event per resource and group; if the requested events have already been dropped from the ring, the consumer receives the
+ * latest event of each resource and group changed since, which is kept separately for this purpose. Coalesced events are
+ * flagged, and their previous state is the state before the first of the coalesced transitions, if known. <br>
+ * Latest events of removed resources are discarded once their REMOVED event leaves the ring, so memory is bounded by the number
+ * of resources plus the ring capacity. Consumers which are behind such a discarded removal receive a reset batch: the latest
+ * events of all current resources, which replace everything the consumer knew before.
+ * 
+ */
+public final class SeleniumResourceChangeFeed {
+
+	public static enum EventType {
+		ADDED, REMOVED, STATE
+	}
+
+	private Event[] ring;
+
+	/* Number of events in the ring; the newest event is at (head - 1), the oldest at (head - count). */
+	private int count;
+
+	private int head;
+
+	private long sequence;
+
+	/* Latest event per resource URL and group ID, used to catch up consumers whose events have left the ring. */
+	private final Map<String, Event> latestEvents = new HashMap<String, Event>();
+
+	/* Highest sequence number of a REMOVED event which has been discarded from the latest events. */
+	private long discardedSequence;
+
+	private int maxSubscribers = Integer.MAX_VALUE;
+
+	private int subscribers;
+
+	SeleniumResourceChangeFeed(int capacity) {
+		ring = new Event[Math.max(16, capacity)];
+	}
+
+	synchronized void setCapacity(int capacity) {
+		capacity = Math.max(16, capacity);
+		if (capacity == ring.length) {
+			return;
+		}
+		Event[] newRing = new Event[capacity];
+		int newCount = Math.min(count, capacity);
+		for (int i = count - 1; i >= newCount; i--) {
+			evicted(get(i));
+		}
+		for (int i = 0; i < newCount; i++) {
+			newRing[newCount - 1 - i] = get(i);
+		}
+		ring = newRing;
+		count = newCount;
+		head = newCount % capacity;
+	}
+
+	/**
+	 * Sets the maximum number of concurrent subscribers, see {@link #addSubscriber()}.
+	 * 
+	 * @param maxSubscribers
+	 *            Maximum number of concurrent subscribers.
+	 */
+	public synchronized void setMaxSubscribers(int maxSubscribers) {
+		this.maxSubscribers = Math.max(0, maxSubscribers);
+	}
+
+	/**
+	 * Registers a long-lived subscriber of this feed, e.g. an event stream holding a thread for as long as it is connected.
+	 * Every successful call must be followed by a call to {@link #removeSubscriber()}.
+	 * 
+	 * @return <code>true</code> if the subscriber has been registered, <code>false</code> if the maximum number of subscribers
+	 *         is reached.
+	 */
+	public synchronized boolean addSubscriber() {
+		if (subscribers >= maxSubscribers) {
+			return false;
+		}
+		subscribers++;
+		return true;
+	}
+
+	public synchronized void removeSubscriber() {
+		subscribers--;
+	}
+
+	public synchronized int getSubscriberCount() {
+		return subscribers;
+	}
+
+	synchronized long append(EventType type, String url, Integer groupId, ResourceState previousState, ResourceState newState) {
+		Event event = new Event(++sequence, type, url, groupId, previousState, newState, System.currentTimeMillis(), false);
+		if (count == ring.length) {
+			evicted(ring[head]);
+		}
+		ring[head] = event;
+		head = (head + 1) % ring.length;
+		if (count < ring.length) {
+			count++;
+		}
+		latestEvents.put(event.getKey(), event);
+		notifyAll();
+		return event.sequence;
+	}
+
+	private void evicted(Event event) {
+		// removed resources are only remembered while their removal is in the ring
+		if (event.type == EventType.REMOVED && latestEvents.get(event.getKey()) == event) {
+			latestEvents.remove(event.getKey());
+			discardedSequence = Math.max(discardedSequence, event.sequence);
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the latest event in this feed.
+	 * 
+	 * @return The sequence number of the latest event in this feed, or 0 if there are no events yet.
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the sequence number of the oldest event still contained in the ring of this feed.
+	 * 
+	 * @return The sequence number of the oldest event in the ring, or the next sequence number if the ring is empty.
+	 */
+	public synchronized long getOldestSequence() {
+		return count == 0 ? sequence + 1 : get(count - 1).sequence;
+	}
+
+	/**
+	 * Returns the events after the given sequence number, waiting up to the given time if there are no such events yet.
+	 * 
+	 * @param afterSequence
+	 *            Sequence number of the last event seen by the consumer, or 0 to start with the oldest event available.
+	 * @param maxEvents
+	 *            Maximum number of single events to return. If more events are pending, they are coalesced to one event per
+	 *            resource, which may still exceed this number for large numbers of resources.
+	 * @param timeoutMillis
+	 *            Maximum time to wait for an event, in milliseconds. If 0, the method does not wait.
+	 * 
+	 * @return The pending events, in sequence order. The batch is empty if the timeout elapsed without new events.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public Batch read(long afterSequence, int maxEvents, long timeoutMillis) throws InterruptedException {
+		Event[] pending;
+		List<Event> latest;
+		boolean reset;
+		long lastSequence;
+
+		// only copy the events under the lock; coalescing and sorting is done without blocking appends
+		synchronized (this) {
+			long endTime = System.currentTimeMillis() + timeoutMillis;
+			long wait;
+			while (sequence == afterSequence && (wait = endTime - System.currentTimeMillis()) > 0) {
+				wait(wait);
+			}
+
+			lastSequence = sequence;
+			if (afterSequence > sequence) {
+				// sequence of a previous run of the application; the consumer must catch up completely
+				latest = new ArrayList<Event>(latestEvents.values());
+				reset = true;
+				pending = null;
+			}
+			else if (sequence == afterSequence) {
+				return new Batch(Collections.<Event> emptyList(), sequence, false, false);
+			}
+			else if (afterSequence > 0 && afterSequence < getOldestSequence() - 1) {
+				// events were dropped from the ring; use the latest event per resource instead
+				latest = new ArrayList<Event>(latestEvents.values());
+				reset = afterSequence < discardedSequence;
+				pending = null;
+			}
+			else {
+				int pendingCount = (int) Math.min(count, sequence - afterSequence);
+				pending = new Event[pendingCount];
+				for (int i = 0; i < pendingCount; i++) {
+					pending[pendingCount - 1 - i] = get(i);
+				}
+				latest = null;
+				reset = false;
+			}
+		}
+
+		if (latest != null) {
+			return catchUp(latest, reset ? 0 : afterSequence, reset, lastSequence);
+		}
+
+		List<Event> events = new ArrayList<Event>(Math.min(pending.length, maxEvents));
+		if (pending.length <= maxEvents) {
+			Collections.addAll(events, pending);
+			return new Batch(events, lastSequence, false, false);
+		}
+
+		// too many events pending: coalesce to one event per resource and group
+		Map<String, Event> coalesced = new LinkedHashMap<String, Event>();
+		for (Event event : pending) {
+			Event first = coalesced.remove(event.getKey());
+			ResourceState previousState = first == null ? event.previousState : first.previousState;
+			coalesced.put(event.getKey(), new Event(event.sequence, event.type, event.url, event.groupId, previousState,
+					event.newState, event.timestamp, first != null || event.coalesced));
+		}
+		events.addAll(coalesced.values());
+		return new Batch(events, lastSequence, true, false);
+	}
+
+	private static Batch catchUp(List<Event> latest, long afterSequence, boolean reset, long lastSequence) {
+		List<Event> events = new ArrayList<Event>();
+		for (Event event : latest) {
+			// a reset replaces the knowledge of the consumer, so removals are irrelevant there
+			if (event.sequence > afterSequence && !(reset && event.type == EventType.REMOVED)) {
+				events.add(new Event(event.sequence, event.type, event.url, event.groupId, null, event.newState,
+						event.timestamp, true));
+			}
+		}
+		Collections.sort(events, SEQUENCE_COMPARATOR);
+		return new Batch(events, lastSequence, true, reset);
+	}
+
+	/* Returns the i-th newest event of the ring; 0 is the newest. */
+	private Event get(int i) {
+		return ring[(head - 1 - i + ring.length) % ring.length];
+	}
+
+	private static final Comparator<Event> SEQUENCE_COMPARATOR = new Comparator<Event>() {
+		@Override
+		public int compare(Event e1, Event e2) {
+			return e1.sequence < e2.sequence ? -1 : (e1.sequence == e2.sequence ? 0 : 1);
+		}
+	};
+
+	/**
+	 * A state transition, registration or removal of a Selenium resource.
+	 * 
+	 */
+	public static final class Event {
+
+		private final long sequence;
+
+		private final EventType type;
+
+		private final String url;
+
+		private final Integer groupId;
+
+		private final ResourceState previousState;
+
+		private final ResourceState newState;
+
+		private final long timestamp;
+
+		private final boolean coalesced;
+
+		private Event(long sequence, EventType type, String url, Integer groupId, ResourceState previousState,
+				ResourceState newState, long timestamp, boolean coalesced) {
+			this.sequence = sequence;
+			this.type = type;
+			this.url = url;
+			this.groupId = groupId;
+			this.previousState = previousState;
+			this.newState = newState;
+			this.timestamp = timestamp;
+			this.coalesced = coalesced;
+		}
+
+		private String getKey() {
+			return groupId == null ? url : url + " " + groupId;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public EventType getType() {
+			return type;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * Returns the ID of the resource group the resource belonged to when this event happened.
+		 * 
+		 * @return The ID of the resource group of the resource at the time of this event, or <code>null</code> if unknown.
+		 */
+		public Integer getGroupId() {
+			return groupId;
+		}
+
+		public ResourceState getPreviousState() {
+			return previousState;
+		}
+
+		public ResourceState getNewState() {
+			return newState;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public boolean isCoalesced() {
+			return coalesced;
+		}
+	}
+
+	/**
+	 * Result of reading the change feed.
+	 * 
+	 */
+	public static final class Batch {
+
+		private final List<Event> events;
+
+		private final long lastSequence;
+
+		private final boolean coalesced;
+
+		private final boolean reset;
+
+		private Batch(List<Event> events, long lastSequence, boolean coalesced, boolean reset) {
+			this.events = events;
+			this.lastSequence = lastSequence;
+			this.coalesced = coalesced;
+			this.reset = reset;
+		}
+
+		public List<Event> getEvents() {
+			return events;
+		}
+
+		/**
+		 * Returns the sequence number to pass to the next read to continue after this batch.
+		 * 
+		 * @return The sequence number to pass to the next read to continue after this batch.
+		 */
+		public long getLastSequence() {
+			return lastSequence;
+		}
+
+		public boolean isCoalesced() {
+			return coalesced;
+		}
+
+		/**
+		 * Returns if this batch contains the latest event of every current resource and replaces all events the consumer has
+		 * seen before, because the consumer fell too far behind.
+		 * 
+		 * @return <code>true</code> if the consumer must replace its state with the events of this batch, <code>false</code>
+		 *         if the events of this batch are changes to the previous state of the consumer.
+		 */
+		public boolean isReset() {
+			return reset;
+		}
+	}
+
+}
@@ -17,7 +17,10 @@ package org.aludratest.cloud.selenium.impl;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.aludratest.cloud.app.CloudManagerApp;
 import org.aludratest.cloud.config.ConfigException;
 import org.aludratest.cloud.config.MainPreferences;
 import org.aludratest.cloud.config.Preferences;
@@ -27,13 +30,56 @@ import org.aludratest.cloud.resourcegroup.StaticResourceGroupAdmin;
 import org.aludratest.cloud.selenium.SeleniumResource;
 import org.aludratest.cloud.selenium.SeleniumResourceType;
 import org.aludratest.cloud.selenium.config.ClientEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class SeleniumResourceGroup extends AbstractStaticResourceGroup<SeleniumResource> {
 
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumResourceGroup.class);
+
+	/* Resources added while applying preferences; their proxies are registered in one go afterwards. */
+	private List<SeleniumResourceImpl> pendingProxyResources;
+
 	public SeleniumResourceGroup() {
 		super(SeleniumResourceType.INSTANCE);
 	}
 
+	@Override
+	public void setPreferences(MainPreferences preferences) throws ConfigException {
+		pendingProxyResources = new ArrayList<SeleniumResourceImpl>();
+		try {
+			super.setPreferences(preferences);
+		}
+		finally {
+			List<SeleniumResourceImpl> resources = pendingProxyResources;
+			pendingProxyResources = null;
+			registerProxies(resources);
+		}
+	}
+
+	private void registerProxies(List<SeleniumResourceImpl> resources) {
+		if (resources.isEmpty()) {
+			return;
+		}
+
+		SeleniumResourceModule module = getModule();
+		try {
+			module.getProxyServer().addProxiesForResources(resources);
+		}
+		catch (MalformedURLException e) {
+			LOG.error("Could not create Selenium proxy due to invalid URL", e);
+		}
+
+		// resources pick up their registered proxies from the proxy server's index
+		for (SeleniumResourceImpl resource : resources) {
+			resource.getProxy();
+		}
+	}
+
+	private static SeleniumResourceModule getModule() {
+		return (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(SeleniumResourceType.INSTANCE);
+	}
+
 	@Override
 	protected SeleniumResource createResourceFromPreferences(Preferences resourceConfig) throws ConfigException {
 		String originalUrl = resourceConfig.getStringValue("seleniumUrl");
@@ -76,7 +122,13 @@ public class SeleniumResourceGroup extends AbstractStaticResourceGroup<SeleniumR
 
 		// force creation and registration of Proxy
 		if (resource instanceof SeleniumResourceImpl) {
-			((SeleniumResourceImpl) resource).getProxy();
+			getModule().getResourceRegistry().register((SeleniumResourceImpl) resource, this);
+			if (pendingProxyResources != null) {
+				pendingProxyResources.add((SeleniumResourceImpl) resource);
+			}
+			else {
+				((SeleniumResourceImpl) resource).getProxy();
+			}
 		}
 	}
 
@@ -85,6 +137,10 @@ public class SeleniumResourceGroup extends AbstractStaticResourceGroup<SeleniumR
 		super.removeResource(resource);
 
 		if (resource instanceof SeleniumResourceImpl) {
+			getModule().getResourceRegistry().unregister((SeleniumResourceImpl) resource);
+			if (pendingProxyResources != null) {
+				pendingProxyResources.remove(resource);
+			}
 			((SeleniumResourceImpl) resource).removeProxy();
 		}
 	}
@@ -33,6 +33,7 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -72,6 +73,10 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 
 	private boolean maintenanceMode;
 
+	private transient SeleniumStateCounters stateCounters;
+
+	private transient boolean restoredInUse;
+
 	SeleniumResourceImpl(String originalUrl) throws MalformedURLException {
 		this.originalUrl = originalUrl;
 		if (originalUrl.endsWith("/")) {
@@ -115,7 +120,14 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 
 	@Override
 	public void switchToMaintenanceMode(boolean maintenanceMode) {
+		boolean changed = this.maintenanceMode != maintenanceMode;
 		this.maintenanceMode = maintenanceMode;
+		if (changed) {
+			SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+			if (registry != null) {
+				registry.resourceModified(this);
+			}
+		}
 		if (!maintenanceMode) {
 			if (getState() == ResourceState.CONNECTED) {
 				setState(ResourceState.READY);
@@ -185,10 +197,34 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 				return;
 			}
 			this.state = state;
+			if (stateCounters != null) {
+				stateCounters.transition(oldState, state);
+			}
 		}
 		fireResourceStateChanged(oldState, state);
 	}
 
+	/**
+	 * Sets the state counters of the resource group this resource belongs to. The current state of this resource is moved
+	 * from the previous counters to the new ones, and all further state transitions are recorded there.
+	 * 
+	 * @param counters
+	 *            State counters of the resource group of this resource, or <code>null</code> if the resource has been removed
+	 *            from its group.
+	 */
+	synchronized void setStateCounters(SeleniumStateCounters counters) {
+		if (stateCounters == counters) {
+			return;
+		}
+		if (stateCounters != null) {
+			stateCounters.transition(state, null);
+		}
+		stateCounters = counters;
+		if (counters != null) {
+			counters.transition(null, state);
+		}
+	}
+
 	void tryKillSession() {
 		SeleniumHttpProxy proxy = getProxy();
 		if (proxy.getSeleniumSessionId() == null) {
@@ -204,12 +240,29 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 		}
 	}
 
+	private static CloseableHttpClient createHttpClient() {
+		HttpClientBuilder builder = HttpClientBuilder.create();
+		// use the TLS configuration, DNS cache, upstream proxy and session teardown timeouts of the proxy server, if any
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		if (module != null && module.getProxyServer() != null) {
+			SeleniumTimeoutPolicy timeoutPolicy = module.getProxyServer().getTimeoutPolicy();
+			builder.setDefaultRequestConfig(RequestConfig.custom()
+					.setConnectTimeout((int) module.getProxyServer().getConnectTimeoutMillis())
+					.setSocketTimeout((int) timeoutPolicy.getReadTimeoutMillis(SeleniumCommandClass.QUIT)).build());
+			builder.setConnectionManager(module.getProxyServer().getDnsCache()
+					.createConnectionManager(module.getProxyServer().getTlsSupport().getSocketFactory(), 20, 2));
+			builder.setRoutePlanner(module.getProxyServer().getRoutePlanner());
+		}
+		return builder.build();
+	}
+
 	private static void closeSelenium1Session(String url, String sessionId) {
 		List<NameValuePair> urlParameters = new ArrayList<NameValuePair>();
 		urlParameters.add(new BasicNameValuePair("cmd", "testComplete"));
 		urlParameters.add(new BasicNameValuePair("sessionId", sessionId));
 
-		CloseableHttpClient client = HttpClientBuilder.create().build();
+		CloseableHttpClient client = createHttpClient();
 
 		try {
 			HttpPost request = new HttpPost(url);
@@ -226,7 +279,7 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 	}
 
 	private static void closeSelenium2Session(String originalUrl, String sessionId) {
-		CloseableHttpClient client = HttpClientBuilder.create().build();
+		CloseableHttpClient client = createHttpClient();
 
 		String baseUrl = originalUrl + "/wd/hub/session/" + sessionId;
 
@@ -263,7 +316,7 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 	}
 
 	private static List<String> getSelenium2SessionIds(String originalUrl) throws IOException {
-		CloseableHttpClient client = HttpClientBuilder.create().build();
+		CloseableHttpClient client = createHttpClient();
 
 		String baseUrl = originalUrl + "/wd/hub/sessions";
 
@@ -327,7 +380,7 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 	}
 
 	private static void performPost(String url, String data) {
-		CloseableHttpClient client = HttpClientBuilder.create().build();
+		CloseableHttpClient client = createHttpClient();
 
 		try {
 			HttpPost request = new HttpPost(url);
@@ -344,7 +397,7 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 	}
 
 	private static void performDelete(String url) {
-		CloseableHttpClient client = HttpClientBuilder.create().build();
+		CloseableHttpClient client = createHttpClient();
 
 		try {
 			HttpDelete request = new HttpDelete(url);
@@ -363,10 +416,66 @@ public class SeleniumResourceImpl extends AbstractResource implements SeleniumRe
 		lastUsedTime = System.currentTimeMillis();
 	}
 
-	synchronized long getIdleTime() {
+	/**
+	 * Returns the number of milliseconds since this resource was last used by a Selenium client.
+	 * 
+	 * @return The number of milliseconds since this resource was last used. If it has never been used, this is the number of
+	 *         milliseconds since 1970-01-01.
+	 */
+	public synchronized long getIdleTime() {
 		return System.currentTimeMillis() - lastUsedTime;
 	}
 
+	/**
+	 * Returns the time when this resource was last used by a Selenium client.
+	 * 
+	 * @return The time when this resource was last used, in milliseconds since 1970-01-01, or 0 if it has never been used.
+	 */
+	public synchronized long getLastUsedTime() {
+		return lastUsedTime;
+	}
+
+	/**
+	 * Returns the ID of the Selenium session last started via the proxy of this resource, if any.
+	 * 
+	 * @return The ID of the Selenium session last started via the proxy of this resource, or <code>null</code> if no session
+	 *         has been started or the resource currently has no proxy.
+	 */
+	public String getSeleniumSessionId() {
+		SeleniumHttpProxy proxy = this.proxy;
+		return proxy == null ? null : proxy.getSeleniumSessionId();
+	}
+
+	/**
+	 * Restores the runtime state of this resource from a snapshot taken before a restart of the Cloud Manager.
+	 * 
+	 * @param entry
+	 *            Snapshot entry for this resource.
+	 * @param restoreState
+	 *            If <code>true</code>, an IN_USE state of the snapshot is restored as well, otherwise, only maintenance mode
+	 *            and last usage time are restored. The resource stays DISCONNECTED until its first successful health check,
+	 *            which then sets it IN_USE instead of READY.
+	 */
+	void restoreFromSnapshot(SeleniumResourceSnapshot.Entry entry, boolean restoreState) {
+		synchronized (this) {
+			lastUsedTime = Math.max(lastUsedTime, entry.getLastUsedTime());
+			restoredInUse = restoreState && entry.getState() == ResourceState.IN_USE;
+		}
+		switchToMaintenanceMode(entry.isMaintenanceMode());
+	}
+
+	/**
+	 * Returns whether this resource was IN_USE according to its snapshot and has not been health checked since, and resets this
+	 * flag, so it only applies to the first health check.
+	 * 
+	 * @return <code>true</code> if the IN_USE state of the snapshot is still to be restored, <code>false</code> otherwise.
+	 */
+	synchronized boolean takeRestoredInUse() {
+		boolean result = restoredInUse;
+		restoredInUse = false;
+		return result;
+	}
+
 	public void removeProxy() {
 		if (proxy != null) {
 			LOG.debug("Removing proxy for resource " + this);
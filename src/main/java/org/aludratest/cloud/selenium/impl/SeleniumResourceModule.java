@@ -15,6 +15,8 @@
  */
 package org.aludratest.cloud.selenium.impl;
 
+import java.io.File;
+
 import org.aludratest.cloud.app.CloudManagerApp;
 import org.aludratest.cloud.config.ConfigException;
 import org.aludratest.cloud.config.Configurable;
@@ -44,6 +46,8 @@ public class SeleniumResourceModule extends AbstractResourceModule
 	
 	private SeleniumProxyServer proxyServer;
 
+	private SeleniumResourceRegistry resourceRegistry = new SeleniumResourceRegistry();
+
 	private SeleniumModuleConfiguration configuration;
 
 	private MainPreferences preferences;
@@ -74,6 +78,15 @@ public class SeleniumResourceModule extends AbstractResourceModule
 		return proxyServer;
 	}
 
+	/**
+	 * Returns the index of all Selenium resources of all Selenium resource groups.
+	 * 
+	 * @return The index of all Selenium resources of all Selenium resource groups, never <code>null</code>.
+	 */
+	public SeleniumResourceRegistry getResourceRegistry() {
+		return resourceRegistry;
+	}
+
 	@Override
 	public void fillDefaults(MutablePreferences preferences) {
 		SeleniumModuleConfiguration.fillDefaults(preferences);
@@ -85,10 +98,24 @@ public class SeleniumResourceModule extends AbstractResourceModule
 		if (maxThreadSize < 5) {
 			throw new ConfigException("Max Thread Count for Selenium Proxy Server must be greater than 5.");
 		}
+		// live view viewers block proxy threads, so they must never be able to take all of them
+		if (preferences.getIntValue("liveViewMaxViewers", 10) >= maxThreadSize / 2) {
+			throw new ConfigException("Max number of live view viewers must be less than half of the Max Thread Count.");
+		}
+
+		validateStoreFile(preferences.getStringValue("tlsTrustStore"), "Trust store");
+		validateStoreFile(preferences.getStringValue("tlsKeyStore"), "Key store");
+		SeleniumTimeoutPolicy.validate(preferences.getStringValue("commandTimeouts"));
 
 		// TODO Auto-generated method stub
 	}
 
+	private static void validateStoreFile(String path, String description) throws ConfigException {
+		if (path != null && !"".equals(path.trim()) && !new File(path.trim()).isFile()) {
+			throw new ConfigException(description + " file " + path.trim() + " does not exist.");
+		}
+	}
+
 	@Override
 	public void setPreferences(MainPreferences preferences) throws ConfigException {
 		if (this.preferences != null) {
@@ -112,7 +139,9 @@ public class SeleniumResourceModule extends AbstractResourceModule
 						}
 
 						// also update Proxy configuration of SHP
-						SeleniumHttpProxy.updateProxyConfig();
+						if (proxyServer != null) {
+							proxyServer.updateUpstreamProxyConfig();
+						}
 					}
 
 					@Override
@@ -152,10 +181,12 @@ public class SeleniumResourceModule extends AbstractResourceModule
 				throw new ConfigException("Could not startup Selenium Proxy Server", e);
 			}
 		}
-		else if (proxyServer.getPort() != configuration.getSeleniumProxyPort()) {
+		else if (proxyServer.getPort() != configuration.getSeleniumProxyPort()
+				|| !proxyServer.getConnectorSettings().equals(configuration.getConnectorSettings())) {
 			// restart Jetty server, if required
 			try {
-				proxyServer.restartJetty(configuration.getSeleniumProxyPort());
+				proxyServer.restartJetty(configuration.getSeleniumProxyPort(), configuration.getConnectorSettings(),
+						configuration.getPortChangeDrainTimeoutSeconds() * 1000l);
 			}
 			catch (Exception e) {
 				LOGGER.warn("Exception when restarting Selenium proxy server", e);
@@ -164,6 +195,8 @@ public class SeleniumResourceModule extends AbstractResourceModule
 
 		// update configuration
 		proxyServer.reconfigure(configuration);
+		resourceRegistry.getChangeFeed().setCapacity(configuration.getChangeFeedCapacity());
+		resourceRegistry.getChangeFeed().setMaxSubscribers(configuration.getChangeFeedMaxSubscribers());
 
 		// attach to resource group manager as listener, to notify resource groups when resources are removed
 		CloudManagerApp.getInstance().getResourceGroupManager().addResourceGroupManagerListener(this);
@@ -206,6 +239,9 @@ public class SeleniumResourceModule extends AbstractResourceModule
 
 	@Override
 	public void resourceGroupAdded(ResourceGroup group) {
+		if (group instanceof SeleniumResourceGroup) {
+			resourceRegistry.groupAdded((SeleniumResourceGroup) group);
+		}
 	}
 
 	@Override
@@ -216,6 +252,7 @@ public class SeleniumResourceModule extends AbstractResourceModule
 			for (SeleniumResource res : selGroup.getResourceCollection()) {
 				selGroup.removeResource(res);
 			}
+			resourceRegistry.groupRemoved(selGroup);
 		}
 	}
 
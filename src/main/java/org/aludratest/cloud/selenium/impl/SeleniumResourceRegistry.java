@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.resource.Resource;
+import org.aludratest.cloud.resource.ResourceListener;
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.resource.ResourceStateHolder;
+import org.aludratest.cloud.resourcegroup.ResourceGroup;
+import org.aludratest.cloud.resourcegroup.ResourceGroupManager;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed.EventType;
+
+/**
+ * Index of all Selenium resources of all Selenium resource groups, by original URL and by display key (the
+ * <code>toString()</code> representation used by the user interface). Resources are registered and unregistered by their
+ * groups when they are added or removed, and whole groups when the resource group manager adds or removes them, so lookups
+ * never have to scan all groups and resources. <br>
+ * The IDs of resource groups are only known to the resource group manager; they are cached here per group object and looked
+ * up again only when a group is not yet known. Resources by proxy ID are available via
+ * {@link SeleniumProxyServer#getResourceByProxyId(int)}, which uses the proxy server's own index. <br>
+ * The registry also records all state changes of the registered resources in a {@link SeleniumResourceChangeFeed}, whose
+ * sequence numbers let views find out cheaply which resources changed since they were last rendered. Additionally, every
+ * group has a version counter which increases whenever one of its resources is added, removed, changes its state or maintenance
+ * mode, or starts a new Selenium session; it is used e.g. as the ETag of REST responses. <br>
+ * The number of resources per state is maintained per group and for all groups in {@link SeleniumStateCounters}, which the
+ * resources update on every state transition.
+ * 
+ */
+public final class SeleniumResourceRegistry implements ResourceListener {
+
+	private static final int DEFAULT_CHANGE_FEED_CAPACITY = 10000;
+
+	private final Map<String, Entry> resourcesByUrl = new ConcurrentHashMap<String, Entry>();
+
+	private final Map<String, SeleniumResourceImpl> resourcesByDisplayKey = new ConcurrentHashMap<String, SeleniumResourceImpl>();
+
+	private final Map<ResourceGroup, Integer> groupIds = new ConcurrentHashMap<ResourceGroup, Integer>();
+
+	private final Map<String, Long> lastChanges = new ConcurrentHashMap<String, Long>();
+
+	private final SeleniumResourceChangeFeed changeFeed = new SeleniumResourceChangeFeed(DEFAULT_CHANGE_FEED_CAPACITY);
+
+	private final Map<ResourceGroup, AtomicLong> groupVersions = new ConcurrentHashMap<ResourceGroup, AtomicLong>();
+
+	private final Map<ResourceGroup, SeleniumStateCounters> groupCounters;
+
+	private final SeleniumStateCounters fleetCounters = new SeleniumStateCounters(null);
+
+	/* distinguishes version counters of different runs of the Cloud Manager */
+	private final String versionPrefix = Long.toString(System.currentTimeMillis(), 36);
+
+	private volatile long lastMembershipChange;
+
+	SeleniumResourceRegistry() {
+		groupCounters = new ConcurrentHashMap<ResourceGroup, SeleniumStateCounters>();
+	}
+
+	void register(SeleniumResourceImpl resource, SeleniumResourceGroup group) {
+		String url = resource.getOriginalUrl();
+		Integer groupId = getGroupId(group);
+		Entry old = resourcesByUrl.put(url, new Entry(resource, group, groupId));
+		if (old != null && old.resource != resource) {
+			old.resource.setStateCounters(null);
+		}
+		resource.setStateCounters(getOrCreateStateCounters(group));
+		if (old != null && old.resource == resource) {
+			// registered again, e.g. when its group is added to the resource group manager
+			if (!isSameGroupId(old.groupId, groupId)) {
+				changeFeed.append(EventType.REMOVED, url, old.groupId, resource.getState(), null);
+				lastMembershipChange = changeFeed.append(EventType.ADDED, url, groupId, null, resource.getState());
+			}
+			return;
+		}
+		if (old != null) {
+			old.resource.removeResourceListener(this);
+			if (!isSameGroupId(old.groupId, groupId)) {
+				// consumers of the old group must learn that the resource has left it
+				changeFeed.append(EventType.REMOVED, url, old.groupId, old.resource.getState(), null);
+			}
+		}
+		resourcesByDisplayKey.put(resource.toString(), resource);
+		resource.addResourceListener(this);
+		lastMembershipChange = changeFeed.append(EventType.ADDED, url, groupId, null, resource.getState());
+		if (old != null) {
+			incrementGroupVersion(old.group);
+		}
+		incrementGroupVersion(group);
+	}
+
+	void unregister(SeleniumResourceImpl resource) {
+		Entry entry = resourcesByUrl.get(resource.getOriginalUrl());
+		// the resource could have been replaced by an equal resource in the meantime
+		if (entry != null && entry.resource == resource) {
+			resourcesByUrl.remove(resource.getOriginalUrl());
+			resourcesByDisplayKey.remove(resource.toString());
+			lastChanges.remove(resource.getOriginalUrl());
+			resource.removeResourceListener(this);
+			resource.setStateCounters(null);
+			lastMembershipChange = changeFeed.append(EventType.REMOVED, resource.getOriginalUrl(), entry.groupId,
+					resource.getState(), null);
+			incrementGroupVersion(entry.group);
+		}
+	}
+
+	/**
+	 * Notifies the registry about a change of a Selenium resource which is not a state change, e.g. a switch of maintenance
+	 * mode or a new Selenium session.
+	 * 
+	 * @param resource
+	 *            Selenium resource which has changed.
+	 */
+	void resourceModified(SeleniumResourceImpl resource) {
+		Entry entry = resourcesByUrl.get(resource.getOriginalUrl());
+		if (entry != null && entry.resource == resource) {
+			incrementGroupVersion(entry.group);
+		}
+	}
+
+	@Override
+	public void resourceStateChanged(Resource resource, ResourceState previousState, ResourceState newState) {
+		if (resource instanceof SeleniumResourceImpl) {
+			String url = ((SeleniumResourceImpl) resource).getOriginalUrl();
+			Entry entry = resourcesByUrl.get(url);
+			Integer groupId = entry == null ? null : entry.groupId;
+			lastChanges.put(url, Long.valueOf(changeFeed.append(EventType.STATE, url, groupId, previousState, newState)));
+			if (entry != null) {
+				incrementGroupVersion(entry.group);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current value of the global change sequence. Every state change of a registered resource, and every
+	 * registration or removal of a resource, increases the sequence.
+	 * 
+	 * @return The current value of the global change sequence.
+	 */
+	public long getChangeSequence() {
+		return changeFeed.getSequence();
+	}
+
+	/**
+	 * Returns the feed of all state transitions, registrations and removals of Selenium resources.
+	 * 
+	 * @return The feed of all state transitions, registrations and removals of Selenium resources.
+	 */
+	public SeleniumResourceChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * Returns the value of the global change sequence at the last state change of the Selenium resource with the given URL.
+	 * 
+	 * @param url
+	 *            Original URL of the Selenium resource.
+	 * @return The sequence value of the last state change of the resource, or 0 if its state has not changed since
+	 *         registration.
+	 */
+	public long getLastChange(String url) {
+		Long seq = url == null ? null : lastChanges.get(url);
+		return seq == null ? 0 : seq.longValue();
+	}
+
+	/**
+	 * Returns the value of the global change sequence when a resource was last registered or removed.
+	 * 
+	 * @return The sequence value of the last registration or removal of a resource.
+	 */
+	public long getLastMembershipChange() {
+		return lastMembershipChange;
+	}
+
+	/**
+	 * Returns an opaque tag for the current version of the given resource group. The tag changes whenever a resource is added
+	 * to or removed from the group, or one of its resources changes its state or maintenance mode, or starts a new Selenium
+	 * session. Idle times are not covered by the version.
+	 * 
+	 * @param group
+	 *            Resource group to return the version tag for.
+	 * @return An opaque tag for the current version of the resource group, never <code>null</code>.
+	 */
+	public String getGroupVersionTag(ResourceGroup group) {
+		AtomicLong version = groupVersions.get(group);
+		return versionPrefix + "-" + (version == null ? 0 : version.get());
+	}
+
+	void groupAdded(SeleniumResourceGroup group) {
+		for (ResourceStateHolder rsh : group.getResourceCollection()) {
+			if (rsh instanceof SeleniumResourceImpl) {
+				register((SeleniumResourceImpl) rsh, group);
+			}
+		}
+		refreshGroupIds();
+	}
+
+	void groupRemoved(SeleniumResourceGroup group) {
+		for (Entry entry : resourcesByUrl.values()) {
+			if (entry.group == group) {
+				unregister(entry.resource);
+			}
+		}
+		groupIds.remove(group);
+		groupVersions.remove(group);
+		groupCounters.remove(group);
+	}
+
+	/**
+	 * Returns the number of Selenium resources per state in the given resource group.
+	 * 
+	 * @param group
+	 *            Resource group.
+	 * @return The number of Selenium resources per state in the given resource group, or <code>null</code> if no Selenium
+	 *         resource has been registered for this group yet.
+	 */
+	public SeleniumStateCounters getStateCounters(ResourceGroup group) {
+		return group == null ? null : groupCounters.get(group);
+	}
+
+	/**
+	 * Returns the number of Selenium resources per state in the resource group with the given ID.
+	 * 
+	 * @param groupId
+	 *            ID of the resource group.
+	 * @return The number of Selenium resources per state in the resource group, or <code>null</code> if there is no such
+	 *         Selenium resource group or no Selenium resource has been registered for it yet.
+	 */
+	public SeleniumStateCounters getStateCounters(int groupId) {
+		CloudManagerApp app = CloudManagerApp.getInstance();
+		ResourceGroupManager manager = app == null ? null : app.getResourceGroupManager();
+		return manager == null ? null : getStateCounters(manager.getResourceGroup(groupId));
+	}
+
+	/**
+	 * Returns the number of Selenium resources per state for every Selenium resource group, by group ID.
+	 * 
+	 * @return The number of Selenium resources per state for every Selenium resource group, sorted by group ID.
+	 */
+	public Map<Integer, SeleniumStateCounters> getStateCountersByGroupId() {
+		Map<Integer, SeleniumStateCounters> result = new TreeMap<Integer, SeleniumStateCounters>();
+		for (Map.Entry<ResourceGroup, SeleniumStateCounters> entry : groupCounters.entrySet()) {
+			Integer groupId = getGroupId(entry.getKey());
+			if (groupId != null) {
+				result.put(groupId, entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of Selenium resources per state in all Selenium resource groups.
+	 * 
+	 * @return The number of Selenium resources per state in all Selenium resource groups.
+	 */
+	public SeleniumStateCounters getFleetStateCounters() {
+		return fleetCounters;
+	}
+
+	/**
+	 * Returns the Selenium resource with the given original URL, if any.
+	 * 
+	 * @param url
+	 *            Original URL of the Selenium resource.
+	 * @return The Selenium resource with the given URL, or <code>null</code> if no resource group contains such a resource.
+	 */
+	public SeleniumResourceImpl getResourceByUrl(String url) {
+		Entry entry = url == null ? null : resourcesByUrl.get(url);
+		return entry == null ? null : entry.resource;
+	}
+
+	/**
+	 * Returns the Selenium resource with the given display key, i.e. the <code>toString()</code> representation of the
+	 * resource, if any.
+	 * 
+	 * @param displayKey
+	 *            Display key of the Selenium resource.
+	 * @return The Selenium resource with the given display key, or <code>null</code> if no resource group contains such a
+	 *         resource.
+	 */
+	public SeleniumResourceImpl getResourceByDisplayKey(String displayKey) {
+		return displayKey == null ? null : resourcesByDisplayKey.get(displayKey);
+	}
+
+	/**
+	 * Returns the ID of the resource group containing the Selenium resource with the given original URL.
+	 * 
+	 * @param url
+	 *            Original URL of the Selenium resource.
+	 * @return The ID of the resource group containing the resource, or <code>null</code> if no resource group contains such a
+	 *         resource.
+	 */
+	public Integer getGroupId(String url) {
+		Entry entry = url == null ? null : resourcesByUrl.get(url);
+		return entry == null ? null : getGroupId(entry.group);
+	}
+
+	/**
+	 * Returns a map from the original URLs of all Selenium resources to the IDs of the resource groups containing them.
+	 * 
+	 * @return A map from the original URLs of all Selenium resources to the IDs of their resource groups.
+	 */
+	public Map<String, Integer> getGroupIdsByUrl() {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (Map.Entry<String, Entry> entry : resourcesByUrl.entrySet()) {
+			Integer groupId = getGroupId(entry.getValue().group);
+			if (groupId != null) {
+				result.put(entry.getKey(), groupId);
+			}
+		}
+		return result;
+	}
+
+	public int getResourceCount() {
+		return resourcesByUrl.size();
+	}
+
+	private SeleniumStateCounters getOrCreateStateCounters(ResourceGroup group) {
+		SeleniumStateCounters counters = groupCounters.get(group);
+		if (counters == null) {
+			synchronized (groupCounters) {
+				counters = groupCounters.get(group);
+				if (counters == null) {
+					counters = new SeleniumStateCounters(fleetCounters);
+					groupCounters.put(group, counters);
+				}
+			}
+		}
+		return counters;
+	}
+
+	private void incrementGroupVersion(ResourceGroup group) {
+		AtomicLong version = groupVersions.get(group);
+		if (version == null) {
+			synchronized (groupVersions) {
+				version = groupVersions.get(group);
+				if (version == null) {
+					version = new AtomicLong();
+					groupVersions.put(group, version);
+				}
+			}
+		}
+		version.incrementAndGet();
+	}
+
+	private Integer getGroupId(ResourceGroup group) {
+		Integer groupId = groupIds.get(group);
+		if (groupId == null) {
+			// group may not have been known to the resource group manager at last refresh
+			refreshGroupIds();
+			groupId = groupIds.get(group);
+		}
+		return groupId;
+	}
+
+	private static boolean isSameGroupId(Integer groupId1, Integer groupId2) {
+		return groupId1 == null ? groupId2 == null : groupId1.equals(groupId2);
+	}
+
+	private void refreshGroupIds() {
+		CloudManagerApp app = CloudManagerApp.getInstance();
+		ResourceGroupManager manager = app == null ? null : app.getResourceGroupManager();
+		if (manager == null) {
+			return;
+		}
+		for (int groupId : manager.getAllResourceGroupIds()) {
+			ResourceGroup group = manager.getResourceGroup(groupId);
+			if (group instanceof SeleniumResourceGroup) {
+				groupIds.put(group, Integer.valueOf(groupId));
+			}
+		}
+	}
+
+	private static final class Entry {
+
+		private final SeleniumResourceImpl resource;
+
+		private final SeleniumResourceGroup group;
+
+		/* group ID at registration, recorded in the events of the change feed */
+		private final Integer groupId;
+
+		private Entry(SeleniumResourceImpl resource, SeleniumResourceGroup group, Integer groupId) {
+			this.resource = resource;
+			this.group = group;
+			this.groupId = groupId;
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.aludratest.cloud.resource.ResourceState;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Snapshot of the runtime state of all Selenium resources, used to warm-restart the Selenium module. The snapshot contains the
+ * resource state, maintenance mode, last usage time and the active Selenium session of each resource.
+ * 
+ */
+final class SeleniumResourceSnapshot implements Serializable {
+
+	private static final long serialVersionUID = -3202417939914283154L;
+
+	private final long timestamp;
+
+	private final List<Entry> entries;
+
+	SeleniumResourceSnapshot(long timestamp, List<Entry> entries) {
+		this.timestamp = timestamp;
+		this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Writes this snapshot to the given file. The snapshot is written to a temporary file first, which then replaces the given
+	 * file, so a crash while writing never leaves a corrupt snapshot.
+	 * 
+	 * @param file
+	 *            File to write the snapshot to.
+	 * 
+	 * @throws IOException
+	 *             If the snapshot could not be written.
+	 */
+	void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+
+		File tempFile = new File(file.getAbsolutePath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeObject(this);
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+		}
+
+		if (!tempFile.renameTo(file)) {
+			// e.g. on Windows, rename does not replace existing files
+			if (!file.delete() || !tempFile.renameTo(file)) {
+				throw new IOException("Could not replace snapshot file " + file);
+			}
+		}
+	}
+
+	/**
+	 * Reads a snapshot from the given file.
+	 * 
+	 * @param file
+	 *            File to read the snapshot from.
+	 * 
+	 * @return The snapshot, or <code>null</code> if the file does not exist.
+	 * 
+	 * @throws IOException
+	 *             If the file exists, but the snapshot could not be read.
+	 */
+	static SeleniumResourceSnapshot read(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			return (SeleniumResourceSnapshot) in.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Invalid snapshot file " + file, e);
+		}
+		catch (ClassCastException e) {
+			throw new IOException("Invalid snapshot file " + file, e);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Snapshot of a single Selenium resource.
+	 */
+	static final class Entry implements Serializable {
+
+		private static final long serialVersionUID = 5736208447652718843L;
+
+		private final String originalUrl;
+
+		private final ResourceState state;
+
+		private final boolean maintenanceMode;
+
+		private final long lastUsedTime;
+
+		private final String seleniumSessionId;
+
+		private final boolean selenium1;
+
+		Entry(String originalUrl, ResourceState state, boolean maintenanceMode, long lastUsedTime, String seleniumSessionId,
+				boolean selenium1) {
+			this.originalUrl = originalUrl;
+			this.state = state;
+			this.maintenanceMode = maintenanceMode;
+			this.lastUsedTime = lastUsedTime;
+			this.seleniumSessionId = seleniumSessionId;
+			this.selenium1 = selenium1;
+		}
+
+		public String getOriginalUrl() {
+			return originalUrl;
+		}
+
+		public ResourceState getState() {
+			return state;
+		}
+
+		public boolean isMaintenanceMode() {
+			return maintenanceMode;
+		}
+
+		public long getLastUsedTime() {
+			return lastUsedTime;
+		}
+
+		public String getSeleniumSessionId() {
+			return seleniumSessionId;
+		}
+
+		public boolean isSelenium1() {
+			return selenium1;
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.aludratest.cloud.selenium.util.CompressingHttpServletResponse;
+import org.aludratest.cloud.selenium.util.CompressionStatistics;
+import org.aludratest.cloud.selenium.util.DeflaterPool;
+
+/**
+ * Settings and shared resources for compressing the responses of the Selenium proxies to test clients. Compression is used
+ * only if enabled, and if the client accepts GZIP or deflate encoding.
+ * 
+ */
+final class SeleniumResponseCompression {
+
+	private static final int MAX_POOLED_DEFLATERS = 64;
+
+	private volatile boolean enabled;
+
+	private volatile int threshold;
+
+	private volatile DeflaterPool gzipPool;
+
+	private volatile DeflaterPool deflatePool;
+
+	public SeleniumResponseCompression(boolean enabled, int threshold, int level) {
+		reconfigure(enabled, threshold, level);
+	}
+
+	public synchronized void reconfigure(boolean enabled, int threshold, int level) {
+		this.enabled = enabled;
+		this.threshold = threshold;
+		if (gzipPool == null || gzipPool.getLevel() != level) {
+			DeflaterPool oldGzipPool = gzipPool;
+			DeflaterPool oldDeflatePool = deflatePool;
+			gzipPool = new DeflaterPool(level, true, MAX_POOLED_DEFLATERS);
+			deflatePool = new DeflaterPool(level, false, MAX_POOLED_DEFLATERS);
+			if (oldGzipPool != null) {
+				oldGzipPool.clear();
+				oldDeflatePool.clear();
+			}
+		}
+	}
+
+	/**
+	 * Wraps the given response for compression, if compression is enabled and accepted by the client.
+	 * 
+	 * @param request
+	 *            Request of the client.
+	 * @param response
+	 *            Response to wrap.
+	 * @param statistics
+	 *            Statistics to record compressed responses in.
+	 * @return The compressing response wrapper, or <code>null</code> if the response shall not be compressed.
+	 */
+	public CompressingHttpServletResponse wrap(HttpServletRequest request, HttpServletResponse response,
+			CompressionStatistics statistics) {
+		if (!enabled) {
+			return null;
+		}
+		String encoding = CompressingHttpServletResponse.selectEncoding(request);
+		if (encoding == null) {
+			return null;
+		}
+
+		DeflaterPool pool = CompressingHttpServletResponse.ENCODING_GZIP.equals(encoding) ? gzipPool : deflatePool;
+		return new CompressingHttpServletResponse(response, encoding, threshold, pool, statistics);
+	}
+
+	public void shutdown() {
+		gzipPool.clear();
+		deflatePool.clear();
+	}
+
+}
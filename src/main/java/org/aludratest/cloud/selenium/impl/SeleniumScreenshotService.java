@@ -0,0 +1,659 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.aludratest.cloud.selenium.SeleniumResource;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures screenshots of Selenium clients in the background and keeps downscaled thumbnails of them in a cache, so the user
+ * interface can display them without waiting for the Selenium client. If a WebDriver session is active on the client, the
+ * screenshot is taken via the WebDriver <code>/screenshot</code> command of this session; otherwise, the Selenium RC command
+ * <code>captureScreenshotToString</code> is used. <br>
+ * The Base64 encoded image is decoded while it is received, and directly read with subsampling to the thumbnail size, so the
+ * full size image is never held in memory. Thumbnails expire after a configurable time, and the cache is limited to a
+ * configurable number of bytes, evicting the least recently used thumbnails first. <br>
+ * Captures run on a bounded number of threads, and each capture can be given a deadline after which its connection to the
+ * Selenium client is aborted. This allows capturing the screenshots of a whole resource group at once, reporting each
+ * screenshot to a {@link CaptureListener} as soon as it is available.
+ * 
+ */
+public final class SeleniumScreenshotService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumScreenshotService.class);
+
+	private static final String CONTENT_TYPE = "image/jpeg";
+
+	private final ThreadPoolExecutor executor;
+
+	private final ScheduledExecutorService deadlineExecutor;
+
+	private final CloseableHttpClient client;
+
+	private final SeleniumTimeoutPolicy timeoutPolicy;
+
+	private final LinkedHashMap<String, Screenshot> cache = new LinkedHashMap<String, Screenshot>(16, 0.75f, true);
+
+	private final Map<String, CaptureTask> pendingCaptures = new HashMap<String, CaptureTask>();
+
+	private long cacheBytes;
+
+	private long ttlMillis;
+
+	private long maxCacheBytes;
+
+	private int maxWidth;
+
+	private long groupTimeoutMillis;
+
+	private AtomicLong captureCount = new AtomicLong();
+
+	private AtomicLong failedCaptureCount = new AtomicLong();
+
+	private AtomicLong evictionCount = new AtomicLong();
+
+	SeleniumScreenshotService(long ttlMillis, long maxCacheBytes, int maxWidth, int concurrency, long groupTimeoutMillis,
+			SeleniumTlsSupport tlsSupport, SeleniumDnsCache dnsCache, SeleniumTimeoutPolicy timeoutPolicy,
+			SeleniumUpstreamRouting.RoutePlanner routePlanner) {
+		this.timeoutPolicy = timeoutPolicy;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		concurrency = Math.max(1, concurrency);
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r);
+						thread.setName("Selenium Screenshot " + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+
+		deadlineExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setName("Selenium Screenshot Deadline");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// pooled, so repeated captures of the same client reuse their connection. The connection limit is no bottleneck, as
+		// the number of capture threads bounds the parallel requests anyway. Captures use the upstream proxy like forwarded requests.
+		client = HttpClients.custom()
+				.setConnectionManager(dnsCache.createConnectionManager(tlsSupport.getSocketFactory(), 1000, 2))
+				.setRoutePlanner(routePlanner).build();
+
+		reconfigure(ttlMillis, maxCacheBytes, maxWidth, concurrency, groupTimeoutMillis);
+	}
+
+	synchronized void reconfigure(long ttlMillis, long maxCacheBytes, int maxWidth, int concurrency, long groupTimeoutMillis) {
+		this.ttlMillis = Math.max(0, ttlMillis);
+		this.maxCacheBytes = Math.max(0, maxCacheBytes);
+		this.maxWidth = Math.max(16, maxWidth);
+		this.groupTimeoutMillis = Math.max(1000, groupTimeoutMillis);
+		concurrency = Math.max(1, concurrency);
+		// order of calls matters, as the core pool size must never exceed the maximum pool size
+		if (concurrency > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(concurrency);
+			executor.setCorePoolSize(concurrency);
+		}
+		else {
+			executor.setCorePoolSize(concurrency);
+			executor.setMaximumPoolSize(concurrency);
+		}
+		evict(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the cached screenshot of the given Selenium resource, if it has not yet expired.
+	 * 
+	 * @param resource
+	 *            Selenium resource to return the screenshot of.
+	 * @return The cached screenshot of the resource, or <code>null</code> if no current screenshot is cached.
+	 */
+	public Screenshot getScreenshot(SeleniumResource resource) {
+		return getScreenshot(resource.getOriginalUrl());
+	}
+
+	/**
+	 * Returns the cached screenshot of the Selenium resource with the given URL, if it has not yet expired.
+	 * 
+	 * @param url
+	 *            Original URL of the Selenium resource to return the screenshot of.
+	 * @return The cached screenshot of the resource, or <code>null</code> if no current screenshot is cached.
+	 */
+	public synchronized Screenshot getScreenshot(String url) {
+		Screenshot screenshot = cache.get(url);
+		if (screenshot != null && isExpired(screenshot, System.currentTimeMillis())) {
+			remove(url);
+			return null;
+		}
+		return screenshot;
+	}
+
+	/**
+	 * Requests a new screenshot of the given Selenium resource, unless a current screenshot is cached or a capture is already
+	 * in progress. The screenshot is captured in the background; use {@link #getScreenshot(SeleniumResource)} to retrieve it
+	 * when {@link #isCapturePending(SeleniumResource)} returns <code>false</code>.
+	 * 
+	 * @param resource
+	 *            Selenium resource to capture a screenshot of.
+	 * @param force
+	 *            If <code>true</code>, a new screenshot is captured even if a current one is cached.
+	 */
+	public void requestScreenshot(SeleniumResource resource, boolean force) {
+		requestScreenshot(resource, force, timeoutPolicy.getReadTimeoutMillis(SeleniumCommandClass.SCREENSHOT), null);
+	}
+
+	/**
+	 * Requests a new screenshot of the given Selenium resource, unless a current screenshot is cached. If a capture of the
+	 * resource is already in progress, no new capture is started, but the given listener is notified when that capture
+	 * finishes. Otherwise, a capture is queued which is aborted if it does not finish within the given time after it has been
+	 * started.
+	 * 
+	 * @param resource
+	 *            Selenium resource to capture a screenshot of.
+	 * @param force
+	 *            If <code>true</code>, a new screenshot is captured even if a current one is cached.
+	 * @param timeoutMillis
+	 *            Maximum time for the capture, in milliseconds.
+	 * @param listener
+	 *            Listener to notify about the screenshot, or <code>null</code>. If a current screenshot is cached, the listener
+	 *            is notified immediately in the calling thread.
+	 */
+	public void requestScreenshot(SeleniumResource resource, boolean force, long timeoutMillis, CaptureListener listener) {
+		if (!(resource instanceof SeleniumResourceImpl)) {
+			if (listener != null) {
+				listener.screenshotFailed(resource, "Not a Selenium resource of this module");
+			}
+			return;
+		}
+
+		String url = resource.getOriginalUrl();
+		Screenshot cached = null;
+		synchronized (this) {
+			CaptureTask task = pendingCaptures.get(url);
+			if (task != null) {
+				task.addListener(listener);
+				return;
+			}
+			cached = force ? null : getScreenshot(url);
+			if (cached == null) {
+				task = new CaptureTask((SeleniumResourceImpl) resource, timeoutMillis);
+				task.addListener(listener);
+				pendingCaptures.put(url, task);
+				executor.execute(task);
+				return;
+			}
+		}
+
+		if (listener != null) {
+			listener.screenshotCaptured(resource, cached);
+		}
+	}
+
+	/**
+	 * Requests screenshots of all given Selenium resources. Resources with a current screenshot in the cache are reported
+	 * immediately, unless <code>force</code> is <code>true</code>. All other screenshots are captured in parallel, limited by
+	 * the configured number of capture threads, and are reported to the listener as soon as each of them is available.
+	 * 
+	 * @param resources
+	 *            Selenium resources to capture screenshots of.
+	 * @param force
+	 *            If <code>true</code>, new screenshots are captured even if current ones are cached.
+	 * @param timeoutMillis
+	 *            Maximum time for each single capture, in milliseconds.
+	 * @param listener
+	 *            Listener to notify about each screenshot, or <code>null</code>.
+	 */
+	public void requestScreenshots(List<? extends SeleniumResource> resources, boolean force, long timeoutMillis,
+			CaptureListener listener) {
+		for (SeleniumResource resource : resources) {
+			requestScreenshot(resource, force, timeoutMillis, listener);
+		}
+	}
+
+	public boolean isCapturePending(SeleniumResource resource) {
+		return isCapturePending(resource.getOriginalUrl());
+	}
+
+	public synchronized boolean isCapturePending(String url) {
+		return pendingCaptures.containsKey(url);
+	}
+
+	/**
+	 * Returns the maximum number of screenshots captured in parallel.
+	 * 
+	 * @return The maximum number of screenshots captured in parallel.
+	 */
+	public int getConcurrency() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Returns the default maximum time for a single capture when capturing the screenshots of a whole resource group.
+	 * 
+	 * @return The default maximum time for a single capture in group views, in milliseconds.
+	 */
+	public synchronized long getGroupTimeoutMillis() {
+		return groupTimeoutMillis;
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		deadlineExecutor.shutdownNow();
+		IOUtils.closeQuietly(client);
+	}
+
+	long getCaptureCount() {
+		return captureCount.get();
+	}
+
+	long getFailedCaptureCount() {
+		return failedCaptureCount.get();
+	}
+
+	long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	synchronized long getCacheBytes() {
+		return cacheBytes;
+	}
+
+	synchronized int getCacheSize() {
+		return cache.size();
+	}
+
+	private synchronized void captured(String url, Screenshot screenshot) {
+		if (screenshot == null) {
+			failedCaptureCount.incrementAndGet();
+			return;
+		}
+
+		captureCount.incrementAndGet();
+		remove(url);
+		if (screenshot.getImageData().length > maxCacheBytes) {
+			return;
+		}
+		cache.put(url, screenshot);
+		cacheBytes += screenshot.getImageData().length;
+		evict(System.currentTimeMillis());
+	}
+
+	private void evict(long now) {
+		Iterator<Map.Entry<String, Screenshot>> iter = cache.entrySet().iterator();
+		while (iter.hasNext()) {
+			Screenshot screenshot = iter.next().getValue();
+			// iteration order is least recently used first
+			if (cacheBytes > maxCacheBytes || isExpired(screenshot, now)) {
+				iter.remove();
+				cacheBytes -= screenshot.getImageData().length;
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	private void remove(String url) {
+		Screenshot old = cache.remove(url);
+		if (old != null) {
+			cacheBytes -= old.getImageData().length;
+		}
+	}
+
+	private boolean isExpired(Screenshot screenshot, long now) {
+		return now - screenshot.getTimestamp() > ttlMillis;
+	}
+
+	private Screenshot capture(SeleniumResourceImpl resource, long timeoutMillis) throws IOException {
+		String url = resource.getOriginalUrl();
+		SeleniumHttpProxy proxy = resource.getProxy();
+		String sessionId = proxy == null ? null : proxy.getSeleniumSessionId();
+		boolean webDriver = sessionId != null && !proxy.isSelenium1();
+
+		final HttpGet request = new HttpGet(webDriver ? url + "/wd/hub/session/" + sessionId + "/screenshot" : url
+				+ "/selenium-server/driver/?cmd=captureScreenshotToString");
+		long readTimeout = Math.min(timeoutMillis, timeoutPolicy.getReadTimeoutMillis(SeleniumCommandClass.SCREENSHOT));
+		request.setConfig(RequestConfig.custom().setConnectTimeout((int) timeoutMillis).setSocketTimeout((int) readTimeout)
+				.build());
+
+		// socket timeouts apply to each single read only, so slowly sending clients are aborted explicitly
+		ScheduledFuture<?> deadline = deadlineExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				request.abort();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		try {
+			return capture(request, webDriver);
+		}
+		catch (IOException e) {
+			if (request.isAborted()) {
+				throw new IOException("Deadline of " + timeoutMillis + " ms exceeded");
+			}
+			throw e;
+		}
+		finally {
+			deadline.cancel(false);
+		}
+	}
+
+	private Screenshot capture(HttpGet request, boolean webDriver) throws IOException {
+		CloseableHttpResponse response = client.execute(request);
+		InputStream in = null;
+		try {
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || response.getEntity() == null) {
+				throw new IOException("Unexpected HTTP status " + response.getStatusLine().getStatusCode());
+			}
+			in = response.getEntity().getContent();
+			if (webDriver) {
+				in = new JsonStringValueInputStream(in, "value");
+			}
+			else {
+				// read away "OK,"
+				if (in.read() != 'O' || in.read() != 'K' || in.read() != ',') {
+					throw new IOException("Unexpected response of captureScreenshotToString");
+				}
+			}
+
+			BufferedImage thumbnail = readThumbnail(new Base64InputStream(in));
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			ImageIO.write(thumbnail, "jpg", buf);
+			return new Screenshot(buf.toByteArray(), CONTENT_TYPE, System.currentTimeMillis());
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(response);
+		}
+	}
+
+	private BufferedImage readThumbnail(InputStream imageData) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(imageData);
+		if (iis == null) {
+			throw new IOException("Cannot read screenshot image");
+		}
+		ImageReader reader = null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported screenshot image format");
+			}
+			reader = readers.next();
+			reader.setInput(iis, true, true);
+
+			// subsampling while decoding is much faster than scaling the full size image afterwards
+			int width = reader.getWidth(0);
+			int factor = Math.max(1, (width + maxWidth - 1) / maxWidth);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(factor, factor, 0, 0);
+			BufferedImage image = reader.read(0, param);
+
+			// JPEG does not support alpha channels
+			if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+				return image;
+			}
+			BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2d = rgb.createGraphics();
+			g2d.drawImage(image, 0, 0, null);
+			g2d.dispose();
+			return rgb;
+		}
+		finally {
+			if (reader != null) {
+				reader.dispose();
+			}
+			iis.close();
+		}
+	}
+
+	/**
+	 * Listener which is notified when a requested screenshot is available, or could not be captured. Methods are invoked in
+	 * the capture threads, or in the requesting thread if the screenshot is taken from the cache.
+	 * 
+	 */
+	public static interface CaptureListener {
+
+		public void screenshotCaptured(SeleniumResource resource, Screenshot screenshot);
+
+		public void screenshotFailed(SeleniumResource resource, String message);
+
+	}
+
+	private final class CaptureTask implements Runnable {
+
+		private final SeleniumResourceImpl resource;
+
+		private final long timeoutMillis;
+
+		private final List<CaptureListener> listeners = new ArrayList<CaptureListener>(1);
+
+		private CaptureTask(SeleniumResourceImpl resource, long timeoutMillis) {
+			this.resource = resource;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		// only called while holding the lock of the service
+		private void addListener(CaptureListener listener) {
+			if (listener != null) {
+				listeners.add(listener);
+			}
+		}
+
+		@Override
+		public void run() {
+			String url = resource.getOriginalUrl();
+			Screenshot screenshot = null;
+			String message = null;
+			try {
+				screenshot = capture(resource, timeoutMillis);
+			}
+			catch (Throwable t) {
+				message = t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+				LOG.warn("Could not take Selenium screenshot of " + url + ": " + message);
+			}
+
+			List<CaptureListener> notify;
+			synchronized (SeleniumScreenshotService.this) {
+				pendingCaptures.remove(url);
+				captured(url, screenshot);
+				notify = new ArrayList<CaptureListener>(listeners);
+			}
+
+			for (CaptureListener listener : notify) {
+				try {
+					if (screenshot != null) {
+						listener.screenshotCaptured(resource, screenshot);
+					}
+					else {
+						listener.screenshotFailed(resource, message);
+					}
+				}
+				catch (RuntimeException e) {
+					LOG.error("Exception in screenshot capture listener", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A downscaled screenshot of a Selenium client.
+	 * 
+	 */
+	public static final class Screenshot {
+
+		private final byte[] imageData;
+
+		private final String contentType;
+
+		private final long timestamp;
+
+		private Screenshot(byte[] imageData, String contentType, long timestamp) {
+			this.imageData = imageData;
+			this.contentType = contentType;
+			this.timestamp = timestamp;
+		}
+
+		public byte[] getImageData() {
+			return imageData;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/**
+	 * Returns the contents of a string value of a JSON object, without parsing or buffering the whole JSON document. Escaped
+	 * slashes are unescaped, and escaped line breaks are skipped, which is sufficient for Base64 encoded values.
+	 */
+	private static final class JsonStringValueInputStream extends FilterInputStream {
+
+		private boolean inValue;
+
+		private boolean endOfValue;
+
+		private JsonStringValueInputStream(InputStream in, String key) throws IOException {
+			super(in);
+			skipTo("\"" + key + "\"");
+			int c = readSkippingWhitespace();
+			if (c != ':' || readSkippingWhitespace() != '"') {
+				throw new IOException("Value of " + key + " is not a string");
+			}
+			inValue = true;
+		}
+
+		private void skipTo(String marker) throws IOException {
+			int matched = 0;
+			while (matched < marker.length()) {
+				int c = in.read();
+				if (c == -1) {
+					throw new IOException("Marker " + marker + " not found in JSON response");
+				}
+				matched = c == marker.charAt(matched) ? matched + 1 : (c == marker.charAt(0) ? 1 : 0);
+			}
+		}
+
+		private int readSkippingWhitespace() throws IOException {
+			int c;
+			do {
+				c = in.read();
+			}
+			while (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+			return c;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (inValue && !endOfValue) {
+				int c = in.read();
+				if (c == -1 || c == '"') {
+					endOfValue = true;
+				}
+				else if (c == '\\') {
+					c = in.read();
+					if (c != 'n' && c != 'r') {
+						return c;
+					}
+				}
+				else {
+					return c;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int count = 0;
+			while (count < len) {
+				int c = read();
+				if (c == -1) {
+					break;
+				}
+				b[off + count++] = (byte) c;
+			}
+			return count == 0 ? -1 : count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n && read() != -1) {
+				skipped++;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+/**
+ * Lifecycle data of a single Selenium session, as observed by the Selenium HTTP Proxy. While the session is active, the record
+ * is updated by the owning proxy; once {@link #end(EndReason)} has been called, it is immutable and handed over to the
+ * {@link SeleniumSessionTracker}.
+ * 
+ */
+public final class SeleniumSessionRecord {
+
+	/**
+	 * Reasons why a Selenium session has ended.
+	 */
+	public static enum EndReason {
+		/** The client closed the session regularly. */
+		QUIT,
+		/** The session was idle for too long and has been killed by the proxy. */
+		RECLAIMED,
+		/** The session could not be created, or was lost due to an error (e.g. disconnected resource). */
+		ERROR
+	}
+
+	private final String resourceUrl;
+
+	private final boolean selenium1;
+
+	private final long startTime;
+
+	private final long timeToNewSession;
+
+	private String sessionId;
+
+	private int commandCount;
+
+	private long requestBytes;
+
+	private long responseBytes;
+
+	private long lastActivityTime;
+
+	private long totalIdleTime;
+
+	private long maxIdleGap;
+
+	private long endTime;
+
+	private EndReason endReason;
+
+	SeleniumSessionRecord(String resourceUrl, boolean selenium1, long startTime, long timeToNewSession) {
+		this.resourceUrl = resourceUrl;
+		this.selenium1 = selenium1;
+		this.startTime = startTime;
+		this.timeToNewSession = timeToNewSession;
+		this.lastActivityTime = startTime + timeToNewSession;
+	}
+
+	synchronized void bindSessionId(String sessionId) {
+		if (this.sessionId == null) {
+			this.sessionId = sessionId;
+		}
+	}
+
+	synchronized void recordCommand(long commandStartTime, long commandEndTime, long requestBytes, long responseBytes) {
+		if (endReason != null) {
+			return;
+		}
+		commandCount++;
+		this.requestBytes += requestBytes;
+		this.responseBytes += responseBytes;
+
+		long idleGap = commandStartTime - lastActivityTime;
+		if (idleGap > 0) {
+			totalIdleTime += idleGap;
+			maxIdleGap = Math.max(maxIdleGap, idleGap);
+		}
+		lastActivityTime = Math.max(lastActivityTime, commandEndTime);
+	}
+
+	/**
+	 * Marks this session as ended. Subsequent calls have no effect.
+	 * 
+	 * @param reason
+	 *            Reason why the session has ended.
+	 * 
+	 * @return <code>true</code> if this call ended the session, <code>false</code> if it had already been ended before.
+	 */
+	synchronized boolean end(EndReason reason) {
+		if (endReason != null) {
+			return false;
+		}
+		endReason = reason;
+		endTime = System.currentTimeMillis();
+		return true;
+	}
+
+	public String getResourceUrl() {
+		return resourceUrl;
+	}
+
+	public synchronized String getSessionId() {
+		return sessionId;
+	}
+
+	public boolean isSelenium1() {
+		return selenium1;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the time between the new session request and its response, in milliseconds. This is mostly the browser startup
+	 * time on the node.
+	 * 
+	 * @return The time between the new session request and its response, in milliseconds.
+	 */
+	public long getTimeToNewSession() {
+		return timeToNewSession;
+	}
+
+	/**
+	 * Returns the total duration of the session, in milliseconds, including the time to create the session. For active
+	 * sessions, this is the duration up to now.
+	 * 
+	 * @return The total duration of the session, in milliseconds.
+	 */
+	public synchronized long getDuration() {
+		return (endReason == null ? System.currentTimeMillis() : endTime) - startTime;
+	}
+
+	public synchronized int getCommandCount() {
+		return commandCount;
+	}
+
+	public synchronized long getRequestBytes() {
+		return requestBytes;
+	}
+
+	public synchronized long getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * Returns the accumulated time, in milliseconds, during which the session had no command in progress.
+	 * 
+	 * @return The accumulated idle time of the session, in milliseconds.
+	 */
+	public synchronized long getTotalIdleTime() {
+		return totalIdleTime;
+	}
+
+	/**
+	 * Returns the longest time, in milliseconds, between the end of a command (or session creation) and the start of the next
+	 * command.
+	 * 
+	 * @return The longest idle gap of the session, in milliseconds.
+	 */
+	public synchronized long getMaxIdleGap() {
+		return maxIdleGap;
+	}
+
+	public synchronized long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Returns the reason why this session has ended, or <code>null</code> if the session is still active.
+	 * 
+	 * @return The reason why this session has ended, or <code>null</code> if the session is still active.
+	 */
+	public synchronized EndReason getEndReason() {
+		return endReason;
+	}
+
+	@Override
+	public String toString() {
+		return "Selenium session " + getSessionId() + " @ " + resourceUrl;
+	}
+
+}
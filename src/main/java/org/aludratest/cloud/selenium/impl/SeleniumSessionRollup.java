@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import org.aludratest.cloud.selenium.impl.SeleniumSessionRecord.EndReason;
+
+/**
+ * Aggregated session statistics for a resource or a resource group, built from a set of ended Selenium sessions. Instances of
+ * this class are immutable once they have been published by the {@link SeleniumSessionTracker}.
+ * 
+ */
+public final class SeleniumSessionRollup {
+
+	private int sessionCount;
+
+	private int quitCount;
+
+	private int reclaimedCount;
+
+	private int errorCount;
+
+	private long totalTimeToNewSession;
+
+	private long maxTimeToNewSession;
+
+	private long totalDuration;
+
+	private long maxDuration;
+
+	private long commandCount;
+
+	private long requestBytes;
+
+	private long responseBytes;
+
+	private long totalIdleTime;
+
+	private long maxIdleGap;
+
+	SeleniumSessionRollup() {
+	}
+
+	void add(SeleniumSessionRecord record) {
+		sessionCount++;
+		EndReason reason = record.getEndReason();
+		if (reason == EndReason.QUIT) {
+			quitCount++;
+		}
+		else if (reason == EndReason.RECLAIMED) {
+			reclaimedCount++;
+		}
+		else {
+			errorCount++;
+		}
+
+		totalTimeToNewSession += record.getTimeToNewSession();
+		maxTimeToNewSession = Math.max(maxTimeToNewSession, record.getTimeToNewSession());
+		totalDuration += record.getDuration();
+		maxDuration = Math.max(maxDuration, record.getDuration());
+		commandCount += record.getCommandCount();
+		requestBytes += record.getRequestBytes();
+		responseBytes += record.getResponseBytes();
+		totalIdleTime += record.getTotalIdleTime();
+		maxIdleGap = Math.max(maxIdleGap, record.getMaxIdleGap());
+	}
+
+	public int getSessionCount() {
+		return sessionCount;
+	}
+
+	public int getQuitCount() {
+		return quitCount;
+	}
+
+	public int getReclaimedCount() {
+		return reclaimedCount;
+	}
+
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	public long getAverageTimeToNewSession() {
+		return sessionCount == 0 ? 0 : totalTimeToNewSession / sessionCount;
+	}
+
+	public long getMaxTimeToNewSession() {
+		return maxTimeToNewSession;
+	}
+
+	public long getAverageDuration() {
+		return sessionCount == 0 ? 0 : totalDuration / sessionCount;
+	}
+
+	public long getMaxDuration() {
+		return maxDuration;
+	}
+
+	public long getCommandCount() {
+		return commandCount;
+	}
+
+	public long getAverageCommandsPerSession() {
+		return sessionCount == 0 ? 0 : commandCount / sessionCount;
+	}
+
+	public long getRequestBytes() {
+		return requestBytes;
+	}
+
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * Returns the share of session time during which no command was in progress, in percent.
+	 * 
+	 * @return The share of session time during which no command was in progress, in percent.
+	 */
+	public int getIdlePercentage() {
+		return totalDuration == 0 ? 0 : (int) (totalIdleTime * 100 / totalDuration);
+	}
+
+	public long getMaxIdleGap() {
+		return maxIdleGap;
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the most recently ended Selenium sessions in a bounded in-memory ring, and periodically aggregates them to rollups per
+ * resource and per resource group. The rollups always reflect the sessions currently contained in the ring.
+ * 
+ */
+public final class SeleniumSessionTracker {
+
+	private final SeleniumSessionRecord[] ring;
+
+	private int nextIndex;
+
+	private long totalSessionCount;
+
+	private volatile Map<String, SeleniumSessionRollup> resourceRollups = Collections.emptyMap();
+
+	private volatile Map<Integer, SeleniumSessionRollup> groupRollups = Collections.emptyMap();
+
+	private volatile SeleniumSessionRollup totalRollup = new SeleniumSessionRollup();
+
+	SeleniumSessionTracker(int capacity) {
+		ring = new SeleniumSessionRecord[capacity];
+	}
+
+	synchronized void sessionEnded(SeleniumSessionRecord record) {
+		ring[nextIndex] = record;
+		nextIndex = (nextIndex + 1) % ring.length;
+		totalSessionCount++;
+	}
+
+	/**
+	 * Returns the ended sessions currently held by this tracker, oldest first.
+	 * 
+	 * @return The ended sessions currently held by this tracker, oldest first.
+	 */
+	public synchronized List<SeleniumSessionRecord> getRecentSessions() {
+		List<SeleniumSessionRecord> result = new ArrayList<SeleniumSessionRecord>(ring.length);
+		for (int i = 0; i < ring.length; i++) {
+			SeleniumSessionRecord record = ring[(nextIndex + i) % ring.length];
+			if (record != null) {
+				result.add(record);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total number of sessions which have ended since this tracker has been created, including those which are no
+	 * longer held in the ring.
+	 * 
+	 * @return The total number of sessions which have ended since this tracker has been created.
+	 */
+	public synchronized long getTotalSessionCount() {
+		return totalSessionCount;
+	}
+
+	/**
+	 * Returns the rollups per resource, as calculated by the last call to {@link #rollup()}. The keys are the original URLs of
+	 * the resources.
+	 * 
+	 * @return The rollups per resource, never <code>null</code>.
+	 */
+	public Map<String, SeleniumSessionRollup> getResourceRollups() {
+		return resourceRollups;
+	}
+
+	/**
+	 * Returns the rollups per resource group, as calculated by the last call to {@link #rollup()}. The keys are the IDs of the
+	 * resource groups.
+	 * 
+	 * @return The rollups per resource group, never <code>null</code>.
+	 */
+	public Map<Integer, SeleniumSessionRollup> getGroupRollups() {
+		return groupRollups;
+	}
+
+	/**
+	 * Returns the rollup over all sessions, as calculated by the last call to {@link #rollup()}.
+	 * 
+	 * @return The rollup over all sessions, never <code>null</code>.
+	 */
+	public SeleniumSessionRollup getTotalRollup() {
+		return totalRollup;
+	}
+
+	/**
+	 * Recalculates all rollups from the sessions currently held by this tracker. This is invoked periodically by the Selenium
+	 * Proxy Server.
+	 */
+	void rollup() {
+		Map<String, Integer> groupIdsByUrl = SeleniumUtil.getGroupIdsByUrl();
+
+		Map<String, SeleniumSessionRollup> newResourceRollups = new HashMap<String, SeleniumSessionRollup>();
+		Map<Integer, SeleniumSessionRollup> newGroupRollups = new HashMap<Integer, SeleniumSessionRollup>();
+		SeleniumSessionRollup newTotalRollup = new SeleniumSessionRollup();
+
+		for (SeleniumSessionRecord record : getRecentSessions()) {
+			SeleniumSessionRollup rollup = newResourceRollups.get(record.getResourceUrl());
+			if (rollup == null) {
+				newResourceRollups.put(record.getResourceUrl(), rollup = new SeleniumSessionRollup());
+			}
+			rollup.add(record);
+
+			Integer groupId = groupIdsByUrl.get(record.getResourceUrl());
+			if (groupId != null) {
+				rollup = newGroupRollups.get(groupId);
+				if (rollup == null) {
+					newGroupRollups.put(groupId, rollup = new SeleniumSessionRollup());
+				}
+				rollup.add(record);
+			}
+
+			newTotalRollup.add(record);
+		}
+
+		resourceRollups = Collections.unmodifiableMap(newResourceRollups);
+		groupRollups = Collections.unmodifiableMap(newGroupRollups);
+		totalRollup = newTotalRollup;
+	}
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aludratest.cloud.resource.ResourceState;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs the first health check of newly created Selenium proxies in parallel bursts. New proxies are collected for a short
+ * moment, then all collected nodes are probed directly with bounded concurrency and short timeouts. Until its probe has
+ * succeeded, a resource stays DISCONNECTED and is not schedulable. <br>
+ * This brings a large fleet to READY within a few seconds after startup, instead of checking each node two seconds after its
+ * registration on the small health check pool. <br>
+ * The prober can also check the reachability of Selenium URLs which are not (yet) configured as resources, e.g. before a
+ * bulk import, using the same bounded concurrency.
+ * 
+ */
+final class SeleniumStartupProber {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumStartupProber.class);
+
+	private static final long BURST_DELAY_MILLIS = 100;
+
+	private static final int PROBE_SOCKET_TIMEOUT_MILLIS = 5000;
+
+	private final Queue<SeleniumHttpProxy> pendingProxies = new ConcurrentLinkedQueue<SeleniumHttpProxy>();
+
+	private final AtomicBoolean burstScheduled = new AtomicBoolean();
+
+	private final ScheduledExecutorService coordinator;
+
+	private final ThreadPoolExecutor probeExecutor;
+
+	private final PoolingHttpClientConnectionManager probeConnectionManager;
+
+	private final CloseableHttpClient probeClient;
+
+	private volatile RequestConfig probeConfig;
+
+	private volatile int concurrency;
+
+	private boolean firstBurstDone;
+
+	private volatile String lastReport = "No probe burst performed yet";
+
+	SeleniumStartupProber(int concurrency, int connectTimeoutMillis, SeleniumTlsSupport tlsSupport, SeleniumDnsCache dnsCache,
+			SeleniumUpstreamRouting.RoutePlanner routePlanner) {
+		this.concurrency = Math.max(1, concurrency);
+		coordinator = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Selenium Probe Burst"));
+		probeExecutor = new ThreadPoolExecutor(this.concurrency, this.concurrency, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Selenium Probe"));
+		probeExecutor.allowCoreThreadTimeOut(true);
+
+		// connection pool must not limit the configured concurrency; resized in reconfigure()
+		probeConnectionManager = dnsCache.createConnectionManager(tlsSupport.getSocketFactory(), this.concurrency,
+				this.concurrency);
+		// probes use the same upstream proxy as forwarded requests, so nodes only reachable via the proxy are found
+		probeClient = HttpClients.custom().setConnectionManager(probeConnectionManager).setRoutePlanner(routePlanner).build();
+		probeConfig = createProbeConfig(connectTimeoutMillis);
+	}
+
+	/**
+	 * Updates the concurrency and connect timeout of subsequent probe bursts.
+	 * 
+	 * @param concurrency
+	 *            Maximum number of nodes to probe in parallel.
+	 * @param connectTimeoutMillis
+	 *            Connect timeout for a single probe, in milliseconds.
+	 */
+	void reconfigure(int concurrency, int connectTimeoutMillis) {
+		int newConcurrency = Math.max(1, concurrency);
+		if (newConcurrency != this.concurrency) {
+			// order matters: core size must never exceed max size
+			if (newConcurrency > this.concurrency) {
+				probeExecutor.setMaximumPoolSize(newConcurrency);
+				probeExecutor.setCorePoolSize(newConcurrency);
+			}
+			else {
+				probeExecutor.setCorePoolSize(newConcurrency);
+				probeExecutor.setMaximumPoolSize(newConcurrency);
+			}
+			// otherwise, additional probes would wait for a pooled connection and time out
+			probeConnectionManager.setMaxTotal(newConcurrency);
+			probeConnectionManager.setDefaultMaxPerRoute(newConcurrency);
+			this.concurrency = newConcurrency;
+		}
+		probeConfig = createProbeConfig(connectTimeoutMillis);
+	}
+
+	/**
+	 * Registers a new proxy for the next probe burst. The burst starts shortly after the first proxy has been enqueued, so
+	 * proxies registered in a loop are probed together.
+	 * 
+	 * @param proxy
+	 *            Proxy to probe.
+	 */
+	void enqueue(SeleniumHttpProxy proxy) {
+		pendingProxies.add(proxy);
+		if (burstScheduled.compareAndSet(false, true)) {
+			coordinator.schedule(new Runnable() {
+				@Override
+				public void run() {
+					runBurst();
+				}
+			}, BURST_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Checks the reachability of the given Selenium URLs in parallel, with the configured concurrency. A URL is reachable if
+	 * its <code>/wd/hub/status</code> returns a successful status. The probes do not affect any Selenium resource.
+	 * 
+	 * @param urls
+	 *            Selenium URLs to probe, without trailing slash.
+	 * @param timeoutMillis
+	 *            Connect and read timeout for a single probe, in milliseconds.
+	 * @return A map from all unreachable URLs to a message describing the problem. Reachable URLs are not contained.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the probes.
+	 */
+	Map<String, String> probeUrls(Collection<String> urls, int timeoutMillis) throws InterruptedException {
+		final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+		final RequestConfig config = RequestConfig.custom().setConnectTimeout(timeoutMillis)
+				.setConnectionRequestTimeout(timeoutMillis).setSocketTimeout(timeoutMillis).build();
+		final CountDownLatch latch = new CountDownLatch(urls.size());
+
+		for (final String url : urls) {
+			probeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						String failure = probeUrl(url, config);
+						if (failure != null) {
+							failures.put(url, failure);
+						}
+					}
+					catch (RuntimeException e) {
+						failures.put(url, e.getClass().getSimpleName() + ": " + e.getMessage());
+					}
+					finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		latch.await();
+		return failures;
+	}
+
+	/**
+	 * Returns a human-readable timing report of the most recent probe burst.
+	 * 
+	 * @return A human-readable timing report of the most recent probe burst.
+	 */
+	String getLastReport() {
+		return lastReport;
+	}
+
+	void shutdown() {
+		coordinator.shutdownNow();
+		probeExecutor.shutdownNow();
+		IOUtils.closeQuietly(probeClient);
+	}
+
+	private void runBurst() {
+		// allow next burst to be scheduled; proxies enqueued from now on are probed there
+		burstScheduled.set(false);
+
+		final List<SeleniumHttpProxy> proxies = new ArrayList<SeleniumHttpProxy>();
+		SeleniumHttpProxy proxy;
+		while ((proxy = pendingProxies.poll()) != null) {
+			proxies.add(proxy);
+		}
+		if (proxies.isEmpty()) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		final RequestConfig config = probeConfig;
+		final CountDownLatch latch = new CountDownLatch(proxies.size());
+		final AtomicInteger readyCount = new AtomicInteger();
+
+		for (final SeleniumHttpProxy p : proxies) {
+			probeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						p.probeDirectly(probeClient, config);
+						ResourceState state = p.getResource().getState();
+						if (state != ResourceState.DISCONNECTED && state != ResourceState.ERROR) {
+							readyCount.incrementAndGet();
+						}
+					}
+					catch (RuntimeException e) {
+						LOG.warn("Unexpected exception when probing " + p.getResource(), e);
+					}
+					finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		try {
+			latch.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		long endTime = System.currentTimeMillis();
+		StringBuilder report = new StringBuilder();
+		report.append("Probed ").append(proxies.size()).append(" Selenium resources in ").append(endTime - startTime)
+				.append(" ms with up to ").append(concurrency).append(" parallel probes: ").append(readyCount.get())
+				.append(" reachable, ").append(proxies.size() - readyCount.get()).append(" unreachable.");
+		if (!firstBurstDone) {
+			firstBurstDone = true;
+			long processStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+			report.append(" All reachable resources available ").append(endTime - processStartTime)
+					.append(" ms after process start.");
+		}
+		lastReport = report.toString();
+		LOG.info(lastReport);
+	}
+
+	private String probeUrl(String url, RequestConfig config) {
+		CloseableHttpResponse response = null;
+		InputStream in = null;
+		try {
+			HttpGet request = new HttpGet(url + "/wd/hub/status");
+			request.setConfig(config);
+			response = probeClient.execute(request);
+			int status = response.getStatusLine() == null ? -1 : response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				return "Invalid HTTP status code " + status;
+			}
+			if (response.getEntity() == null) {
+				return "No response content";
+			}
+			in = response.getEntity().getContent();
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			IOUtils.copy(in, buf);
+			String statusStr = new String(buf.toByteArray(), "UTF-8");
+			return statusStr.contains("\"status\":0") ? null : "Invalid response content: " + statusStr;
+		}
+		catch (IOException e) {
+			return e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+		catch (IllegalArgumentException e) {
+			return "Invalid URL: " + e.getMessage();
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(response);
+		}
+	}
+
+	private static RequestConfig createProbeConfig(int connectTimeoutMillis) {
+		return RequestConfig.custom().setConnectTimeout(connectTimeoutMillis).setConnectionRequestTimeout(connectTimeoutMillis)
+				.setSocketTimeout(PROBE_SOCKET_TIMEOUT_MILLIS).build();
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private String prefix;
+
+		private AtomicInteger threadNum = new AtomicInteger();
+
+		public NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setName(prefix + "-" + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.aludratest.cloud.resource.ResourceState;
+
+/**
+ * Number of Selenium resources per resource state, for one resource group or for all Selenium resources. The counters are
+ * updated by the state transitions of the resources themselves, so reading them never has to iterate or lock the resources.
+ * Counters of a group also update the counters of their parent (the counters of all Selenium resources). <br>
+ * Every state has its own counter, placed on its own cache line, so concurrent transitions of different states do not
+ * contend with each other.
+ * 
+ */
+public final class SeleniumStateCounters {
+
+	private static final ResourceState[] STATES = ResourceState.values();
+
+	/* 16 ints are 64 bytes, the cache line size of common CPUs */
+	private static final int STRIDE = 16;
+
+	private final AtomicIntegerArray counts = new AtomicIntegerArray(STATES.length * STRIDE);
+
+	private final SeleniumStateCounters parent;
+
+	SeleniumStateCounters(SeleniumStateCounters parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Records the transition of one resource from one state to another.
+	 * 
+	 * @param from
+	 *            Previous state of the resource, or <code>null</code> if the resource has just been added.
+	 * @param to
+	 *            New state of the resource, or <code>null</code> if the resource has been removed.
+	 */
+	void transition(ResourceState from, ResourceState to) {
+		if (from == to) {
+			return;
+		}
+		if (from != null) {
+			counts.decrementAndGet(from.ordinal() * STRIDE);
+		}
+		if (to != null) {
+			counts.incrementAndGet(to.ordinal() * STRIDE);
+		}
+		if (parent != null) {
+			parent.transition(from, to);
+		}
+	}
+
+	/**
+	 * Returns the number of resources currently in the given state.
+	 * 
+	 * @param state
+	 *            Resource state.
+	 * @return The number of resources currently in the given state.
+	 */
+	public int getCount(ResourceState state) {
+		return counts.get(state.ordinal() * STRIDE);
+	}
+
+	/**
+	 * Returns the number of resources in all states.
+	 * 
+	 * @return The number of resources in all states.
+	 */
+	public int getTotal() {
+		int total = 0;
+		for (ResourceState state : STATES) {
+			total += getCount(state);
+		}
+		return total;
+	}
+
+	/**
+	 * Returns a snapshot of the numbers of resources per state. As transitions are not blocked while taking the snapshot, the
+	 * sum of the numbers can be off by the transitions in progress.
+	 * 
+	 * @return A snapshot of the numbers of resources per state, containing all states.
+	 */
+	public Map<ResourceState, Integer> getCounts() {
+		Map<ResourceState, Integer> result = new EnumMap<ResourceState, Integer>(ResourceState.class);
+		for (ResourceState state : STATES) {
+			result.put(state, Integer.valueOf(getCount(state)));
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (ResourceState state : STATES) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(state.name()).append('=').append(getCount(state));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.aludratest.cloud.config.ConfigException;
+import org.aludratest.cloud.selenium.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read timeouts for requests to Selenium clients, per {@link SeleniumCommandClass}. The policy is configured as a
+ * comma-separated list of <code>class=read</code> entries, with timeouts in seconds, e.g.
+ * <code>newSession=180,findElement=30</code>. Classes without an entry use the <code>default</code> entry (320 seconds, the
+ * timeout of the Jetty client, if missing). The {@link #DEFAULT_POLICY} limits only commands which are not expected to take
+ * long; scripts and unclassified commands keep the 320 seconds, as asynchronous scripts may legitimately run for minutes. <br>
+ * Connect timeouts are not configured per class: upstream connections are pooled per Selenium client and shared by all
+ * commands, so they always use the Selenium timeout of the module. Entries with a connect timeout are rejected by
+ * {@link #validate(String)}. <br>
+ * Optionally, read timeouts adapt to the latencies observed per Selenium client: once enough commands of a class have been
+ * recorded, the read timeout is a multiple of their 99th percentile, but never more than the configured timeout.
+ * 
+ */
+final class SeleniumTimeoutPolicy {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumTimeoutPolicy.class);
+
+	static final String DEFAULT_POLICY = "newSession=180,navigation=120,findElement=30,screenshot=60,script=320,quit=30,"
+			+ "status=10,default=320";
+
+	private static final long DEFAULT_READ_TIMEOUT_MILLIS = 320000;
+
+	/* Adaptive timeouts are only used when a node has recorded at least this number of commands of a class. */
+	private static final long MIN_ADAPTIVE_SAMPLES = 50;
+
+	/* Adaptive read timeouts never go below this value. */
+	private static final long MIN_ADAPTIVE_TIMEOUT_MILLIS = 2000;
+
+	private volatile Map<SeleniumCommandClass, Long> timeouts;
+
+	private volatile boolean adaptive;
+
+	private volatile int adaptiveFactor;
+
+	SeleniumTimeoutPolicy(String policy, boolean adaptive, int adaptiveFactor) {
+		reconfigure(policy, adaptive, adaptiveFactor);
+	}
+
+	void reconfigure(String policy, boolean adaptive, int adaptiveFactor) {
+		Map<SeleniumCommandClass, Long> newTimeouts = parse(policy == null || "".equals(policy.trim()) ? DEFAULT_POLICY
+				: policy);
+
+		// classes not configured explicitly fall back to the default class
+		Long defaults = newTimeouts.get(SeleniumCommandClass.DEFAULT);
+		if (defaults == null) {
+			defaults = Long.valueOf(DEFAULT_READ_TIMEOUT_MILLIS);
+		}
+		for (SeleniumCommandClass commandClass : SeleniumCommandClass.values()) {
+			if (!newTimeouts.containsKey(commandClass)) {
+				newTimeouts.put(commandClass, defaults);
+			}
+		}
+
+		this.timeouts = newTimeouts;
+		this.adaptive = adaptive;
+		this.adaptiveFactor = Math.max(1, adaptiveFactor);
+	}
+
+	long getReadTimeoutMillis(SeleniumCommandClass commandClass) {
+		return timeouts.get(commandClass).longValue();
+	}
+
+	/**
+	 * Returns the read timeout for a command of the given class, adapted to the given latencies of the Selenium client, if
+	 * adaptive timeouts are enabled.
+	 * 
+	 * @param commandClass
+	 *            Class of the command.
+	 * @param nodeLatencies
+	 *            Latencies of commands of this class observed for the Selenium client, or <code>null</code>.
+	 * @return The read timeout for the command, in milliseconds.
+	 */
+	long getReadTimeoutMillis(SeleniumCommandClass commandClass, LatencyHistogram nodeLatencies) {
+		long configured = getReadTimeoutMillis(commandClass);
+		if (!adaptive || nodeLatencies == null || nodeLatencies.getCount() < MIN_ADAPTIVE_SAMPLES) {
+			return configured;
+		}
+
+		long p99 = nodeLatencies.getPercentile(0.99);
+		if (p99 < 0 || p99 == Long.MAX_VALUE) {
+			return configured;
+		}
+		return Math.min(configured, Math.max(MIN_ADAPTIVE_TIMEOUT_MILLIS, p99 * adaptiveFactor));
+	}
+
+	boolean isAdaptive() {
+		return adaptive;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<SeleniumCommandClass, Long> entry : timeouts.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(entry.getKey().getKey()).append("=").append(entry.getValue().longValue() / 1000);
+		}
+		if (adaptive) {
+			sb.append(" (adaptive, factor ").append(adaptiveFactor).append(")");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Validates the given policy string.
+	 * 
+	 * @param policy
+	 *            Policy to validate, may be <code>null</code> or empty for the default policy.
+	 * @throws ConfigException
+	 *             If any entry of the policy is invalid.
+	 */
+	static void validate(String policy) throws ConfigException {
+		if (policy == null) {
+			return;
+		}
+		for (String entry : policy.split(",")) {
+			entry = entry.trim();
+			String error = "".equals(entry) ? null : getEntryError(entry);
+			if (error != null) {
+				throw new ConfigException("Invalid command timeout entry " + entry + ": " + error);
+			}
+		}
+	}
+
+	private static String getEntryError(String entry) {
+		int eq = entry.indexOf('=');
+		if (eq < 0 || SeleniumCommandClass.fromKey(entry.substring(0, eq).trim()) == null) {
+			return "Expected class=seconds with a known command class";
+		}
+		String value = entry.substring(eq + 1).trim();
+		if (value.indexOf('/') >= 0) {
+			return "Connect timeouts per command class are not supported, use the Selenium timeout instead";
+		}
+		try {
+			if (Long.parseLong(value) <= 0) {
+				return "Timeouts must be positive";
+			}
+		}
+		catch (NumberFormatException e) {
+			return "Timeout must be a number of seconds";
+		}
+		return null;
+	}
+
+	private static Map<SeleniumCommandClass, Long> parse(String policy) {
+		// invalid entries are rejected by validate() when configured; ignore any which are stored anyway
+		Map<SeleniumCommandClass, Long> result = new EnumMap<SeleniumCommandClass, Long>(SeleniumCommandClass.class);
+		for (String entry : policy.split(",")) {
+			entry = entry.trim();
+			if ("".equals(entry)) {
+				continue;
+			}
+			String error = getEntryError(entry);
+			if (error != null) {
+				LOG.warn("Ignoring command timeout entry " + entry + ": " + error);
+				continue;
+			}
+			int eq = entry.indexOf('=');
+			result.put(SeleniumCommandClass.fromKey(entry.substring(0, eq).trim()),
+					Long.valueOf(Long.parseLong(entry.substring(eq + 1).trim()) * 1000));
+		}
+		return result;
+	}
+
+}
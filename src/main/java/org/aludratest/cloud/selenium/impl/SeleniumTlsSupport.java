@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS configuration for connections to Selenium clients using HTTPS. All HTTP clients of the Selenium module (the upstream
+ * forwarding clients as well as the health check and probe clients) share one <code>SSLContext</code>, built from the
+ * configured trust store and key store, so TLS sessions negotiated by one client can be resumed by the others and by later
+ * connections to the same node. Handshake durations of the health check and probe connections are recorded per node.
+ * 
+ */
+final class SeleniumTlsSupport {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumTlsSupport.class);
+
+	private static final TrustManager TRUST_ALL = new X509TrustManager() {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	};
+
+	private SSLContext sslContext;
+
+	private boolean trustAll;
+
+	private String[] protocols;
+
+	private String[] cipherSuites;
+
+	private SSLConnectionSocketFactory socketFactory;
+
+	private ConcurrentMap<String, HandshakeStatistics> handshakeStatistics = new ConcurrentHashMap<String, HandshakeStatistics>();
+
+	SeleniumTlsSupport(SeleniumModuleConfiguration configuration) {
+		trustAll = configuration.isTlsTrustAll();
+		protocols = splitList(configuration.getTlsProtocols());
+		cipherSuites = splitList(configuration.getTlsCipherSuites());
+
+		try {
+			sslContext = createSslContext(configuration);
+		}
+		catch (Exception e) {
+			LOG.error("Could not initialize TLS context for Selenium clients from configured trust store and key store, "
+					+ "using JVM defaults", e);
+			try {
+				sslContext = SSLContext.getInstance("TLS");
+				sslContext.init(null, null, null);
+			}
+			catch (GeneralSecurityException ee) {
+				throw new IllegalStateException("No TLS implementation available", ee);
+			}
+		}
+
+		SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+		if (sessionContext != null) {
+			sessionContext.setSessionCacheSize(Math.max(0, configuration.getTlsSessionCacheSize()));
+			sessionContext.setSessionTimeout(Math.max(0, configuration.getTlsSessionTimeoutSeconds()));
+		}
+
+		socketFactory = new HandshakeTimingSocketFactory();
+	}
+
+	/**
+	 * Returns the shared TLS context.
+	 * 
+	 * @return The shared TLS context.
+	 */
+	SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	boolean isTrustAll() {
+		return trustAll;
+	}
+
+	/**
+	 * Returns the TLS protocols to enable.
+	 * 
+	 * @return The TLS protocols to enable, or <code>null</code> to use the defaults of the TLS context.
+	 */
+	String[] getProtocols() {
+		return protocols == null ? null : protocols.clone();
+	}
+
+	/**
+	 * Returns the TLS cipher suites to enable.
+	 * 
+	 * @return The TLS cipher suites to enable, or <code>null</code> to use the defaults of the TLS context.
+	 */
+	String[] getCipherSuites() {
+		return cipherSuites == null ? null : cipherSuites.clone();
+	}
+
+	/**
+	 * Returns the socket factory for Apache HTTP clients connecting to Selenium clients via HTTPS. The factory uses the shared
+	 * TLS context and records the handshake duration of each new connection.
+	 * 
+	 * @return The socket factory for HTTPS connections of Apache HTTP clients.
+	 */
+	SSLConnectionSocketFactory getSocketFactory() {
+		return socketFactory;
+	}
+
+	/**
+	 * Returns a report about the TLS handshakes with each Selenium client, e.g. for JMX.
+	 * 
+	 * @return A report about the TLS handshakes with each Selenium client, one line per node.
+	 */
+	String getHandshakeReport() {
+		if (handshakeStatistics.isEmpty()) {
+			return "No TLS handshake performed yet";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, HandshakeStatistics> entry : new TreeMap<String, HandshakeStatistics>(handshakeStatistics)
+				.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append("\n");
+			}
+			sb.append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	void resetHandshakeStatistics() {
+		handshakeStatistics.clear();
+	}
+
+	private void recordHandshake(String node, long durationNanos, boolean resumed) {
+		HandshakeStatistics stats = handshakeStatistics.get(node);
+		if (stats == null) {
+			HandshakeStatistics newStats = new HandshakeStatistics();
+			stats = handshakeStatistics.putIfAbsent(node, newStats);
+			if (stats == null) {
+				stats = newStats;
+			}
+		}
+		stats.record(durationNanos, resumed);
+	}
+
+	private SSLContext createSslContext(SeleniumModuleConfiguration configuration) throws GeneralSecurityException, IOException {
+		KeyManager[] keyManagers = null;
+		String keyStorePath = configuration.getTlsKeyStore();
+		if (keyStorePath != null) {
+			char[] password = toCharArray(configuration.getTlsKeyStorePassword());
+			KeyStore keyStore = loadKeyStore(keyStorePath, configuration.getTlsKeyStoreType(), password);
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, password);
+			keyManagers = kmf.getKeyManagers();
+		}
+
+		TrustManager[] trustManagers = null;
+		String trustStorePath = configuration.getTlsTrustStore();
+		if (trustAll) {
+			trustManagers = new TrustManager[] { TRUST_ALL };
+		}
+		else if (trustStorePath != null) {
+			KeyStore trustStore = loadKeyStore(trustStorePath, configuration.getTlsTrustStoreType(),
+					toCharArray(configuration.getTlsTrustStorePassword()));
+			TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			tmf.init(trustStore);
+			trustManagers = tmf.getTrustManagers();
+		}
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers, trustManagers, null);
+		return context;
+	}
+
+	private static KeyStore loadKeyStore(String path, String type, char[] password) throws GeneralSecurityException,
+			IOException {
+		KeyStore store = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(path);
+		try {
+			store.load(in, password);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+		return store;
+	}
+
+	private static char[] toCharArray(String password) {
+		return password == null ? null : password.toCharArray();
+	}
+
+	private static String[] splitList(String value) {
+		if (value == null) {
+			return null;
+		}
+		List<String> result = new ArrayList<String>();
+		for (String s : value.split(",")) {
+			if (!"".equals(s.trim())) {
+				result.add(s.trim());
+			}
+		}
+		return result.isEmpty() ? null : result.toArray(new String[result.size()]);
+	}
+
+	private final class HandshakeTimingSocketFactory extends SSLConnectionSocketFactory {
+
+		private HandshakeTimingSocketFactory() {
+			super(sslContext, protocols, cipherSuites, trustAll ? ALLOW_ALL_HOSTNAME_VERIFIER
+					: BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+		}
+
+		@Override
+		public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+			long startMillis = System.currentTimeMillis();
+			long start = System.nanoTime();
+			Socket result = super.createLayeredSocket(socket, target, port, context);
+			long duration = System.nanoTime() - start;
+
+			if (result instanceof SSLSocket) {
+				SSLSession session = ((SSLSocket) result).getSession();
+				// a resumed session has been created by an earlier handshake
+				boolean resumed = session != null && session.getCreationTime() < startMillis;
+				recordHandshake(target + ":" + port, duration, resumed);
+			}
+			return result;
+		}
+	}
+
+	private static final class HandshakeStatistics {
+
+		private AtomicLong handshakes = new AtomicLong();
+
+		private AtomicLong resumedHandshakes = new AtomicLong();
+
+		private AtomicLong totalNanos = new AtomicLong();
+
+		private AtomicLong maxNanos = new AtomicLong();
+
+		private volatile long lastNanos;
+
+		private void record(long durationNanos, boolean resumed) {
+			handshakes.incrementAndGet();
+			if (resumed) {
+				resumedHandshakes.incrementAndGet();
+			}
+			totalNanos.addAndGet(durationNanos);
+			lastNanos = durationNanos;
+
+			long max = maxNanos.get();
+			while (durationNanos > max && !maxNanos.compareAndSet(max, durationNanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		@Override
+		public String toString() {
+			long count = handshakes.get();
+			long avgMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count);
+			return count + " handshakes, " + resumedHandshakes.get() + " resumed, avg " + avgMillis + " ms, max "
+					+ TimeUnit.NANOSECONDS.toMillis(maxNanos.get()) + " ms, last " + TimeUnit.NANOSECONDS.toMillis(lastNanos)
+					+ " ms";
+		}
+	}
+
+}
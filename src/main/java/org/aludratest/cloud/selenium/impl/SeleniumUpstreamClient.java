@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP client of an upstream shard, used for forwarding requests to the Selenium clients. Clients are created by a
+ * {@link SeleniumUpstreamTransport}, and must not expose any types of the underlying HTTP library, so the Selenium proxies can
+ * forward requests with every transport. Responses are delivered asynchronously to a {@link ResponseHandler}, usually from a
+ * thread of the client.
+ * 
+ */
+public interface SeleniumUpstreamClient {
+
+	/**
+	 * Starts this client. Called once, before the first request is sent.
+	 * 
+	 * @throws Exception
+	 *             If the client could not be started.
+	 */
+	public void start() throws Exception;
+
+	/**
+	 * Stops this client and closes all of its connections.
+	 * 
+	 * @throws Exception
+	 *             If the client could not be stopped cleanly.
+	 */
+	public void stop() throws Exception;
+
+	/**
+	 * Sets the connect timeout for new connections to Selenium clients.
+	 * 
+	 * @param connectTimeoutMillis
+	 *            Connect timeout in milliseconds.
+	 */
+	public void setConnectTimeout(int connectTimeoutMillis);
+
+	/**
+	 * Sets the upstream HTTP proxy to use for connections to Selenium clients. Connections in use may finish on their old
+	 * route.
+	 * 
+	 * @param proxyHost
+	 *            Host name of the proxy, or <code>null</code> to connect directly.
+	 * @param proxyPort
+	 *            Port of the proxy.
+	 * @param bypassRegexp
+	 *            Regular expression for host names which shall not use the proxy, or <code>null</code>.
+	 */
+	public void setProxy(String proxyHost, int proxyPort, String bypassRegexp);
+
+	/**
+	 * Sends the given request. Exactly one method of the given handler is called when the exchange has finished.
+	 * 
+	 * @param request
+	 *            Request to send.
+	 * @param handler
+	 *            Handler to notify about the result of the exchange.
+	 * @return The exchange, which can be used to abort the request, never <code>null</code>.
+	 */
+	public Exchange send(Request request, ResponseHandler handler);
+
+	/**
+	 * Returns a human-readable summary of the connections and threads of this client.
+	 * 
+	 * @return A human-readable summary of the connections and threads of this client.
+	 */
+	public String getStatistics();
+
+	/**
+	 * An exchange in progress.
+	 */
+	public static interface Exchange {
+
+		/**
+		 * Aborts this exchange. The response handler is not notified anymore.
+		 */
+		public void abort();
+
+	}
+
+	/**
+	 * Receives the result of an exchange.
+	 */
+	public static interface ResponseHandler {
+
+		/**
+		 * Called when the complete response has been received, regardless of its status code.
+		 * 
+		 * @param response
+		 *            Response of the Selenium client.
+		 */
+		public void onResponse(Response response);
+
+		/**
+		 * Called if no connection to the Selenium client could be established.
+		 * 
+		 * @param cause
+		 *            Cause of the failure.
+		 */
+		public void onConnectionFailed(Throwable cause);
+
+		/**
+		 * Called if the exchange failed after the connection has been established.
+		 * 
+		 * @param cause
+		 *            Cause of the failure.
+		 */
+		public void onException(Throwable cause);
+
+		/**
+		 * Called if no response has been received within the timeout of the request.
+		 */
+		public void onExpire();
+
+	}
+
+	/**
+	 * Headers of a request or response. Header names keep their case, and a header can occur more than once.
+	 */
+	public static abstract class Message {
+
+		private List<String> headerNames = new ArrayList<String>();
+
+		private List<String> headerValues = new ArrayList<String>();
+
+		public void addHeader(String name, String value) {
+			headerNames.add(name);
+			headerValues.add(value);
+		}
+
+		public int getHeaderCount() {
+			return headerNames.size();
+		}
+
+		public String getHeaderName(int index) {
+			return headerNames.get(index);
+		}
+
+		public String getHeaderValue(int index) {
+			return headerValues.get(index);
+		}
+
+	}
+
+	/**
+	 * Request to send to a Selenium client. Hop-by-hop headers, <code>Host</code> and <code>Content-Length</code> are set by
+	 * the client and must not be added.
+	 */
+	public static final class Request extends Message {
+
+		private String method;
+
+		private String url;
+
+		private InputStream content;
+
+		private long contentLength = -1;
+
+		private long timeoutMillis;
+
+		public Request(String method, String url) {
+			this.method = method;
+			this.url = url;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * Sets the body of this request.
+		 * 
+		 * @param content
+		 *            Stream providing the body.
+		 * @param contentLength
+		 *            Length of the body in bytes, or -1 if unknown.
+		 */
+		public void setContent(InputStream content, long contentLength) {
+			this.content = content;
+			this.contentLength = contentLength;
+		}
+
+		public InputStream getContent() {
+			return content;
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * Sets the time to wait for the response, in milliseconds. 0 means no timeout.
+		 * 
+		 * @param timeoutMillis
+		 *            Time to wait for the response, in milliseconds.
+		 */
+		public void setTimeout(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public long getTimeout() {
+			return timeoutMillis;
+		}
+
+	}
+
+	/**
+	 * Complete response of a Selenium client. Contains all response headers, including hop-by-hop headers.
+	 */
+	public static final class Response extends Message {
+
+		private int status;
+
+		private byte[] content;
+
+		public Response(int status) {
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public void setContent(byte[] content) {
+			this.content = content;
+		}
+
+		/**
+		 * Returns the body of this response.
+		 * 
+		 * @return The body of this response, or <code>null</code> if the response has no body.
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+	}
+
+}
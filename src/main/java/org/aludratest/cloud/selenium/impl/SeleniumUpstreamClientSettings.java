@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.conn.DnsResolver;
+
+/**
+ * Settings for creating a {@link SeleniumUpstreamClient}. Instances are immutable. Sizes of 0 mean that the client shall use
+ * its own default.
+ * 
+ */
+public final class SeleniumUpstreamClientSettings {
+
+	private String name;
+
+	private int maxThreads;
+
+	private int maxConnectionsPerAddress;
+
+	private int connectTimeoutMillis;
+
+	private long idleTimeoutMillis;
+
+	private int requestHeaderSize;
+
+	private int requestBufferSize;
+
+	private int responseBufferSize;
+
+	private SSLContext sslContext;
+
+	private boolean trustAll;
+
+	private String[] tlsProtocols;
+
+	private String[] tlsCipherSuites;
+
+	private DnsResolver dnsResolver;
+
+	/**
+	 * Creates a new settings object.
+	 * 
+	 * @param name
+	 *            Name of the client, used e.g. for naming its threads.
+	 * @param maxThreads
+	 *            Maximum number of threads of the client, if it uses a thread pool.
+	 * @param maxConnectionsPerAddress
+	 *            Maximum number of connections to one Selenium client.
+	 * @param connectTimeoutMillis
+	 *            Initial connect timeout for new connections, in milliseconds.
+	 * @param idleTimeoutMillis
+	 *            Time after which idle connections are closed, in milliseconds.
+	 * @param requestHeaderSize
+	 *            Maximum size of request headers, in bytes, or 0.
+	 * @param requestBufferSize
+	 *            Size of the request buffer, in bytes, or 0.
+	 * @param responseBufferSize
+	 *            Size of the response buffer, in bytes, or 0.
+	 * @param sslContext
+	 *            TLS context to use for HTTPS connections.
+	 * @param trustAll
+	 *            Whether to trust all server certificates and host names.
+	 * @param tlsProtocols
+	 *            TLS protocols to enable, or <code>null</code> for the defaults of the TLS context.
+	 * @param tlsCipherSuites
+	 *            TLS cipher suites to enable, or <code>null</code> for the defaults of the TLS context.
+	 * @param dnsResolver
+	 *            Resolver to use for host names of Selenium clients.
+	 */
+	public SeleniumUpstreamClientSettings(String name, int maxThreads, int maxConnectionsPerAddress, int connectTimeoutMillis,
+			long idleTimeoutMillis, int requestHeaderSize, int requestBufferSize, int responseBufferSize, SSLContext sslContext,
+			boolean trustAll, String[] tlsProtocols, String[] tlsCipherSuites, DnsResolver dnsResolver) {
+		this.name = name;
+		this.maxThreads = maxThreads;
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.requestHeaderSize = requestHeaderSize;
+		this.requestBufferSize = requestBufferSize;
+		this.responseBufferSize = responseBufferSize;
+		this.sslContext = sslContext;
+		this.trustAll = trustAll;
+		this.tlsProtocols = tlsProtocols == null ? null : tlsProtocols.clone();
+		this.tlsCipherSuites = tlsCipherSuites == null ? null : tlsCipherSuites.clone();
+		this.dnsResolver = dnsResolver;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public int getMaxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public int getRequestHeaderSize() {
+		return requestHeaderSize;
+	}
+
+	public int getRequestBufferSize() {
+		return requestBufferSize;
+	}
+
+	public int getResponseBufferSize() {
+		return responseBufferSize;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	public boolean isTrustAll() {
+		return trustAll;
+	}
+
+	public String[] getTlsProtocols() {
+		return tlsProtocols == null ? null : tlsProtocols.clone();
+	}
+
+	public String[] getTlsCipherSuites() {
+		return tlsCipherSuites == null ? null : tlsCipherSuites.clone();
+	}
+
+	public DnsResolver getDnsResolver() {
+		return dnsResolver;
+	}
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletConfig;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.app.CloudManagerAppConfig;
+import org.aludratest.cloud.selenium.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of HTTP clients used by the Selenium proxies for forwarding requests to the Selenium clients. Each shard is an own
+ * {@link SeleniumUpstreamClient}, with its own selector and thread pool, so forwarding is not limited to a single selector
+ * thread on hosts with many cores. Selenium clients are assigned to shards either by the hash of their URL, or by their
+ * resource group, so all clients of a group share one shard. Shard clients are started on first use.
+ * 
+ */
+final class SeleniumUpstreamClients {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumUpstreamClients.class);
+
+	/**
+	 * Strategies for assigning Selenium clients to shards.
+	 */
+	static enum ShardAssignment {
+		HASH, GROUP;
+
+		static ShardAssignment fromString(String value) {
+			if (value != null) {
+				try {
+					return valueOf(value.trim().toUpperCase(Locale.US));
+				}
+				catch (IllegalArgumentException e) {
+					LOG.warn("Unknown upstream shard assignment " + value + ", using hash assignment");
+				}
+			}
+			return HASH;
+		}
+	}
+
+	private static final int MAX_THREADS_PER_SHARD = 250;
+
+	private Shard[] shards;
+
+	private ShardAssignment assignment;
+
+	private long connectTimeout;
+
+	private SeleniumUpstreamTransport transport;
+
+	private SeleniumTlsSupport tlsSupport;
+
+	private SeleniumDnsCache dnsCache;
+
+	public SeleniumUpstreamClients(int shardCount, ShardAssignment assignment, long connectTimeout,
+			SeleniumUpstreamTransport transport, SeleniumTlsSupport tlsSupport, SeleniumDnsCache dnsCache) {
+		shards = new Shard[Math.max(1, shardCount)];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard(i);
+		}
+		this.assignment = assignment;
+		this.connectTimeout = connectTimeout;
+		this.transport = transport;
+		this.tlsSupport = tlsSupport;
+		this.dnsCache = dnsCache;
+	}
+
+	/**
+	 * Returns the shard to use for the given Selenium client.
+	 * 
+	 * @param originalUrl
+	 *            Original URL of the Selenium client.
+	 * @return The shard to use for the Selenium client, never <code>null</code>.
+	 */
+	public Shard getShard(String originalUrl) {
+		if (shards.length == 1) {
+			return shards[0];
+		}
+
+		int hash = originalUrl.hashCode();
+		if (assignment == ShardAssignment.GROUP) {
+			Integer groupId = SeleniumUtil.getGroupId(originalUrl);
+			if (groupId != null) {
+				hash = groupId.intValue();
+			}
+		}
+
+		return shards[(hash & Integer.MAX_VALUE) % shards.length];
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public SeleniumUpstreamTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the connect timeout for new connections to Selenium clients of all shards, including started ones.
+	 * 
+	 * @param connectTimeout
+	 *            Connect timeout in milliseconds.
+	 */
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		for (Shard shard : shards) {
+			shard.updateConnectTimeout();
+		}
+	}
+
+	/**
+	 * Applies the current upstream proxy settings of the Cloud Manager to all started shards.
+	 */
+	public void updateProxyConfig() {
+		for (Shard shard : shards) {
+			shard.updateProxyConfig();
+		}
+	}
+
+	/**
+	 * Returns a human-readable report of the statistics of all shards, one line per shard.
+	 * 
+	 * @return A human-readable report of the statistics of all shards.
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		for (Shard shard : shards) {
+			if (sb.length() > 0) {
+				sb.append("\n");
+			}
+			sb.append(shard.getStatistics());
+		}
+		return sb.toString();
+	}
+
+	public void shutdown() {
+		for (Shard shard : shards) {
+			shard.stop();
+		}
+	}
+
+	/**
+	 * One upstream HTTP client with its own selector and thread pool.
+	 * 
+	 */
+	final class Shard {
+
+		private int index;
+
+		private SeleniumUpstreamClient client;
+
+		private AtomicInteger assignedProxies = new AtomicInteger();
+
+		private AtomicLong exchangeCount = new AtomicLong();
+
+		private AtomicInteger activeExchanges = new AtomicInteger();
+
+		private LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+		private Shard(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Returns the HTTP client of this shard, starting it if required, and registers one more proxy using this shard.
+		 * 
+		 * @param config
+		 *            Servlet configuration of the proxy, used for buffer and header sizes.
+		 * @return The started HTTP client of this shard.
+		 * @throws Exception
+		 *             If the HTTP client could not be started.
+		 */
+		synchronized SeleniumUpstreamClient acquire(ServletConfig config) throws Exception {
+			if (client == null) {
+				SeleniumUpstreamClient newClient = createClient(config);
+				newClient.start();
+				client = newClient;
+				updateProxyConfig();
+			}
+			assignedProxies.incrementAndGet();
+			return client;
+		}
+
+		void release() {
+			assignedProxies.decrementAndGet();
+		}
+
+		void exchangeStarted() {
+			exchangeCount.incrementAndGet();
+			activeExchanges.incrementAndGet();
+		}
+
+		void exchangeCompleted(long durationMillis) {
+			activeExchanges.decrementAndGet();
+			latencyHistogram.record(durationMillis);
+		}
+
+		private SeleniumUpstreamClient createClient(ServletConfig config) throws Exception {
+			String name = "Selenium Proxy HttpClient" + (shards.length > 1 ? " Shard " + index : "");
+			// 30 minutes IDLE timeout
+			SeleniumUpstreamClientSettings settings = new SeleniumUpstreamClientSettings(name, MAX_THREADS_PER_SHARD, 100,
+					(int) connectTimeout, 30 * 60 * 1000l, getIntParameter(config, "requestHeaderSize"), getIntParameter(config,
+							"requestBufferSize"), getIntParameter(config, "responseBufferSize"), tlsSupport.getSslContext(),
+					tlsSupport.isTrustAll(), tlsSupport.getProtocols(), tlsSupport.getCipherSuites(), dnsCache);
+			return transport.createClient(settings);
+		}
+
+		synchronized void updateConnectTimeout() {
+			if (client != null) {
+				client.setConnectTimeout((int) connectTimeout);
+			}
+		}
+
+		synchronized void updateProxyConfig() {
+			if (client == null) {
+				return;
+			}
+			LOG.debug("Updating HttpClient Proxy Configuration of shard " + index);
+			CloudManagerAppConfig basicConfig = CloudManagerApp.getInstance().getBasicConfiguration();
+			String proxyHost = basicConfig.isUseProxy() ? basicConfig.getProxyHost() : null;
+			client.setProxy(proxyHost, basicConfig.getProxyPort(), basicConfig.getBypassProxyRegexp());
+		}
+
+		synchronized String getStatistics() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Shard ").append(index).append(" (").append(transport.getName()).append("): ").append(assignedProxies.get())
+					.append(" proxies, ").append(exchangeCount.get()).append(" exchanges, ").append(activeExchanges.get())
+					.append(" active, latency p50 ").append(LatencyHistogram.format(latencyHistogram.getPercentile(0.5)))
+					.append(", p99 ").append(LatencyHistogram.format(latencyHistogram.getPercentile(0.99)));
+			if (client == null) {
+				sb.append(", not started");
+				return sb.toString();
+			}
+
+			sb.append(", ").append(client.getStatistics());
+			return sb.toString();
+		}
+
+		synchronized void stop() {
+			if (client != null) {
+				try {
+					client.stop();
+				}
+				catch (Exception e) {
+					// ignore
+				}
+				client = null;
+			}
+		}
+	}
+
+	private static int getIntParameter(ServletConfig config, String name) {
+		String value = config.getInitParameter(name);
+		return value == null ? 0 : Integer.parseInt(value);
+	}
+
+}
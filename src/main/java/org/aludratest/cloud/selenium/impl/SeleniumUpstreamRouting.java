@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.protocol.HttpContext;
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the upstream HTTP proxy settings of the Cloud Manager to a Jetty HTTP client used for forwarding requests to Selenium
+ * clients. Jetty binds the proxy to an <code>HttpDestination</code> when the destination is created, so changed settings
+ * only apply to new destinations. This class calculates which existing destinations change their routing (proxied vs. direct,
+ * or a different proxy) and migrates only these. Migrated destinations are removed from the client, so new exchanges create a
+ * fresh destination with the new routing, while exchanges in flight finish on the connections of the old destination. The old
+ * destination is closed as soon as all of its connections are idle. <br>
+ * Apache HTTP clients connecting to Selenium clients use a {@link RoutePlanner}, which applies changed settings to every
+ * subsequent request.
+ * 
+ */
+final class SeleniumUpstreamRouting {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumUpstreamRouting.class);
+
+	private static final long RETIRE_CHECK_INTERVAL_MILLIS = 1000;
+
+	/* Connections of retired destinations are forcibly closed after this time, even if still busy. */
+	private static final long MAX_RETIRE_WAIT_MILLIS = 30 * 60 * 1000l;
+
+	private static ScheduledExecutorService retireExecutor;
+
+	private SeleniumUpstreamRouting() {
+	}
+
+	/**
+	 * Applies the given proxy settings to the given HTTP client, migrating only those destinations whose routing changes.
+	 * 
+	 * @param client
+	 *            Client to reconfigure.
+	 * @param proxyAddress
+	 *            Address of the upstream proxy to use, or <code>null</code> to connect directly.
+	 * @param bypassRegexp
+	 *            Regular expression for host names which shall not use the upstream proxy, or <code>null</code>.
+	 * 
+	 * @return The number of migrated destinations.
+	 */
+	static synchronized int apply(HttpClient client, Address proxyAddress, String bypassRegexp) {
+		if (bypassRegexp != null && "".equals(bypassRegexp.trim())) {
+			bypassRegexp = null;
+		}
+
+		Set<String> oldNoProxy = client.getNoProxy();
+		String oldBypassRegexp = oldNoProxy instanceof RegexpSet ? ((RegexpSet) oldNoProxy).getRegexp() : null;
+		if (equal(client.getProxy(), proxyAddress) && equal(oldBypassRegexp, bypassRegexp)) {
+			LOG.debug("HttpClient Proxy Configuration unchanged");
+			return 0;
+		}
+
+		client.setProxy(proxyAddress);
+		if (!equal(oldBypassRegexp, bypassRegexp)) {
+			LOG.debug("Updating HttpClient bypass regexp to " + bypassRegexp);
+			// use a flaw in httpClient design to inject "regexp" logic as a virtual set
+			client.setNoProxy(bypassRegexp == null ? null : new RegexpSet(bypassRegexp));
+		}
+
+		Set<String> noProxy = client.getNoProxy();
+		List<HttpDestination> retired = new ArrayList<HttpDestination>();
+		for (Address address : new ArrayList<Address>(client.getDestinations())) {
+			HttpDestination destination;
+			try {
+				destination = client.getDestination(address, false);
+			}
+			catch (IOException e) {
+				// ignore this destination
+				continue;
+			}
+
+			Address newProxy = proxyAddress != null && (noProxy == null || !noProxy.contains(address.getHost())) ? proxyAddress
+					: null;
+			if (!equal(destination.isProxied() ? destination.getProxy() : null, newProxy)) {
+				client.removeDestination(destination);
+				retired.add(destination);
+			}
+		}
+
+		if (!retired.isEmpty()) {
+			LOG.info("Upstream proxy routing changed for " + retired.size() + " Selenium destination(s), migrating these");
+			for (HttpDestination destination : retired) {
+				retireWhenIdle(destination);
+			}
+		}
+		return retired.size();
+	}
+
+	private static void retireWhenIdle(final HttpDestination destination) {
+		final long deadline = System.currentTimeMillis() + MAX_RETIRE_WAIT_MILLIS;
+		getRetireExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (destination.getConnections() > destination.getIdleConnections()
+						&& System.currentTimeMillis() < deadline) {
+					getRetireExecutor().schedule(this, RETIRE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+					return;
+				}
+				try {
+					destination.close();
+				}
+				catch (IOException e) {
+					LOG.debug("Could not close retired destination " + destination.getAddress(), e);
+				}
+			}
+		});
+	}
+
+	private static synchronized ScheduledExecutorService getRetireExecutor() {
+		if (retireExecutor == null) {
+			retireExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r);
+					thread.setName("Selenium Proxy Destination Retirement");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return retireExecutor;
+	}
+
+	private static boolean equal(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+	/**
+	 * Routes requests of Apache HTTP clients via the upstream proxy, unless the host name of the Selenium client matches the
+	 * bypass expression.
+	 */
+	static final class RoutePlanner extends DefaultRoutePlanner {
+
+		private volatile HttpHost proxy;
+
+		private volatile Pattern bypassPattern;
+
+		RoutePlanner() {
+			super(DefaultSchemePortResolver.INSTANCE);
+		}
+
+		/**
+		 * Sets the upstream proxy to use for subsequent requests.
+		 * 
+		 * @param proxyHost
+		 *            Host name of the upstream proxy, or <code>null</code> to connect directly.
+		 * @param proxyPort
+		 *            Port of the upstream proxy.
+		 * @param bypassRegexp
+		 *            Regular expression for host names which shall not use the upstream proxy, or <code>null</code>.
+		 */
+		void setProxy(String proxyHost, int proxyPort, String bypassRegexp) {
+			this.bypassPattern = bypassRegexp == null || "".equals(bypassRegexp.trim()) ? null : Pattern.compile(bypassRegexp);
+			this.proxy = proxyHost == null ? null : new HttpHost(proxyHost, proxyPort);
+		}
+
+		@Override
+		protected HttpHost determineProxy(HttpHost target, HttpRequest request, HttpContext context) throws HttpException {
+			Pattern bypass = bypassPattern;
+			if (bypass != null && bypass.matcher(target.getHostName()).matches()) {
+				return null;
+			}
+			return proxy;
+		}
+	}
+
+	private static class RegexpSet extends AbstractSet<String> {
+
+		private Pattern regexp;
+
+		public RegexpSet(String regexp) {
+			this.regexp = Pattern.compile(regexp);
+		}
+
+		public String getRegexp() {
+			return regexp.pattern();
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return Collections.<String> emptySet().iterator();
+		}
+
+		@Override
+		public int size() {
+			return 0;
+		}
+
+		// contains() is the only method being called by HttpClient
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof String)) {
+				return false;
+			}
+			LOG.debug("Checking host " + o + " against pattern " + regexp);
+
+			return regexp.matcher(o.toString()).matches();
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+/**
+ * Transport used by the Selenium proxies for forwarding requests to the Selenium clients. A transport creates the (not yet
+ * started) HTTP client of an upstream shard, configured with connection limits, timeouts, buffer sizes and TLS settings of the
+ * shard. <br>
+ * Besides the built-in transports (see {@link SeleniumUpstreamTransports}), the fully qualified name of a class implementing
+ * this interface and having a public no-arg constructor can be configured as upstream transport.
+ * 
+ */
+public interface SeleniumUpstreamTransport {
+
+	/**
+	 * Returns the name of this transport, as used in the configuration and in statistics.
+	 * 
+	 * @return The name of this transport.
+	 */
+	public String getName();
+
+	/**
+	 * Creates a new, not yet started HTTP client for one upstream shard.
+	 * 
+	 * @param settings
+	 *            Settings for the new client.
+	 * @return A new, not yet started HTTP client.
+	 * @throws Exception
+	 *             If the client could not be created.
+	 */
+	public SeleniumUpstreamClient createClient(SeleniumUpstreamClientSettings settings) throws Exception;
+
+}
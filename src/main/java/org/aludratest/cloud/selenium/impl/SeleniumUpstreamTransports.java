@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Built-in upstream transports, and lookup of the configured transport.
+ * 
+ */
+final class SeleniumUpstreamTransports {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumUpstreamTransports.class);
+
+	/**
+	 * Jetty client with non-blocking select channel connector. Few threads for many connections; the default.
+	 */
+	static final SeleniumUpstreamTransport JETTY_NIO = new JettyTransport("jetty-nio", HttpClient.CONNECTOR_SELECT_CHANNEL);
+
+	/**
+	 * Jetty client with blocking socket connector. One thread per connection, but no selector hand-off per request.
+	 */
+	static final SeleniumUpstreamTransport JETTY_BLOCKING = new JettyTransport("jetty-blocking", HttpClient.CONNECTOR_SOCKET);
+
+	/**
+	 * Apache HttpAsyncClient. Few I/O threads for many connections; responses are buffered completely in memory before they
+	 * are returned, so large responses like screenshots or page sources are not streamed as with the Jetty transports.
+	 */
+	static final SeleniumUpstreamTransport APACHE_ASYNC = new SeleniumUpstreamTransport() {
+		@Override
+		public String getName() {
+			return "apache-async";
+		}
+
+		@Override
+		public SeleniumUpstreamClient createClient(SeleniumUpstreamClientSettings settings) throws Exception {
+			return new SeleniumAsyncUpstreamClient(settings);
+		}
+	};
+
+	private SeleniumUpstreamTransports() {
+	}
+
+	/**
+	 * Returns the transport with the given name. This can be the name of a built-in transport, or the fully qualified name of
+	 * a class implementing {@link SeleniumUpstreamTransport}. Falls back to {@link #JETTY_NIO} if no such transport exists.
+	 * 
+	 * @param name
+	 *            Name of the transport.
+	 * @return The transport with the given name, or the default transport, never <code>null</code>.
+	 */
+	static SeleniumUpstreamTransport getTransport(String name) {
+		if (name == null || "".equals(name.trim()) || JETTY_NIO.getName().equals(name.trim())) {
+			return JETTY_NIO;
+		}
+		name = name.trim();
+		if (JETTY_BLOCKING.getName().equals(name)) {
+			return JETTY_BLOCKING;
+		}
+		if (APACHE_ASYNC.getName().equals(name)) {
+			return APACHE_ASYNC;
+		}
+
+		try {
+			Class<?> clazz = Class.forName(name, true, SeleniumUpstreamTransports.class.getClassLoader());
+			if (SeleniumUpstreamTransport.class.isAssignableFrom(clazz)) {
+				return (SeleniumUpstreamTransport) clazz.newInstance();
+			}
+			LOG.warn("Class " + name + " does not implement " + SeleniumUpstreamTransport.class.getName()
+					+ ", using default upstream transport");
+		}
+		catch (ClassNotFoundException e) {
+			LOG.warn("Unknown upstream transport " + name + ", using default upstream transport");
+		}
+		catch (InstantiationException e) {
+			LOG.warn("Could not create upstream transport " + name + ", using default upstream transport", e);
+		}
+		catch (IllegalAccessException e) {
+			LOG.warn("Could not create upstream transport " + name + ", using default upstream transport", e);
+		}
+
+		return JETTY_NIO;
+	}
+
+	private static class JettyTransport implements SeleniumUpstreamTransport {
+
+		private String name;
+
+		private int connectorType;
+
+		public JettyTransport(String name, int connectorType) {
+			this.name = name;
+			this.connectorType = connectorType;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public SeleniumUpstreamClient createClient(SeleniumUpstreamClientSettings settings) {
+			return new SeleniumJettyUpstreamClient(settings, connectorType);
+		}
+	}
+
+}
@@ -17,13 +17,14 @@ package org.aludratest.cloud.selenium.impl;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
 
 import org.aludratest.cloud.app.CloudManagerApp;
 import org.aludratest.cloud.config.ConfigException;
-import org.aludratest.cloud.resource.ResourceStateHolder;
-import org.aludratest.cloud.resourcegroup.ResourceGroup;
-import org.aludratest.cloud.resourcegroup.ResourceGroupManager;
 import org.aludratest.cloud.resourcegroup.StaticResourceGroupAdmin;
+import org.aludratest.cloud.selenium.SeleniumResourceType;
 import org.aludratest.cloud.selenium.config.ClientEntry;
 
 public final class SeleniumUtil {
@@ -51,21 +52,83 @@ public final class SeleniumUtil {
 		}
 
 		// check that this resource is not yet registered in ANY group
-		ResourceGroupManager manager = CloudManagerApp.getInstance().getResourceGroupManager();
-		for (int groupId : manager.getAllResourceGroupIds()) {
-			if (localGroupId == null || groupId != localGroupId.intValue()) {
-				ResourceGroup group = manager.getResourceGroup(groupId);
-				if (group instanceof SeleniumResourceGroup) {
-					for (ResourceStateHolder rsh : group.getResourceCollection()) {
-						SeleniumResourceImpl res = (SeleniumResourceImpl) rsh;
-						if (url.equals(res.getOriginalUrl())) {
-							throw new ConfigException("This URL already exists in another Selenium resource group.");
-						}
-					}
-				}
+		SeleniumResourceRegistry registry = getResourceRegistry();
+		if (registry != null && registry.getResourceByUrl(url) != null) {
+			Integer groupId = registry.getGroupId(url);
+			if (localGroupId == null || !localGroupId.equals(groupId)) {
+				throw new ConfigException("This URL already exists in another Selenium resource group.");
+			}
+		}
+	}
+
+	/**
+	 * Normalizes the given Selenium URL for comparisons: Surrounding whitespace and trailing slashes are removed (Selenium
+	 * resources never keep a trailing slash), and scheme and host are converted to lower case, as they are case insensitive.
+	 * The path is left unchanged.
+	 * 
+	 * @param url
+	 *            URL to normalize, may be <code>null</code>.
+	 * @return The normalized URL, an empty string if the URL is <code>null</code>.
+	 */
+	public static String normalizeUrl(String url) {
+		url = url == null ? "" : url.trim();
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+
+		int schemeEnd = url.indexOf("://");
+		if (schemeEnd < 0) {
+			return url;
+		}
+		int authorityStart = schemeEnd + 3;
+		int authorityEnd = url.length();
+		for (char c : new char[] { '/', '?', '#' }) {
+			int index = url.indexOf(c, authorityStart);
+			if (index >= 0 && index < authorityEnd) {
+				authorityEnd = index;
 			}
 		}
+		// user info is case sensitive
+		int hostStart = url.lastIndexOf('@', authorityEnd - 1) + 1;
+		if (hostStart < authorityStart) {
+			hostStart = authorityStart;
+		}
+
+		return url.substring(0, schemeEnd).toLowerCase(Locale.US) + url.substring(schemeEnd, hostStart)
+				+ url.substring(hostStart, authorityEnd).toLowerCase(Locale.US) + url.substring(authorityEnd);
+	}
+
+	/**
+	 * Returns the index of all Selenium resources of the Selenium module.
+	 * 
+	 * @return The index of all Selenium resources, or <code>null</code> if the Selenium module is not available.
+	 */
+	public static SeleniumResourceRegistry getResourceRegistry() {
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		return module == null ? null : module.getResourceRegistry();
+	}
+
+	/**
+	 * Returns a map from the original URLs of all Selenium resources to the IDs of the resource groups containing them.
+	 * 
+	 * @return A map from the original URLs of all Selenium resources to the IDs of their resource groups.
+	 */
+	public static Map<String, Integer> getGroupIdsByUrl() {
+		SeleniumResourceRegistry registry = getResourceRegistry();
+		return registry == null ? Collections.<String, Integer> emptyMap() : registry.getGroupIdsByUrl();
+	}
 
+	/**
+	 * Returns the ID of the resource group containing the Selenium resource with the given original URL.
+	 * 
+	 * @param url
+	 *            Original URL of the Selenium resource.
+	 * @return The ID of the resource group containing the resource, or <code>null</code> if there is no such resource.
+	 */
+	public static Integer getGroupId(String url) {
+		SeleniumResourceRegistry registry = getResourceRegistry();
+		return registry == null ? null : registry.getGroupId(url);
 	}
 
 }
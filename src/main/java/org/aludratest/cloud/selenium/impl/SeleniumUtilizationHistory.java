@@ -0,0 +1,699 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aludratest.cloud.resource.Resource;
+import org.aludratest.cloud.resource.ResourceListener;
+import org.aludratest.cloud.resource.ResourceState;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent utilization history of all Selenium resources. State transitions and per-minute utilization samples are appended
+ * as fixed-size binary records to a memory-mapped ring file, so disk usage is bounded by the configured file size and the
+ * oldest records are overwritten first. <br>
+ * State changes are only enqueued on the calling thread; a single background thread writes them to the file. As records are
+ * written in chronological order, queries locate their time range by binary search and only scan the records within the range.
+ * <br>
+ * Records refer to resources by a stable ID, which is the position of the resource URL in an index file next to the ring file.
+ * Queries read the ring without locking; records which the writer starts to overwrite while they are read are discarded.
+ * 
+ */
+public final class SeleniumUtilizationHistory implements ResourceListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumUtilizationHistory.class);
+
+	private static final int MAGIC = 0x53454c55; // "SELU"
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int RECORD_SIZE = 32;
+
+	// header layout
+	private static final int HEADER_OFFSET_MAGIC = 0;
+
+	private static final int HEADER_OFFSET_VERSION = 4;
+
+	private static final int HEADER_OFFSET_RECORD_SIZE = 8;
+
+	private static final int HEADER_OFFSET_CAPACITY = 12;
+
+	private static final int HEADER_OFFSET_WRITTEN = 16;
+
+	private static final int HEADER_OFFSET_RESOURCE_COUNT = 24;
+
+	// record layout
+	private static final int RECORD_OFFSET_TIME = 0;
+
+	private static final int RECORD_OFFSET_RESOURCE = 8;
+
+	private static final int RECORD_OFFSET_GROUP = 12;
+
+	private static final int RECORD_OFFSET_TYPE = 16;
+
+	private static final int RECORD_OFFSET_OLD_STATE = 17;
+
+	private static final int RECORD_OFFSET_NEW_STATE = 18;
+
+	private static final int RECORD_OFFSET_VALUE = 20;
+
+	private static final int RECORD_OFFSET_DURATION = 24;
+
+	private static final byte TYPE_TRANSITION = 1;
+
+	private static final byte TYPE_SAMPLE = 2;
+
+	private static final int NO_GROUP = -1;
+
+	private static final int MAX_BUCKETS = 10000;
+
+	private static final int QUEUE_CAPACITY = 100000;
+
+	private final File file;
+
+	private final File indexFile;
+
+	private final int capacity;
+
+	private RandomAccessFile randomAccessFile;
+
+	private MappedByteBuffer buffer;
+
+	private final AtomicLong written = new AtomicLong();
+
+	/* index of the record currently being written; queries discard records it may have overwritten while they read them */
+	private final AtomicLong writing = new AtomicLong(-1);
+
+	/* IDs are only assigned by the writer thread; the ID of a URL is its position in the index file */
+	private final Map<String, Integer> resourceIds = new ConcurrentHashMap<String, Integer>();
+
+	private DataOutputStream indexOut;
+
+	private final BlockingQueue<HistoryEvent> queue = new LinkedBlockingQueue<HistoryEvent>(QUEUE_CAPACITY);
+
+	private final AtomicLong droppedEvents = new AtomicLong();
+
+	private Thread writerThread;
+
+	private volatile boolean closed;
+
+	// only accessed by writer thread
+	private final Map<String, ResourceUsage> usages = new HashMap<String, ResourceUsage>();
+
+	private Map<String, Integer> groupIdsByUrl = Collections.emptyMap();
+
+	private long windowStart = System.currentTimeMillis();
+
+	private long lastTimestamp;
+
+	/**
+	 * Creates a new utilization history using the given ring file. If the file does not exist or does not match the given size,
+	 * or if the index file of its resources is missing or incomplete, both are (re-)initialized.
+	 * 
+	 * @param file
+	 *            File to store the history in.
+	 * @param sizeMb
+	 *            Maximum size of the file, in megabytes.
+	 * 
+	 * @throws IOException
+	 *             If the file could not be opened or created.
+	 */
+	SeleniumUtilizationHistory(File file, int sizeMb) throws IOException {
+		this.file = file;
+		this.indexFile = new File(file.getPath() + ".urls");
+		long size = Math.min(Math.max(1, sizeMb), 1024) * 1024l * 1024l;
+		this.capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+
+		long fileSize = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean valid = randomAccessFile.length() == fileSize;
+		if (!valid) {
+			randomAccessFile.setLength(fileSize);
+		}
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+		valid = valid && buffer.getInt(HEADER_OFFSET_MAGIC) == MAGIC && buffer.getInt(HEADER_OFFSET_VERSION) == VERSION
+				&& buffer.getInt(HEADER_OFFSET_RECORD_SIZE) == RECORD_SIZE && buffer.getInt(HEADER_OFFSET_CAPACITY) == capacity;
+		if (valid && !loadResourceIds(buffer.getInt(HEADER_OFFSET_RESOURCE_COUNT))) {
+			LOG.warn("Resource index " + indexFile + " of Selenium utilization history is incomplete, discarding history");
+			resourceIds.clear();
+			valid = false;
+		}
+		if (valid) {
+			written.set(buffer.getLong(HEADER_OFFSET_WRITTEN));
+			if (written.get() > 0) {
+				lastTimestamp = getTimestamp(written.get() - 1);
+			}
+		}
+		else {
+			LOG.info("Initializing Selenium utilization history file " + file);
+			buffer.putInt(HEADER_OFFSET_MAGIC, MAGIC);
+			buffer.putInt(HEADER_OFFSET_VERSION, VERSION);
+			buffer.putInt(HEADER_OFFSET_RECORD_SIZE, RECORD_SIZE);
+			buffer.putInt(HEADER_OFFSET_CAPACITY, capacity);
+			buffer.putLong(HEADER_OFFSET_WRITTEN, 0);
+			buffer.putInt(HEADER_OFFSET_RESOURCE_COUNT, 0);
+		}
+		indexOut = new DataOutputStream(new FileOutputStream(indexFile, valid));
+	}
+
+	/**
+	 * Reads the URLs of the index file, and truncates a URL which has only partially been appended before a crash.
+	 * 
+	 * @return <code>true</code> if the index file contains at least the given number of URLs, <code>false</code> otherwise.
+	 */
+	private boolean loadResourceIds(int expectedCount) throws IOException {
+		if (!indexFile.isFile()) {
+			return expectedCount == 0;
+		}
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		try {
+			long length = 0;
+			try {
+				while (length < index.length()) {
+					String url = index.readUTF();
+					resourceIds.put(url, Integer.valueOf(resourceIds.size()));
+					length = index.getFilePointer();
+				}
+			}
+			catch (EOFException e) {
+				// URL was not completely written, so no record refers to it
+			}
+			index.setLength(length);
+		}
+		finally {
+			IOUtils.closeQuietly(index);
+		}
+		return resourceIds.size() >= expectedCount;
+	}
+
+	/**
+	 * Starts the background writer thread.
+	 */
+	void start() {
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+		writerThread.setName("Selenium Utilization History Writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Stops the background writer thread after all pending events have been written, and closes the ring file.
+	 */
+	void close() {
+		closed = true;
+		if (writerThread != null) {
+			writerThread.interrupt();
+			try {
+				writerThread.join(5000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			buffer.force();
+			IOUtils.closeQuietly(randomAccessFile);
+			IOUtils.closeQuietly(indexOut);
+		}
+	}
+
+	@Override
+	public void resourceStateChanged(Resource resource, ResourceState previousState, ResourceState newState) {
+		if (resource instanceof SeleniumResourceImpl) {
+			enqueue(new HistoryEvent(System.currentTimeMillis(), ((SeleniumResourceImpl) resource).getOriginalUrl(),
+					previousState, newState));
+		}
+	}
+
+	/**
+	 * Notifies the history that a resource has been removed, so no further utilization samples are recorded for it.
+	 * 
+	 * @param resource
+	 *            Resource which has been removed.
+	 */
+	void resourceRemoved(SeleniumResourceImpl resource) {
+		enqueue(new HistoryEvent(System.currentTimeMillis(), resource.getOriginalUrl(), null, null));
+	}
+
+	/**
+	 * Triggers recording of a utilization sample for every known resource, covering the time since the previous sample. This is
+	 * invoked once a minute by the Selenium Proxy Server.
+	 */
+	void sample() {
+		enqueue(new HistoryEvent(System.currentTimeMillis(), null, null, null));
+	}
+
+	private void enqueue(HistoryEvent event) {
+		if (closed || !queue.offer(event)) {
+			droppedEvents.incrementAndGet();
+		}
+	}
+
+	public long getDroppedEventCount() {
+		return droppedEvents.get();
+	}
+
+	/**
+	 * Returns the number of records currently stored in the history.
+	 * 
+	 * @return The number of records currently stored in the history.
+	 */
+	public long getRecordCount() {
+		return Math.min(written.get(), capacity);
+	}
+
+	/**
+	 * Returns the averaged utilization of all resources of the given group, downsampled to buckets of the given resolution.
+	 * Buckets without any utilization sample are omitted.
+	 * 
+	 * @param groupId
+	 *            ID of the resource group.
+	 * @param from
+	 *            Start of the time range, in milliseconds since epoch (inclusive).
+	 * @param to
+	 *            End of the time range, in milliseconds since epoch (exclusive).
+	 * @param resolutionMillis
+	 *            Length of a single bucket, in milliseconds. Is increased if the time range would result in too many buckets.
+	 * 
+	 * @return The utilization buckets, in chronological order.
+	 */
+	public List<UtilizationBucket> getGroupUtilization(int groupId, long from, long to, long resolutionMillis) {
+		return getUtilization(false, 0, groupId, from, to, resolutionMillis);
+	}
+
+	/**
+	 * Returns the utilization of the given resource, downsampled to buckets of the given resolution. Buckets without any
+	 * utilization sample are omitted.
+	 * 
+	 * @param resourceUrl
+	 *            Original URL of the resource.
+	 * @param from
+	 *            Start of the time range, in milliseconds since epoch (inclusive).
+	 * @param to
+	 *            End of the time range, in milliseconds since epoch (exclusive).
+	 * @param resolutionMillis
+	 *            Length of a single bucket, in milliseconds. Is increased if the time range would result in too many buckets.
+	 * 
+	 * @return The utilization buckets, in chronological order.
+	 */
+	public List<UtilizationBucket> getResourceUtilization(String resourceUrl, long from, long to, long resolutionMillis) {
+		Integer resourceId = resourceIds.get(resourceUrl);
+		if (resourceId == null) {
+			return Collections.emptyList();
+		}
+		return getUtilization(true, resourceId.intValue(), NO_GROUP, from, to, resolutionMillis);
+	}
+
+	/**
+	 * Returns the recorded state transitions of the given resource within the given time range.
+	 * 
+	 * @param resourceUrl
+	 *            Original URL of the resource.
+	 * @param from
+	 *            Start of the time range, in milliseconds since epoch (inclusive).
+	 * @param to
+	 *            End of the time range, in milliseconds since epoch (exclusive).
+	 * 
+	 * @return The state transitions, in chronological order.
+	 */
+	public List<StateTransition> getStateTransitions(String resourceUrl, long from, long to) {
+		Integer resourceId = resourceIds.get(resourceUrl);
+		if (resourceId == null) {
+			return Collections.emptyList();
+		}
+		List<StateTransition> result = new ArrayList<StateTransition>();
+		ResourceState[] states = ResourceState.values();
+
+		long end = written.get();
+		for (long i = findFirst(from, end); i < end; i++) {
+			int offset = recordOffset(i);
+			long time = buffer.getLong(offset + RECORD_OFFSET_TIME);
+			byte type = buffer.get(offset + RECORD_OFFSET_TYPE);
+			int id = buffer.getInt(offset + RECORD_OFFSET_RESOURCE);
+			byte oldState = buffer.get(offset + RECORD_OFFSET_OLD_STATE);
+			byte newState = buffer.get(offset + RECORD_OFFSET_NEW_STATE);
+			if (isOverwritten(i)) {
+				continue;
+			}
+			if (time >= to) {
+				break;
+			}
+			if (type == TYPE_TRANSITION && id == resourceId.intValue()) {
+				result.add(new StateTransition(time, states[oldState], states[newState]));
+			}
+		}
+
+		return result;
+	}
+
+	private List<UtilizationBucket> getUtilization(boolean byResource, int resourceId, int groupId, long from, long to,
+			long resolutionMillis) {
+		if (to <= from) {
+			return Collections.emptyList();
+		}
+		long resolution = Math.max(resolutionMillis, (to - from + MAX_BUCKETS - 1) / MAX_BUCKETS);
+		resolution = Math.max(resolution, 1);
+		int bucketCount = (int) ((to - from + resolution - 1) / resolution);
+
+		long[] sums = new long[bucketCount];
+		int[] counts = new int[bucketCount];
+
+		long end = written.get();
+		for (long i = findFirst(from, end); i < end; i++) {
+			int offset = recordOffset(i);
+			long time = buffer.getLong(offset + RECORD_OFFSET_TIME);
+			byte type = buffer.get(offset + RECORD_OFFSET_TYPE);
+			int key = buffer.getInt(offset + (byResource ? RECORD_OFFSET_RESOURCE : RECORD_OFFSET_GROUP));
+			int value = buffer.getInt(offset + RECORD_OFFSET_VALUE);
+			if (isOverwritten(i) || time < from) {
+				continue;
+			}
+			if (time >= to) {
+				break;
+			}
+			if (type != TYPE_SAMPLE || key != (byResource ? resourceId : groupId)) {
+				continue;
+			}
+			int bucket = (int) ((time - from) / resolution);
+			sums[bucket] += value;
+			counts[bucket]++;
+		}
+
+		List<UtilizationBucket> result = new ArrayList<UtilizationBucket>();
+		for (int i = 0; i < bucketCount; i++) {
+			if (counts[i] > 0) {
+				result.add(new UtilizationBucket(from + i * resolution, sums[i] / (counts[i] * 1000.0), counts[i]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the logical index of the first record with a timestamp not lower than the given time, by binary search over the
+	 * records still contained in the ring.
+	 */
+	private long findFirst(long time, long end) {
+		long low = Math.max(0, end - capacity);
+		long high = end;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (getTimestamp(mid) < time) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private long getTimestamp(long index) {
+		long time = buffer.getLong(recordOffset(index) + RECORD_OFFSET_TIME);
+		// an overwritten record is older than all records in the ring
+		return isOverwritten(index) ? Long.MIN_VALUE : time;
+	}
+
+	/*
+	 * Seqlock check, to be called after the fields of the record have been read: the writer announces the index of a record
+	 * before writing it, so a record which is (partially) overwritten while it is read is detected here and must be discarded.
+	 */
+	private boolean isOverwritten(long index) {
+		return writing.get() >= index + capacity;
+	}
+
+	private int recordOffset(long index) {
+		return HEADER_SIZE + (int) (index % capacity) * RECORD_SIZE;
+	}
+
+	private void writeLoop() {
+		while (true) {
+			HistoryEvent event;
+			try {
+				event = closed ? queue.poll() : queue.poll(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				if (closed) {
+					continue;
+				}
+				return;
+			}
+			if (event == null) {
+				if (closed) {
+					return;
+				}
+				continue;
+			}
+
+			try {
+				handleEvent(event);
+			}
+			catch (Throwable t) {
+				LOG.warn("Could not write Selenium utilization history record", t);
+			}
+		}
+	}
+
+	private void handleEvent(HistoryEvent event) throws IOException {
+		// keep records in chronological order, even if events from different threads overtook each other
+		long time = Math.max(event.time, lastTimestamp);
+
+		if (event.resourceUrl == null) {
+			writeSamples(time);
+			return;
+		}
+
+		if (event.newState == null) {
+			usages.remove(event.resourceUrl);
+			return;
+		}
+
+		ResourceUsage usage = usages.get(event.resourceUrl);
+		if (usage == null) {
+			usages.put(event.resourceUrl, usage = new ResourceUsage());
+			usage.state = event.previousState;
+			usage.stateSince = windowStart;
+		}
+		usage.changeState(event.newState, time, windowStart);
+
+		writeRecord(time, getResourceId(event.resourceUrl), getGroupId(event.resourceUrl), TYPE_TRANSITION,
+				event.previousState, event.newState, 0, 0);
+	}
+
+	private void writeSamples(long time) throws IOException {
+		// refresh group assignments once per sample round
+		try {
+			groupIdsByUrl = SeleniumUtil.getGroupIdsByUrl();
+		}
+		catch (RuntimeException e) {
+			LOG.debug("Could not determine resource groups for utilization history", e);
+		}
+
+		long windowLength = time - windowStart;
+		if (windowLength > 0) {
+			for (Map.Entry<String, ResourceUsage> entry : usages.entrySet()) {
+				ResourceUsage usage = entry.getValue();
+				usage.changeState(usage.state, time, windowStart);
+				int permille = (int) Math.min(1000, usage.inUseMillis * 1000 / windowLength);
+				writeRecord(time, getResourceId(entry.getKey()), getGroupId(entry.getKey()), TYPE_SAMPLE, usage.state, usage.state,
+						permille, (int) Math.min(Integer.MAX_VALUE, windowLength));
+				usage.inUseMillis = 0;
+			}
+		}
+		windowStart = time;
+
+		synchronized (this) {
+			if (!closed) {
+				buffer.force();
+			}
+		}
+	}
+
+	private int getGroupId(String resourceUrl) {
+		Integer groupId = groupIdsByUrl.get(resourceUrl);
+		return groupId == null ? NO_GROUP : groupId.intValue();
+	}
+
+	private int getResourceId(String resourceUrl) throws IOException {
+		Integer resourceId = resourceIds.get(resourceUrl);
+		if (resourceId == null) {
+			// the URL must be in the index before any record refers to its ID
+			indexOut.writeUTF(resourceUrl);
+			indexOut.flush();
+			resourceId = Integer.valueOf(resourceIds.size());
+			resourceIds.put(resourceUrl, resourceId);
+			buffer.putInt(HEADER_OFFSET_RESOURCE_COUNT, resourceIds.size());
+		}
+		return resourceId.intValue();
+	}
+
+	private void writeRecord(long time, int resourceId, int groupId, byte type, ResourceState oldState, ResourceState newState,
+			int value, int duration) {
+		long index = written.get();
+		int offset = recordOffset(index);
+		writing.set(index);
+		buffer.putLong(offset + RECORD_OFFSET_TIME, time);
+		buffer.putInt(offset + RECORD_OFFSET_RESOURCE, resourceId);
+		buffer.putInt(offset + RECORD_OFFSET_GROUP, groupId);
+		buffer.put(offset + RECORD_OFFSET_TYPE, type);
+		buffer.put(offset + RECORD_OFFSET_OLD_STATE, (byte) (oldState == null ? 0 : oldState.ordinal()));
+		buffer.put(offset + RECORD_OFFSET_NEW_STATE, (byte) (newState == null ? 0 : newState.ordinal()));
+		buffer.putInt(offset + RECORD_OFFSET_VALUE, value);
+		buffer.putInt(offset + RECORD_OFFSET_DURATION, duration);
+
+		lastTimestamp = time;
+		buffer.putLong(HEADER_OFFSET_WRITTEN, index + 1);
+		written.set(index + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "Selenium utilization history @ " + file;
+	}
+
+	private static class HistoryEvent {
+
+		private final long time;
+
+		private final String resourceUrl;
+
+		private final ResourceState previousState;
+
+		private final ResourceState newState;
+
+		private HistoryEvent(long time, String resourceUrl, ResourceState previousState, ResourceState newState) {
+			this.time = time;
+			this.resourceUrl = resourceUrl;
+			this.previousState = previousState;
+			this.newState = newState;
+		}
+	}
+
+	private static class ResourceUsage {
+
+		private ResourceState state;
+
+		private long stateSince;
+
+		private long inUseMillis;
+
+		private void changeState(ResourceState newState, long time, long windowStart) {
+			if (state == ResourceState.IN_USE) {
+				inUseMillis += Math.max(0, time - Math.max(stateSince, windowStart));
+			}
+			state = newState;
+			stateSince = time;
+		}
+	}
+
+	/**
+	 * A downsampled utilization value for a time bucket.
+	 */
+	public static final class UtilizationBucket {
+
+		private final long startTime;
+
+		private final double utilization;
+
+		private final int sampleCount;
+
+		private UtilizationBucket(long startTime, double utilization, int sampleCount) {
+			this.startTime = startTime;
+			this.utilization = utilization;
+			this.sampleCount = sampleCount;
+		}
+
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * Returns the average share of time the resources were IN_USE during this bucket, between 0 and 1.
+		 * 
+		 * @return The average share of time the resources were IN_USE during this bucket, between 0 and 1.
+		 */
+		public double getUtilization() {
+			return utilization;
+		}
+
+		public int getSampleCount() {
+			return sampleCount;
+		}
+	}
+
+	/**
+	 * A recorded state transition of a resource.
+	 */
+	public static final class StateTransition {
+
+		private final long time;
+
+		private final ResourceState previousState;
+
+		private final ResourceState newState;
+
+		private StateTransition(long time, ResourceState previousState, ResourceState newState) {
+			this.time = time;
+			this.previousState = previousState;
+			this.newState = newState;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public ResourceState getPreviousState() {
+			return previousState;
+		}
+
+		public ResourceState getNewState() {
+			return newState;
+		}
+	}
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl.rest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.config.ConfigException;
+import org.aludratest.cloud.resourcegroup.ResourceGroup;
+import org.aludratest.cloud.resourcegroup.StaticResourceGroupAdmin;
+import org.aludratest.cloud.rest.AbstractRestConnector;
+import org.aludratest.cloud.rest.RestConnector;
+import org.aludratest.cloud.selenium.SeleniumResourceType;
+import org.aludratest.cloud.selenium.config.ClientEntry;
+import org.aludratest.cloud.selenium.impl.SeleniumProxyServer;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceGroup;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceImpl;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceModule;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceRegistry;
+import org.aludratest.cloud.selenium.impl.SeleniumUtil;
+import org.codehaus.plexus.component.annotations.Component;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * REST endpoint for importing and exporting the Selenium resources of a group in bulk. An import accepts a JSON object with a
+ * <code>urls</code> array (or a plain JSON array), or a CSV file whose first column contains the URLs. All URLs are validated
+ * and de-duplicated against the index of all Selenium resources first, optionally probed for reachability in parallel, and
+ * then added with one single change of the group configuration. The response contains the result of every entry. <br>
+ * The export returns the configured resources of the group as CSV, which can be imported again.
+ * 
+ */
+@Component(role = RestConnector.class, hint = "selenium-resource-bulk")
+@Path("/groups/{groupId: [0-9]{1,10}}/selenium/resources/bulk")
+public class SeleniumBulkResourceEndpoint extends AbstractRestConnector {
+
+	private static final String CSV_TYPE = "text/csv";
+
+	private static final String TEXT_TYPE = "text/plain";
+
+	private static final int DEFAULT_PROBE_TIMEOUT_SECONDS = 5;
+
+	private static final String STATUS_ADDED = "added";
+
+	private static final String STATUS_INVALID = "invalid";
+
+	private static final String STATUS_DUPLICATE = "duplicate";
+
+	private static final String STATUS_EXISTS = "exists";
+
+	private static final String STATUS_UNREACHABLE = "unreachable";
+
+	@GET
+	@Produces(CSV_TYPE)
+	public Response exportResources(@PathParam("groupId") int groupId) {
+		SeleniumResourceGroup group = getGroup(groupId);
+		if (group == null) {
+			return Response.status(HttpServletResponse.SC_NOT_FOUND).build();
+		}
+
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		StringBuilder csv = new StringBuilder("url,state,maintenanceMode\n");
+		for (ClientEntry ce : getAdmin(group).getConfiguredResources()) {
+			// the registry knows resources by their URL as configured, without trailing slash
+			String url = ce.getSeleniumUrl() == null ? "" : ce.getSeleniumUrl().trim();
+			while (url.endsWith("/")) {
+				url = url.substring(0, url.length() - 1);
+			}
+			SeleniumResourceImpl res = registry == null ? null : registry.getResourceByUrl(url);
+			csv.append(toCsvValue(url)).append(',');
+			if (res != null) {
+				csv.append(res.getState().name()).append(',').append(res.isInMaintenanceMode());
+			}
+			else {
+				csv.append(',');
+			}
+			csv.append('\n');
+		}
+
+		return Response.ok(csv.toString(), CSV_TYPE).build();
+	}
+
+	@POST
+	@Consumes(JSON_TYPE)
+	@Produces(JSON_TYPE)
+	public Response importResourcesFromJson(@PathParam("groupId") int groupId, @QueryParam("probe") Boolean probe,
+			@QueryParam("timeout") Integer timeoutSeconds, String body) throws JSONException {
+		List<String> urls = new ArrayList<String>();
+		try {
+			String trimmed = body == null ? "" : body.trim();
+			JSONArray arr = trimmed.startsWith("[") ? new JSONArray(trimmed) : new JSONObject(trimmed).getJSONArray("urls");
+			for (int i = 0; i < arr.length(); i++) {
+				urls.add(arr.getString(i));
+			}
+		}
+		catch (JSONException e) {
+			return createErrorObject(new IllegalArgumentException(
+					"Request body must be a JSON array of URLs or an object with a \"urls\" array: " + e.getMessage()));
+		}
+
+		return importResources(groupId, urls, probe, timeoutSeconds);
+	}
+
+	@POST
+	@Consumes({ CSV_TYPE, TEXT_TYPE })
+	@Produces(JSON_TYPE)
+	public Response importResourcesFromCsv(@PathParam("groupId") int groupId, @QueryParam("probe") Boolean probe,
+			@QueryParam("timeout") Integer timeoutSeconds, String body) throws JSONException {
+		List<String> urls;
+		try {
+			urls = parseCsv(body == null ? "" : body);
+		}
+		catch (IOException e) {
+			return createErrorObject(e);
+		}
+
+		return importResources(groupId, urls, probe, timeoutSeconds);
+	}
+
+	private Response importResources(int groupId, List<String> urls, Boolean probe, Integer timeoutSeconds)
+			throws JSONException {
+		SeleniumResourceGroup group = getGroup(groupId);
+		if (group == null) {
+			return Response.status(HttpServletResponse.SC_NOT_FOUND).build();
+		}
+		if (timeoutSeconds != null && timeoutSeconds.intValue() <= 0) {
+			return createErrorObject(new IllegalArgumentException("timeout must be a positive number of seconds"));
+		}
+
+		StaticResourceGroupAdmin<ClientEntry> admin = getAdmin(group);
+
+		// one pass over the configuration of this group and over all registered resources, instead of one per imported URL;
+		// all URLs are compared in their normalized form
+		Set<String> knownUrls = new HashSet<String>();
+		for (ClientEntry ce : admin.getConfiguredResources()) {
+			knownUrls.add(SeleniumUtil.normalizeUrl(ce.getSeleniumUrl()));
+		}
+		Set<String> registeredUrls = new HashSet<String>();
+		for (String url : SeleniumUtil.getGroupIdsByUrl().keySet()) {
+			registeredUrls.add(SeleniumUtil.normalizeUrl(url));
+		}
+
+		Map<String, JSONObject> results = new LinkedHashMap<String, JSONObject>();
+		List<JSONObject> report = new ArrayList<JSONObject>();
+		List<String> candidates = new ArrayList<String>();
+		for (String rawUrl : urls) {
+			String url = SeleniumUtil.normalizeUrl(rawUrl);
+			JSONObject result = new JSONObject();
+			result.put("url", url);
+			report.add(result);
+
+			if (results.containsKey(url)) {
+				setResult(result, STATUS_DUPLICATE, "URL is contained more than once in the import.");
+				continue;
+			}
+			results.put(url, result);
+
+			String message = validateUrl(url);
+			if (message != null) {
+				setResult(result, STATUS_INVALID, message);
+			}
+			else if (knownUrls.contains(url)) {
+				setResult(result, STATUS_EXISTS, "This URL already exists in this resource group.");
+			}
+			else if (registeredUrls.contains(url)) {
+				setResult(result, STATUS_EXISTS, "This URL already exists in another Selenium resource group.");
+			}
+			else {
+				candidates.add(url);
+			}
+		}
+
+		if (probe != null && probe.booleanValue() && !candidates.isEmpty()) {
+			SeleniumProxyServer proxyServer = getProxyServer();
+			if (proxyServer == null) {
+				return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+			}
+			Map<String, String> failures;
+			try {
+				failures = proxyServer.probeReachability(candidates,
+						(timeoutSeconds == null ? DEFAULT_PROBE_TIMEOUT_SECONDS : timeoutSeconds.intValue()) * 1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+			}
+			List<String> reachable = new ArrayList<String>();
+			for (String url : candidates) {
+				String failure = failures.get(url);
+				if (failure != null) {
+					setResult(results.get(url), STATUS_UNREACHABLE, failure);
+				}
+				else {
+					reachable.add(url);
+				}
+			}
+			candidates = reachable;
+		}
+
+		if (!candidates.isEmpty()) {
+			for (String url : candidates) {
+				ClientEntry ce = admin.addResource();
+				ce.setSeleniumUrl(url);
+			}
+			try {
+				admin.commit();
+			}
+			catch (ConfigException e) {
+				return createErrorObject(e);
+			}
+			for (String url : candidates) {
+				setResult(results.get(url), STATUS_ADDED, null);
+			}
+		}
+
+		Map<String, Integer> summary = new LinkedHashMap<String, Integer>();
+		for (String status : new String[] { STATUS_ADDED, STATUS_EXISTS, STATUS_DUPLICATE, STATUS_INVALID, STATUS_UNREACHABLE }) {
+			summary.put(status, Integer.valueOf(0));
+		}
+		JSONArray arr = new JSONArray();
+		for (JSONObject result : report) {
+			String status = result.getString("status");
+			summary.put(status, Integer.valueOf(summary.get(status).intValue() + 1));
+			arr.put(result);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("results", arr);
+		JSONObject summaryObj = new JSONObject();
+		for (Map.Entry<String, Integer> entry : summary.entrySet()) {
+			summaryObj.put(entry.getKey(), entry.getValue().intValue());
+		}
+		result.put("summary", summaryObj);
+		return wrapResultObject(result);
+	}
+
+	private static void setResult(JSONObject result, String status, String message) throws JSONException {
+		result.put("status", status);
+		if (message != null) {
+			result.put("message", message);
+		}
+	}
+
+	private static String validateUrl(String url) {
+		if ("".equals(url)) {
+			return "Empty URL.";
+		}
+		try {
+			new URL(url);
+			return null;
+		}
+		catch (MalformedURLException e) {
+			return "This is not a valid URL. Please enter a valid HTTP URL.";
+		}
+	}
+
+	private static List<String> parseCsv(String csv) throws IOException {
+		List<String> urls = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new StringReader(csv));
+		String line;
+		boolean first = true;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if ("".equals(line) || line.startsWith("#")) {
+				continue;
+			}
+			String value = parseFirstCsvValue(line);
+			// skip header line, e.g. of a previous export
+			if (first && "url".equalsIgnoreCase(value)) {
+				first = false;
+				continue;
+			}
+			first = false;
+			urls.add(value);
+		}
+		return urls.isEmpty() ? Collections.<String> emptyList() : urls;
+	}
+
+	private static String parseFirstCsvValue(String line) {
+		if (!line.startsWith("\"")) {
+			int comma = line.indexOf(',');
+			return comma == -1 ? line : line.substring(0, comma);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					sb.append('"');
+					i++;
+				}
+				else {
+					break;
+				}
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String toCsvValue(String value) {
+		if (value.indexOf(',') == -1 && value.indexOf('"') == -1) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static SeleniumResourceGroup getGroup(int groupId) {
+		ResourceGroup group = CloudManagerApp.getInstance().getResourceGroupManager().getResourceGroup(groupId);
+		return group instanceof SeleniumResourceGroup ? (SeleniumResourceGroup) group : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static StaticResourceGroupAdmin<ClientEntry> getAdmin(SeleniumResourceGroup group) {
+		return group.getAdminInterface(StaticResourceGroupAdmin.class);
+	}
+
+	private static SeleniumProxyServer getProxyServer() {
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		return module == null ? null : module.getProxyServer();
+	}
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.aludratest.cloud.rest.AbstractRestConnector;
+import org.aludratest.cloud.rest.RestConnector;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed.Batch;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed.Event;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceRegistry;
+import org.aludratest.cloud.selenium.impl.SeleniumUtil;
+import org.codehaus.plexus.component.annotations.Component;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * REST endpoint streaming the state transitions, registrations and removals of all Selenium resources. Clients can either
+ * long-poll with JSON requests, passing the <code>lastSequence</code> of the previous response as <code>since</code>, or
+ * subscribe with <code>Accept: text/event-stream</code> (Server-Sent Events), where browsers resume automatically via the
+ * <code>Last-Event-ID</code> header. If a client falls behind, it receives coalesced events (one per resource) instead of
+ * all single transitions; see {@link SeleniumResourceChangeFeed}. If a client falls so far behind that it could have missed
+ * removals, it receives a reset (<code>"reset": true</code>, or a <code>reset</code> event) followed by the current state of
+ * all resources. <br>
+ * Every event stream occupies a container thread, so their number is limited, and each stream is closed after some minutes to
+ * be resumed by the client.
+ * 
+ */
+@Component(role = RestConnector.class, hint = "selenium-changes")
+@Path("/selenium/changes")
+public class SeleniumChangeFeedEndpoint extends AbstractRestConnector {
+
+	private static final String EVENT_STREAM_TYPE = "text/event-stream";
+
+	private static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+	private static final int MAX_TIMEOUT_SECONDS = 120;
+
+	private static final int DEFAULT_MAX_EVENTS = 1000;
+
+	private static final long SSE_KEEPALIVE_MILLIS = 15000;
+
+	private static final long SSE_MAX_STREAM_MILLIS = 10 * 60000;
+
+	private static final String SSE_RETRY_AFTER_SECONDS = "30";
+
+	@GET
+	@Produces(JSON_TYPE)
+	public Response getChanges(@QueryParam("since") Long since, @QueryParam("timeout") Integer timeoutSeconds,
+			@QueryParam("max") Integer maxEvents, @QueryParam("groupId") Integer groupId) throws JSONException {
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		if (registry == null) {
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+		}
+
+		int timeout = timeoutSeconds == null ? DEFAULT_TIMEOUT_SECONDS : Math.max(0,
+				Math.min(MAX_TIMEOUT_SECONDS, timeoutSeconds.intValue()));
+		int max = maxEvents == null || maxEvents.intValue() <= 0 ? DEFAULT_MAX_EVENTS : maxEvents.intValue();
+
+		Batch batch;
+		try {
+			batch = registry.getChangeFeed().read(since == null ? 0 : since.longValue(), max, timeout * 1000l);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+		}
+
+		JSONArray arr = new JSONArray();
+		for (Event event : batch.getEvents()) {
+			JSONObject obj = toJSON(event, groupId);
+			if (obj != null) {
+				arr.put(obj);
+			}
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("lastSequence", batch.getLastSequence());
+		result.put("coalesced", batch.isCoalesced());
+		result.put("reset", batch.isReset());
+		result.put("events", arr);
+
+		return wrapResultObject(result);
+	}
+
+	@GET
+	@Produces(EVENT_STREAM_TYPE)
+	public Response streamChanges(@QueryParam("since") Long since, @HeaderParam("Last-Event-ID") String lastEventId,
+			@QueryParam("max") Integer maxEvents, @QueryParam("groupId") final Integer groupId) {
+		final SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		if (registry == null) {
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+		}
+
+		long start = since == null ? 0 : since.longValue();
+		if (lastEventId != null) {
+			try {
+				start = Long.parseLong(lastEventId.trim());
+			}
+			catch (NumberFormatException e) {
+				return Response.status(HttpServletResponse.SC_BAD_REQUEST).build();
+			}
+		}
+		final long startSequence = start;
+		final int max = maxEvents == null || maxEvents.intValue() <= 0 ? DEFAULT_MAX_EVENTS : maxEvents.intValue();
+
+		final SeleniumResourceChangeFeed feed = registry.getChangeFeed();
+		if (!feed.addSubscriber()) {
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).header("Retry-After", SSE_RETRY_AFTER_SECONDS)
+					.build();
+		}
+
+		StreamingOutput output = new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException, WebApplicationException {
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				long sequence = startSequence;
+				long endTime = System.currentTimeMillis() + SSE_MAX_STREAM_MILLIS;
+				try {
+					// the client resumes with Last-Event-ID, so threads of vanished clients are not blocked forever
+					while (System.currentTimeMillis() < endTime) {
+						Batch batch = feed.read(sequence, max, SSE_KEEPALIVE_MILLIS);
+						if (batch.getEvents().isEmpty() && batch.getLastSequence() == sequence) {
+							// comment line, lets the client (and us) detect broken connections
+							writer.write(": keepalive\n\n");
+						}
+						if (batch.isReset()) {
+							writer.write("event: reset\ndata: {}\n\n");
+						}
+						for (Event event : batch.getEvents()) {
+							JSONObject obj = toJSON(event, groupId);
+							if (obj != null) {
+								writer.write("id: " + event.getSequence() + "\n");
+								writer.write("event: " + event.getType().name().toLowerCase(Locale.US) + "\n");
+								writer.write("data: " + obj.toString() + "\n\n");
+							}
+						}
+						if (batch.getLastSequence() != sequence) {
+							// events could have been filtered out; resume after them anyway
+							writer.write("id: " + batch.getLastSequence() + "\n\n");
+						}
+						writer.flush();
+						sequence = batch.getLastSequence();
+					}
+				}
+				catch (JSONException e) {
+					throw new IOException(e);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					feed.removeSubscriber();
+				}
+			}
+		};
+
+		return Response.ok(output, EVENT_STREAM_TYPE).header("Cache-Control", "no-cache").build();
+	}
+
+	private static JSONObject toJSON(Event event, Integer groupIdFilter) throws JSONException {
+		// group of the resource when the event happened, so removals and moves are attributed correctly
+		Integer groupId = event.getGroupId();
+		if (groupIdFilter != null && !groupIdFilter.equals(groupId)) {
+			return null;
+		}
+
+		JSONObject obj = new JSONObject();
+		obj.put("sequence", event.getSequence());
+		obj.put("type", event.getType().name());
+		obj.put("url", event.getUrl());
+		if (groupId != null) {
+			obj.put("groupId", groupId.intValue());
+		}
+		if (event.getPreviousState() != null) {
+			obj.put("previousState", event.getPreviousState().name());
+		}
+		if (event.getNewState() != null) {
+			obj.put("newState", event.getNewState().name());
+		}
+		obj.put("timestamp", event.getTimestamp());
+		obj.put("coalesced", event.isCoalesced());
+		return obj;
+	}
+
+}
@@ -15,6 +15,22 @@
  */
 package org.aludratest.cloud.selenium.impl.rest;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -26,10 +42,17 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.aludratest.cloud.app.CloudManagerApp;
 import org.aludratest.cloud.config.ConfigException;
+import org.aludratest.cloud.resource.ResourceState;
 import org.aludratest.cloud.resource.ResourceStateHolder;
 import org.aludratest.cloud.resourcegroup.ResourceGroup;
 import org.aludratest.cloud.resourcegroup.ResourceGroupManager;
@@ -39,19 +62,58 @@ import org.aludratest.cloud.rest.RestConnector;
 import org.aludratest.cloud.selenium.config.ClientEntry;
 import org.aludratest.cloud.selenium.impl.SeleniumResourceGroup;
 import org.aludratest.cloud.selenium.impl.SeleniumResourceImpl;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceRegistry;
 import org.aludratest.cloud.selenium.impl.SeleniumUtil;
 import org.codehaus.plexus.component.annotations.Component;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 
 @Component(role = RestConnector.class, hint = "selenium-resource")
 @Path("/groups/{groupId: [0-9]{1,10}}/selenium/resources")
 public class SeleniumResourceEndpoint extends AbstractRestConnector {
 
+	private static final String FIELD_STATE = "state";
+
+	private static final String FIELD_MAINTENANCE_MODE = "maintenanceMode";
+
+	private static final String FIELD_ACCESS_URL = "accessUrl";
+
+	private static final String FIELD_IDLE_TIME = "idleTime";
+
+	private static final String FIELD_SESSION_ID = "sessionId";
+
+	private static final Set<String> ALL_FIELDS = new HashSet<String>(Arrays.asList(FIELD_STATE, FIELD_MAINTENANCE_MODE,
+			FIELD_ACCESS_URL, FIELD_IDLE_TIME, FIELD_SESSION_ID));
+
+	/* placeholder for the resources array when determining the envelope of wrapResultObject */
+	private static final String RESOURCES_PLACEHOLDER = "@@selenium-resources@@";
+
+	private static final Comparator<SeleniumResourceImpl> URL_ORDER = new Comparator<SeleniumResourceImpl>() {
+		@Override
+		public int compare(SeleniumResourceImpl r1, SeleniumResourceImpl r2) {
+			return r1.getOriginalUrl().compareTo(r2.getOriginalUrl());
+		}
+	};
+
+	/**
+	 * Returns the Selenium resources of a group. The resources can be filtered by state (comma-separated list of states) and
+	 * by maintenance mode, and the returned fields can be restricted via the <code>fields</code> parameter (comma-separated);
+	 * the <code>url</code> field is always returned. If <code>limit</code> is specified, at most this number of resources is
+	 * returned, and the response contains a <code>nextCursor</code> value which can be passed as <code>cursor</code> to
+	 * retrieve the next page. Paged responses are ordered by URL, and the cursor contains the URL of the last returned
+	 * resource, so resources added or removed between two requests never cause others to be skipped or repeated. <br>
+	 * The response carries a weak ETag based on the version of the resource group, so clients polling with
+	 * <code>If-None-Match</code> receive <code>304 Not Modified</code> as long as no resource of the group has been added,
+	 * removed, changed its state or maintenance mode, or started a new session. Idle times are not covered by the ETag. <br>
+	 * The resources are written to the response one by one, so large groups are never held as JSON tree in memory.
+	 */
 	@GET
 	@Produces(JSON_TYPE)
-	public Response getResources(@PathParam("groupId") int groupId) throws JSONException {
+	public Response getResources(@PathParam("groupId") int groupId, @QueryParam("cursor") String cursor,
+			@QueryParam("limit") Integer limit, @QueryParam("state") String states,
+			@QueryParam("maintenance") Boolean maintenance, @QueryParam("fields") String fields, @Context Request request)
+			throws JSONException {
 		ResourceGroupManager manager = CloudManagerApp.getInstance().getResourceGroupManager();
 
 		ResourceGroup group = manager.getResourceGroup(groupId);
@@ -59,24 +121,162 @@ public class SeleniumResourceEndpoint extends AbstractRestConnector {
 			return Response.status(HttpServletResponse.SC_NOT_FOUND).build();
 		}
 
-		JSONArray arr = new JSONArray();
+		if (limit != null && limit.intValue() <= 0) {
+			return createErrorObject(new IllegalArgumentException("limit must be a positive number"));
+		}
+
+		Set<ResourceState> stateFilter;
+		Set<String> fieldSet;
+		try {
+			stateFilter = parseStates(states);
+			fieldSet = parseFields(fields);
+		}
+		catch (IllegalArgumentException e) {
+			return createErrorObject(e);
+		}
 
+		// read version before resources, so a concurrent change results in a new ETag for the next request
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		EntityTag tag = registry == null ? null : new EntityTag(registry.getGroupVersionTag(group), true);
+		if (tag != null && request != null) {
+			ResponseBuilder builder = request.evaluatePreconditions(tag);
+			if (builder != null) {
+				return builder.build();
+			}
+		}
+
+		List<SeleniumResourceImpl> resources = new ArrayList<SeleniumResourceImpl>();
 		for (ResourceStateHolder rsh : group.getResourceCollection()) {
-			if (!(rsh instanceof SeleniumResourceImpl)) {
-				continue;
+			if (rsh instanceof SeleniumResourceImpl) {
+				resources.add((SeleniumResourceImpl) rsh);
 			}
+		}
 
-			SeleniumResourceImpl res = (SeleniumResourceImpl) rsh;
-			JSONObject obj = new JSONObject();
-			obj.put("url", res.getOriginalUrl());
-			// TODO add name as soon as available
-			arr.put(obj);
+		String afterUrl = null;
+		if (limit != null || (cursor != null && !"".equals(cursor))) {
+			Collections.sort(resources, URL_ORDER);
+			try {
+				afterUrl = cursor == null || "".equals(cursor) ? null : decodeCursor(cursor);
+			}
+			catch (IllegalArgumentException e) {
+				return createErrorObject(e);
+			}
 		}
 
+		// let wrapResultObject produce the envelope, so the response has the same shape as all other endpoints
 		JSONObject result = new JSONObject();
-		result.put("resources", arr);
+		result.put("resources", RESOURCES_PLACEHOLDER);
+		Response envelope = wrapResultObject(result);
+		String envelopeJson = envelope.getEntity() == null ? "" : envelope.getEntity().toString();
+		String placeholder = JSONObject.quote(RESOURCES_PLACEHOLDER);
+		int index = envelopeJson.indexOf(placeholder);
+		if (index < 0) {
+			throw new IllegalStateException("Unexpected result envelope: " + envelopeJson);
+		}
+
+		StreamingOutput output = new ResourcesOutput(resources, envelopeJson.substring(0, index),
+				envelopeJson.substring(index + placeholder.length()), afterUrl, limit, stateFilter, maintenance, fieldSet);
+		ResponseBuilder builder = Response.fromResponse(envelope).entity(output);
+		if (tag != null) {
+			builder.tag(tag);
+		}
+		return builder.build();
+	}
+
+	private static void writeResource(JSONWriter writer, SeleniumResourceImpl res, Set<String> fields) throws JSONException {
+		writer.object();
+		writer.key("url").value(res.getOriginalUrl());
+		// TODO add name as soon as available
+		if (fields.contains(FIELD_STATE)) {
+			writer.key(FIELD_STATE).value(res.getState().name());
+		}
+		if (fields.contains(FIELD_MAINTENANCE_MODE)) {
+			writer.key(FIELD_MAINTENANCE_MODE).value(res.isInMaintenanceMode());
+		}
+		String accessUrl = res.getSeleniumUrl();
+		if (fields.contains(FIELD_ACCESS_URL) && accessUrl != null) {
+			writer.key(FIELD_ACCESS_URL).value(accessUrl);
+		}
+		if (fields.contains(FIELD_IDLE_TIME) && res.getLastUsedTime() > 0) {
+			writer.key(FIELD_IDLE_TIME).value(res.getIdleTime());
+		}
+		String sessionId = res.getSeleniumSessionId();
+		if (fields.contains(FIELD_SESSION_ID) && sessionId != null) {
+			writer.key(FIELD_SESSION_ID).value(sessionId);
+		}
+		writer.endObject();
+	}
 
-		return wrapResultObject(result);
+	private static Set<ResourceState> parseStates(String states) {
+		if (states == null || "".equals(states.trim())) {
+			return null;
+		}
+		Set<ResourceState> result = EnumSet.noneOf(ResourceState.class);
+		for (String state : states.split(",")) {
+			try {
+				result.add(ResourceState.valueOf(state.trim().toUpperCase(Locale.US)));
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown resource state: " + state.trim());
+			}
+		}
+		return result;
+	}
+
+	private static Set<String> parseFields(String fields) {
+		if (fields == null || "".equals(fields.trim())) {
+			return ALL_FIELDS;
+		}
+		Set<String> result = new HashSet<String>();
+		for (String field : fields.split(",")) {
+			field = field.trim();
+			if ("url".equals(field)) {
+				continue;
+			}
+			if (!ALL_FIELDS.contains(field)) {
+				throw new IllegalArgumentException("Unknown field: " + field);
+			}
+			result.add(field);
+		}
+		return result;
+	}
+
+	/*
+	 * A cursor is the hex encoded URL of the last returned resource. The next page starts after this URL in URL order,
+	 * regardless of whether the resource still exists.
+	 */
+	private static String encodeCursor(String url) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : url.getBytes("UTF-8")) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported", e);
+		}
+	}
+
+	private static String decodeCursor(String cursor) {
+		if (cursor.length() % 2 != 0) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}
+		byte[] data = new byte[cursor.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			int high = Character.digit(cursor.charAt(i * 2), 16);
+			int low = Character.digit(cursor.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Invalid cursor: " + cursor);
+			}
+			data[i] = (byte) ((high << 4) | low);
+		}
+		try {
+			return new String(data, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported", e);
+		}
 	}
 
 	@DELETE
@@ -187,13 +387,85 @@ public class SeleniumResourceEndpoint extends AbstractRestConnector {
 		try {
 			action.perform(entry, admin);
 			admin.commit();
-			return getResources(groupId);
+			return getResources(groupId, null, null, null, null, null, null);
 		}
 		catch (ConfigException e) {
 			return createErrorObject(e);
 		}
 	}
 
+	/**
+	 * Writes the filtered page of resources between the prefix and suffix of the result envelope.
+	 */
+	private static final class ResourcesOutput implements StreamingOutput {
+
+		private final List<SeleniumResourceImpl> resources;
+
+		private final String envelopePrefix;
+
+		private final String envelopeSuffix;
+
+		private final String afterUrl;
+
+		private final Integer limit;
+
+		private final Set<ResourceState> stateFilter;
+
+		private final Boolean maintenance;
+
+		private final Set<String> fields;
+
+		private ResourcesOutput(List<SeleniumResourceImpl> resources, String envelopePrefix, String envelopeSuffix,
+				String afterUrl, Integer limit, Set<ResourceState> stateFilter, Boolean maintenance, Set<String> fields) {
+			this.resources = resources;
+			this.envelopePrefix = envelopePrefix;
+			this.envelopeSuffix = envelopeSuffix;
+			this.afterUrl = afterUrl;
+			this.limit = limit;
+			this.stateFilter = stateFilter;
+			this.maintenance = maintenance;
+			this.fields = fields;
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException, WebApplicationException {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.write(envelopePrefix);
+
+			String nextCursor = null;
+			String lastUrl = null;
+			int count = 0;
+			try {
+				JSONWriter json = new JSONWriter(writer);
+				json.array();
+				for (SeleniumResourceImpl res : resources) {
+					if ((afterUrl != null && res.getOriginalUrl().compareTo(afterUrl) <= 0)
+							|| (stateFilter != null && !stateFilter.contains(res.getState()))
+							|| (maintenance != null && maintenance.booleanValue() != res.isInMaintenanceMode())) {
+						continue;
+					}
+					if (limit != null && count == limit.intValue()) {
+						nextCursor = encodeCursor(lastUrl);
+						break;
+					}
+					writeResource(json, res, fields);
+					lastUrl = res.getOriginalUrl();
+					count++;
+				}
+				json.endArray();
+			}
+			catch (JSONException e) {
+				throw new IOException(e);
+			}
+
+			if (nextCursor != null) {
+				writer.write(",\"nextCursor\":" + JSONObject.quote(nextCursor));
+			}
+			writer.write(envelopeSuffix);
+			writer.flush();
+		}
+	}
+
 
 	private static interface SeleniumAdminAction {
 
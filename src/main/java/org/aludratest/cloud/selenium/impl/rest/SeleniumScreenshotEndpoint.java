@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.resource.ResourceStateHolder;
+import org.aludratest.cloud.resourcegroup.ResourceGroup;
+import org.aludratest.cloud.rest.AbstractRestConnector;
+import org.aludratest.cloud.rest.RestConnector;
+import org.aludratest.cloud.selenium.SeleniumResource;
+import org.aludratest.cloud.selenium.SeleniumResourceType;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceGroup;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceModule;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService.CaptureListener;
+import org.aludratest.cloud.selenium.impl.SeleniumScreenshotService.Screenshot;
+import org.apache.commons.codec.binary.Base64;
+import org.codehaus.plexus.component.annotations.Component;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * REST endpoint returning screenshot thumbnails of all Selenium resources of a group. Screenshots are captured in parallel
+ * by the screenshot service of the Selenium module, and the response is streamed: each screenshot is written and flushed as
+ * soon as its Selenium client answered, so clients can display the thumbnails progressively. Every screenshot is written on
+ * its own line within the <code>screenshots</code> array, and the <code>summary</code> object is written last.
+ * 
+ */
+@Component(role = RestConnector.class, hint = "selenium-screenshots")
+@Path("/groups/{groupId: [0-9]{1,10}}/selenium/screenshots")
+public class SeleniumScreenshotEndpoint extends AbstractRestConnector {
+
+	private static final String STATUS_OK = "ok";
+
+	private static final String STATUS_FAILED = "failed";
+
+	private static final String STATUS_TIMEOUT = "timeout";
+
+	@GET
+	@Produces(JSON_TYPE)
+	public Response getScreenshots(@PathParam("groupId") int groupId, @QueryParam("timeout") Integer timeoutSeconds,
+			@QueryParam("refresh") Boolean refresh) throws JSONException {
+		ResourceGroup group = CloudManagerApp.getInstance().getResourceGroupManager().getResourceGroup(groupId);
+		if (group == null || !(group instanceof SeleniumResourceGroup)) {
+			return Response.status(HttpServletResponse.SC_NOT_FOUND).build();
+		}
+
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		final SeleniumScreenshotService service = module.getProxyServer() == null ? null : module.getProxyServer()
+				.getScreenshotService();
+		if (service == null) {
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+		}
+
+		if (timeoutSeconds != null && timeoutSeconds.intValue() <= 0) {
+			return createErrorObject(new IllegalArgumentException("timeout must be a positive number of seconds"));
+		}
+
+		final List<SeleniumResource> resources = new ArrayList<SeleniumResource>();
+		for (ResourceStateHolder rsh : group.getResourceCollection()) {
+			if (rsh instanceof SeleniumResource) {
+				resources.add((SeleniumResource) rsh);
+			}
+		}
+
+		final long timeoutMillis = timeoutSeconds == null ? service.getGroupTimeoutMillis() : timeoutSeconds.intValue() * 1000l;
+		final boolean force = refresh != null && refresh.booleanValue();
+
+		StreamingOutput output = new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException, WebApplicationException {
+				try {
+					writeScreenshots(service, resources, timeoutMillis, force, new OutputStreamWriter(out, "UTF-8"));
+				}
+				catch (JSONException e) {
+					throw new IOException(e);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for screenshots");
+				}
+			}
+		};
+
+		return Response.ok(output, JSON_TYPE).build();
+	}
+
+	private static void writeScreenshots(SeleniumScreenshotService service, List<SeleniumResource> resources,
+			long timeoutMillis, boolean force, Writer writer) throws IOException, JSONException, InterruptedException {
+		final BlockingQueue<JSONObject> results = new LinkedBlockingQueue<JSONObject>();
+		service.requestScreenshots(resources, force, timeoutMillis, new CaptureListener() {
+			@Override
+			public void screenshotCaptured(SeleniumResource resource, Screenshot screenshot) {
+				try {
+					JSONObject obj = createEntry(resource, STATUS_OK);
+					obj.put("timestamp", screenshot.getTimestamp());
+					obj.put("contentType", screenshot.getContentType());
+					obj.put("image", Base64.encodeBase64String(screenshot.getImageData()));
+					results.add(obj);
+				}
+				catch (JSONException e) {
+					screenshotFailed(resource, e.getMessage());
+				}
+			}
+
+			@Override
+			public void screenshotFailed(SeleniumResource resource, String message) {
+				try {
+					JSONObject obj = createEntry(resource, STATUS_FAILED);
+					obj.put("message", message);
+					results.add(obj);
+				}
+				catch (JSONException e) {
+					// cannot happen with String values
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		// captures are queued when all capture threads are busy, so the whole group may take several rounds
+		int rounds = (resources.size() + service.getConcurrency() - 1) / service.getConcurrency();
+		long endTime = System.currentTimeMillis() + timeoutMillis * (rounds + 1);
+
+		Map<String, SeleniumResource> missing = new LinkedHashMap<String, SeleniumResource>();
+		for (SeleniumResource resource : resources) {
+			missing.put(resource.getOriginalUrl(), resource);
+		}
+
+		int okCount = 0;
+		writer.write("{\"screenshots\":[");
+		boolean first = true;
+		while (!missing.isEmpty()) {
+			long wait = endTime - System.currentTimeMillis();
+			JSONObject entry = wait > 0 ? results.poll(wait, TimeUnit.MILLISECONDS) : null;
+			if (entry == null) {
+				break;
+			}
+			if (missing.remove(entry.getString("url")) == null) {
+				continue;
+			}
+			if (STATUS_OK.equals(entry.getString("status"))) {
+				okCount++;
+			}
+			writer.write(first ? "\n" : ",\n");
+			writer.write(entry.toString());
+			writer.flush();
+			first = false;
+		}
+
+		for (SeleniumResource resource : missing.values()) {
+			writer.write(first ? "\n" : ",\n");
+			writer.write(createEntry(resource, STATUS_TIMEOUT).toString());
+			first = false;
+		}
+
+		JSONObject summary = new JSONObject();
+		summary.put("total", resources.size());
+		summary.put("ok", okCount);
+		summary.put("timedOut", missing.size());
+		summary.put("failed", resources.size() - okCount - missing.size());
+		writer.write("\n],\"summary\":");
+		writer.write(summary.toString());
+		writer.write("}");
+		writer.flush();
+	}
+
+	private static JSONObject createEntry(SeleniumResource resource, String status) throws JSONException {
+		JSONObject obj = new JSONObject();
+		obj.put("url", resource.getOriginalUrl());
+		obj.put("resource", resource.toString());
+		obj.put("status", status);
+		return obj;
+	}
+
+}
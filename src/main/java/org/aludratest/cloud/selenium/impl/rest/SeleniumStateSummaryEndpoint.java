@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl.rest;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.rest.AbstractRestConnector;
+import org.aludratest.cloud.rest.RestConnector;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceRegistry;
+import org.aludratest.cloud.selenium.impl.SeleniumStateCounters;
+import org.aludratest.cloud.selenium.impl.SeleniumUtil;
+import org.codehaus.plexus.component.annotations.Component;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * REST endpoint returning the number of Selenium resources per state, for every Selenium resource group and for all groups.
+ * The numbers are read from counters which are maintained on every state transition, so this endpoint is cheap regardless of
+ * the number of resources. Pass <code>groupId</code> to return the numbers of one group only.
+ * 
+ */
+@Component(role = RestConnector.class, hint = "selenium-summary")
+@Path("/selenium/summary")
+public class SeleniumStateSummaryEndpoint extends AbstractRestConnector {
+
+	@GET
+	@Produces(JSON_TYPE)
+	public Response getSummary(@QueryParam("groupId") Integer groupId) throws JSONException {
+		SeleniumResourceRegistry registry = SeleniumUtil.getResourceRegistry();
+		if (registry == null) {
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+		}
+
+		JSONArray groups = new JSONArray();
+		for (Map.Entry<Integer, SeleniumStateCounters> entry : registry.getStateCountersByGroupId().entrySet()) {
+			if (groupId == null || groupId.equals(entry.getKey())) {
+				JSONObject obj = toJSON(entry.getValue());
+				obj.put("groupId", entry.getKey().intValue());
+				groups.put(obj);
+			}
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("groups", groups);
+		if (groupId == null) {
+			result.put("total", toJSON(registry.getFleetStateCounters()));
+		}
+
+		return wrapResultObject(result);
+	}
+
+	private static JSONObject toJSON(SeleniumStateCounters counters) throws JSONException {
+		JSONObject obj = new JSONObject();
+		int total = 0;
+		for (Map.Entry<ResourceState, Integer> entry : counters.getCounts().entrySet()) {
+			obj.put(entry.getKey().name(), entry.getValue().intValue());
+			total += entry.getValue().intValue();
+		}
+		obj.put("total", total);
+		return obj;
+	}
+
+}
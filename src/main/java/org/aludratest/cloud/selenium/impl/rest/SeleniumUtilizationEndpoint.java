@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl.rest;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.aludratest.cloud.app.CloudManagerApp;
+import org.aludratest.cloud.resourcegroup.ResourceGroup;
+import org.aludratest.cloud.rest.AbstractRestConnector;
+import org.aludratest.cloud.rest.RestConnector;
+import org.aludratest.cloud.selenium.SeleniumResourceType;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceGroup;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceModule;
+import org.aludratest.cloud.selenium.impl.SeleniumUtilizationHistory;
+import org.aludratest.cloud.selenium.impl.SeleniumUtilizationHistory.UtilizationBucket;
+import org.codehaus.plexus.component.annotations.Component;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+@Component(role = RestConnector.class, hint = "selenium-utilization")
+@Path("/groups/{groupId: [0-9]{1,10}}/selenium/utilization")
+public class SeleniumUtilizationEndpoint extends AbstractRestConnector {
+
+	private static final long DEFAULT_RANGE_MILLIS = 24 * 60 * 60 * 1000l;
+
+	private static final long DEFAULT_RESOLUTION_MILLIS = 5 * 60 * 1000l;
+
+	@GET
+	@Produces(JSON_TYPE)
+	public Response getUtilization(@PathParam("groupId") int groupId, @QueryParam("from") Long from, @QueryParam("to") Long to,
+			@QueryParam("resolution") Long resolution, @QueryParam("url") String url) throws JSONException {
+		ResourceGroup group = CloudManagerApp.getInstance().getResourceGroupManager().getResourceGroup(groupId);
+		if (group == null || !(group instanceof SeleniumResourceGroup)) {
+			return Response.status(HttpServletResponse.SC_NOT_FOUND).build();
+		}
+
+		SeleniumResourceModule module = (SeleniumResourceModule) CloudManagerApp.getInstance().getResourceModule(
+				SeleniumResourceType.INSTANCE);
+		SeleniumUtilizationHistory history = module.getProxyServer() == null ? null : module.getProxyServer()
+				.getUtilizationHistory();
+		if (history == null) {
+			return Response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE).build();
+		}
+
+		long toTime = to == null ? System.currentTimeMillis() : to.longValue();
+		long fromTime = from == null ? toTime - DEFAULT_RANGE_MILLIS : from.longValue();
+		long resolutionMillis = resolution == null ? DEFAULT_RESOLUTION_MILLIS : resolution.longValue();
+
+		List<UtilizationBucket> buckets;
+		if (url == null || "".equals(url)) {
+			buckets = history.getGroupUtilization(groupId, fromTime, toTime, resolutionMillis);
+		}
+		else {
+			buckets = history.getResourceUtilization(url, fromTime, toTime, resolutionMillis);
+		}
+
+		JSONArray arr = new JSONArray();
+		for (UtilizationBucket bucket : buckets) {
+			JSONObject obj = new JSONObject();
+			obj.put("time", bucket.getStartTime());
+			obj.put("utilization", bucket.getUtilization());
+			obj.put("samples", bucket.getSampleCount());
+			arr.put(obj);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("from", fromTime);
+		result.put("to", toTime);
+		result.put("utilization", arr);
+
+		return wrapResultObject(result);
+	}
+
+}
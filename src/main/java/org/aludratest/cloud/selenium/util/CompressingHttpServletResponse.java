@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * A response wrapper which compresses the response body using GZIP or deflate encoding. Bodies smaller than a threshold, bodies
+ * which are already encoded and bodies of non-textual content types are passed through unchanged. If the length of the body is
+ * not known in advance, up to threshold bytes are buffered to decide. {@link #finish()} must be called when the response is
+ * complete.
+ * 
+ */
+public class CompressingHttpServletResponse extends HttpServletResponseWrapper {
+
+	public static final String ENCODING_GZIP = "gzip";
+
+	public static final String ENCODING_DEFLATE = "deflate";
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+	private String encoding;
+
+	private int threshold;
+
+	private DeflaterPool deflaterPool;
+
+	private CompressionStatistics statistics;
+
+	private long contentLength = -1;
+
+	private boolean alreadyEncoded;
+
+	private String contentType;
+
+	private CompressingServletOutputStream outputStream;
+
+	/**
+	 * Creates a new compressing response wrapper.
+	 * 
+	 * @param response
+	 *            Response to wrap.
+	 * @param encoding
+	 *            Encoding to use, {@link #ENCODING_GZIP} or {@link #ENCODING_DEFLATE}.
+	 * @param threshold
+	 *            Minimum size of a body to be compressed, in bytes.
+	 * @param deflaterPool
+	 *            Pool to take the <code>Deflater</code> from. Must produce raw deflate data for GZIP, and zlib data for deflate
+	 *            encoding.
+	 * @param statistics
+	 *            Statistics to record compressed responses in.
+	 */
+	public CompressingHttpServletResponse(HttpServletResponse response, String encoding, int threshold,
+			DeflaterPool deflaterPool, CompressionStatistics statistics) {
+		super(response);
+		this.encoding = encoding;
+		this.threshold = threshold;
+		this.deflaterPool = deflaterPool;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Selects the encoding to use for the response to the given request, based on its <code>Accept-Encoding</code> header.
+	 * 
+	 * @param request
+	 *            Request to select the response encoding for.
+	 * @return {@link #ENCODING_GZIP}, {@link #ENCODING_DEFLATE}, or <code>null</code> if the client accepts none of these.
+	 */
+	public static String selectEncoding(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return null;
+		}
+
+		boolean deflate = false;
+		for (String token : acceptEncoding.toLowerCase(Locale.US).split(",")) {
+			String[] parts = token.trim().split(";");
+			String name = parts[0].trim();
+			if (parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) {
+				continue;
+			}
+			if (ENCODING_GZIP.equals(name)) {
+				return ENCODING_GZIP;
+			}
+			if (ENCODING_DEFLATE.equals(name)) {
+				deflate = true;
+			}
+		}
+
+		return deflate ? ENCODING_DEFLATE : null;
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		contentLength = len;
+	}
+
+	@Override
+	public void setContentType(String type) {
+		contentType = type;
+		super.setContentType(type);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		if (interceptHeader(name, value)) {
+			super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		if (interceptHeader(name, value)) {
+			super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		if (interceptHeader(name, String.valueOf(value))) {
+			super.setIntHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		if (interceptHeader(name, String.valueOf(value))) {
+			super.addIntHeader(name, value);
+		}
+	}
+
+	private boolean interceptHeader(String name, String value) {
+		if ("Content-Length".equalsIgnoreCase(name)) {
+			// deferred until it is known whether the body is compressed
+			try {
+				contentLength = Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				contentLength = -1;
+			}
+			return false;
+		}
+		if ("Content-Encoding".equalsIgnoreCase(name) && value != null && !"identity".equalsIgnoreCase(value.trim())) {
+			alreadyEncoded = true;
+		}
+		if ("Content-Type".equalsIgnoreCase(name)) {
+			contentType = value;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new CompressingServletOutputStream(super.getOutputStream());
+		}
+		return outputStream;
+	}
+
+	/**
+	 * Completes the response body. Flushes buffered bytes, finishes compression, and records statistics.
+	 * 
+	 * @throws IOException
+	 *             If the body could not be written.
+	 */
+	public synchronized void finish() throws IOException {
+		if (outputStream != null) {
+			outputStream.finish();
+		}
+		else if (contentLength >= 0 && !isCommitted()) {
+			super.setHeader("Content-Length", String.valueOf(contentLength));
+		}
+	}
+
+	private boolean isCompressible() {
+		if (alreadyEncoded) {
+			return false;
+		}
+		if (contentType == null) {
+			return true;
+		}
+		String type = contentType.toLowerCase(Locale.US);
+		return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript");
+	}
+
+	private static long getCpuTime() {
+		return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+	}
+
+	private class CompressingServletOutputStream extends ServletOutputStream {
+
+		private ServletOutputStream delegate;
+
+		private ByteArrayOutputStream pending;
+
+		private boolean decided;
+
+		private CountingOutputStream countingOut;
+
+		private DeflaterOutputStream deflaterOut;
+
+		private Deflater deflater;
+
+		private CRC32 crc;
+
+		private long uncompressedBytes;
+
+		private long cpuTimeNanos;
+
+		private boolean finished;
+
+		public CompressingServletOutputStream(ServletOutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			if (!decided) {
+				if (!isCompressible() || (contentLength >= 0 && contentLength < threshold)) {
+					startRaw(false);
+				}
+				else if (contentLength >= threshold) {
+					startCompressed();
+				}
+				else {
+					// length unknown; buffer until the threshold is reached
+					if (pending == null) {
+						pending = new ByteArrayOutputStream(Math.min(threshold, 8192));
+					}
+					if (pending.size() + len < threshold) {
+						pending.write(b, off, len);
+						return;
+					}
+					startCompressed();
+				}
+			}
+
+			writeDecided(b, off, len);
+		}
+
+		private void writeDecided(byte[] b, int off, int len) throws IOException {
+			if (deflaterOut == null) {
+				delegate.write(b, off, len);
+				return;
+			}
+
+			long start = getCpuTime();
+			deflaterOut.write(b, off, len);
+			if (crc != null) {
+				crc.update(b, off, len);
+			}
+			cpuTimeNanos += getCpuTime() - start;
+			uncompressedBytes += len;
+		}
+
+		private void startRaw(boolean complete) throws IOException {
+			decided = true;
+			if (contentLength >= 0) {
+				CompressingHttpServletResponse.super.setHeader("Content-Length", String.valueOf(contentLength));
+			}
+			else if (complete && pending != null) {
+				CompressingHttpServletResponse.super.setHeader("Content-Length", String.valueOf(pending.size()));
+			}
+			writePending();
+		}
+
+		private void startCompressed() throws IOException {
+			decided = true;
+			CompressingHttpServletResponse.super.setHeader("Content-Encoding", encoding);
+			CompressingHttpServletResponse.super.addHeader("Vary", "Accept-Encoding");
+
+			countingOut = new CountingOutputStream(delegate);
+			deflater = deflaterPool.acquire();
+			if (ENCODING_GZIP.equals(encoding)) {
+				writeGzipHeader(countingOut);
+				crc = new CRC32();
+			}
+			deflaterOut = new DeflaterOutputStream(countingOut, deflater, 8192);
+			writePending();
+		}
+
+		private void writePending() throws IOException {
+			if (pending != null) {
+				byte[] data = pending.toByteArray();
+				pending = null;
+				writeDecided(data, 0, data.length);
+			}
+		}
+
+		synchronized void finish() throws IOException {
+			if (finished) {
+				return;
+			}
+			finished = true;
+
+			if (!decided) {
+				startRaw(true);
+			}
+			if (deflaterOut == null) {
+				return;
+			}
+
+			try {
+				long start = getCpuTime();
+				deflaterOut.finish();
+				if (crc != null) {
+					writeGzipTrailer(countingOut, crc.getValue(), uncompressedBytes);
+				}
+				cpuTimeNanos += getCpuTime() - start;
+				statistics.record(uncompressedBytes, countingOut.getByteCount(), cpuTimeNanos);
+			}
+			finally {
+				deflaterPool.release(deflater);
+				deflater = null;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// do not flush partial compression blocks; flushing is done when finished
+			if (deflaterOut == null) {
+				delegate.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			delegate.close();
+		}
+	}
+
+	private static void writeGzipHeader(OutputStream out) throws IOException {
+		out.write(new byte[] { (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 });
+	}
+
+	private static void writeGzipTrailer(OutputStream out, long crc, long size) throws IOException {
+		writeInt(out, (int) crc);
+		writeInt(out, (int) size);
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about compressed responses: number of responses, bytes before and after compression, and CPU time spent for
+ * compressing.
+ * 
+ */
+public final class CompressionStatistics {
+
+	private AtomicLong responseCount = new AtomicLong();
+
+	private AtomicLong uncompressedBytes = new AtomicLong();
+
+	private AtomicLong compressedBytes = new AtomicLong();
+
+	private AtomicLong cpuTimeNanos = new AtomicLong();
+
+	public void record(long uncompressed, long compressed, long cpuNanos) {
+		responseCount.incrementAndGet();
+		uncompressedBytes.addAndGet(uncompressed);
+		compressedBytes.addAndGet(compressed);
+		cpuTimeNanos.addAndGet(cpuNanos);
+	}
+
+	public long getResponseCount() {
+		return responseCount.get();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	public long getCpuTimeNanos() {
+		return cpuTimeNanos.get();
+	}
+
+	/**
+	 * Returns the ratio of compressed to uncompressed bytes.
+	 * 
+	 * @return The ratio of compressed to uncompressed bytes, e.g. 0.2 if responses were compressed to a fifth of their size,
+	 *         or 1 if nothing has been compressed yet.
+	 */
+	public double getCompressionRatio() {
+		long uncompressed = uncompressedBytes.get();
+		return uncompressed == 0 ? 1 : (double) compressedBytes.get() / uncompressed;
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.util;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response wrapper which counts the bytes written to the output stream of the response, and remembers the status code set
+ * on the response.
+ * 
+ */
+public class CountingHttpServletResponse extends HttpServletResponseWrapper {
+
+	private int status = SC_OK;
+
+	private volatile long byteCount;
+
+	private ServletOutputStream outputStream;
+
+	public CountingHttpServletResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm) {
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		status = sc;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		status = sc;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public synchronized ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new CountingServletOutputStream(super.getOutputStream());
+		}
+		return outputStream;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	private class CountingServletOutputStream extends ServletOutputStream {
+
+		private ServletOutputStream delegate;
+
+		public CountingServletOutputStream(ServletOutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			byteCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			byteCount += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+	}
+
+}
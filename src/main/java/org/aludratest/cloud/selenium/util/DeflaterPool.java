@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of reusable <code>Deflater</code> instances. Each <code>Deflater</code> allocates native memory, so creating one per
+ * response is expensive. Returned instances are reset; instances exceeding the pool size are ended.
+ * 
+ */
+public final class DeflaterPool {
+
+	private int level;
+
+	private boolean nowrap;
+
+	private BlockingQueue<Deflater> pool;
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param level
+	 *            Compression level of the pooled instances, 0-9.
+	 * @param nowrap
+	 *            If <code>true</code>, the pooled instances produce raw deflate data (as used for GZIP); otherwise, zlib data.
+	 * @param maxPooled
+	 *            Maximum number of idle instances kept in the pool.
+	 */
+	public DeflaterPool(int level, boolean nowrap, int maxPooled) {
+		this.level = level;
+		this.nowrap = nowrap;
+		this.pool = new LinkedBlockingQueue<Deflater>(maxPooled);
+	}
+
+	public Deflater acquire() {
+		Deflater deflater = pool.poll();
+		return deflater != null ? deflater : new Deflater(level, nowrap);
+	}
+
+	public void release(Deflater deflater) {
+		if (closed) {
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		if (!pool.offer(deflater)) {
+			deflater.end();
+		}
+		else if (closed) {
+			// cleared concurrently; the instance may have been offered after the pool was drained
+			endIdle();
+		}
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getIdleCount() {
+		return pool.size();
+	}
+
+	/**
+	 * Ends all idle instances of this pool and closes it. Instances still in use are ended when they are released; instances
+	 * acquired afterwards are not pooled anymore.
+	 */
+	public void clear() {
+		closed = true;
+		endIdle();
+	}
+
+	private void endIdle() {
+		Deflater deflater;
+		while ((deflater = pool.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with fixed, roughly logarithmic buckets. Percentiles are reported as the upper bound of the
+ * bucket containing them, which is precise enough for monitoring and timeout calculations.
+ * 
+ */
+public final class LatencyHistogram {
+
+	/* Upper bounds (in milliseconds) of the buckets; the last bucket is unbounded. */
+	private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000,
+			120000, 300000 };
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+	public void record(long durationMillis) {
+		int bucket = 0;
+		while (bucket < BUCKET_BOUNDS.length && durationMillis > BUCKET_BOUNDS[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the given percentile of recorded latencies.
+	 * 
+	 * @param percentile
+	 *            Percentile to return, between 0 and 1.
+	 * @return The upper bound of the bucket containing the percentile in milliseconds, -1 if no latency has been recorded yet,
+	 *         or {@link Long#MAX_VALUE} if the percentile is beyond the largest bucket bound.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return -1;
+		}
+
+		long threshold = (long) Math.ceil(total * percentile);
+		long sum = 0;
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			sum += snapshot[i];
+			if (sum >= threshold) {
+				return BUCKET_BOUNDS[i];
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Formats a percentile returned by {@link #getPercentile(double)} for reports.
+	 * 
+	 * @param latency
+	 *            Percentile value to format.
+	 * @return The formatted percentile, e.g. <code>&lt;= 50 ms</code>.
+	 */
+	public static String format(long latency) {
+		if (latency < 0) {
+			return "n/a";
+		}
+		return latency == Long.MAX_VALUE ? "> " + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + " ms" : "<= " + latency + " ms";
+	}
+
+}
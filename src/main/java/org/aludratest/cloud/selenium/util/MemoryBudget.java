@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A global budget of bytes, e.g. for request bodies held in memory. Callers reserve bytes before allocating them and release
+ * the reservation when the memory is no longer used. If the budget is exhausted, callers wait until enough bytes are released
+ * or their timeout elapses, which applies backpressure instead of exhausting the heap.
+ * 
+ */
+public final class MemoryBudget {
+
+	private long capacity;
+
+	private long used;
+
+	private long peakUsed;
+
+	private long reservationCount;
+
+	private long waitCount;
+
+	private long rejectedCount;
+
+	public MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserves the given number of bytes, waiting up to the given time if the budget is exhausted.
+	 * 
+	 * @param bytes
+	 *            Number of bytes to reserve.
+	 * @param timeoutMillis
+	 *            Maximum time to wait for enough bytes being released, in milliseconds.
+	 * @return The reservation, or <code>null</code> if the bytes could not be reserved within the given time, or if more bytes
+	 *         are requested than the whole budget offers.
+	 * @throws InterruptedException
+	 *             If the current thread is interrupted while waiting.
+	 */
+	public synchronized Reservation reserve(long bytes, long timeoutMillis) throws InterruptedException {
+		if (bytes > capacity) {
+			rejectedCount++;
+			return null;
+		}
+
+		if (used + bytes > capacity) {
+			waitCount++;
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (used + bytes > capacity && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			if (used + bytes > capacity) {
+				rejectedCount++;
+				return null;
+			}
+		}
+
+		used += bytes;
+		peakUsed = Math.max(peakUsed, used);
+		reservationCount++;
+		return new Reservation(bytes);
+	}
+
+	private synchronized void release(long bytes) {
+		used -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Changes the capacity of this budget. Existing reservations are kept, even if they exceed the new capacity.
+	 * 
+	 * @param capacity
+	 *            New capacity of this budget, in bytes.
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		notifyAll();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	public synchronized long getPeakUsed() {
+		return peakUsed;
+	}
+
+	public synchronized long getReservationCount() {
+		return reservationCount;
+	}
+
+	/**
+	 * Returns the number of reservations which had to wait for bytes being released.
+	 * 
+	 * @return The number of reservations which had to wait for bytes being released.
+	 */
+	public synchronized long getWaitCount() {
+		return waitCount;
+	}
+
+	/**
+	 * Returns the number of reservations which could not be fulfilled.
+	 * 
+	 * @return The number of reservations which could not be fulfilled.
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * A reservation of bytes in a memory budget. Releasing a reservation more than once has no effect.
+	 * 
+	 */
+	public final class Reservation {
+
+		private long bytes;
+
+		private AtomicBoolean released = new AtomicBoolean();
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				MemoryBudget.this.release(bytes);
+			}
+		}
+	}
+
+}
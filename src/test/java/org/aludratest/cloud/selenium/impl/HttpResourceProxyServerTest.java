@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpResourceProxyServerTest {
+
+	private static final int RESOURCE_COUNT = 5000;
+
+	private static final int THREAD_COUNT = 8;
+
+	private TestProxyServer server;
+
+	private List<SeleniumResourceImpl> resources;
+
+	@Before
+	public void setup() throws Exception {
+		server = new TestProxyServer();
+		resources = new ArrayList<SeleniumResourceImpl>(RESOURCE_COUNT);
+		for (int i = 0; i < RESOURCE_COUNT; i++) {
+			resources.add(new SeleniumResourceImpl("http://node" + i + ".example.com:4444"));
+		}
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void testBulkRegistration() throws Exception {
+		List<TestProxy> proxies = server.addProxiesForResources(resources);
+
+		assertEquals(RESOURCE_COUNT, proxies.size());
+		assertEquals(RESOURCE_COUNT, server.getProxyCount());
+		for (int i = 0; i < RESOURCE_COUNT; i++) {
+			assertSame(proxies.get(i), server.getProxyForResource(resources.get(i)));
+		}
+		assertFalse(server.createdUnderLock);
+
+		// registering again returns the existing proxies
+		assertSame(proxies.get(0), server.addProxyForResource(resources.get(0)));
+		assertEquals(RESOURCE_COUNT, server.created.get());
+		assertEquals(RESOURCE_COUNT, server.registered.get());
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		List<Future<List<TestProxy>>> futures = new ArrayList<Future<List<TestProxy>>>();
+		try {
+			// every thread registers all resources, so each resource is contended by all threads
+			for (int t = 0; t < THREAD_COUNT; t++) {
+				futures.add(executor.submit(new Callable<List<TestProxy>>() {
+					@Override
+					public List<TestProxy> call() throws Exception {
+						startSignal.await();
+						List<TestProxy> result = new ArrayList<TestProxy>(RESOURCE_COUNT);
+						for (SeleniumResourceImpl resource : resources) {
+							result.add(server.addProxyForResource(resource));
+						}
+						return result;
+					}
+				}));
+			}
+
+			startSignal.countDown();
+			List<List<TestProxy>> results = new ArrayList<List<TestProxy>>();
+			for (Future<List<TestProxy>> future : futures) {
+				results.add(future.get());
+			}
+
+			// all threads got the same proxy for each resource, and no duplicate proxy was ever created
+			for (int i = 0; i < RESOURCE_COUNT; i++) {
+				TestProxy proxy = server.getProxyForResource(resources.get(i));
+				for (List<TestProxy> result : results) {
+					assertSame(proxy, result.get(i));
+				}
+				assertFalse(proxy.destroyed);
+			}
+			assertEquals(RESOURCE_COUNT, server.getProxyCount());
+			assertEquals(RESOURCE_COUNT, server.created.get());
+			assertEquals(RESOURCE_COUNT, server.registered.get());
+			assertEquals(0, server.destroyed.get());
+			assertFalse(server.createdUnderLock);
+
+			Set<Integer> ids = new HashSet<Integer>();
+			for (TestProxy proxy : server.getAllProxies()) {
+				ids.add(Integer.valueOf(proxy.getId()));
+			}
+			assertEquals(RESOURCE_COUNT, ids.size());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRemoveProxy() throws Exception {
+		TestProxy proxy = server.addProxyForResource(resources.get(0));
+		server.removeProxy(proxy);
+
+		assertEquals(0, server.getProxyCount());
+		assertEquals(null, server.getProxyForResource(resources.get(0)));
+		assertEquals(1, server.destroyed.get());
+
+		TestProxy newProxy = server.addProxyForResource(resources.get(0));
+		assertFalse(proxy == newProxy);
+	}
+
+	@Test
+	public void testProxiesAreInitializedBeforePublishing() throws Exception {
+		server.init(new TestServletConfig());
+		TestProxy proxy = server.addProxyForResource(resources.get(0));
+
+		assertNotNull(proxy.getServletConfig());
+		assertFalse(server.registeredUninitialized);
+	}
+
+	private static class TestProxyServer extends HttpResourceProxyServer<TestProxy, SeleniumResourceImpl> {
+
+		private static final long serialVersionUID = 1L;
+
+		private AtomicInteger created = new AtomicInteger();
+
+		private AtomicInteger destroyed = new AtomicInteger();
+
+		private AtomicInteger registered = new AtomicInteger();
+
+		private volatile boolean createdUnderLock;
+
+		private volatile boolean registeredUninitialized;
+
+		public TestProxyServer() {
+			super("localhost", 0, 100, 10, new HttpConnectorSettings(0, 0, true, 30000, 8192, 16384, 32768));
+		}
+
+		@Override
+		protected String getResourceKey(SeleniumResourceImpl resource) {
+			return resource.getOriginalUrl();
+		}
+
+		@Override
+		protected TestProxy createProxy(int id, SeleniumResourceImpl resource, String path, String accessUrl) {
+			if (Thread.holdsLock(this)) {
+				createdUnderLock = true;
+			}
+			created.incrementAndGet();
+			return new TestProxy(id, accessUrl, destroyed);
+		}
+
+		@Override
+		protected void proxyRegistered(TestProxy proxy, SeleniumResourceImpl resource) {
+			registered.incrementAndGet();
+			if (getServletConfig() != null && proxy.getServletConfig() == null) {
+				registeredUninitialized = true;
+			}
+		}
+
+		@Override
+		protected void updateProxyAccessUrl(TestProxy proxy, String newAccessUrl) {
+		}
+
+	}
+
+	private static class TestProxy extends GenericServlet implements HttpResourceProxy {
+
+		private static final long serialVersionUID = 1L;
+
+		private int id;
+
+		private String accessUrl;
+
+		private AtomicInteger destroyCounter;
+
+		private volatile boolean destroyed;
+
+		public TestProxy(int id, String accessUrl, AtomicInteger destroyCounter) {
+			this.id = id;
+			this.accessUrl = accessUrl;
+			this.destroyCounter = destroyCounter;
+		}
+
+		@Override
+		public int getId() {
+			return id;
+		}
+
+		@Override
+		public String getAccessUrl() {
+			return accessUrl;
+		}
+
+		@Override
+		public void service(ServletRequest req, ServletResponse res) {
+		}
+
+		@Override
+		public void destroy() {
+			destroyed = true;
+			destroyCounter.incrementAndGet();
+		}
+
+	}
+
+	private static class TestServletConfig implements ServletConfig {
+
+		@Override
+		public String getServletName() {
+			return "test";
+		}
+
+		@Override
+		public ServletContext getServletContext() {
+			return null;
+		}
+
+		@Override
+		public String getInitParameter(String name) {
+			return null;
+		}
+
+		@Override
+		public Enumeration<String> getInitParameterNames() {
+			return Collections.enumeration(Collections.<String> emptyList());
+		}
+
+	}
+
+}
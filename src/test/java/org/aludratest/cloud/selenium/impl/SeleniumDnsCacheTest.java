@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.junit.After;
+import org.junit.Test;
+
+public class SeleniumDnsCacheTest {
+
+	private static final InetAddress ADDRESS_1 = address(10, 0, 0, 1);
+
+	private static final InetAddress ADDRESS_2 = address(10, 0, 0, 2);
+
+	private CountingResolver resolver = new CountingResolver();
+
+	private SeleniumDnsCache cache;
+
+	private volatile long time = 1000000;
+
+	@After
+	public void shutdown() {
+		if (cache != null) {
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void testCachesSuccessfulLookups() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = new SeleniumDnsCache(resolver, 60000, 60000, false);
+
+		assertEquals(ADDRESS_1, cache.resolve("node1")[0]);
+		assertEquals(ADDRESS_1, cache.resolve("node1")[0]);
+		assertEquals(1, resolver.lookups.get());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testCachesFailedLookups() throws Exception {
+		cache = new SeleniumDnsCache(resolver, 60000, 60000, false);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.resolve("unknown");
+				fail("UnknownHostException expected");
+			}
+			catch (UnknownHostException e) {
+				// expected
+			}
+		}
+		assertEquals(1, resolver.lookups.get());
+		assertEquals(1, cache.getNegativeHitCount());
+		assertNull(cache.resolveFirst("unknown"));
+	}
+
+	@Test
+	public void testZeroTtlDisablesCaching() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = new SeleniumDnsCache(resolver, 0, 0, false);
+
+		cache.resolve("node1");
+		cache.resolve("node1");
+		assertEquals(2, resolver.lookups.get());
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testExpiredEntriesAreLookedUpAgain() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = createCache(50, 50, false);
+
+		cache.resolve("node1");
+		time += 100;
+		resolver.addresses.put("node1", ADDRESS_2);
+		assertEquals(ADDRESS_2, cache.resolve("node1")[0]);
+		assertEquals(2, resolver.lookups.get());
+	}
+
+	@Test
+	public void testBackgroundRefreshOfUsedEntries() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = createCache(400, 400, true);
+
+		cache.resolve("node1");
+		time += 10;
+		// second access marks the entry as in use
+		cache.resolve("node1");
+		resolver.addresses.put("node1", ADDRESS_2);
+
+		// last quarter of the lifetime of the entry
+		time += 320;
+		cache.refreshEntries();
+		int lookups = resolver.lookups.get();
+		assertEquals(ADDRESS_2, cache.resolve("node1")[0]);
+		assertEquals(lookups, resolver.lookups.get());
+		assertTrue(cache.getRefreshCount() >= 1);
+	}
+
+	@Test
+	public void testFailedRefreshKeepsPreviousAddress() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = createCache(400, 400, true);
+
+		cache.resolve("node1");
+		time += 10;
+		cache.resolve("node1");
+		resolver.addresses.remove("node1");
+
+		time += 320;
+		cache.refreshEntries();
+		assertEquals(ADDRESS_1, cache.resolve("node1")[0]);
+		assertTrue(cache.getFailedRefreshCount() >= 1);
+	}
+
+	@Test
+	public void testReconfigureWithNewTtlClearsCache() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = new SeleniumDnsCache(resolver, 60000, 60000, false);
+
+		cache.resolve("node1");
+		cache.reconfigure(30000, 60000, false);
+		assertEquals(0, cache.getSize());
+		cache.resolve("node1");
+		assertEquals(2, resolver.lookups.get());
+	}
+
+	@Test
+	public void testAddressResolvesViaCacheOnConnect() throws Exception {
+		resolver.addresses.put("node1", ADDRESS_1);
+		cache = new SeleniumDnsCache(resolver, 60000, 60000, false);
+
+		Address address = cache.createAddress("node1", 4444);
+		assertEquals("node1", address.getHost());
+		assertEquals(0, resolver.lookups.get());
+
+		InetSocketAddress socketAddress = address.toSocketAddress();
+		assertEquals(ADDRESS_1, socketAddress.getAddress());
+		assertEquals(4444, socketAddress.getPort());
+		address.toSocketAddress();
+		assertEquals(1, resolver.lookups.get());
+	}
+
+	@Test
+	public void testCachedAddressIsMatchedAgainstProxyBypassList() throws Exception {
+		resolver.addresses.put("node1.local", ADDRESS_1);
+		resolver.addresses.put("node2.remote", ADDRESS_2);
+		cache = new SeleniumDnsCache(resolver, 60000, 60000, false);
+
+		HttpClient client = new HttpClient();
+		SeleniumUpstreamRouting.apply(client, new Address("proxy", 3128), ".*\\.local");
+
+		HttpDestination bypassed = client.getDestination(cache.createAddress("node1.local", 4444), false);
+		assertFalse(bypassed.isProxied());
+		HttpDestination proxied = client.getDestination(cache.createAddress("node2.remote", 4444), false);
+		assertTrue(proxied.isProxied());
+
+		// changed bypass list is evaluated against host names, too
+		assertEquals(2, SeleniumUpstreamRouting.apply(client, new Address("proxy", 3128), ".*\\.remote"));
+		assertTrue(client.getDestination(cache.createAddress("node1.local", 4444), false).isProxied());
+		assertFalse(client.getDestination(cache.createAddress("node2.remote", 4444), false).isProxied());
+	}
+
+	private SeleniumDnsCache createCache(long ttlMillis, long negativeTtlMillis, boolean backgroundRefresh) {
+		return new SeleniumDnsCache(resolver, ttlMillis, negativeTtlMillis, backgroundRefresh) {
+			@Override
+			long currentTimeMillis() {
+				return time;
+			}
+		};
+	}
+
+	private static InetAddress address(int b1, int b2, int b3, int b4) {
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte) b1, (byte) b2, (byte) b3, (byte) b4 });
+		}
+		catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static class CountingResolver implements DnsResolver {
+
+		private Map<String, InetAddress> addresses = new ConcurrentHashMap<String, InetAddress>();
+
+		private AtomicInteger lookups = new AtomicInteger();
+
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			lookups.incrementAndGet();
+			InetAddress address = addresses.get(host);
+			if (address == null) {
+				throw new UnknownHostException(host);
+			}
+			return new InetAddress[] { address };
+		}
+	}
+
+}
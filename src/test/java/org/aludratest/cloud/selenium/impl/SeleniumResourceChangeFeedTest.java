@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed.Batch;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed.Event;
+import org.aludratest.cloud.selenium.impl.SeleniumResourceChangeFeed.EventType;
+import org.junit.Test;
+
+public class SeleniumResourceChangeFeedTest {
+
+	private static final Integer GROUP_1 = Integer.valueOf(1);
+
+	private static final Integer GROUP_2 = Integer.valueOf(2);
+
+	@Test
+	public void testEventsKeepGroupId() throws Exception {
+		SeleniumResourceChangeFeed feed = new SeleniumResourceChangeFeed(16);
+		feed.append(EventType.ADDED, "http://a", GROUP_1, null, ResourceState.READY);
+		feed.append(EventType.REMOVED, "http://a", GROUP_1, ResourceState.READY, null);
+		feed.append(EventType.ADDED, "http://a", GROUP_2, null, ResourceState.READY);
+
+		List<Event> events = feed.read(0, 100, 0).getEvents();
+		assertEquals(3, events.size());
+		assertEquals(EventType.REMOVED, events.get(1).getType());
+		assertEquals(GROUP_1, events.get(1).getGroupId());
+		assertEquals(GROUP_2, events.get(2).getGroupId());
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		SeleniumResourceChangeFeed feed = new SeleniumResourceChangeFeed(16);
+		feed.append(EventType.ADDED, "http://a", GROUP_1, null, ResourceState.READY);
+		feed.append(EventType.STATE, "http://a", GROUP_1, ResourceState.READY, ResourceState.IN_USE);
+		feed.append(EventType.STATE, "http://a", GROUP_1, ResourceState.IN_USE, ResourceState.READY);
+		feed.append(EventType.ADDED, "http://b", GROUP_1, null, ResourceState.READY);
+
+		Batch batch = feed.read(0, 2, 0);
+		assertTrue(batch.isCoalesced());
+		assertFalse(batch.isReset());
+		assertEquals(4, batch.getLastSequence());
+		assertEquals(2, batch.getEvents().size());
+		Event event = batch.getEvents().get(0);
+		assertEquals("http://a", event.getUrl());
+		assertTrue(event.isCoalesced());
+		assertNull(event.getPreviousState());
+		assertEquals(ResourceState.READY, event.getNewState());
+	}
+
+	@Test
+	public void testCatchUpAfterRingOverflow() throws Exception {
+		SeleniumResourceChangeFeed feed = new SeleniumResourceChangeFeed(16);
+		feed.append(EventType.ADDED, "http://a", GROUP_1, null, ResourceState.READY);
+		feed.append(EventType.ADDED, "http://b", GROUP_1, null, ResourceState.READY);
+		feed.append(EventType.REMOVED, "http://b", GROUP_1, ResourceState.READY, null);
+		for (int i = 0; i < 15; i++) {
+			feed.append(EventType.STATE, "http://a", GROUP_1, ResourceState.READY, ResourceState.IN_USE);
+		}
+
+		// the removal of b is still in the ring, so a consumer behind it still learns about it
+		Batch batch = feed.read(1, 100, 0);
+		assertTrue(batch.isCoalesced());
+		assertFalse(batch.isReset());
+		assertEquals(2, batch.getEvents().size());
+		assertEquals(EventType.REMOVED, batch.getEvents().get(0).getType());
+	}
+
+	@Test
+	public void testResetAfterDiscardedRemoval() throws Exception {
+		SeleniumResourceChangeFeed feed = new SeleniumResourceChangeFeed(16);
+		feed.append(EventType.ADDED, "http://a", GROUP_1, null, ResourceState.READY);
+		for (int i = 0; i < 100; i++) {
+			String url = "http://removed" + i;
+			feed.append(EventType.ADDED, url, GROUP_1, null, ResourceState.READY);
+			feed.append(EventType.REMOVED, url, GROUP_1, ResourceState.READY, null);
+		}
+		for (int i = 0; i < 16; i++) {
+			feed.append(EventType.STATE, "http://a", GROUP_1, ResourceState.READY, ResourceState.IN_USE);
+		}
+
+		// removed resources are no longer remembered, so the consumer must replace its state
+		Batch batch = feed.read(1, 100, 0);
+		assertTrue(batch.isReset());
+		assertEquals(feed.getSequence(), batch.getLastSequence());
+		assertEquals(1, batch.getEvents().size());
+		assertEquals("http://a", batch.getEvents().get(0).getUrl());
+
+		// consumers which are up to date are not affected
+		feed.append(EventType.STATE, "http://a", GROUP_1, ResourceState.IN_USE, ResourceState.READY);
+		batch = feed.read(batch.getLastSequence(), 100, 0);
+		assertFalse(batch.isReset());
+		assertEquals(1, batch.getEvents().size());
+	}
+
+	@Test
+	public void testSubscriberLimit() {
+		SeleniumResourceChangeFeed feed = new SeleniumResourceChangeFeed(16);
+		feed.setMaxSubscribers(1);
+		assertTrue(feed.addSubscriber());
+		assertFalse(feed.addSubscriber());
+		feed.removeSubscriber();
+		assertTrue(feed.addSubscriber());
+	}
+
+}
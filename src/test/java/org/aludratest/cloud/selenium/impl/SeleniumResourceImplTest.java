@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.aludratest.cloud.resource.ResourceState;
+import org.junit.Test;
+
+public class SeleniumResourceImplTest {
+
+	private static final String URL = "http://node1.example.com:4444";
+
+	@Test
+	public void testRestoredInUseStaysDisconnectedUntilChecked() throws Exception {
+		SeleniumResourceImpl resource = new SeleniumResourceImpl(URL);
+		resource.restoreFromSnapshot(new SeleniumResourceSnapshot.Entry(URL, ResourceState.IN_USE, false, 1000, "4711", false),
+				true);
+
+		assertEquals(ResourceState.DISCONNECTED, resource.getState());
+		assertTrue(resource.takeRestoredInUse());
+		// only the first health check restores the state
+		assertFalse(resource.takeRestoredInUse());
+	}
+
+	@Test
+	public void testRestoredReadyStaysDisconnected() throws Exception {
+		SeleniumResourceImpl resource = new SeleniumResourceImpl(URL);
+		resource.restoreFromSnapshot(new SeleniumResourceSnapshot.Entry(URL, ResourceState.READY, false, 1000, null, false),
+				true);
+
+		assertEquals(ResourceState.DISCONNECTED, resource.getState());
+		assertFalse(resource.takeRestoredInUse());
+	}
+
+	@Test
+	public void testStatesOfOldSnapshotsAreIgnored() throws Exception {
+		SeleniumResourceImpl resource = new SeleniumResourceImpl(URL);
+		resource.restoreFromSnapshot(new SeleniumResourceSnapshot.Entry(URL, ResourceState.IN_USE, false, 1000, "4711", false),
+				false);
+
+		assertEquals(ResourceState.DISCONNECTED, resource.getState());
+		assertFalse(resource.takeRestoredInUse());
+	}
+
+}
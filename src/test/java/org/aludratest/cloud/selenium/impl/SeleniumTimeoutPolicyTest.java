@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.aludratest.cloud.config.ConfigException;
+import org.junit.Test;
+
+public class SeleniumTimeoutPolicyTest {
+
+	@Test
+	public void testDefaultPolicy() {
+		SeleniumTimeoutPolicy policy = new SeleniumTimeoutPolicy(null, false, 4);
+
+		assertEquals(180000, policy.getReadTimeoutMillis(SeleniumCommandClass.NEW_SESSION));
+		assertEquals(120000, policy.getReadTimeoutMillis(SeleniumCommandClass.NAVIGATION));
+		assertEquals(30000, policy.getReadTimeoutMillis(SeleniumCommandClass.FIND_ELEMENT));
+		// asynchronous scripts may run long; they keep the timeout of the Jetty client
+		assertEquals(320000, policy.getReadTimeoutMillis(SeleniumCommandClass.SCRIPT));
+		assertEquals(320000, policy.getReadTimeoutMillis(SeleniumCommandClass.DEFAULT));
+	}
+
+	@Test
+	public void testUnconfiguredClassesUseDefault() {
+		SeleniumTimeoutPolicy policy = new SeleniumTimeoutPolicy("newSession=300,default=90", false, 4);
+
+		assertEquals(300000, policy.getReadTimeoutMillis(SeleniumCommandClass.NEW_SESSION));
+		assertEquals(90000, policy.getReadTimeoutMillis(SeleniumCommandClass.SCRIPT));
+
+		policy.reconfigure("newSession=300", false, 4);
+		assertEquals(320000, policy.getReadTimeoutMillis(SeleniumCommandClass.SCRIPT));
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		SeleniumTimeoutPolicy.validate(null);
+		SeleniumTimeoutPolicy.validate("");
+		SeleniumTimeoutPolicy.validate(SeleniumTimeoutPolicy.DEFAULT_POLICY);
+		SeleniumTimeoutPolicy.validate(" findElement = 20 , default=90,");
+
+		for (String policy : new String[] { "findElement=2/30", "script=abc", "quit=0", "unknown=30", "findElement" }) {
+			try {
+				SeleniumTimeoutPolicy.validate(policy);
+				fail("ConfigException expected for " + policy);
+			}
+			catch (ConfigException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidEntriesAreIgnored() {
+		SeleniumTimeoutPolicy policy = new SeleniumTimeoutPolicy("findElement=2/30,script=abc,quit=0,default=45", false, 4);
+
+		assertEquals(45000, policy.getReadTimeoutMillis(SeleniumCommandClass.FIND_ELEMENT));
+		assertEquals(45000, policy.getReadTimeoutMillis(SeleniumCommandClass.SCRIPT));
+		assertEquals(45000, policy.getReadTimeoutMillis(SeleniumCommandClass.QUIT));
+	}
+
+}
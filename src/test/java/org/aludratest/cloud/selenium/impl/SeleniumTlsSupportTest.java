@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the TLS configuration against a loopback Selenium node stub using a self-signed certificate for
+ * <code>localhost</code>. The test trust store contains this certificate only.
+ */
+public class SeleniumTlsSupportTest {
+
+	private static final String STORE_PASSWORD = "changeit";
+
+	private Server node;
+
+	private String statusUrl;
+
+	@Before
+	public void startNode() throws Exception {
+		SslContextFactory sslContextFactory = new SslContextFactory();
+		sslContextFactory.setKeyStorePath(getResourcePath("selenium-node.jks"));
+		sslContextFactory.setKeyStorePassword(STORE_PASSWORD);
+
+		node = new Server();
+		SslSelectChannelConnector connector = new SslSelectChannelConnector(sslContextFactory);
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		node.addConnector(connector);
+		node.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+					throws IOException, ServletException {
+				response.setContentType("application/json;charset=UTF-8");
+				response.getWriter().write("{\"status\":0}");
+				baseRequest.setHandled(true);
+			}
+		});
+		node.start();
+		statusUrl = "https://localhost:" + connector.getLocalPort() + "/wd/hub/status";
+	}
+
+	@After
+	public void stopNode() throws Exception {
+		node.stop();
+	}
+
+	@Test
+	public void testTrustStoreAcceptsSelfSignedNode() throws Exception {
+		SeleniumTlsSupport tlsSupport = new SeleniumTlsSupport(new TestConfiguration(getResourcePath("selenium-truststore.jks"),
+				false));
+
+		assertEquals(200, getStatus(tlsSupport));
+		assertTrue(tlsSupport.getHandshakeReport(), tlsSupport.getHandshakeReport().startsWith("localhost:"));
+
+		for (SeleniumUpstreamTransport transport : Arrays.asList(SeleniumUpstreamTransports.JETTY_NIO,
+				SeleniumUpstreamTransports.JETTY_BLOCKING, SeleniumUpstreamTransports.APACHE_ASYNC)) {
+			SeleniumUpstreamClient.Response response = sendUpstream(transport, tlsSupport, 10000);
+			assertNotNull(transport.getName(), response);
+			assertEquals(transport.getName(), 200, response.getStatus());
+		}
+	}
+
+	@Test
+	public void testDefaultTrustRejectsSelfSignedNode() throws Exception {
+		SeleniumTlsSupport tlsSupport = new SeleniumTlsSupport(new TestConfiguration(null, false));
+
+		try {
+			getStatus(tlsSupport);
+			fail("Expected self-signed certificate to be rejected");
+		}
+		catch (SSLException e) {
+			// expected
+		}
+
+		// Jetty's NIO connector does not report failed handshakes; the exchange expires instead
+		for (SeleniumUpstreamTransport transport : Arrays.asList(SeleniumUpstreamTransports.JETTY_NIO,
+				SeleniumUpstreamTransports.APACHE_ASYNC)) {
+			assertEquals(transport.getName(), null, sendUpstream(transport, tlsSupport, 2000));
+		}
+	}
+
+	@Test
+	public void testTrustAllAcceptsSelfSignedNode() throws Exception {
+		SeleniumTlsSupport tlsSupport = new SeleniumTlsSupport(new TestConfiguration(null, true));
+
+		assertEquals(200, getStatus(tlsSupport));
+		assertEquals(200, sendUpstream(SeleniumUpstreamTransports.JETTY_NIO, tlsSupport, 10000).getStatus());
+	}
+
+	@Test
+	public void testConfigureJettySslContextFactory() throws Exception {
+		SeleniumTlsSupport tlsSupport = new SeleniumTlsSupport(new TestConfiguration(getResourcePath("selenium-truststore.jks"),
+				false));
+		SslContextFactory factory = new SslContextFactory();
+		SeleniumJettyUpstreamClient.configureSsl(factory, createSettings(tlsSupport));
+
+		factory.start();
+		try {
+			assertSame(tlsSupport.getSslContext(), factory.getSslContext());
+			assertTrue(factory.isSessionCachingEnabled());
+			assertEquals(false, factory.isTrustAll());
+			assertEquals(Arrays.asList("TLSv1.2"), Arrays.asList(factory.newSslEngine().getEnabledProtocols()));
+		}
+		finally {
+			factory.stop();
+		}
+	}
+
+	private int getStatus(SeleniumTlsSupport tlsSupport) throws IOException {
+		CloseableHttpClient client = HttpClients.custom().setSSLSocketFactory(tlsSupport.getSocketFactory()).build();
+		CloseableHttpResponse response = null;
+		try {
+			response = client.execute(new HttpGet(statusUrl));
+			return response.getStatusLine().getStatusCode();
+		}
+		finally {
+			IOUtils.closeQuietly(response);
+			IOUtils.closeQuietly(client);
+		}
+	}
+
+	private SeleniumUpstreamClient.Response sendUpstream(SeleniumUpstreamTransport transport, SeleniumTlsSupport tlsSupport,
+			long timeoutMillis) throws Exception {
+		SeleniumUpstreamClient client = transport.createClient(createSettings(tlsSupport));
+		client.start();
+		try {
+			final SeleniumUpstreamClient.Response[] result = new SeleniumUpstreamClient.Response[1];
+			final CountDownLatch latch = new CountDownLatch(1);
+			SeleniumUpstreamClient.Request request = new SeleniumUpstreamClient.Request("GET", statusUrl);
+			request.setTimeout(timeoutMillis);
+			client.send(request, new SeleniumUpstreamClient.ResponseHandler() {
+				@Override
+				public void onResponse(SeleniumUpstreamClient.Response response) {
+					result[0] = response;
+					latch.countDown();
+				}
+
+				@Override
+				public void onConnectionFailed(Throwable cause) {
+					latch.countDown();
+				}
+
+				@Override
+				public void onException(Throwable cause) {
+					latch.countDown();
+				}
+
+				@Override
+				public void onExpire() {
+					latch.countDown();
+				}
+			});
+			assertTrue(transport.getName() + " did not complete", latch.await(20, TimeUnit.SECONDS));
+			return result[0];
+		}
+		finally {
+			client.stop();
+		}
+	}
+
+	private static SeleniumUpstreamClientSettings createSettings(SeleniumTlsSupport tlsSupport) {
+		return new SeleniumUpstreamClientSettings("tls-test", 8, 2, 5000, 60000, 0, 0, 0, tlsSupport.getSslContext(),
+				tlsSupport.isTrustAll(), tlsSupport.getProtocols(), tlsSupport.getCipherSuites(), null);
+	}
+
+	private static String getResourcePath(String name) throws Exception {
+		return new File(SeleniumTlsSupportTest.class.getResource("/" + name).toURI()).getAbsolutePath();
+	}
+
+	private static class TestConfiguration extends SeleniumModuleConfiguration {
+
+		private String trustStore;
+
+		private boolean trustAll;
+
+		private TestConfiguration(String trustStore, boolean trustAll) {
+			super(null);
+			this.trustStore = trustStore;
+			this.trustAll = trustAll;
+		}
+
+		@Override
+		public String getTlsTrustStore() {
+			return trustStore;
+		}
+
+		@Override
+		public String getTlsTrustStorePassword() {
+			return STORE_PASSWORD;
+		}
+
+		@Override
+		public String getTlsTrustStoreType() {
+			return "JKS";
+		}
+
+		@Override
+		public String getTlsKeyStore() {
+			return null;
+		}
+
+		@Override
+		public boolean isTlsTrustAll() {
+			return trustAll;
+		}
+
+		@Override
+		public int getTlsSessionCacheSize() {
+			return 100;
+		}
+
+		@Override
+		public int getTlsSessionTimeoutSeconds() {
+			return 600;
+		}
+
+		@Override
+		public String getTlsProtocols() {
+			return "TLSv1.2";
+		}
+
+		@Override
+		public String getTlsCipherSuites() {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SeleniumUpstreamClientTest {
+
+	private static final byte[] RESPONSE = "{\"sessionId\":\"4711\",\"status\":0,\"value\":{\"ELEMENT\":\"0\"}}"
+			.getBytes();
+
+	private Server node;
+
+	private String nodeUrl;
+
+	@Before
+	public void startNode() throws Exception {
+		node = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		node.addConnector(connector);
+		node.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+					throws IOException, ServletException {
+				response.setContentType("application/json;charset=UTF-8");
+				response.setContentLength(RESPONSE.length);
+				response.getOutputStream().write(RESPONSE);
+				baseRequest.setHandled(true);
+			}
+		});
+		node.start();
+		nodeUrl = "http://127.0.0.1:" + connector.getLocalPort() + "/wd/hub/session/4711/element";
+	}
+
+	@After
+	public void stopNode() throws Exception {
+		node.stop();
+	}
+
+	@Test
+	public void testForwardsRequestContent() throws Exception {
+		for (SeleniumUpstreamTransport transport : Arrays.asList(SeleniumUpstreamTransports.JETTY_NIO,
+				SeleniumUpstreamTransports.APACHE_ASYNC)) {
+			SeleniumUpstreamClient client = transport.createClient(new SeleniumUpstreamClientSettings("test-"
+					+ transport.getName(), 4, 2, 5000, 60000, 0, 0, 0, SSLContext.getDefault(), false, null, null, null));
+			client.start();
+			try {
+				byte[] body = "{\"using\":\"id\",\"value\":\"q\"}".getBytes();
+				SeleniumUpstreamClient.Request request = new SeleniumUpstreamClient.Request("POST", nodeUrl);
+				request.addHeader("Content-Type", "application/json");
+				request.setContent(new ByteArrayInputStream(body), body.length);
+				request.setTimeout(5000);
+
+				ResultHandler handler = new ResultHandler();
+				client.send(request, handler);
+				assertTrue(handler.latch.await(10, TimeUnit.SECONDS));
+				assertNotNull(transport.getName(), handler.response);
+				assertEquals(200, handler.response.getStatus());
+				assertEquals(new String(RESPONSE), new String(handler.response.getContent()));
+			}
+			finally {
+				client.stop();
+			}
+		}
+	}
+
+	private static class ResultHandler implements SeleniumUpstreamClient.ResponseHandler {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		private volatile SeleniumUpstreamClient.Response response;
+
+		@Override
+		public void onResponse(SeleniumUpstreamClient.Response response) {
+			this.response = response;
+			latch.countDown();
+		}
+
+		@Override
+		public void onConnectionFailed(Throwable cause) {
+			latch.countDown();
+		}
+
+		@Override
+		public void onException(Throwable cause) {
+			latch.countDown();
+		}
+
+		@Override
+		public void onExpire() {
+			latch.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.aludratest.cloud.selenium.util.LatencyHistogram;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the built-in upstream transports against a loopback Selenium node stub which answers each command after a short
+ * delay. Logs latency percentiles, throughput and lost requests of each transport. Not part of the unit tests; run with
+ * <code>mvn test -Pbenchmark</code>.
+ */
+public class SeleniumUpstreamTransportBenchmark {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeleniumUpstreamTransportBenchmark.class);
+
+	private static final int CONCURRENCY = 64;
+
+	private static final int REQUESTS = 4000;
+
+	private static final int NODE_DELAY_MILLIS = 5;
+
+	private static final byte[] RESPONSE = "{\"sessionId\":\"4711\",\"status\":0,\"value\":{\"ELEMENT\":\"0\"}}"
+			.getBytes();
+
+	private Server node;
+
+	private String nodeUrl;
+
+	@Before
+	public void startNode() throws Exception {
+		node = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		node.addConnector(connector);
+		node.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+					throws IOException, ServletException {
+				try {
+					Thread.sleep(NODE_DELAY_MILLIS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				response.setContentType("application/json;charset=UTF-8");
+				response.setContentLength(RESPONSE.length);
+				response.getOutputStream().write(RESPONSE);
+				baseRequest.setHandled(true);
+			}
+		});
+		node.start();
+		nodeUrl = "http://127.0.0.1:" + connector.getLocalPort() + "/wd/hub/session/4711/element";
+	}
+
+	@After
+	public void stopNode() throws Exception {
+		node.stop();
+	}
+
+	@Test
+	public void testCompareTransports() throws Exception {
+		List<SeleniumUpstreamTransport> transports = Arrays.asList(SeleniumUpstreamTransports.JETTY_NIO,
+				SeleniumUpstreamTransports.JETTY_BLOCKING, SeleniumUpstreamTransports.APACHE_ASYNC);
+
+		LOG.info(String.format("%-16s %8s %8s %10s %6s", "transport", "p50", "p99", "req/s", "lost"));
+		for (SeleniumUpstreamTransport transport : transports) {
+			SeleniumUpstreamClient client = transport.createClient(new SeleniumUpstreamClientSettings("benchmark-"
+					+ transport.getName(), CONCURRENCY * 4, CONCURRENCY, 5000, 60000, 0, 0, 0, SSLContext.getDefault(), false,
+					null, null, null));
+			client.start();
+			try {
+				// warm up, which also opens the connections
+				int lost = run(client, CONCURRENCY * 4, new LatencyHistogram());
+
+				LatencyHistogram histogram = new LatencyHistogram();
+				long start = System.nanoTime();
+				lost += run(client, REQUESTS, histogram);
+				long millis = Math.max(1, (System.nanoTime() - start) / 1000000l);
+
+				LOG.info(String.format("%-16s %8s %8s %10d %6d", transport.getName(),
+						LatencyHistogram.format(histogram.getPercentile(0.5)),
+						LatencyHistogram.format(histogram.getPercentile(0.99)), REQUESTS * 1000l / millis, lost));
+				assertTrue(histogram.getPercentile(0.5) >= NODE_DELAY_MILLIS);
+				// requests expiring or failing are reported as lost; more than a few indicate a broken transport
+				assertTrue(transport.getName() + " lost " + lost + " requests", lost <= REQUESTS / 100);
+			}
+			finally {
+				client.stop();
+			}
+		}
+	}
+
+	private int run(final SeleniumUpstreamClient client, int requests, final LatencyHistogram histogram)
+			throws InterruptedException {
+		final AtomicInteger remaining = new AtomicInteger(requests);
+		final AtomicInteger failures = new AtomicInteger();
+		// each thread simulates a test client, which waits for the response before sending its next command
+		Thread[] threads = new Thread[CONCURRENCY];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					while (remaining.getAndDecrement() > 0) {
+						SeleniumUpstreamClient.Request request = new SeleniumUpstreamClient.Request("GET", nodeUrl);
+						request.setTimeout(10000);
+						ResultHandler handler = new ResultHandler();
+						long start = System.nanoTime();
+						client.send(request, handler);
+						try {
+							if (!handler.latch.await(20, TimeUnit.SECONDS) || handler.response == null
+									|| handler.response.getStatus() != 200) {
+								failures.incrementAndGet();
+							}
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+						histogram.record((System.nanoTime() - start) / 1000000l);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return failures.get();
+	}
+
+	private static class ResultHandler implements SeleniumUpstreamClient.ResponseHandler {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		private volatile SeleniumUpstreamClient.Response response;
+
+		@Override
+		public void onResponse(SeleniumUpstreamClient.Response response) {
+			this.response = response;
+			latch.countDown();
+		}
+
+		@Override
+		public void onConnectionFailed(Throwable cause) {
+			latch.countDown();
+		}
+
+		@Override
+		public void onException(Throwable cause) {
+			latch.countDown();
+		}
+
+		@Override
+		public void onExpire() {
+			latch.countDown();
+		}
+	}
+
+}
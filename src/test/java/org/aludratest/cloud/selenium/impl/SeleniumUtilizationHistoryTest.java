@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.selenium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.aludratest.cloud.resource.ResourceState;
+import org.aludratest.cloud.selenium.impl.SeleniumUtilizationHistory.StateTransition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SeleniumUtilizationHistoryTest {
+
+	// both URLs have the same hash code
+	private static final String URL_1 = "http://Aa.example.com:4444";
+
+	private static final String URL_2 = "http://BB.example.com:4444";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testResourceIdsAreStableAcrossRestarts() throws Exception {
+		assertEquals(URL_1.hashCode(), URL_2.hashCode());
+		File file = new File(folder.getRoot(), "history.dat");
+
+		SeleniumUtilizationHistory history = new SeleniumUtilizationHistory(file, 1);
+		history.start();
+		history.resourceStateChanged(new SeleniumResourceImpl(URL_1), ResourceState.READY, ResourceState.IN_USE);
+		history.close();
+
+		history = new SeleniumUtilizationHistory(file, 1);
+		history.start();
+		history.resourceStateChanged(new SeleniumResourceImpl(URL_2), ResourceState.READY, ResourceState.DISCONNECTED);
+		history.close();
+
+		history = new SeleniumUtilizationHistory(file, 1);
+		List<StateTransition> transitions = history.getStateTransitions(URL_1, 0, Long.MAX_VALUE);
+		assertEquals(1, transitions.size());
+		assertEquals(ResourceState.IN_USE, transitions.get(0).getNewState());
+		transitions = history.getStateTransitions(URL_2, 0, Long.MAX_VALUE);
+		assertEquals(1, transitions.size());
+		assertEquals(ResourceState.DISCONNECTED, transitions.get(0).getNewState());
+		assertTrue(history.getStateTransitions("http://unknown:4444", 0, Long.MAX_VALUE).isEmpty());
+		history.close();
+	}
+
+	@Test
+	public void testIncompleteIndexDiscardsHistory() throws Exception {
+		File file = new File(folder.getRoot(), "history.dat");
+
+		SeleniumUtilizationHistory history = new SeleniumUtilizationHistory(file, 1);
+		history.start();
+		history.resourceStateChanged(new SeleniumResourceImpl(URL_1), ResourceState.READY, ResourceState.IN_USE);
+		history.resourceStateChanged(new SeleniumResourceImpl(URL_2), ResourceState.READY, ResourceState.IN_USE);
+		history.close();
+
+		// cut the second URL in half, as if the process crashed while appending it
+		File indexFile = new File(file.getPath() + ".urls");
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		index.setLength(index.length() - 5);
+		index.close();
+
+		// records could refer to unknown IDs, so the history starts from scratch
+		history = new SeleniumUtilizationHistory(file, 1);
+		assertEquals(0, history.getRecordCount());
+		assertTrue(history.getStateTransitions(URL_1, 0, Long.MAX_VALUE).isEmpty());
+		history.close();
+		assertEquals(0, indexFile.length());
+	}
+
+}